@@ -0,0 +1,24 @@
+# Decodes DER structures made of many INTEGER, UTCTime and OBJECT
+# IDENTIFIER nodes with OpenSSL::ASN1.decode.
+#
+#   jruby -Ilib bench/bench_asn1_decode.rb [nodes]
+require 'benchmark'
+require 'openssl'
+
+NODES = (ARGV[0] || 20_000).to_i
+
+now = Time.at(Time.now.to_i)
+INTEGERS = OpenSSL::ASN1::Sequence.new((0...NODES).map { |i| OpenSSL::ASN1::Integer.new(i * 7919) }).to_der
+BIGNUMS = OpenSSL::ASN1::Sequence.new((0...NODES).map { |i| OpenSSL::ASN1::Integer.new(2**100 + i) }).to_der
+TIMES = OpenSSL::ASN1::Sequence.new((0...NODES).map { |i| OpenSSL::ASN1::UTCTime.new(now + i) }).to_der
+MIXED = OpenSSL::ASN1::Sequence.new((0...NODES / 3).map { |i|
+  OpenSSL::ASN1::Sequence.new([OpenSSL::ASN1::ObjectId.new("2.5.4.3"), OpenSSL::ASN1::Integer.new(i), OpenSSL::ASN1::UTCTime.new(now + i)])
+}).to_der
+
+puts "#{NODES} nodes per structure"
+Benchmark.bm(12) do |bm|
+  bm.report("integers") { 5.times { OpenSSL::ASN1.decode(INTEGERS) } }
+  bm.report("bignums") { 5.times { OpenSSL::ASN1.decode(BIGNUMS) } }
+  bm.report("utc times") { 5.times { OpenSSL::ASN1.decode(TIMES) } }
+  bm.report("mixed") { 5.times { OpenSSL::ASN1.decode(MIXED) } }
+end
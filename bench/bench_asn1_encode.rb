@@ -0,0 +1,26 @@
+# Encodes OpenSSL::ASN1 object graphs made of many INTEGER, OCTET STRING,
+# UTCTime and tagged nodes with #to_der.
+#
+#   jruby -Ilib bench/bench_asn1_encode.rb [nodes]
+require 'benchmark'
+require 'openssl'
+
+NODES = (ARGV[0] || 20_000).to_i
+
+now = Time.at(Time.now.to_i)
+INTEGERS = OpenSSL::ASN1::Sequence.new((0...NODES).map { |i| OpenSSL::ASN1::Integer.new(i * 7919) })
+STRINGS = OpenSSL::ASN1::Sequence.new((0...NODES).map { |i| OpenSSL::ASN1::OctetString.new("x" * (i % 200)) })
+TIMES = OpenSSL::ASN1::Sequence.new((0...NODES).map { |i| OpenSSL::ASN1::UTCTime.new(now + i) })
+NESTED = OpenSSL::ASN1::Sequence.new((0...NODES / 4).map { |i|
+  OpenSSL::ASN1::Sequence.new([OpenSSL::ASN1::ObjectId.new("2.5.4.3"),
+                               OpenSSL::ASN1::ASN1Data.new([OpenSSL::ASN1::Integer.new(i)], 0, :CONTEXT_SPECIFIC),
+                               OpenSSL::ASN1::Sequence.new([OpenSSL::ASN1::Boolean.new(true), OpenSSL::ASN1::Null.new(nil)])])
+})
+
+puts "#{NODES} nodes per structure"
+Benchmark.bm(12) do |bm|
+  bm.report("integers") { 5.times { INTEGERS.to_der } }
+  bm.report("strings") { 5.times { STRINGS.to_der } }
+  bm.report("utc times") { 5.times { TIMES.to_der } }
+  bm.report("nested") { 5.times { NESTED.to_der } }
+end
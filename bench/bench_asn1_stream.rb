@@ -0,0 +1,33 @@
+# Decodes a stream of concatenated DER objects: slicing the string and
+# calling ASN1.decode per object, ASN1.decode_all, and ASN1::Decoder
+# reading from an IO.
+#
+#   jruby -Ilib bench/bench_asn1_stream.rb [objects]
+require 'benchmark'
+require 'openssl'
+require 'stringio'
+
+OBJECTS = (ARGV[0] || 20_000).to_i
+
+record = lambda do |i|
+  OpenSSL::ASN1::Sequence.new([OpenSSL::ASN1::Integer.new(i),
+                               OpenSSL::ASN1::OctetString.new("record #{i}" * 4)]).to_der
+end
+DER = (0...OBJECTS).map { |i| record[i] }.join
+
+def slice_and_decode(der)
+  result = []
+  until der.empty?
+    obj = OpenSSL::ASN1.decode(der)
+    result << obj
+    der = der[obj.to_der.size..-1]
+  end
+  result
+end
+
+puts "#{OBJECTS} objects, #{DER.size / 1024} KB"
+Benchmark.bm(18) do |bm|
+  bm.report("slice + decode") { 5.times { slice_and_decode(DER) } }
+  bm.report("decode_all") { 5.times { OpenSSL::ASN1.decode_all(DER) } }
+  bm.report("Decoder on IO") { 5.times { OpenSSL::ASN1::Decoder.new(StringIO.new(DER)).each { |o| o } } }
+end
@@ -0,0 +1,26 @@
+# Times the Base64 paths: reading a large application/pkcs7-mime
+# message with read_smime, and reading certificates from PEM.
+#
+#   jruby -Ilib bench/bench_base64.rb [megabytes] [certificates]
+require 'benchmark'
+require 'openssl'
+require File.join(File.dirname(__FILE__), 'bench_helper')
+
+MEGABYTES = (ARGV[0] || 8).to_i
+CERTS = (ARGV[1] || 5_000).to_i
+
+key, cert = self_signed_cert
+
+data = "0123456789abcdef" * (MEGABYTES * 64 * 1024)
+der = OpenSSL::PKCS7.sign(cert, key, data, [], OpenSSL::PKCS7::BINARY).to_der
+message = "MIME-Version: 1.0\nContent-Type: application/pkcs7-mime; smime-type=signed-data\n" +
+  "Content-Transfer-Encoding: base64\n\n" + [der].pack("m") + "\n"
+pem = cert.to_pem
+
+puts "#{MEGABYTES} MB message, #{CERTS} certificates"
+Benchmark.bm(12) do |bm|
+  3.times do
+    bm.report("read_smime") { OpenSSL::PKCS7.read_smime(message) }
+    bm.report("pem cert") { CERTS.times { OpenSSL::X509::Certificate.new(pem) } }
+  end
+end
@@ -0,0 +1,43 @@
+# Compares the immutable BN operators against the in-place (bang) variants
+# on a DH/SRP style chain of modular operations.
+#
+#   jruby -Ilib bench/bench_bn.rb [iterations]
+require 'benchmark'
+require 'openssl'
+
+ITERATIONS = (ARGV[0] || 20_000).to_i
+
+N = OpenSSL::BN.new(
+  "FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74" +
+  "020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B302B0A6DF25F1437" +
+  "4FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED" +
+  "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE65381FFFFFFFFFFFFFFFF", 16)
+A = OpenSSL::BN.rand(1000)
+B = OpenSSL::BN.rand(1000)
+
+Benchmark.bm(28) do |bm|
+  bm.report("immutable mod_mul/add") do
+    x = A
+    ITERATIONS.times { x = x.mod_mul(B, N).mod_add(A, N) }
+  end
+  bm.report("in-place mod_mul!/add!") do
+    x = A.dup
+    ITERATIONS.times { x.mod_mul!(B, N).mod_add!(A, N) }
+  end
+  bm.report("immutable + / << / %") do
+    x = A
+    ITERATIONS.times { x = ((x + B) << 1) % N }
+  end
+  bm.report("in-place add!/lshift!/mod!") do
+    x = A.dup
+    ITERATIONS.times { x.add!(B).lshift!(1).mod!(N) }
+  end
+  bm.report("immutable mod_exp") do
+    x = A
+    (ITERATIONS / 100).times { x = x.mod_exp(B, N) }
+  end
+  bm.report("in-place mod_exp!") do
+    x = A.dup
+    (ITERATIONS / 100).times { x.mod_exp!(B, N) }
+  end
+end
@@ -0,0 +1,22 @@
+# Encrypts many short messages the common Ruby way: a keyed template
+# cipher is dup'ed per message. Also times Cipher.new and padding=.
+#
+#   jruby -Ilib bench/bench_cipher_dup.rb [messages]
+require 'benchmark'
+require 'openssl'
+
+MESSAGES = (ARGV[0] || 20_000).to_i
+
+template = OpenSSL::Cipher::Cipher.new("aes-128-cbc")
+template.encrypt
+template.key = "k" * 16
+template.iv = "i" * 16
+
+puts "#{MESSAGES} messages"
+Benchmark.bm(14) do |bm|
+  bm.report("dup + encrypt") do
+    MESSAGES.times { c = template.dup; c.update("message body"); c.final }
+  end
+  bm.report("new") { MESSAGES.times { OpenSSL::Cipher::Cipher.new("aes-128-cbc") } }
+  bm.report("padding=") { MESSAGES.times { template.dup.padding = 0 } }
+end
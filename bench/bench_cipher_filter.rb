@@ -0,0 +1,40 @@
+# Pushes a payload through the cipher BIO filter, encrypting on write
+# and decrypting on read, as enveloped PKCS7 content goes through it.
+#
+#   jruby -Ilib bench/bench_cipher_filter.rb [megabytes]
+require 'benchmark'
+require 'java'
+require 'openssl'
+
+BIO = org.jruby.ext.openssl.impl.BIO
+Cipher = javax.crypto.Cipher
+
+MEGABYTES = (ARGV[0] || 64).to_i
+
+def aes(mode)
+  cipher = Cipher.getInstance("AES/CBC/PKCS5Padding")
+  key = javax.crypto.spec.SecretKeySpec.new(("k" * 16).to_java_bytes, "AES")
+  cipher.init(mode, key, javax.crypto.spec.IvParameterSpec.new(("i" * 16).to_java_bytes))
+  cipher
+end
+
+chunk = ("0123456789abcdef" * 4096).to_java_bytes
+encrypted = aes(Cipher::ENCRYPT_MODE).doFinal(("0123456789abcdef" * 65536 * MEGABYTES).to_java_bytes)
+into = Java::byte[chunk.length].new
+
+puts "#{MEGABYTES} MB"
+Benchmark.bm(8) do |bm|
+  3.times do
+    bm.report("write") do
+      bio = BIO.cipherFilter(aes(Cipher::ENCRYPT_MODE))
+      bio.push(BIO.nullSink)
+      (MEGABYTES * 16).times { bio.write(chunk, 0, chunk.length) }
+      bio.flush
+    end
+    bm.report("read") do
+      bio = BIO.cipherFilter(aes(Cipher::DECRYPT_MODE))
+      bio.push(BIO.memBuf(encrypted))
+      while bio.read(into, 0, into.length) > 0; end
+    end
+  end
+end
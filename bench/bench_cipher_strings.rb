@@ -0,0 +1,23 @@
+# Matches representative OpenSSL cipher lists against the cipher suites
+# the default JSSE engine supports, the work SSLContext does on setup.
+#
+#   jruby -Ilib bench/bench_cipher_strings.rb [iterations]
+require 'benchmark'
+require 'java'
+require 'openssl'
+
+ITERATIONS = (ARGV[0] || 20_000).to_i
+
+CipherStrings = org.jruby.ext.openssl.CipherStrings
+SUPPORTED = javax.net.ssl.SSLContext.getDefault.createSSLEngine.getSupportedCipherSuites
+LISTS = [CipherStrings::SSL_DEFAULT_CIPHER_LIST,
+         "ALL:!EXP:!LOW:!ADH:+RC4:@STRENGTH",
+         "HIGH:-DSS:+AES:@STRENGTH",
+         "RSA:EDH:!NULL:!EXPORT:-RC4:RC4"]
+
+puts "#{ITERATIONS} matches per cipher list"
+Benchmark.bm(36) do |bm|
+  LISTS.each do |list|
+    bm.report(list) { ITERATIONS.times { CipherStrings.getMatchingCiphers(list, SUPPORTED) } }
+  end
+end
@@ -0,0 +1,28 @@
+# Parses a CRL with many revoked entries and looks serials up in it, with
+# and without materializing the revoked array.
+#
+#   jruby -Ilib bench/bench_crl.rb [entries]
+require 'benchmark'
+require 'openssl'
+require 'java'
+
+ENTRIES = (ARGV[0] || 100_000).to_i
+
+pair = java.security.KeyPairGenerator.getInstance("RSA").generateKeyPair
+gen = org.bouncycastle.x509.X509V2CRLGenerator.new
+gen.setIssuerDN(org.bouncycastle.asn1.x509.X509Name.new("CN=bench CA"))
+gen.setThisUpdate(java.util.Date.new)
+gen.setNextUpdate(java.util.Date.new(java.lang.System.currentTimeMillis + 3600000))
+gen.setSignatureAlgorithm("SHA1WithRSA")
+now = java.util.Date.new
+ENTRIES.times { |i| gen.addCRLEntry(java.math.BigInteger.valueOf(1000 + i * 7), now, 1) }
+DER = String.from_java_bytes(gen.generate(pair.getPrivate, "SunRsaSign").getEncoded)
+LAST = 1000 + (ENTRIES - 1) * 7
+
+puts "#{ENTRIES} entries, #{DER.size / 1024} KB"
+Benchmark.bm(22) do |bm|
+  bm.report("parse") { 5.times { OpenSSL::X509::CRL.new(DER) } }
+  bm.report("parse + revoked?(last)") { 5.times { OpenSSL::X509::CRL.new(DER).revoked?(LAST) } }
+  bm.report("parse + each_revoked") { 5.times { OpenSSL::X509::CRL.new(DER).each_revoked { |r| r } } }
+  bm.report("parse + revoked array") { 5.times { OpenSSL::X509::CRL.new(DER).revoked.any? { |r| r.serial == LAST } } }
+end
@@ -0,0 +1,40 @@
+# Builds and signs a CRL with many revoked entries, adding them one
+# X509::Revoked at a time and in bulk with add_revoked_entries.
+#
+#   jruby -Ilib bench/bench_crl_sign.rb [entries]
+require 'benchmark'
+require 'openssl'
+
+ENTRIES = (ARGV[0] || 100_000).to_i
+
+KEY = OpenSSL::PKey::RSA.new(1024)
+NOW = Time.now
+SERIALS = (0...ENTRIES).map { |i| 1000 + i * 7 }
+
+def new_crl
+  crl = OpenSSL::X509::CRL.new
+  crl.version = 1
+  crl.issuer = OpenSSL::X509::Name.parse("/CN=bench CA")
+  crl.last_update = NOW
+  crl.next_update = NOW + 3600
+  crl
+end
+
+puts "#{ENTRIES} entries"
+Benchmark.bm(26) do |bm|
+  bm.report("add_revoked + sign") do
+    crl = new_crl
+    SERIALS.each do |serial|
+      rev = OpenSSL::X509::Revoked.new
+      rev.serial = serial
+      rev.time = NOW
+      crl.add_revoked(rev)
+    end
+    crl.sign(KEY, OpenSSL::Digest::SHA1.new)
+  end
+  bm.report("add_revoked_entries + sign") do
+    crl = new_crl
+    crl.add_revoked_entries(SERIALS, NOW)
+    crl.sign(KEY, OpenSSL::Digest::SHA1.new)
+  end
+end
@@ -0,0 +1,18 @@
+# Shared setup for the benchmarks, required from each script.
+require 'openssl'
+
+# A fresh 1024 bit RSA key and a self-signed certificate for it, valid
+# for an hour. Returns [key, cert].
+def self_signed_cert(cn = "bench", serial = 1)
+  key = OpenSSL::PKey::RSA.new(1024)
+  name = OpenSSL::X509::Name.parse("/CN=#{cn}")
+  cert = OpenSSL::X509::Certificate.new
+  cert.version = 2
+  cert.serial = serial
+  cert.subject = cert.issuer = name
+  cert.public_key = key.public_key
+  cert.not_before = Time.now
+  cert.not_after = Time.now + 3600
+  cert.sign(key, OpenSSL::Digest::SHA1.new)
+  [key, cert]
+end
@@ -0,0 +1,40 @@
+# Digests a payload with SHA-1, SHA-256 and MD5 at once, as a PKCS7
+# with co-signers using those algorithms does: once through a chain of
+# one digest filter per algorithm, once through a single filter
+# carrying all three.
+#
+#   jruby -Ilib bench/bench_md_filter.rb [megabytes]
+require 'benchmark'
+require 'java'
+require 'openssl'
+
+BIO = org.jruby.ext.openssl.impl.BIO
+EVP = org.jruby.ext.openssl.impl.EVP
+ASN1Registry = org.jruby.ext.openssl.impl.ASN1Registry
+NIDS = [ASN1Registry::NID_sha1, ASN1Registry::NID_sha256, ASN1Registry::NID_md5]
+
+MEGABYTES = (ARGV[0] || 64).to_i
+chunk = ("0123456789abcdef" * 512).to_java_bytes
+
+def pump(bio, chunk)
+  (MEGABYTES * 128).times { bio.write(chunk, 0, chunk.length) }
+end
+
+puts "#{MEGABYTES} MB"
+Benchmark.bm(8) do |bm|
+  bm.report("chained") do
+    bio = nil
+    NIDS.each do |nid|
+      filter = BIO.mdFilter(EVP.getDigest(nid))
+      bio ? bio.push(filter) : bio = filter
+    end
+    bio.push(BIO.nullSink)
+    pump(bio, chunk)
+  end
+  bm.report("fused") do
+    bio = BIO.mdFilter(EVP.getDigest(NIDS[0]))
+    NIDS[1..-1].each { |nid| bio.add(EVP.getDigest(nid)) }
+    bio.push(BIO.nullSink)
+    pump(bio, chunk)
+  end
+end
@@ -0,0 +1,33 @@
+# Compares BN#mod_exp / BN#mod_mul against OpenSSL::BN::MontContext for a
+# fixed 2048-bit modulus (RFC 3526 group 14), with and without a
+# precomputed generator table.
+#
+#   jruby -Ilib bench/bench_mont.rb [iterations]
+require 'benchmark'
+require 'openssl'
+
+ITERATIONS = (ARGV[0] || 1000).to_i
+
+P = OpenSSL::BN.new(
+  "FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74" +
+  "020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B302B0A6DF25F1437" +
+  "4FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED" +
+  "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF05" +
+  "98DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB" +
+  "9ED529077096966D670C354E4ABC9804F1746C08CA18217C32905E462E36CE3B" +
+  "E39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF695581718" +
+  "3995497CEA956AE515D2261898FA051015728E5A8AACAA68FFFFFFFFFFFFFFFF", 16)
+G = OpenSSL::BN.new("2")
+CTX = OpenSSL::BN::MontContext.new(P)
+GEN_CTX = OpenSSL::BN::MontContext.new(P).precompute(G)
+EXPONENTS = (1..16).map { OpenSSL::BN.rand(2047) }
+A = OpenSSL::BN.rand_range(P)
+B = OpenSSL::BN.rand_range(P)
+
+Benchmark.bm(26) do |bm|
+  bm.report("BN#mod_exp(g)") { ITERATIONS.times { |i| G.mod_exp(EXPONENTS[i % 16], P) } }
+  bm.report("MontContext#mod_exp(g)") { ITERATIONS.times { |i| CTX.mod_exp(G, EXPONENTS[i % 16]) } }
+  bm.report("precomputed mod_exp(g)") { ITERATIONS.times { |i| GEN_CTX.mod_exp(G, EXPONENTS[i % 16]) } }
+  bm.report("BN#mod_mul") { (ITERATIONS * 100).times { A.mod_mul(B, P) } }
+  bm.report("MontContext#mod_mul") { (ITERATIONS * 100).times { CTX.mod_mul(A, B) } }
+end
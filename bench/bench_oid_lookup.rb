@@ -0,0 +1,20 @@
+# OID and name lookups from several threads at once: ObjectId#sn/#ln and
+# building and printing X509::Names, which go through the OID tables.
+#
+#   jruby -Ilib bench/bench_oid_lookup.rb [threads] [iterations]
+require 'benchmark'
+require 'openssl'
+
+THREADS = (ARGV[0] || 4).to_i
+ITERATIONS = (ARGV[1] || 20_000).to_i
+
+def in_threads
+  (0...THREADS).map { Thread.new { ITERATIONS.times { yield } } }.each { |t| t.join }
+end
+
+oid = OpenSSL::ASN1::ObjectId.new("2.5.4.3")
+puts "#{THREADS} threads x #{ITERATIONS}"
+Benchmark.bm(16) do |bm|
+  bm.report("ObjectId#sn/ln") { in_threads { oid.sn; oid.ln } }
+  bm.report("Name.parse + to_s") { in_threads { OpenSSL::X509::Name.parse("/C=US/O=JRuby/CN=bench").to_s } }
+end
@@ -0,0 +1,22 @@
+# Encrypts one message with PKCS7.encrypt to many recipients, which
+# wraps the content key once for each of them.
+#
+#   jruby -Ilib bench/bench_pkcs7_recipients.rb [recipients]
+require 'benchmark'
+require 'openssl'
+require File.join(File.dirname(__FILE__), 'bench_helper')
+
+RECIPIENTS = (ARGV[0] || 2000).to_i
+
+certs = (1..10).map { |i| self_signed_cert("recipient#{i}", i)[1] }
+certs = certs * (RECIPIENTS / certs.size)
+data = "notification\n" * 100
+
+puts "#{certs.size} recipients"
+Benchmark.bm(8) do |bm|
+  3.times do
+    bm.report("encrypt") do
+      OpenSSL::PKCS7.encrypt(certs, data, OpenSSL::Cipher::Cipher.new("AES-128-CBC"), OpenSSL::PKCS7::BINARY)
+    end
+  end
+end
@@ -0,0 +1,24 @@
+# Signs a large payload with PKCS7.sign, once buffered and DER encoded,
+# once with STREAM written out as indefinite length BER from an IO.
+#
+#   jruby -Ilib bench/bench_pkcs7_stream_sign.rb [megabytes]
+require 'benchmark'
+require 'stringio'
+require 'openssl'
+require File.join(File.dirname(__FILE__), 'bench_helper')
+
+MEGABYTES = (ARGV[0] || 16).to_i
+
+key, cert = self_signed_cert
+
+data = ("0123456789abcdef" * 64 + "\n") * (MEGABYTES * 1024)
+flags = OpenSSL::PKCS7::BINARY
+
+puts "#{MEGABYTES} MB"
+Benchmark.bm(10) do |bm|
+  bm.report("to_der") { OpenSSL::PKCS7.sign(cert, key, data, [], flags).to_der }
+  bm.report("stream") do
+    p7 = OpenSSL::PKCS7.sign(cert, key, StringIO.new(data), [], flags | OpenSSL::PKCS7::STREAM)
+    p7.write_der(StringIO.new)
+  end
+end
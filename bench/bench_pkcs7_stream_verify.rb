@@ -0,0 +1,43 @@
+# Verifies a detached signature over a large file and decrypts a large
+# envelope, once through Strings and once from and to IO objects.
+# The String runs hold several copies of the payload; give the JVM a
+# big enough heap (-J-Xmx) or run them with a smaller size.
+#
+#   jruby -Ilib bench/bench_pkcs7_stream_verify.rb [megabytes]
+require 'benchmark'
+require 'stringio'
+require 'tempfile'
+require 'openssl'
+require File.join(File.dirname(__FILE__), 'bench_helper')
+
+MEGABYTES = (ARGV[0] || 1024).to_i
+
+key, cert = self_signed_cert
+store = OpenSSL::X509::Store.new
+store.add_cert(cert)
+
+content = Tempfile.new("bench_pkcs7")
+line = "0123456789abcdef" * 64 + "\n"
+(MEGABYTES * 1024).times { content.write(line) }
+content.close
+
+flags = OpenSSL::PKCS7::BINARY | OpenSSL::PKCS7::DETACHED | OpenSSL::PKCS7::NOVERIFY
+signed = File.open(content.path, "rb") do |io|
+  p7 = OpenSSL::PKCS7.sign(cert, key, io, [], flags | OpenSSL::PKCS7::STREAM)
+  der = StringIO.new
+  p7.write_der(der)
+  OpenSSL::PKCS7::PKCS7.new(der.string)
+end
+enveloped = OpenSSL::PKCS7.encrypt([cert], File.read(content.path),
+                                   OpenSSL::Cipher::AES.new("128-CBC"), OpenSSL::PKCS7::BINARY)
+sink = File.open("/dev/null", "wb")
+
+puts "#{MEGABYTES} MB"
+Benchmark.bm(14) do |bm|
+  bm.report("verify string") { signed.verify([], store, File.read(content.path), flags) }
+  bm.report("verify io") do
+    File.open(content.path, "rb") { |io| signed.verify([], store, io, flags, sink) }
+  end
+  bm.report("decrypt string") { enveloped.decrypt(key, cert) }
+  bm.report("decrypt io") { enveloped.decrypt(key, cert, nil, sink) }
+end
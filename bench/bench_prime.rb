@@ -0,0 +1,20 @@
+# Times BN.generate_prime and DH parameter generation.
+#
+#   jruby -Ilib bench/bench_prime.rb [bits] [rounds]
+require 'benchmark'
+require 'openssl'
+
+BITS = (ARGV[0] || 1024).to_i
+ROUNDS = (ARGV[1] || 3).to_i
+
+Benchmark.bm(28) do |bm|
+  bm.report("generate_prime(#{BITS})") do
+    ROUNDS.times { OpenSSL::BN.generate_prime(BITS, false) }
+  end
+  bm.report("generate_prime(#{BITS}, safe)") do
+    ROUNDS.times { OpenSSL::BN.generate_prime(BITS, true) }
+  end
+  bm.report("DH.generate(#{BITS})") do
+    ROUNDS.times { OpenSSL::PKey::DH.generate(BITS) }
+  end
+end
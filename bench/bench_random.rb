@@ -0,0 +1,27 @@
+# Multi-threaded throughput benchmark for OpenSSL::Random and BN.rand.
+#
+#   jruby -Ilib bench/bench_random.rb [threads] [iterations]
+require 'benchmark'
+require 'openssl'
+
+THREADS = (ARGV[0] || 8).to_i
+ITERATIONS = (ARGV[1] || 100_000).to_i
+
+def run(label, &block)
+  time = Benchmark.realtime do
+    (1..THREADS).map { Thread.new { ITERATIONS.times(&block) } }.each { |t| t.join }
+  end
+  ops = THREADS * ITERATIONS / time
+  puts "%-32s %8.3fs %12.0f ops/s" % [label, time, ops]
+end
+
+puts "#{THREADS} threads x #{ITERATIONS} iterations"
+[false, true].each do |buffered|
+  OpenSSL::Random.buffered = buffered
+  mode = buffered ? "buffered" : "unbuffered"
+  run("random_bytes(16) #{mode}") { OpenSSL::Random.random_bytes(16) }
+  run("pseudo_bytes(16) #{mode}") { OpenSSL::Random.pseudo_bytes(16) }
+  run("random_bytes(256) #{mode}") { OpenSSL::Random.random_bytes(256) }
+end
+OpenSSL::Random.buffered = false
+run("BN.rand(256)") { OpenSSL::BN.rand(256) }
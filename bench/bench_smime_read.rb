@@ -0,0 +1,25 @@
+# Reads a large detached multipart/signed message with
+# PKCS7.read_smime and verifies it against the content it returns.
+#
+#   jruby -Ilib bench/bench_smime_read.rb [megabytes]
+require 'benchmark'
+require 'openssl'
+require File.join(File.dirname(__FILE__), 'bench_helper')
+
+MEGABYTES = (ARGV[0] || 8).to_i
+
+key, cert = self_signed_cert
+
+data = ("0123456789abcdef" * 4 + "\r\n") * (MEGABYTES * 16384)
+flags = OpenSSL::PKCS7::DETACHED | OpenSSL::PKCS7::BINARY
+smime = OpenSSL::PKCS7.write_smime(OpenSSL::PKCS7.sign(cert, key, data, [], flags), data, flags)
+store = OpenSSL::X509::Store.new
+read = nil
+
+puts "#{MEGABYTES} MB"
+Benchmark.bm(8) do |bm|
+  3.times do
+    bm.report("read") { read = OpenSSL::PKCS7.read_smime(smime) }
+    bm.report("verify") { read.verify([cert], store, read.data, OpenSSL::PKCS7::NOVERIFY) }
+  end
+end
@@ -0,0 +1,70 @@
+# Parses a 100 certificate chain, once touching only subject/not_after and
+# once touching every field, and wraps an already parsed chain the way
+# SSLSocket#peer_cert_chain does.
+#
+#   jruby -Ilib bench/bench_x509.rb [iterations]
+require 'benchmark'
+require 'openssl'
+require 'java'
+require 'jruby'
+
+ITERATIONS = (ARGV[0] || 20).to_i
+
+def issue(subject, issuer, issuer_key, key, serial)
+  cert = OpenSSL::X509::Certificate.new
+  cert.version = 2
+  cert.serial = serial
+  cert.subject = OpenSSL::X509::Name.parse(subject)
+  cert.issuer = OpenSSL::X509::Name.parse(issuer)
+  cert.public_key = key
+  cert.not_before = Time.now
+  cert.not_after = Time.now + 3600
+  ef = OpenSSL::X509::ExtensionFactory.new
+  ef.subject_certificate = cert
+  cert.add_extension(ef.create_extension("basicConstraints", "CA:TRUE", true))
+  cert.add_extension(ef.create_extension("keyUsage", "keyCertSign, cRLSign", true))
+  cert.add_extension(ef.create_extension("subjectKeyIdentifier", "hash", false))
+  cert.sign(issuer_key, OpenSSL::Digest::SHA1.new)
+  cert
+end
+
+keys = (0..4).map { OpenSSL::PKey::RSA.new(1024) }
+issuer = "/DC=org/DC=jruby/CN=CA 0"
+CHAIN = (1..100).map do |i|
+  subject = "/DC=org/DC=jruby/CN=CA #{i}"
+  cert = issue(subject, issuer, keys[(i - 1) % 5], keys[i % 5], i)
+  issuer = subject
+  cert.to_der
+end
+
+factory = java.security.cert.CertificateFactory.getInstance("X.509")
+JAVA_CHAIN = CHAIN.map { |der| factory.generateCertificate(java.io.ByteArrayInputStream.new(der.to_java_bytes)) }
+STORE_CHAIN = CHAIN.map { |der| OpenSSL::X509::Certificate.new(der) }
+
+Benchmark.bm(24) do |bm|
+  bm.report("parse, subject/not_after") do
+    ITERATIONS.times { CHAIN.each { |der| c = OpenSSL::X509::Certificate.new(der); c.subject; c.not_after } }
+  end
+  bm.report("parse, all fields") do
+    ITERATIONS.times do
+      CHAIN.each do |der|
+        c = OpenSSL::X509::Certificate.new(der)
+        c.serial; c.subject; c.issuer; c.not_before; c.not_after; c.public_key; c.extensions
+      end
+    end
+  end
+  bm.report("wrap, subject/not_after") do
+    ITERATIONS.times do
+      JAVA_CHAIN.each { |j| c = org.jruby.ext.openssl.X509Cert.wrap(JRuby.runtime, j); c.subject; c.not_after }
+    end
+  end
+  bm.report("store chain") do
+    ITERATIONS.times do
+      store = OpenSSL::X509::Store.new
+      store.add_cert(STORE_CHAIN[0])
+      ctx = OpenSSL::X509::StoreContext.new(store, STORE_CHAIN[1], STORE_CHAIN[2..-1])
+      ctx.verify
+      ctx.chain.each { |c| c.subject }
+    end
+  end
+end
@@ -0,0 +1,22 @@
+# X509::Name as a Hash key, in comparisons, and to_der, over many names.
+#
+#   jruby -Ilib bench/bench_x509name.rb [names]
+require 'benchmark'
+require 'openssl'
+
+NAMES = (ARGV[0] || 5_000).to_i
+
+names = (0...NAMES).map { |i| OpenSSL::X509::Name.parse("/C=US/O=JRuby/OU=bench/CN=host#{i}.example.org") }
+probes = names.map { |n| OpenSSL::X509::Name.new(n.to_der) }
+
+puts "#{NAMES} names"
+Benchmark.bm(14) do |bm|
+  bm.report("hash keys") do
+    table = {}
+    names.each { |n| table[n] = true }
+    probes.each { |n| table[n] }
+  end
+  bm.report("eql?") { 5.times { names.each_with_index { |n, i| n.eql?(probes[i]) } } }
+  bm.report("to_der") { 5.times { names.each { |n| n.to_der } } }
+  bm.report("to_s(RFC2253)") { 5.times { names.each { |n| n.to_s(OpenSSL::X509::Name::RFC2253) } } }
+end
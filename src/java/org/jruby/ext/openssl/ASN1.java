@@ -27,16 +27,15 @@
  ***** END LICENSE BLOCK *****/
 package org.jruby.ext.openssl;
 
+import java.io.ByteArrayInputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.math.BigInteger;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -48,23 +47,34 @@ import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1EncodableVector;
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERBMPString;
 import org.bouncycastle.asn1.DERBitString;
 import org.bouncycastle.asn1.DERBoolean;
 import org.bouncycastle.asn1.DEREncodableVector;
+import org.bouncycastle.asn1.DERGeneralString;
+import org.bouncycastle.asn1.DERGeneralizedTime;
+import org.bouncycastle.asn1.DERIA5String;
 import org.bouncycastle.asn1.DERInteger;
 import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DERNumericString;
+import org.bouncycastle.asn1.DERObject;
 import org.bouncycastle.asn1.DERObjectIdentifier;
 import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERPrintableString;
 import org.bouncycastle.asn1.DERSequence;
 import org.bouncycastle.asn1.DERSet;
 import org.bouncycastle.asn1.DERString;
+import org.bouncycastle.asn1.DERT61String;
 import org.bouncycastle.asn1.DERTaggedObject;
 import org.bouncycastle.asn1.DERUTCTime;
 import org.bouncycastle.asn1.DERUTF8String;
+import org.bouncycastle.asn1.x509.X509Name;
+import org.bouncycastle.util.Strings;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyBignum;
 import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
 import org.jruby.RubyModule;
 import org.jruby.RubyNumeric;
 import org.jruby.RubyObject;
@@ -73,122 +83,186 @@ import org.jruby.RubySymbol;
 import org.jruby.RubyTime;
 import org.jruby.anno.JRubyMethod;
 import org.jruby.exceptions.RaiseException;
+import org.jruby.ext.openssl.impl.DERReader;
+import org.jruby.ext.openssl.impl.DERWriter;
 import org.jruby.runtime.Block;
 import org.jruby.runtime.ObjectAllocator;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.builtin.InstanceVariables;
 import org.jruby.util.ByteList;
 
 /**
  * @author <a href="mailto:ola.bini@ki.se">Ola Bini</a>
  */
 public class ASN1 {
-    private static Map<Ruby, Map<String, DERObjectIdentifier>> SYM_TO_OID = new IdentityHashMap<Ruby, Map<String, DERObjectIdentifier>>();
-    private static Map<Ruby, Map<DERObjectIdentifier, String>> OID_TO_SYM = new IdentityHashMap<Ruby, Map<DERObjectIdentifier, String>>();
-    private static Map<Ruby, Map<DERObjectIdentifier, Integer>> OID_TO_NID = new IdentityHashMap<Ruby, Map<DERObjectIdentifier, Integer>>();
-    private static Map<Ruby, Map<Integer, DERObjectIdentifier>> NID_TO_OID = new IdentityHashMap<Ruby, Map<Integer, DERObjectIdentifier>>();
-    private static Map<Ruby, Map<Integer, String>> NID_TO_SN = new IdentityHashMap<Ruby, Map<Integer, String>>();
-    private static Map<Ruby, Map<Integer, String>> NID_TO_LN = new IdentityHashMap<Ruby, Map<Integer, String>>();
-
-
-    static void addObject(Ruby runtime, int nid, String sn, String ln, String oid) {
-        Map<String, DERObjectIdentifier> s2o = SYM_TO_OID.get(runtime);
-        Map<DERObjectIdentifier, String> o2s = OID_TO_SYM.get(runtime);
-        Map<DERObjectIdentifier, Integer> o2n = OID_TO_NID.get(runtime);
-        Map<Integer, DERObjectIdentifier> n2o = NID_TO_OID.get(runtime);
-        Map<Integer, String> n2s = NID_TO_SN.get(runtime);
-        Map<Integer, String> n2l = NID_TO_LN.get(runtime);
-        if(null != oid && (null != sn || null != ln)) {
+    /**
+     * The OID, NID and name tables. Each instance is immutable once built;
+     * ObjectId.register replaces a runtime's tables with a copy instead of
+     * changing them, so lookups never need a lock.
+     */
+    private static final class OIDTables {
+        final Map<String, DERObjectIdentifier> symToOid;
+        final Map<DERObjectIdentifier, String> oidToSym;
+        final Map<DERObjectIdentifier, Integer> oidToNid;
+        final Map<Integer, DERObjectIdentifier> nidToOid;
+        final Map<Integer, String> nidToSn;
+        final Map<Integer, String> nidToLn;
+        // shortest and longest name for each OID, for ObjectId#sn and #ln
+        final Map<DERObjectIdentifier, String> shortNames = new HashMap<DERObjectIdentifier, String>();
+        final Map<DERObjectIdentifier, String> longNames = new HashMap<DERObjectIdentifier, String>();
+
+        OIDTables(Map<String, DERObjectIdentifier> symToOid, Map<DERObjectIdentifier, String> oidToSym,
+                  Map<DERObjectIdentifier, Integer> oidToNid, Map<Integer, DERObjectIdentifier> nidToOid,
+                  Map<Integer, String> nidToSn, Map<Integer, String> nidToLn) {
+            this.symToOid = Collections.unmodifiableMap(symToOid);
+            this.oidToSym = Collections.unmodifiableMap(oidToSym);
+            this.oidToNid = Collections.unmodifiableMap(oidToNid);
+            this.nidToOid = Collections.unmodifiableMap(nidToOid);
+            this.nidToSn = Collections.unmodifiableMap(nidToSn);
+            this.nidToLn = Collections.unmodifiableMap(nidToLn);
+            for(Map.Entry<String, DERObjectIdentifier> e : symToOid.entrySet()) {
+                String name = shortNames.get(e.getValue());
+                if(name == null || e.getKey().length() < name.length()) {
+                    shortNames.put(e.getValue(), e.getKey());
+                }
+                name = longNames.get(e.getValue());
+                if(name == null || e.getKey().length() > name.length()) {
+                    longNames.put(e.getValue(), e.getKey());
+                }
+            }
+        }
+
+        OIDTables register(String oid, String sn, String ln) {
             DERObjectIdentifier ident = new DERObjectIdentifier(oid);
-            if(sn != null) {
-                s2o.put(sn.toLowerCase(),ident);
-            }
-            if(ln != null) {
-                s2o.put(ln.toLowerCase(),ident);
-            }
-            o2s.put(ident,sn == null ? ln : sn);
-            o2n.put(ident,nid);
-            n2o.put(nid,ident);
-            n2s.put(nid,sn);
-            n2l.put(nid,ln);
-        }        
-    }
-
-    @SuppressWarnings("unchecked")
-    private synchronized static void initMaps(Ruby runtime) {
-        Map<String, DERObjectIdentifier> val = new HashMap<String, DERObjectIdentifier>(org.bouncycastle.asn1.x509.X509Name.DefaultLookUp);
-        Map<DERObjectIdentifier, String> val2 = new HashMap<DERObjectIdentifier, String>(org.bouncycastle.asn1.x509.X509Name.DefaultSymbols);
-        SYM_TO_OID.put(runtime,val);
-        OID_TO_SYM.put(runtime,val2);
-        OID_TO_NID.put(runtime,new HashMap<DERObjectIdentifier, Integer>());
-        NID_TO_OID.put(runtime,new HashMap<Integer, DERObjectIdentifier>());
-        NID_TO_SN.put(runtime,new HashMap<Integer, String>());
-        NID_TO_LN.put(runtime,new HashMap<Integer, String>());
-        OpenSSLImpl.defaultObjects(runtime);
-    }
-
-    synchronized static Integer obj2nid(Ruby runtime, String oid) {
-        return obj2nid(runtime, new DERObjectIdentifier(oid));
+            Map<String, DERObjectIdentifier> s2o = new HashMap<String, DERObjectIdentifier>(symToOid);
+            Map<DERObjectIdentifier, String> o2s = new HashMap<DERObjectIdentifier, String>(oidToSym);
+            s2o.put(sn.toLowerCase(), ident);
+            s2o.put(ln.toLowerCase(), ident);
+            o2s.put(ident, sn);
+            return new OIDTables(s2o, o2s, oidToNid, nidToOid, nidToSn, nidToLn);
+        }
     }
 
-    synchronized static String ln2oid(Ruby runtime, String ln) {
-        Map<String, DERObjectIdentifier> val = SYM_TO_OID.get(runtime);
-        if(null == val) {
-            initMaps(runtime);
-            val = SYM_TO_OID.get(runtime);
+    /**
+     * Collects the built-in objects, through OpenSSLImpl.defaultObjects,
+     * into the maps the default OIDTables are made from.
+     */
+    static final class DefaultObjects {
+        private final Map<String, DERObjectIdentifier> symToOid = new HashMap<String, DERObjectIdentifier>();
+        private final Map<DERObjectIdentifier, String> oidToSym = new HashMap<DERObjectIdentifier, String>();
+        private final Map<DERObjectIdentifier, Integer> oidToNid = new HashMap<DERObjectIdentifier, Integer>();
+        private final Map<Integer, DERObjectIdentifier> nidToOid = new HashMap<Integer, DERObjectIdentifier>();
+        private final Map<Integer, String> nidToSn = new HashMap<Integer, String>();
+        private final Map<Integer, String> nidToLn = new HashMap<Integer, String>();
+
+        private DefaultObjects() {
+            for(Object o : X509Name.DefaultLookUp.entrySet()) {
+                Map.Entry e = (Map.Entry)o;
+                symToOid.put((String)e.getKey(), (DERObjectIdentifier)e.getValue());
+            }
+            for(Object o : X509Name.DefaultSymbols.entrySet()) {
+                Map.Entry e = (Map.Entry)o;
+                oidToSym.put((DERObjectIdentifier)e.getKey(), (String)e.getValue());
+            }
+        }
+
+        void addObject(int nid, String sn, String ln, String oid) {
+            if(null != oid && (null != sn || null != ln)) {
+                DERObjectIdentifier ident = new DERObjectIdentifier(oid);
+                if(sn != null) {
+                    symToOid.put(sn.toLowerCase(),ident);
+                }
+                if(ln != null) {
+                    symToOid.put(ln.toLowerCase(),ident);
+                }
+                oidToSym.put(ident,sn == null ? ln : sn);
+                oidToNid.put(ident,nid);
+                nidToOid.put(nid,ident);
+                nidToSn.put(nid,sn);
+                nidToLn.put(nid,ln);
+            }
+        }
+
+        private OIDTables build() {
+            return new OIDTables(symToOid, oidToSym, oidToNid, nidToOid, nidToSn, nidToLn);
         }
-        return val.get(ln).getId();
     }
 
-    synchronized static Integer obj2nid(Ruby runtime, DERObjectIdentifier oid) {
-        Map<DERObjectIdentifier, Integer> o2n = OID_TO_NID.get(runtime);
-        if(null == o2n) {
-            initMaps(runtime);
-            o2n = OID_TO_NID.get(runtime);
+    // the tables every runtime starts from, built once
+    private static final OIDTables DEFAULT_TABLES;
+
+    // set once any runtime has registered an OID of its own
+    private static volatile boolean registered = false;
+
+    static {
+        DefaultObjects objects = new DefaultObjects();
+        OpenSSLImpl.defaultObjects(objects);
+        DEFAULT_TABLES = objects.build();
+    }
+
+    /**
+     * The tables for a runtime: the defaults, unless ObjectId.register
+     * was used in it, in which case its own copy hangs off the
+     * OpenSSL::ASN1 module (and goes away with the runtime).
+     */
+    private static OIDTables tables(Ruby runtime) {
+        if(registered) {
+            RubyModule asnM = asn1Module(runtime);
+            if(asnM != null && asnM.dataGetStruct() instanceof OIDTables) {
+                return (OIDTables)asnM.dataGetStruct();
+            }
         }
-        return o2n.get(oid);
+        return DEFAULT_TABLES;
     }
 
-    synchronized static String o2a(Ruby runtime, DERObjectIdentifier obj) {
-        Integer nid = obj2nid(runtime,obj);
-        Map<Integer, String> n2l = NID_TO_LN.get(runtime);
-        Map<Integer, String> n2s = NID_TO_SN.get(runtime);
-        String one = n2l.get(nid);
+    private static RubyModule asn1Module(Ruby runtime) {
+        RubyModule ossl = runtime.getModule("OpenSSL");
+        return ossl == null ? null : (RubyModule)ossl.getConstantAt("ASN1");
+    }
+
+    static Integer obj2nid(Ruby runtime, String oid) {
+        return obj2nid(runtime, new DERObjectIdentifier(oid));
+    }
+
+    static String ln2oid(Ruby runtime, String ln) {
+        return tables(runtime).symToOid.get(ln).getId();
+    }
+
+    static Integer obj2nid(Ruby runtime, DERObjectIdentifier oid) {
+        return tables(runtime).oidToNid.get(oid);
+    }
+
+    static String o2a(Ruby runtime, DERObjectIdentifier obj) {
+        OIDTables t = tables(runtime);
+        Integer nid = t.oidToNid.get(obj);
+        String one = t.nidToLn.get(nid);
         if(one == null) {
-            one = n2s.get(nid);
+            one = t.nidToSn.get(nid);
         }
         return one;
     }
 
-    synchronized static String nid2ln(Ruby runtime, int nid) {
+    static String nid2ln(Ruby runtime, int nid) {
         return nid2ln(runtime, new Integer(nid));
     }
 
-    synchronized static String nid2ln(Ruby runtime, Integer nid) {
-        Map<Integer, String> n2l = NID_TO_LN.get(runtime);
-        if(null == n2l) {
-            initMaps(runtime);
-            n2l = NID_TO_LN.get(runtime);
-        }
-        return n2l.get(nid);
+    static String nid2ln(Ruby runtime, Integer nid) {
+        return tables(runtime).nidToLn.get(nid);
     }
     
-    synchronized static Map<String, DERObjectIdentifier> getOIDLookup(Ruby runtime) {
-        Map<String, DERObjectIdentifier> val = SYM_TO_OID.get(runtime);
-        if(null == val) {
-            initMaps(runtime);
-            val = SYM_TO_OID.get(runtime);
-        }
-        return val;
+    /**
+     * Lower cased short and long names to OIDs. Read only.
+     */
+    static Map<String, DERObjectIdentifier> getOIDLookup(Ruby runtime) {
+        return tables(runtime).symToOid;
     }
 
-    synchronized static Map<DERObjectIdentifier, String> getSymLookup(Ruby runtime) {
-        Map<DERObjectIdentifier, String> val = OID_TO_SYM.get(runtime);
-        if(null == val) {
-            initMaps(runtime);
-            val = OID_TO_SYM.get(runtime);
-        }
-        return val;
+    /**
+     * OIDs to short names. Read only.
+     */
+    static Map<DERObjectIdentifier, String> getSymLookup(Ruby runtime) {
+        return tables(runtime).oidToSym;
     }
 
     private final static Object[][] ASN1_INFO = {
@@ -320,37 +394,19 @@ public class ASN1 {
         cASN1ObjectId.defineAnnotatedMethods(ObjectId.class);
 
         cASN1BitString.attr_accessor(runtime.getCurrentContext(), new IRubyObject[]{runtime.newSymbol("unused_bits")});
+
+        RubyClass cASN1Decoder = mASN1.defineClassUnder("Decoder",runtime.getObject(), Decoder.ALLOCATOR);
+        cASN1Decoder.includeModule(runtime.getModule("Enumerable"));
+        cASN1Decoder.defineAnnotatedMethods(Decoder.class);
     }
 
 
     private static String getShortNameFor(Ruby runtime, String nameOrOid) {
-        DERObjectIdentifier oid = getObjectIdentifier(runtime,nameOrOid);
-        Map em = getOIDLookup(runtime);
-        String name = null;
-        for(Iterator iter = em.keySet().iterator();iter.hasNext();) {
-            Object key = iter.next();
-            if(oid.equals(em.get(key))) {
-                if(name == null || ((String)key).length() < name.length()) {
-                    name = (String)key;
-                }
-            }
-        }
-        return name;
+        return tables(runtime).shortNames.get(getObjectIdentifier(runtime,nameOrOid));
     }
 
     private static String getLongNameFor(Ruby runtime, String nameOrOid) {
-        DERObjectIdentifier oid = getObjectIdentifier(runtime,nameOrOid);
-        Map em = getOIDLookup(runtime);
-        String name = null;
-        for(Iterator iter = em.keySet().iterator();iter.hasNext();) {
-            Object key = iter.next();
-            if(oid.equals(em.get(key))) {
-                if(name == null || ((String)key).length() > name.length()) {
-                    name = (String)key;
-                }
-            }
-        }
-        return name;
+        return tables(runtime).longNames.get(getObjectIdentifier(runtime,nameOrOid));
     }
 
     private static DERObjectIdentifier getObjectIdentifier(Ruby runtime, String nameOrOid) {
@@ -481,11 +537,14 @@ public class ASN1 {
     public static class ObjectId {
         @JRubyMethod(meta=true, rest=true)
         public static IRubyObject register(IRubyObject recv, IRubyObject[] args) {
-            DERObjectIdentifier deroi = new DERObjectIdentifier(args[0].toString());
-            getOIDLookup(recv.getRuntime()).put(args[1].toString().toLowerCase(),deroi);
-            getOIDLookup(recv.getRuntime()).put(args[2].toString().toLowerCase(),deroi);
-            getSymLookup(recv.getRuntime()).put(deroi,args[1].toString());
-            return recv.getRuntime().getTrue();
+            Ruby runtime = recv.getRuntime();
+            RubyModule asnM = asn1Module(runtime);
+            synchronized(asnM) {
+                OIDTables updated = tables(runtime).register(args[0].toString(), args[1].toString(), args[2].toString());
+                asnM.dataWrapStruct(updated);
+                registered = true;
+            }
+            return runtime.getTrue();
         }
 
         @JRubyMethod(name={"sn","short_name"})
@@ -504,17 +563,16 @@ public class ASN1 {
         }
     }
 
-    private final static DateFormat dateF = new SimpleDateFormat("yyyyMMddHHmmssz");
-    private static IRubyObject decodeObj(RubyModule asnM,Object v) throws IOException, java.text.ParseException {
+    private static IRubyObject decodeObj(RubyModule asnM,Object v) throws IOException {
+        Ruby runtime = asnM.getRuntime();
         int ix = idForClass(v.getClass());
         String v_name = ix == -1 ? null : (String)(ASN1_INFO[ix][2]);
-        ThreadContext tc = asnM.getRuntime().getCurrentContext();
         if(null != v_name) {
             RubyClass c = asnM.getClass(v_name);
             if(v instanceof DERBitString) {
                 ByteList bl = new ByteList(((DERBitString)v).getBytes(), false);
-                IRubyObject bString = c.callMethod(tc,"new",asnM.getRuntime().newString(bl));
-                bString.callMethod(tc,"unused_bits=",asnM.getRuntime().newFixnum(((DERBitString)v).getPadBits()));
+                IRubyObject bString = newUniversal(c, ix, runtime.newString(bl));
+                bString.getInstanceVariables().setInstanceVariable("@unused_bits", runtime.newFixnum(((DERBitString)v).getPadBits()));
                 return bString;
             } else if(v instanceof DERString) {
                 ByteList val; 
@@ -523,64 +581,74 @@ public class ASN1 {
                 } else {
                     val = ByteList.create(((DERString)v).getString());
                 }
-                return c.callMethod(tc,"new",asnM.getRuntime().newString(val));
+                return newUniversal(c, ix, runtime.newString(val));
             } else if(v instanceof ASN1Sequence) {
-                List<IRubyObject> l = new ArrayList<IRubyObject>();
+                List<IRubyObject> l = new ArrayList<IRubyObject>(((ASN1Sequence)v).size());
                 for(Enumeration enm = ((ASN1Sequence)v).getObjects(); enm.hasMoreElements(); ) {
                     l.add(decodeObj(asnM,enm.nextElement()));
                 }
-                return c.callMethod(tc,"new",asnM.getRuntime().newArray(l));
+                return newUniversal(c, ix, runtime.newArray(l));
             } else if(v instanceof DERSet) {
-                List<IRubyObject> l = new ArrayList<IRubyObject>();
+                List<IRubyObject> l = new ArrayList<IRubyObject>(((DERSet)v).size());
                 for(Enumeration enm = ((DERSet)v).getObjects(); enm.hasMoreElements(); ) {
                     l.add(decodeObj(asnM,enm.nextElement()));
                 }
-                return c.callMethod(tc,"new",asnM.getRuntime().newArray(l));
+                return newUniversal(c, ix, runtime.newArray(l));
             } else if(v instanceof DERNull) {
-                return c.callMethod(tc,"new",asnM.getRuntime().getNil());
+                return newUniversal(c, ix, runtime.getNil());
             } else if(v instanceof DERInteger) {
-                return c.callMethod(tc,"new",RubyNumeric.str2inum(asnM.getRuntime(),asnM.getRuntime().newString(((DERInteger)v).getValue().toString()),10));
-            } else if(v instanceof DERUTCTime) {
-                Date d = dateF.parse(((DERUTCTime)v).getAdjustedTime());
-                Calendar cal = Calendar.getInstance();
-                cal.setTime(d);
-                IRubyObject[] argv = new IRubyObject[6];
-                argv[0] = asnM.getRuntime().newFixnum(cal.get(Calendar.YEAR));
-                argv[1] = asnM.getRuntime().newFixnum(cal.get(Calendar.MONTH)+1);
-                argv[2] = asnM.getRuntime().newFixnum(cal.get(Calendar.DAY_OF_MONTH));
-                argv[3] = asnM.getRuntime().newFixnum(cal.get(Calendar.HOUR_OF_DAY));
-                argv[4] = asnM.getRuntime().newFixnum(cal.get(Calendar.MINUTE));
-                argv[5] = asnM.getRuntime().newFixnum(cal.get(Calendar.SECOND));
-                return c.callMethod(tc,"new",asnM.getRuntime().getClass("Time").callMethod(tc,"local",argv));
+                return newUniversal(c, ix, RubyBignum.bignorm(runtime, ((DERInteger)v).getValue()));
+            } else if(v instanceof DERUTCTime || v instanceof DERGeneralizedTime) {
+                byte[] der = ((DERObject)v).getDEREncoded();
+                long time = DERReader.parseTime(der, 2, der.length - 2, v instanceof DERUTCTime);
+                return newUniversal(c, ix, RubyTime.newTime(runtime, time));
             } else if(v instanceof DERObjectIdentifier) {
-                String av = ((DERObjectIdentifier)v).getId();
-                return c.callMethod(tc,"new",asnM.getRuntime().newString(av));
+                return newUniversal(c, ix, runtime.newString(((DERObjectIdentifier)v).getId()));
             } else if(v instanceof DEROctetString) {
                 ByteList bl = new ByteList(((DEROctetString)v).getOctets(), false);
-                return c.callMethod(tc,"new",asnM.getRuntime().newStringShared(bl));
+                return newUniversal(c, ix, runtime.newStringShared(bl));
             } else if(v instanceof DERBoolean) {
-                return c.callMethod(tc,"new",((DERBoolean)v).isTrue() ? asnM.getRuntime().getTrue() : asnM.getRuntime().getFalse());
+                return newUniversal(c, ix, ((DERBoolean)v).isTrue() ? runtime.getTrue() : runtime.getFalse());
             } else {
                 System.out.println("Should handle: " + v.getClass().getName());
             }
         } else if(v instanceof DERTaggedObject) {
             RubyClass c = asnM.getClass("ASN1Data");
             IRubyObject val = decodeObj(asnM, ((DERTaggedObject)v).getObject());
-            IRubyObject tag = asnM.getRuntime().newFixnum(((DERTaggedObject)v).getTagNo());
-            IRubyObject tag_class = asnM.getRuntime().newSymbol("CONTEXT_SPECIFIC");
-            return c.callMethod(tc,"new",new IRubyObject[]{asnM.getRuntime().newArray(val),tag,tag_class});
+            IRubyObject data = c.allocate();
+            InstanceVariables ivars = data.getInstanceVariables();
+            ivars.setInstanceVariable("@tag", runtime.newFixnum(((DERTaggedObject)v).getTagNo()));
+            ivars.setInstanceVariable("@value", runtime.newArray(val));
+            ivars.setInstanceVariable("@tag_class", runtime.newSymbol("CONTEXT_SPECIFIC"));
+            return data;
         }
 
         //        System.err.println("v: " + v + "[" + v.getClass().getName() + "]");
         return null;
     }
 
+    /**
+     * Allocates a decoded Primitive or Constructive and sets what its
+     * initialize would for a lone value: the universal tag for the
+     * class, no tagging, UNIVERSAL tag class.
+     */
+    private static IRubyObject newUniversal(RubyClass c, int tag, IRubyObject value) {
+        Ruby runtime = c.getRuntime();
+        IRubyObject obj = c.allocate();
+        InstanceVariables ivars = obj.getInstanceVariables();
+        ivars.setInstanceVariable("@tag", runtime.newFixnum(tag));
+        ivars.setInstanceVariable("@value", value);
+        ivars.setInstanceVariable("@tagging", runtime.getNil());
+        ivars.setInstanceVariable("@tag_class", runtime.newSymbol("UNIVERSAL"));
+        return obj;
+    }
+
     @JRubyMethod(meta = true)
     public static IRubyObject decode(IRubyObject recv, IRubyObject obj) {
         try {
             IRubyObject obj2 = OpenSSLImpl.to_der_if_possible(obj);
             RubyModule asnM = (RubyModule)recv;
-            ASN1InputStream asis = new ASN1InputStream(obj2.convertToString().getBytes());
+            ASN1InputStream asis = newASN1InputStream(obj2.convertToString().getByteList());
             IRubyObject ret = decodeObj(asnM, asis.readObject());
             return ret;
         } catch(IOException e) {
@@ -592,8 +660,423 @@ public class ASN1 {
 
     @JRubyMethod(meta=true, required=1)
     public static IRubyObject decode_all(IRubyObject recv, IRubyObject a) {
-        System.err.println("WARNING: unimplemented method called: decode_all");
-        return null;
+        Ruby runtime = recv.getRuntime();
+        try {
+            IRubyObject obj2 = OpenSSLImpl.to_der_if_possible(a);
+            RubyModule asnM = (RubyModule)recv;
+            ASN1InputStream asis = newASN1InputStream(obj2.convertToString().getByteList());
+            RubyArray all = runtime.newArray();
+            for(Object v = asis.readObject(); v != null; v = asis.readObject()) {
+                all.append(nilIfNull(runtime, decodeObj(asnM, v)));
+            }
+            return all;
+        } catch(IOException e) {
+            throw runtime.newIOErrorFromException(e);
+        } catch(Exception e) {
+            throw runtime.newArgumentError(e.getMessage());
+        }
+    }
+
+    // reads straight out of the string's bytes, no copy
+    private static ASN1InputStream newASN1InputStream(ByteList bytes) {
+        return new ASN1InputStream(new ByteArrayInputStream(bytes.unsafeBytes(), bytes.begin(), bytes.length()), bytes.length());
+    }
+
+    private static IRubyObject nilIfNull(Ruby runtime, IRubyObject obj) {
+        return obj == null ? runtime.getNil() : obj;
+    }
+
+    static RaiseException newASN1Error(Ruby runtime, String msg) {
+        return new RaiseException(runtime, (RubyClass)(((RubyModule)(runtime.getModule("OpenSSL").getConstant("ASN1"))).getConstant("ASN1Error")), msg, true);
+    }
+
+    /**
+     * OpenSSL::ASN1::Decoder pulls top-level DER objects off an IO, or off
+     * bytes appended with <<, one at a time. Only the object being read is
+     * buffered, plus whatever of the next one the last read brought in.
+     */
+    public static class Decoder extends RubyObject {
+        private static final long serialVersionUID = -1757172672078515957L;
+
+        public static ObjectAllocator ALLOCATOR = new ObjectAllocator() {
+                public IRubyObject allocate(Ruby runtime, RubyClass klass) {
+                    return new Decoder(runtime, klass);
+                }
+            };
+        public Decoder(Ruby runtime, RubyClass type) {
+            super(runtime,type);
+        }
+
+        private static final int CHUNK = 8192;
+
+        private IRubyObject io;
+        private byte[] buf = new byte[0];
+        private int start;
+        private int end;
+
+        @JRubyMethod(optional=1)
+        public IRubyObject initialize(IRubyObject[] args) {
+            io = args.length > 0 ? args[0] : getRuntime().getNil();
+            return this;
+        }
+
+        @JRubyMethod(name="<<")
+        public IRubyObject append(IRubyObject data) {
+            ByteList bytes = data.convertToString().getByteList();
+            append(bytes.unsafeBytes(), bytes.begin(), bytes.length());
+            return this;
+        }
+
+        private void append(byte[] bytes, int offset, int length) {
+            if(end + length > buf.length) {
+                int pending = end - start;
+                byte[] target = (pending + length > buf.length) ? new byte[Math.max(buf.length * 2, pending + length)] : buf;
+                System.arraycopy(buf, start, target, 0, pending);
+                buf = target;
+                start = 0;
+                end = pending;
+            }
+            System.arraycopy(bytes, offset, buf, end, length);
+            end += length;
+        }
+
+        /**
+         * Reads at most CHUNK more bytes from the IO; false at the end of
+         * the IO, or straight away when there's no IO to read from. The
+         * declared length of an object is never trusted for the size of a
+         * read, and the IO running out before an object of that length is
+         * complete is an ASN1Error.
+         */
+        private boolean fill(int needed) {
+            if(io.isNil()) {
+                return false;
+            }
+            IRubyObject chunk = io.callMethod(getRuntime().getCurrentContext(), "read", getRuntime().newFixnum(CHUNK));
+            if(chunk.isNil()) {
+                return false;
+            }
+            ByteList bytes = chunk.convertToString().getByteList();
+            append(bytes.unsafeBytes(), bytes.begin(), bytes.length());
+            if(bytes.length() < CHUNK && needed > end - start) {
+                throw newASN1Error(getRuntime(), "truncated DER object at end of stream");
+            }
+            return true;
+        }
+
+        /**
+         * The next object, or nil once the IO is exhausted (or, without an
+         * IO, while the buffered bytes don't hold a whole object yet).
+         */
+        @JRubyMethod(name={"next","read"})
+        public IRubyObject next() {
+            Ruby runtime = getRuntime();
+            RubyModule asnM = (RubyModule)runtime.getModule("OpenSSL").getConstant("ASN1");
+            try {
+                while(true) {
+                    int length = DERReader.elementLength(buf, start, end - start);
+                    if(length >= 0 && length <= end - start) {
+                        ASN1InputStream asis = new ASN1InputStream(new ByteArrayInputStream(buf, start, length), length);
+                        IRubyObject obj = decodeObj(asnM, asis.readObject());
+                        start += length;
+                        if(start == end) {
+                            start = end = 0;
+                        }
+                        return nilIfNull(runtime, obj);
+                    }
+                    if(!fill(length)) {
+                        if(end > start && !io.isNil()) {
+                            throw newASN1Error(runtime, "truncated DER object at end of stream");
+                        }
+                        return runtime.getNil();
+                    }
+                }
+            } catch(IOException e) {
+                throw newASN1Error(runtime, e.getMessage());
+            } catch(IllegalStateException e) {
+                throw newASN1Error(runtime, e.getMessage());
+            } catch(RaiseException e) {
+                throw e;
+            } catch(RuntimeException e) {
+                // malformed contents, which decode reports the same way
+                throw runtime.newArgumentError(e.getMessage());
+            }
+        }
+
+        @JRubyMethod(frame=true)
+        public IRubyObject each(ThreadContext context, Block block) {
+            for(IRubyObject obj = next(); !obj.isNil(); obj = next()) {
+                block.yield(context, obj);
+            }
+            return this;
+        }
+
+        /**
+         * Bytes buffered but not decoded yet.
+         */
+        @JRubyMethod
+        public IRubyObject pending() {
+            return getRuntime().newFixnum(end - start);
+        }
+    }
+
+    /**
+     * Encodes an OpenSSL::ASN1 object graph straight to DER, with the
+     * same output as toASN1().getDEREncoded(). The first pass walks the
+     * graph once and records every element in order: its tag, contents
+     * length and, for primitives, where its contents are. The second
+     * writes the records out into a buffer of the exact final size.
+     * Anything without a direct encoding here is encoded through
+     * toASN1() and copied in whole.
+     */
+    static class DEREncoder {
+        private static final int RAW = -1;
+
+        private int count;
+        private int[] tags = new int[16];
+        private int[] lengths = new int[16];
+        private byte[][] contents = new byte[16][];
+        private int[] offsets = new int[16];
+
+        byte[] encode(ASN1Data obj) {
+            int total = measure(obj);
+            DERWriter out = new DERWriter(total);
+            for(int i = 0; i < count; i++) {
+                if(tags[i] != RAW) {
+                    out.writeHeader(tags[i], lengths[i]);
+                }
+                if(contents[i] != null) {
+                    out.write(contents[i], offsets[i], lengths[i]);
+                }
+            }
+            byte[] result = out.buffer();
+            return result.length == out.size() ? result : out.toByteArray();
+        }
+
+        private int add(int tag, int length, byte[] content, int offset) {
+            if(count == tags.length) {
+                int size = count * 2;
+                int[] t = new int[size]; System.arraycopy(tags, 0, t, 0, count); tags = t;
+                int[] l = new int[size]; System.arraycopy(lengths, 0, l, 0, count); lengths = l;
+                int[] o = new int[size]; System.arraycopy(offsets, 0, o, 0, count); offsets = o;
+                byte[][] c = new byte[size][]; System.arraycopy(contents, 0, c, 0, count); contents = c;
+            }
+            tags[count] = tag;
+            lengths[count] = length;
+            contents[count] = content;
+            offsets[count] = offset;
+            return count++;
+        }
+
+        private int primitive(int tag, byte[] content) {
+            add(tag, content.length, content, 0);
+            return DERWriter.headerLength(content.length) + content.length;
+        }
+
+        private int raw(byte[] encoded) {
+            add(RAW, encoded.length, encoded, 0);
+            return encoded.length;
+        }
+
+        private int constructed(int tag, int index, int contentLength) {
+            lengths[index] = contentLength;
+            return DERWriter.headerLength(contentLength) + contentLength;
+        }
+
+        private static IRubyObject ivar(IRubyObject obj, String name) {
+            IRubyObject val = obj.getInstanceVariables().getInstanceVariable(name);
+            return val == null ? obj.getRuntime().getNil() : val;
+        }
+
+        /**
+         * Records obj and everything under it; returns its encoded size.
+         */
+        int measure(IRubyObject obj) {
+            if(obj instanceof ASN1Primitive) {
+                return measurePrimitive((ASN1Primitive)obj);
+            } else if(obj instanceof ASN1Constructive) {
+                return measureConstructive((ASN1Constructive)obj);
+            } else if(obj instanceof ASN1Data) {
+                return measureTagged((ASN1Data)obj);
+            }
+            return measure(asData(obj));
+        }
+
+        // members of a constructed value that are not ASN1 objects yet
+        private static ASN1Data asData(IRubyObject obj) {
+            if(obj instanceof ASN1Data) {
+                return (ASN1Data)obj;
+            }
+            return (ASN1Data)ASN1.decode(obj.getRuntime().getModule("OpenSSL").getConstant("ASN1"),OpenSSLImpl.to_der_if_possible(obj));
+        }
+
+        private int measureTagged(ASN1Data obj) {
+            int tag = RubyNumeric.fix2int(ivar(obj, "@tag"));
+            IRubyObject val = ivar(obj, "@value");
+            if(tag < 0 || tag > 30 || !taggable(val)) {
+                return raw(obj.toASN1().getDEREncoded());
+            }
+            int index = add(0xa0 | tag, 0, null, 0);
+            int length;
+            if(val instanceof RubyArray) {
+                RubyArray arr = (RubyArray)val;
+                if(arr.size() > 1) {
+                    int seq = add(DERReader.SEQUENCE, 0, null, 0);
+                    int inner = 0;
+                    for(int i = 0; i < arr.size(); i++) {
+                        inner += measure(arr.eltInternal(i));
+                    }
+                    length = constructed(DERReader.SEQUENCE, seq, inner);
+                } else {
+                    length = measure(arr.eltInternal(0));
+                }
+            } else {
+                length = measure(val);
+            }
+            return constructed(0xa0 | tag, index, length);
+        }
+
+        // what ASN1Data.toASN1 can wrap without raising
+        private static boolean taggable(IRubyObject val) {
+            if(val instanceof RubyArray) {
+                RubyArray arr = (RubyArray)val;
+                if(arr.isEmpty()) {
+                    return false;
+                }
+                for(int i = 0; i < arr.size(); i++) {
+                    if(!(arr.eltInternal(i) instanceof ASN1Data)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            return val instanceof ASN1Data;
+        }
+
+        private int measureConstructive(ASN1Constructive obj) {
+            int id = idForRubyName(obj.getMetaClass().getRealClass().getBaseName());
+            IRubyObject val = ivar(obj, "@value");
+            if((id != DERReader.SEQUENCE - 0x20 && id != DERReader.SET - 0x20) || !(val instanceof RubyArray)) {
+                return raw(obj.toASN1().getDEREncoded());
+            }
+            RubyArray arr = (RubyArray)val;
+            if(id == DERReader.SET - 0x20) {
+                // DER sorts SET OF by the members' encodings, as DERSet does
+                byte[][] members = new byte[arr.size()][];
+                int length = 0;
+                for(int i = 0; i < members.length; i++) {
+                    members[i] = new DEREncoder().encode(asData(arr.eltInternal(i)));
+                    length += members[i].length;
+                }
+                Arrays.sort(members, ENCODING_ORDER);
+                add(DERReader.SET, length, null, 0);
+                for(int i = 0; i < members.length; i++) {
+                    raw(members[i]);
+                }
+                return DERWriter.headerLength(length) + length;
+            }
+            int index = add(DERReader.SEQUENCE, 0, null, 0);
+            int length = 0;
+            for(int i = 0; i < arr.size(); i++) {
+                length += measure(arr.eltInternal(i));
+            }
+            return constructed(DERReader.SEQUENCE, index, length);
+        }
+
+        private int measurePrimitive(ASN1Primitive obj) {
+            int tag = idForRubyName(obj.getMetaClass().getRealClass().getBaseName());
+            Class imp = tag < 0 ? null : (Class)ASN1_INFO[tag][1];
+            IRubyObject val = ivar(obj, "@value");
+            if(imp == DERNull.class) {
+                return primitive(tag, new byte[0]);
+            } else if(imp == DERBoolean.class) {
+                return primitive(tag, new byte[] { val.isTrue() ? (byte)0xff : 0 });
+            } else if(imp == DERUTCTime.class && val instanceof RubyTime) {
+                DERWriter time = new DERWriter(15);
+                time.writeUTCTime(((RubyTime)val).getJavaDate().getTime());
+                return raw(time.toByteArray());
+            } else if(imp == DERInteger.class) {
+                BigInteger value;
+                if(val instanceof RubyFixnum) {
+                    value = BigInteger.valueOf(((RubyFixnum)val).getLongValue());
+                } else if(val instanceof RubyBignum) {
+                    value = ((RubyBignum)val).getValue();
+                } else if(val instanceof BN) {
+                    value = ((BN)val).getValue();
+                } else {
+                    value = new BigInteger(val.toString());
+                }
+                return primitive(tag, value.toByteArray());
+            } else if(imp == DEROctetString.class) {
+                ByteList bytes = val.convertToString().getByteList();
+                add(tag, bytes.length(), bytes.unsafeBytes(), bytes.begin());
+                return DERWriter.headerLength(bytes.length()) + bytes.length();
+            } else if(imp == DERBitString.class) {
+                byte[] bs = val.convertToString().getBytes();
+                byte[] content = new byte[bs.length + 1];
+                content[0] = (byte)unusedBits(bs);
+                System.arraycopy(bs, 0, content, 1, bs.length);
+                return primitive(tag, content);
+            } else if(val instanceof RubyString && STRING_TYPES.contains(imp)) {
+                return primitive(tag, stringContents(imp, val.toString()));
+            }
+            return raw(obj.toASN1().getDEREncoded());
+        }
+
+        // the same count ASN1Primitive.toASN1 gives DERBitString
+        private static int unusedBits(byte[] bs) {
+            int unused = 0;
+            for(int i = (bs.length-1); i>-1; i--) {
+                if(bs[i] == 0) {
+                    unused += 8;
+                } else {
+                    byte v2 = bs[i];
+                    int x = 8;
+                    while(v2 != 0) {
+                        v2 <<= 1;
+                        x--;
+                    }
+                    unused += x;
+                    break;
+                }
+            }
+            return unused;
+        }
+
+        private static final List<Class> STRING_TYPES = Arrays.asList(new Class[] {
+                DERUTF8String.class, DERNumericString.class, DERPrintableString.class, DERT61String.class,
+                DERIA5String.class, DERGeneralString.class, DERBMPString.class });
+
+        // what the Bouncy Castle string classes write for a Java String
+        private static byte[] stringContents(Class imp, String value) {
+            if(imp == DERUTF8String.class) {
+                return Strings.toUTF8ByteArray(value);
+            } else if(imp == DERBMPString.class) {
+                byte[] bytes = new byte[value.length() * 2];
+                for(int i = 0; i < value.length(); i++) {
+                    bytes[2 * i] = (byte)(value.charAt(i) >> 8);
+                    bytes[2 * i + 1] = (byte)value.charAt(i);
+                }
+                return bytes;
+            }
+            byte[] bytes = new byte[value.length()];
+            for(int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte)value.charAt(i);
+            }
+            return bytes;
+        }
+
+        private static final Comparator<byte[]> ENCODING_ORDER = new Comparator<byte[]>() {
+                public int compare(byte[] a, byte[] b) {
+                    int n = Math.min(a.length, b.length);
+                    for(int i = 0; i < n; i++) {
+                        int x = a[i] & 0xff, y = b[i] & 0xff;
+                        if(x != y) {
+                            return x - y;
+                        }
+                    }
+                    return a.length - b.length;
+                }
+            };
     }
 
     public static class ASN1Data extends RubyObject {
@@ -611,7 +1094,7 @@ public class ASN1 {
         }
 
         protected void asn1Error(String msg) {
-            throw new RaiseException(getRuntime(), (RubyClass)(((RubyModule)(getRuntime().getModule("OpenSSL").getConstant("ASN1"))).getConstant("ASN1Error")), msg, true);
+            throw newASN1Error(getRuntime(), msg);
         }
 
         @JRubyMethod
@@ -653,7 +1136,7 @@ public class ASN1 {
 
         @JRubyMethod
         public IRubyObject to_der() {
-            return getRuntime().newString(new ByteList(toASN1().getDEREncoded(),false));
+            return getRuntime().newString(new ByteList(new DEREncoder().encode(this),false));
         }
 
         protected IRubyObject defaultTag() {
@@ -783,6 +1266,8 @@ public class ASN1 {
                 return new DERBoolean(val.isTrue());
             } else if(imp == DERUTCTime.class) {
                 return new DERUTCTime(((RubyTime)val).getJavaDate());
+            } else if(imp == DERGeneralizedTime.class && val instanceof RubyTime) {
+                return new DERGeneralizedTime(((RubyTime)val).getJavaDate());
             } else if(imp == DERInteger.class && val instanceof RubyBignum) {
                 return new DERInteger(((RubyBignum)val).getValue());
             } else if(imp == DERInteger.class) {
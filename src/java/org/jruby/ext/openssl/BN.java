@@ -45,6 +45,7 @@ import org.jruby.runtime.Arity;
 import org.jruby.runtime.Block;
 import org.jruby.runtime.ClassIndex;
 import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.util.ByteList;
 
@@ -55,6 +56,16 @@ import org.jruby.util.ByteList;
  * Beware that BN's are mutable -- I don't agree with this approach, but 
  * must conform for compatibility with MRI's implementation. The offending methods
  * are set_bit!, clear_bit!, mask_bits! and copy.<p>
+ *
+ * Since they are mutable anyway, the arithmetic operators also come in in-place
+ * flavors (add!, sub!, mul!, mod!, sqr!, mod_add!, mod_sub!, mod_mul!, mod_sqr!,
+ * mod_exp!, mod_inverse!, lshift! and rshift!). These store the result in the
+ * receiver and return it, rather than allocating a new BN for every step; useful
+ * for protocol code (SRP, DH) that chains many modular operations.<p>
+ *
+ * As with OpenSSL's BIGNUM, a BN is not safe for concurrent mutation: a BN that
+ * is modified must be owned by a single thread at a time, and none of the
+ * mutating methods take a lock. BNs that are only read may be shared freely.<p>
  * 
  * I've included a few operations (& | ^ ~) that aren't defined by MRI/OpenSSL.
  * These are non-portable (i.e., won't work in C-Ruby), so use at your own risk.<p>
@@ -67,8 +78,7 @@ public class BN extends RubyObject {
     private static final BigInteger MAX_INT = BigInteger.valueOf(Integer.MAX_VALUE);
     private static final BigInteger TWO = BigInteger.valueOf(2);
     private static final int DEFAULT_CERTAINTY = 100;
-    private static Random _random;
-    private static SecureRandom _secureRandom;
+    private static final long PRIME_POLL_INTERVAL = 100; // ms
 
     private static ObjectAllocator BN_ALLOCATOR = new ObjectAllocator() {
         public IRubyObject allocate(Ruby runtime, RubyClass klass) {
@@ -87,9 +97,12 @@ public class BN extends RubyObject {
         RubyClass bn = ossl.defineClassUnder("BN", runtime.getObject(), BN_ALLOCATOR);
 
         bn.defineAnnotatedMethods(BN.class);
+
+        BNMontContext.createBNMontContext(runtime, bn);
     }
 
-    private volatile BigInteger value;
+    // see class comment regarding ownership
+    private BigInteger value;
 
     private BN(Ruby runtime, RubyClass clazz, BigInteger value) {
         super(runtime, clazz);
@@ -119,7 +132,7 @@ public class BN extends RubyObject {
     }
 
     @JRubyMethod(name="initialize", required=1, optional=1)
-    public synchronized IRubyObject bn_initialize(IRubyObject[] args) {
+    public IRubyObject bn_initialize(IRubyObject[] args) {
         Ruby runtime = getRuntime();
         if (this.value != BigInteger.ZERO) { // already initialized
             throw newBNError(runtime, "illegal initialization");
@@ -155,7 +168,7 @@ public class BN extends RubyObject {
     }
     
     @JRubyMethod(name="copy")
-    public synchronized IRubyObject bn_copy(IRubyObject other) {
+    public IRubyObject bn_copy(IRubyObject other) {
         if (this != other) {
             this.value = getBigInteger(other);
         }
@@ -416,9 +429,118 @@ public class BN extends RubyObject {
             throw getRuntime().newZeroDivisionError();
         }
     }
+
+    // in-place arithmetic: the result replaces the receiver's value, and the
+    // receiver is returned. see class comment regarding ownership.
+
+    @JRubyMethod(name="add!")
+    public IRubyObject bn_add_bang(IRubyObject other) {
+        this.value = value.add(getBigInteger(other));
+        return this;
+    }
+
+    @JRubyMethod(name="sub!")
+    public IRubyObject bn_sub_bang(IRubyObject other) {
+        this.value = value.subtract(getBigInteger(other));
+        return this;
+    }
+
+    @JRubyMethod(name="mul!")
+    public IRubyObject bn_mul_bang(IRubyObject other) {
+        this.value = value.multiply(getBigInteger(other));
+        return this;
+    }
+
+    @JRubyMethod(name="sqr!")
+    public IRubyObject bn_sqr_bang() {
+        this.value = value.multiply(value);
+        return this;
+    }
+
+    @JRubyMethod(name="mod!")
+    public IRubyObject bn_mod_bang(IRubyObject other) {
+        try {
+            this.value = value.mod(getBigInteger(other));
+        } catch (ArithmeticException e) {
+            throw getRuntime().newZeroDivisionError();
+        }
+        return this;
+    }
+
+    @JRubyMethod(name="mod_add!")
+    public IRubyObject bn_mod_add_bang(IRubyObject other, IRubyObject mod) {
+        try {
+            this.value = value.add(getBigInteger(other)).mod(getBigInteger(mod));
+        } catch (ArithmeticException e) {
+            throw getRuntime().newZeroDivisionError();
+        }
+        return this;
+    }
+
+    @JRubyMethod(name="mod_sub!")
+    public IRubyObject bn_mod_sub_bang(IRubyObject other, IRubyObject mod) {
+        try {
+            this.value = value.subtract(getBigInteger(other)).mod(getBigInteger(mod));
+        } catch (ArithmeticException e) {
+            throw getRuntime().newZeroDivisionError();
+        }
+        return this;
+    }
+
+    @JRubyMethod(name="mod_mul!")
+    public IRubyObject bn_mod_mul_bang(IRubyObject other, IRubyObject mod) {
+        try {
+            this.value = value.multiply(getBigInteger(other)).mod(getBigInteger(mod));
+        } catch (ArithmeticException e) {
+            throw getRuntime().newZeroDivisionError();
+        }
+        return this;
+    }
+
+    @JRubyMethod(name="mod_sqr!")
+    public IRubyObject bn_mod_sqr_bang(IRubyObject mod) {
+        try {
+            this.value = value.multiply(value).mod(getBigInteger(mod));
+        } catch (ArithmeticException e) {
+            throw getRuntime().newZeroDivisionError();
+        }
+        return this;
+    }
+
+    @JRubyMethod(name="mod_exp!")
+    public IRubyObject bn_mod_exp_bang(IRubyObject other, IRubyObject mod) {
+        try {
+            this.value = value.modPow(getBigInteger(other), getBigInteger(mod));
+        } catch (ArithmeticException e) {
+            throw getRuntime().newZeroDivisionError();
+        }
+        return this;
+    }
+
+    @JRubyMethod(name="mod_inverse!")
+    public IRubyObject bn_mod_inverse_bang(IRubyObject mod) {
+        try {
+            this.value = value.modInverse(getBigInteger(mod));
+        } catch (ArithmeticException e) {
+            throw getRuntime().newZeroDivisionError();
+        }
+        return this;
+    }
+
+    @JRubyMethod(name="lshift!")
+    public IRubyObject bn_lshift_bang(IRubyObject n) {
+        this.value = shiftLeft(this.value, RubyNumeric.num2int(n));
+        return this;
+    }
+
+    @JRubyMethod(name="rshift!")
+    public IRubyObject bn_rshift_bang(IRubyObject n) {
+        this.value = shiftRight(this.value, RubyNumeric.num2int(n));
+        return this;
+    }
     
     @JRubyMethod(name="set_bit!")
-    public synchronized IRubyObject bn_set_bit(IRubyObject n) {
+    public IRubyObject bn_set_bit(IRubyObject n) {
         // evil mutable BN
         int pos = RubyNumeric.num2int(n);
         BigInteger oldValue = this.value;
@@ -441,7 +563,7 @@ public class BN extends RubyObject {
     }
 
     @JRubyMethod(name="clear_bit!")
-    public synchronized IRubyObject bn_clear_bit(IRubyObject n) {
+    public IRubyObject bn_clear_bit(IRubyObject n) {
         // evil mutable BN
         int pos = RubyNumeric.num2int(n);
         BigInteger oldValue = this.value;
@@ -461,7 +583,7 @@ public class BN extends RubyObject {
      * Truncates value to n bits 
      */
     @JRubyMethod(name="mask_bits!")
-    public synchronized IRubyObject bn_mask_bits(IRubyObject n) {
+    public IRubyObject bn_mask_bits(IRubyObject n) {
         // evil mutable BN
 
         int pos = RubyNumeric.num2int(n);
@@ -499,23 +621,27 @@ public class BN extends RubyObject {
 
     @JRubyMethod(name="<<")
     public IRubyObject bn_lshift(IRubyObject n) {
-        int nbits = RubyNumeric.num2int(n);
-        BigInteger val = this.value;
+        return newBN(getRuntime(), shiftLeft(this.value, RubyNumeric.num2int(n)));
+    }
+
+    @JRubyMethod(name=">>")
+    public IRubyObject bn_rshift(IRubyObject n) {
+        return newBN(getRuntime(), shiftRight(this.value, RubyNumeric.num2int(n)));
+    }
+
+    private static BigInteger shiftLeft(BigInteger val, int nbits) {
         if (val.signum() >= 0) {
-            return newBN(getRuntime(), val.shiftLeft(nbits));
+            return val.shiftLeft(nbits);
         } else {
-            return newBN(getRuntime(), val.abs().shiftLeft(nbits).negate());
+            return val.abs().shiftLeft(nbits).negate();
         }
     }
 
-    @JRubyMethod(name=">>")
-    public IRubyObject bn_rshift(IRubyObject n) {
-        int nbits = RubyNumeric.num2int(n);
-        BigInteger val = this.value;
+    private static BigInteger shiftRight(BigInteger val, int nbits) {
         if (val.signum() >= 0) {
-            return newBN(getRuntime(), val.shiftRight(nbits));
+            return val.shiftRight(nbits);
         } else {
-            return newBN(getRuntime(), val.abs().shiftRight(nbits).negate());
+            return val.abs().shiftRight(nbits).negate();
         }
     }
     
@@ -570,50 +696,41 @@ public class BN extends RubyObject {
             if (safe) throw runtime.newArgumentError("bits < 3");
             if (bits < 2) throw runtime.newArgumentError("bits < 2");
         }
-        return newBN(runtime, generatePrime(bits, safe, add, rem));
+        try {
+            return newBN(runtime, generatePrime(runtime.getCurrentContext(), bits, safe, add, rem));
+        } catch (IllegalArgumentException e) {
+            throw runtime.newArgumentError(e.getMessage());
+        }
     }
     
+    /**
+     * Generates a prime as described in BN_generate_prime(3); see {@link PrimeGenerator}.
+     * Blocks until a prime is found.
+     */
     public static BigInteger generatePrime(int bits, boolean safe, BigInteger add, BigInteger rem) {
-        // From OpenSSL man page BN_generate_prime(3):
-        //
-        // "If add is not NULL, the prime will fulfill the condition p % add == rem 
-        // (p % add == 1 if rem == NULL) in order to suit a given generator."
-        //
-        // "If safe is true, it will be a safe prime (i.e. a prime p so that
-        // (p-1)/2 is also prime)."
-        //
-        // see [ossl]/crypto/bn/bn_prime.c #BN_generate_prime_ex
-        //
+        return PrimeGenerator.generate(bits, safe, add, rem);
+    }
 
-        if (add != null && rem == null) {
-            rem = BigInteger.ONE;
-        }
-        
-        // borrowing technique from org.bouncycastle.crypto.generators.DHParametersHelper
-        // (unfortunately the code has package visibility), wherein for safe primes,
-        // we'll use the lowest useful certainty (2) for generation of q, then if
-        // p ( = 2q + 1) is prime to our required certainty (100), we'll verify that q
-        // is as well.
-        //
-        // for typical bit lengths ( >= 1024), this should speed things up by reducing
-        // initial Miller-Rabin iterations from 2 to 1 for candidate values of q.
-        //
-        // it's still painfully slow...
-        //
-        BigInteger p, q;
-        int qbits = bits - 1;
-        SecureRandom secureRandom = getSecureRandom();
-        do {
-            if (safe) {
-                do {
-                    q = new BigInteger(qbits, 2, secureRandom);
-                    p = q.shiftLeft(1).setBit(0);
-                } while (!(p.isProbablePrime(DEFAULT_CERTAINTY) && q.isProbablePrime(DEFAULT_CERTAINTY)));
-            } else {
-                p = BigInteger.probablePrime(bits, secureRandom); 
+    /**
+     * Like {@link #generatePrime(int, boolean, BigInteger, BigInteger)}, but
+     * polls the Ruby thread while the search is running, so that Thread#raise
+     * (and hence Timeout) and Thread#kill get through and stop the search.
+     */
+    public static BigInteger generatePrime(ThreadContext context, int bits, boolean safe, BigInteger add, BigInteger rem) {
+        PrimeGenerator.Search search = PrimeGenerator.start(bits, safe, add, rem);
+        try {
+            while (true) {
+                try {
+                    BigInteger p = search.await(PRIME_POLL_INTERVAL);
+                    if (p != null) return p;
+                } catch (InterruptedException e) {
+                    // fall through to polling
+                }
+                context.pollThreadEvents();
             }
-        } while (add != null && !p.mod(add).equals(rem));
-        return p;
+        } finally {
+            search.cancel();
+        }
     }
     
     public static BigInteger generatePrime(int bits, boolean safe) {
@@ -732,20 +849,11 @@ public class BN extends RubyObject {
     }
     
     private static Random getRandom() {
-        Random rand;
-        if ((rand = _random) != null) {
-            return rand;
-        }
-        return _random = new Random();
+        return org.jruby.ext.openssl.Random.getRandom();
     }
     
     private static SecureRandom getSecureRandom() {
-        SecureRandom rand;
-        if ((rand = _secureRandom) != null) {
-            return rand;
-        }
-        // FIXME: do we want a particular algorithm / provider? BC?
-        return _secureRandom = new SecureRandom();
+        return org.jruby.ext.openssl.Random.getSecureRandom();
     }
 
     public static RaiseException newBNError(Ruby runtime, String message) {
@@ -0,0 +1,257 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Copyright (C) 2009 The JRuby Community <www.jruby.org>
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * OpenSSL::BN::MontContext, modelled on OpenSSL's BN_MONT_CTX: state that is
+ * computed once for a fixed modulus and reused by every operation on it.<p>
+ * 
+ * mod_mul uses Barrett reduction against a precomputed reciprocal of the
+ * modulus, replacing the division in BigInteger#mod with two multiplications.
+ * mod_exp with a variable base goes to BigInteger#modPow, which already does
+ * its Montgomery multiplications natively; for bases registered through
+ * precompute (typically a DH/SRP generator) it uses a table of
+ * base^(2^(w*i)) and Yao's fixed-base method, which needs no squarings at all.<p>
+ * 
+ * A context is immutable once created, except for the table of precomputed
+ * bases, so it may be shared between threads.
+ */
+public class BNMontContext extends RubyObject {
+    private static final long serialVersionUID = 6117405226513862467L;
+
+    private static ObjectAllocator MONTCONTEXT_ALLOCATOR = new ObjectAllocator() {
+        public IRubyObject allocate(Ruby runtime, RubyClass klass) {
+            return new BNMontContext(runtime, klass);
+        }
+    };
+
+    public static void createBNMontContext(Ruby runtime, RubyClass bn) {
+        RubyClass ctx = bn.defineClassUnder("MontContext", runtime.getObject(), MONTCONTEXT_ALLOCATOR);
+        ctx.defineAnnotatedMethods(BNMontContext.class);
+    }
+
+    private BigInteger modulus;
+    private int bits;
+    // floor(2^(2*bits) / modulus)
+    private BigInteger reciprocal;
+    private final Map<BigInteger, FixedBase> fixedBases = new HashMap<BigInteger, FixedBase>();
+
+    public BNMontContext(Ruby runtime, RubyClass clazz) {
+        super(runtime, clazz);
+    }
+
+    @JRubyMethod(name="initialize")
+    public IRubyObject mont_initialize(IRubyObject mod) {
+        Ruby runtime = getRuntime();
+        if (this.modulus != null) {
+            throw BN.newBNError(runtime, "illegal initialization");
+        }
+        BigInteger m = BN.getBigInteger(mod);
+        if (m == null || m.signum() <= 0 || !m.testBit(0)) {
+            // as with BN_MONT_CTX_set, only odd moduli are supported
+            throw BN.newBNError(runtime, "modulus must be odd and positive");
+        }
+        setModulus(m);
+        return this;
+    }
+
+    void setModulus(BigInteger m) {
+        this.modulus = m;
+        this.bits = m.bitLength();
+        this.reciprocal = BigInteger.ONE.shiftLeft(2 * bits).divide(m);
+    }
+
+    public BigInteger getModulus() {
+        return modulus;
+    }
+
+    @JRubyMethod(name="modulus")
+    public IRubyObject mont_modulus() {
+        return BN.newBN(getRuntime(), checkModulus());
+    }
+
+    /**
+     * Precomputes exponentiation tables for base, so that later calls to
+     * mod_exp with that base are served from the table.
+     */
+    @JRubyMethod(name="precompute")
+    public IRubyObject mont_precompute(IRubyObject base) {
+        precompute(BN.getBigInteger(base));
+        return this;
+    }
+
+    @JRubyMethod(name="precomputed?")
+    public IRubyObject mont_is_precomputed(IRubyObject base) {
+        BigInteger b = reduce(BN.getBigInteger(base));
+        synchronized (fixedBases) {
+            return getRuntime().newBoolean(fixedBases.containsKey(b));
+        }
+    }
+
+    @JRubyMethod(name="mod_mul")
+    public IRubyObject mont_mod_mul(IRubyObject a, IRubyObject b) {
+        return BN.newBN(getRuntime(), modMul(BN.getBigInteger(a), BN.getBigInteger(b)));
+    }
+
+    @JRubyMethod(name="mod_exp")
+    public IRubyObject mont_mod_exp(IRubyObject a, IRubyObject e) {
+        BigInteger exp = BN.getBigInteger(e);
+        if (exp.signum() < 0) {
+            throw BN.newBNError(getRuntime(), "invalid exponent");
+        }
+        return BN.newBN(getRuntime(), modExp(BN.getBigInteger(a), exp));
+    }
+
+    public void precompute(BigInteger base) {
+        BigInteger b = reduce(base);
+        synchronized (fixedBases) {
+            if (!fixedBases.containsKey(b)) {
+                fixedBases.put(b, new FixedBase(b));
+            }
+        }
+    }
+
+    public BigInteger modMul(BigInteger a, BigInteger b) {
+        return mulReduced(reduce(a), reduce(b));
+    }
+
+    public BigInteger modExp(BigInteger base, BigInteger exp) {
+        BigInteger b = reduce(base);
+        FixedBase table;
+        synchronized (fixedBases) {
+            table = fixedBases.get(b);
+        }
+        if (table != null && exp.bitLength() <= table.capacity()) {
+            return table.pow(exp);
+        }
+        return b.modPow(exp, modulus);
+    }
+
+    private BigInteger checkModulus() {
+        if (modulus == null) {
+            throw BN.newBNError(getRuntime(), "uninitialized MontContext");
+        }
+        return modulus;
+    }
+
+    private BigInteger reduce(BigInteger a) {
+        checkModulus();
+        if (a.signum() < 0 || a.bitLength() > bits || a.compareTo(modulus) >= 0) {
+            return a.mod(modulus);
+        }
+        return a;
+    }
+
+    // a, b in [0, modulus)
+    private BigInteger mulReduced(BigInteger a, BigInteger b) {
+        BigInteger x = a.multiply(b);
+        // Barrett: q is at most 2 less than floor(x / modulus)
+        BigInteger q = x.shiftRight(bits - 1).multiply(reciprocal).shiftRight(bits + 1);
+        BigInteger r = x.subtract(q.multiply(modulus));
+        while (r.compareTo(modulus) >= 0) {
+            r = r.subtract(modulus);
+        }
+        return r;
+    }
+
+    /**
+     * Table of base^(2^(window*i)) mod modulus, for exponents of up to
+     * modulus.bitLength() bits.
+     */
+    private final class FixedBase {
+        private final int window;
+        private final BigInteger[] powers;
+
+        FixedBase(BigInteger base) {
+            // Yao's method costs digits + 2^window - 1 multiplications
+            int best = 1;
+            for (int w = 2; w <= 8; w++) {
+                if (cost(w) < cost(best)) best = w;
+            }
+            window = best;
+            powers = new BigInteger[(bits + window - 1) / window];
+            BigInteger p = base;
+            for (int i = 0; i < powers.length; i++) {
+                powers[i] = p;
+                for (int s = 0; s < window; s++) {
+                    p = mulReduced(p, p);
+                }
+            }
+        }
+
+        private int cost(int w) {
+            return (bits + w - 1) / w + (1 << w) - 1;
+        }
+
+        int capacity() {
+            return window * powers.length;
+        }
+
+        BigInteger pow(BigInteger exp) {
+            int digitMask = (1 << window) - 1;
+            int count = (exp.bitLength() + window - 1) / window;
+            // bucket the powers by exponent digit
+            int[] digits = new int[count];
+            int[] bucketSizes = new int[digitMask + 1];
+            for (int i = 0; i < count; i++) {
+                int digit = 0;
+                for (int s = window - 1; s >= 0; s--) {
+                    digit = (digit << 1) | (exp.testBit(i * window + s) ? 1 : 0);
+                }
+                digits[i] = digit;
+                bucketSizes[digit]++;
+            }
+            BigInteger a = null;
+            BigInteger b = null;
+            for (int j = digitMask; j > 0; j--) {
+                if (bucketSizes[j] > 0) {
+                    for (int i = 0; i < count; i++) {
+                        if (digits[i] == j) {
+                            b = b == null ? powers[i] : mulReduced(b, powers[i]);
+                        }
+                    }
+                }
+                if (b != null) {
+                    a = a == null ? b : mulReduced(a, b);
+                }
+            }
+            return a == null ? BigInteger.ONE.mod(modulus) : a;
+        }
+    }
+}
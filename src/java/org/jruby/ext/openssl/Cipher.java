@@ -33,7 +33,9 @@ import java.security.NoSuchProviderException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.spec.IvParameterSpec;
 
@@ -177,6 +179,79 @@ public class Cipher extends RubyObject {
         }))).booleanValue();
     }
 
+    /**
+     * What a cipher name and padding resolve to. Working it out means
+     * parsing the name and asking JCE for the key length limit, so it
+     * is done once per name and padding and shared by every instance.
+     */
+    private static class Spec {
+        final String cryptoBase;
+        final String cryptoVersion;
+        final String cryptoMode;
+        final String realName;
+        final String padding_type;
+        final int keyLen;
+        final int ivLen;
+        // the engine built when checking the name, for the first user
+        private javax.crypto.Cipher spare;
+
+        Spec(String name, String[] values) {
+            cryptoBase = values[0];
+            cryptoVersion = values[1];
+            cryptoMode = values[2];
+            realName = values[3];
+            padding_type = values[4];
+
+            int keyLen = -1;
+            int ivLen = -1;
+            if(hasLen(cryptoBase) && null != cryptoVersion) {
+                try {
+                    keyLen = Integer.parseInt(cryptoVersion) / 8;
+                } catch(NumberFormatException e) {
+                    keyLen = -1;
+                }
+            }
+            if(keyLen == -1) {
+                if("DES".equalsIgnoreCase(cryptoBase)) {
+                    ivLen = 8;
+                    if("EDE3".equalsIgnoreCase(cryptoVersion)) {
+                        keyLen = 24;
+                    } else {
+                        keyLen = 8;
+                    }
+                } else {
+                    keyLen = 16;
+                }
+            }
+
+            if(ivLen == -1) {
+                if("AES".equalsIgnoreCase(cryptoBase)) {
+                    ivLen = 16;
+                } else {
+                    ivLen = 8;
+                }
+            }
+
+            try {
+                if((javax.crypto.Cipher.getMaxAllowedKeyLength(name)/8) < keyLen) {
+                    keyLen = javax.crypto.Cipher.getMaxAllowedKeyLength(name)/8;
+                }
+            } catch(Exception e) {
+                // I hate checked exceptions
+            }
+            this.keyLen = keyLen;
+            this.ivLen = ivLen;
+        }
+
+        synchronized javax.crypto.Cipher takeSpare() {
+            javax.crypto.Cipher c = spare;
+            spare = null;
+            return c;
+        }
+    }
+
+    private static final Map<String, Spec> SPECS = new ConcurrentHashMap<String, Spec>();
+    private static final int MAX_SPECS = 256;
 
     private RubyClass ciphErr;
     public Cipher(Ruby runtime, RubyClass type) {
@@ -184,6 +259,8 @@ public class Cipher extends RubyObject {
         ciphErr = (RubyClass)(((RubyModule)(getRuntime().getModule("OpenSSL").getConstant("Cipher"))).getConstant("CipherError"));
     }
 
+    private Spec spec;
+    // built on first use, so dup and padding= do not look one up
     private javax.crypto.Cipher ciph;
     private String name;
     private String cryptoBase;
@@ -211,64 +288,48 @@ public class Cipher extends RubyObject {
         System.out.println("realName = " + realName);
         System.out.println("keyLen = " + keyLen);
         System.out.println("ivLen = " + ivLen);
-        System.out.println("ciph block size = " + ciph.getBlockSize());
+        System.out.println("ciph block size = " + cipher().getBlockSize());
         System.out.println("encryptMode = " + encryptMode);
         System.out.println("ciphInited = " + ciphInited);
         System.out.println("key.length = " + (key == null ? 0 : key.length));
         System.out.println("iv.length = " + (this.realIV == null ? 0 : this.realIV.length));
         System.out.println("padding = " + padding);
-        System.out.println("ciphAlgo = " + ciph.getAlgorithm());
+        System.out.println("ciphAlgo = " + cipher().getAlgorithm());
         System.out.println("*******************************");
     }
 
     @JRubyMethod(required=1)
     public IRubyObject initialize(IRubyObject str) {
         name = str.toString();
-        String[] values = rubyToJavaCipher(name, padding);
-        cryptoBase = values[0];
-        cryptoVersion = values[1];
-        cryptoMode = values[2];
-        realName = values[3];
-        padding_type = values[4];
-        ciph = getCipher();
-
-        if(hasLen() && null != cryptoVersion) {
-            try {
-                keyLen = Integer.parseInt(cryptoVersion) / 8;
-            } catch(NumberFormatException e) {
-                keyLen = -1;
-            }
-        }
-        if(keyLen == -1) {
-            if("DES".equalsIgnoreCase(cryptoBase)) {
-                ivLen = 8;
-                if("EDE3".equalsIgnoreCase(cryptoVersion)) {
-                    keyLen = 24;
-                } else {
-                    keyLen = 8;
-                }
-            } else {
-                keyLen = 16;
-            }
-        }
+        useSpec(lookupSpec());
+        return this;
+    }
 
-        if(ivLen == -1) {
-            if("AES".equalsIgnoreCase(cryptoBase)) {
-                ivLen = 16;
-            } else {
-                ivLen = 8;
+    private Spec lookupSpec() {
+        String specKey = padding == null ? name : name + "\0" + padding;
+        Spec found = SPECS.get(specKey);
+        if(found == null) {
+            found = new Spec(name, rubyToJavaCipher(name, padding));
+            // an unknown name raises here, before anything is cached
+            found.spare = newCipher(found.realName);
+            if(SPECS.size() >= MAX_SPECS) {
+                SPECS.clear();
             }
+            SPECS.put(specKey, found);
         }
-        
-        try {
-            if((javax.crypto.Cipher.getMaxAllowedKeyLength(name)/8) < keyLen) {
-                keyLen = javax.crypto.Cipher.getMaxAllowedKeyLength(name)/8;
-            }
-        } catch(Exception e) {
-            // I hate checked exceptions
-        }
+        return found;
+    }
 
-        return this;
+    private void useSpec(Spec spec) {
+        this.spec = spec;
+        cryptoBase = spec.cryptoBase;
+        cryptoVersion = spec.cryptoVersion;
+        cryptoMode = spec.cryptoMode;
+        realName = spec.realName;
+        padding_type = spec.padding_type;
+        keyLen = spec.keyLen;
+        ivLen = spec.ivLen;
+        ciph = null;
     }
 
     @JRubyMethod(required=1)
@@ -279,6 +340,7 @@ public class Cipher extends RubyObject {
 
         checkFrozen();
 
+        spec = ((Cipher)obj).spec;
         cryptoBase = ((Cipher)obj).cryptoBase;
         cryptoVersion = ((Cipher)obj).cryptoVersion;
         cryptoMode = ((Cipher)obj).cryptoMode;
@@ -304,7 +366,7 @@ public class Cipher extends RubyObject {
         this.orgIV = this.realIV;
         padding = ((Cipher)obj).padding;
 
-        ciph = getCipher();
+        ciph = null;
 
         return this;
     }
@@ -373,7 +435,7 @@ public class Cipher extends RubyObject {
 
     @JRubyMethod
     public IRubyObject block_size() {
-        return getRuntime().newFixnum(ciph.getBlockSize());
+        return getRuntime().newFixnum(cipher().getBlockSize());
     }
 
     protected void init(IRubyObject[] args, boolean encrypt) {
@@ -446,6 +508,30 @@ public class Cipher extends RubyObject {
     }
 
     javax.crypto.Cipher getCipher() {
+        return cipher();
+    }
+
+    private javax.crypto.Cipher cipher() {
+        if(ciph == null) {
+            ciph = spec.takeSpare();
+            if(ciph == null) {
+                ciph = newCipher(realName);
+            }
+        }
+        return ciph;
+    }
+
+    private javax.crypto.Cipher newCipher(final String realName) {
+        if(OpenSSLReal.PROVIDER != null) {
+            // asking the provider itself needs no global registration
+            try {
+                return javax.crypto.Cipher.getInstance(realName, OpenSSLReal.PROVIDER);
+            } catch (NoSuchAlgorithmException e) {
+                throw getRuntime().newLoadError("unsupported cipher algorithm (" + realName + ")");
+            } catch (javax.crypto.NoSuchPaddingException e) {
+                throw getRuntime().newLoadError("unsupported cipher padding (" + realName + ")");
+            }
+        }
         return (javax.crypto.Cipher) OpenSSLReal.getWithBCProvider(new Callable() {
             public Object call() {
                 try {
@@ -461,10 +547,6 @@ public class Cipher extends RubyObject {
         });
     }
 
-    private boolean hasLen() {
-        return hasLen(this.cryptoBase);
-    }
-
     private static boolean hasLen(String cryptoBase) {
         return "AES".equalsIgnoreCase(cryptoBase) || "RC2".equalsIgnoreCase(cryptoBase) || "RC4".equalsIgnoreCase(cryptoBase);
     }
@@ -528,9 +610,9 @@ public class Cipher extends RubyObject {
             assert (key.length * 8 == keyLen) || (key.length == keyLen) : "Key wrong length";
             assert (this.realIV.length * 8 == ivLen) || (this.realIV.length == ivLen): "IV wrong length";
             if(!"ECB".equalsIgnoreCase(cryptoMode) && this.realIV != null) {
-                this.ciph.init(encryptMode ? javax.crypto.Cipher.ENCRYPT_MODE : javax.crypto.Cipher.DECRYPT_MODE, new SimpleSecretKey(this.key), new IvParameterSpec(this.realIV));
+                cipher().init(encryptMode ? javax.crypto.Cipher.ENCRYPT_MODE : javax.crypto.Cipher.DECRYPT_MODE, new SimpleSecretKey(this.key), new IvParameterSpec(this.realIV));
             } else {
-                this.ciph.init(encryptMode ? javax.crypto.Cipher.ENCRYPT_MODE : javax.crypto.Cipher.DECRYPT_MODE, new SimpleSecretKey(this.key));
+                cipher().init(encryptMode ? javax.crypto.Cipher.ENCRYPT_MODE : javax.crypto.Cipher.DECRYPT_MODE, new SimpleSecretKey(this.key));
             }
         } catch(Exception e) {
             if (DEBUG) e.printStackTrace();
@@ -557,7 +639,7 @@ public class Cipher extends RubyObject {
 
         byte[] str = new byte[0];
         try {
-            byte[] out = ciph.update(val);
+            byte[] out = cipher().update(val);
             if(out != null) {
                 str = out;
 
@@ -593,7 +675,7 @@ public class Cipher extends RubyObject {
 
         ByteList str = new ByteList(ByteList.NULL_ARRAY);
         try {
-            byte[] out = ciph.doFinal();
+            byte[] out = cipher().doFinal();
             if(out != null) {
                 str = new ByteList(out,false);
                 // TODO: Modifying this line appears to fix the issue, but I do
@@ -626,12 +708,12 @@ public class Cipher extends RubyObject {
     @JRubyMethod(name="padding=")
     public IRubyObject set_padding(IRubyObject padding) {
         this.padding = padding.toString();
-        initialize(RubyString.newString(getRuntime(), name));
+        useSpec(lookupSpec());
         return padding;
     }
 
     String getAlgorithm() {
-        return this.ciph.getAlgorithm();
+        return cipher().getAlgorithm();
     }
 
     String getName() {
@@ -29,12 +29,10 @@ package org.jruby.ext.openssl;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -424,6 +422,16 @@ public class CipherStrings {
             return "Cipher<" + name + ">";
         }
 
+        /**
+         * A copy of this cipher for one Java cipher suite, so the
+         * shared definition is never changed.
+         */
+        Def withSuite(String suite) {
+            Def def = new Def(valid, name, id, algorithms, algo_strength, algorithm2, strength_bits, alg_bits, mask, mask_strength);
+            def.cipherSuite = suite;
+            return def;
+        }
+
         public boolean matches(Def current) {
             return (this.algorithms == 0 || (this.algorithms & current.algorithms) != 0) &&
                 (this.algo_strength == 0 || (this.algo_strength & current.algo_strength) != 0) &&
@@ -439,87 +447,238 @@ public class CipherStrings {
     public final static Map<String, String> SuiteToOSSL = new HashMap<String, String>();
 
     public static List<Def> getMatchingCiphers(String str, String[] all) {
-        String[] parts = str.split("[:, ]+");
-        List<Def> currentList = new ArrayList<Def>();
-        Set<Def> removed = new HashSet<Def>();
-
-        boolean first = true;
-        for(String part : parts) {
-            if(first) {
-                for(String entry : all) {
-                    String ossl = SuiteToOSSL.get(entry);
-                    if(ossl != null) {
-                        Def def = CipherNames.get(ossl);
-                        if(def != null) {
-                            def.cipherSuite = entry;
-
-                            if(Definitions.get(part).matches(def)) {
-                                currentList.add(def);
-                            }
-                        }
-                    }
+        String[] suites = getMatchingCipherSuites(str, all);
+        List<Def> result = new ArrayList<Def>(suites.length);
+        for(String suite : suites) {
+            result.add(CipherNames.get(SuiteToOSSL.get(suite)).withSuite(suite));
+        }
+        return result;
+    }
+
+    /**
+     * The suites out of all that the OpenSSL style cipher list str
+     * selects, in the order it puts them.
+     */
+    public static String[] getMatchingCipherSuites(String str, String[] all) {
+        return compile(str).run(all);
+    }
+
+    /*
+     * Every Java cipher suite name we know of is one bit in a fixed
+     * suite table, so each term of a cipher list is a set of suites
+     * worked out once, and applying it is a few long operations.
+     */
+    private static String[] SUITES;
+    private static Def[] SUITE_DEFS;
+    private static Map<String, Integer> SUITE_INDEX;
+    private static int WORDS;
+
+    private final static Map<String, long[]> TERM_MASKS = new HashMap<String, long[]>();
+    private final static Map<String, Program> PROGRAMS = new ConcurrentHashMap<String, Program>();
+    private final static int MAX_PROGRAMS = 256;
+
+    private static void compileSuites() {
+        List<String> names = new ArrayList<String>();
+        for(Map.Entry<String, String> alias : SuiteToOSSL.entrySet()) {
+            if(CipherNames.containsKey(alias.getValue())) {
+                names.add(alias.getKey());
+            }
+        }
+        Collections.sort(names);
+        SUITES = names.toArray(new String[names.size()]);
+        SUITE_DEFS = new Def[SUITES.length];
+        SUITE_INDEX = new HashMap<String, Integer>();
+        WORDS = (SUITES.length + 63) / 64;
+        for(int i = 0; i < SUITES.length; i++) {
+            SUITE_DEFS[i] = CipherNames.get(SuiteToOSSL.get(SUITES[i]));
+            SUITE_INDEX.put(SUITES[i], Integer.valueOf(i));
+        }
+        for(Def pattern : Definitions.values()) {
+            long[] mask = new long[WORDS];
+            for(int i = 0; i < SUITES.length; i++) {
+                if(pattern.matches(SUITE_DEFS[i])) {
+                    mask[i >> 6] |= 1L << i;
                 }
-                first = false;
-            } else {
-                int index = 0;
+            }
+            TERM_MASKS.put(pattern.name, mask);
+        }
+        for(Def def : Ciphers) {
+            long[] mask = new long[WORDS];
+            for(int i = 0; i < SUITES.length; i++) {
+                if(SUITE_DEFS[i] == def) {
+                    mask[i >> 6] |= 1L << i;
+                }
+            }
+            if(!TERM_MASKS.containsKey(def.name)) {
+                TERM_MASKS.put(def.name, mask);
+            }
+        }
+    }
 
+    private static Program compile(String str) {
+        Program program = PROGRAMS.get(str);
+        if(program == null) {
+            program = new Program(str);
+            if(PROGRAMS.size() >= MAX_PROGRAMS) {
+                PROGRAMS.clear();
+            }
+            PROGRAMS.put(str, program);
+        }
+        return program;
+    }
+
+    /**
+     * A cipher list turned into a sequence of operations on suite sets.
+     */
+    private static class Program {
+        private final static char ADD = 'a';
+        private final static char KILL = '!';
+        private final static char MOVE = '+';
+        private final static char REMOVE = '-';
+        private final static char STRENGTH = '@';
+
+        private final char[] ops;
+        private final long[][] masks;
+
+        Program(String str) {
+            List<Character> opList = new ArrayList<Character>();
+            List<long[]> maskList = new ArrayList<long[]>();
+            for(String part : str.split("[:, ]+")) {
+                if(part.length() == 0) {
+                    continue;
+                }
+                char op = ADD;
                 switch(part.charAt(0)) {
                 case '!':
-                    index++;
-                    break;
                 case '+':
-                    index++;
-                    break;
                 case '-':
-                    index++;
+                    op = part.charAt(0);
+                    part = part.substring(1);
                     break;
                 case '@':
                     if(part.equals("@STRENGTH")) {
-                        Collections.sort(currentList, new Comparator<Def>() {
-                                public int compare(Def first, Def second) {
-                                    return second.strength_bits - first.strength_bits;
-                                }
-                            });
+                        opList.add(Character.valueOf(STRENGTH));
+                        maskList.add(null);
                     }
                     continue;
                 }
+                long[] mask = termMask(part);
+                if(mask != null) {
+                    opList.add(Character.valueOf(op));
+                    maskList.add(mask);
+                }
+            }
+            ops = new char[opList.size()];
+            for(int i = 0; i < ops.length; i++) {
+                ops[i] = opList.get(i).charValue();
+            }
+            masks = maskList.toArray(new long[maskList.size()][]);
+        }
+
+        // "RSA+AES" is the suites both RSA and AES select
+        private static long[] termMask(String term) {
+            long[] mask = null;
+            for(String name : term.split("\\+")) {
+                long[] part = TERM_MASKS.get(name);
+                if(part == null) {
+                    return null;
+                }
+                if(mask == null) {
+                    mask = part.clone();
+                } else {
+                    for(int i = 0; i < WORDS; i++) {
+                        mask[i] &= part[i];
+                    }
+                }
+            }
+            return mask;
+        }
 
-                String name = part.substring(index);
+        private static boolean has(long[] mask, int suite) {
+            return (mask[suite >> 6] & (1L << suite)) != 0;
+        }
 
-                // TODO: handle + in the name here at some point
+        String[] run(String[] all) {
+            // the suites the engine supports, in its order
+            int[] candidates = new int[all.length];
+            int candidateCount = 0;
+            long[] seen = new long[WORDS];
+            for(String name : all) {
+                Integer index = SUITE_INDEX.get(name);
+                if(index != null && !has(seen, index.intValue())) {
+                    int suite = index.intValue();
+                    seen[suite >> 6] |= 1L << suite;
+                    candidates[candidateCount++] = suite;
+                }
+            }
 
-                Def pattern = Definitions.get(name);
-                if(pattern != null) {
-                    List<Def> matching = new ArrayList<Def>();
-                    for(Def current : currentList) {
-                        if(pattern.matches(current)) {
-                            matching.add(current);
+            long[] active = new long[WORDS];
+            long[] killed = new long[WORDS];
+            int[] order = new int[candidateCount];
+            int size = 0;
+            for(int i = 0; i < ops.length; i++) {
+                long[] mask = masks[i];
+                switch(ops[i]) {
+                case ADD:
+                    for(int j = 0; j < candidateCount; j++) {
+                        int suite = candidates[j];
+                        if(has(mask, suite) && !has(active, suite) && !has(killed, suite)) {
+                            active[suite >> 6] |= 1L << suite;
+                            order[size++] = suite;
                         }
                     }
-
-                    if(index > 0) {
-                        switch(part.charAt(0)) {
-                        case '!':
-                            currentList.removeAll(matching);
-                            removed.addAll(matching);
-                            break;
-                        case '+':
-                            currentList.removeAll(matching);
-                            currentList.addAll(matching);
-                            break;
-                        case '-':
-                            currentList.removeAll(matching);
-                            break;
+                    break;
+                case KILL:
+                    for(int j = 0; j < WORDS; j++) {
+                        killed[j] |= mask[j];
+                    }
+                    // fall through
+                case REMOVE:
+                    for(int j = 0; j < WORDS; j++) {
+                        active[j] &= ~mask[j];
+                    }
+                    int kept = 0;
+                    for(int j = 0; j < size; j++) {
+                        if(has(active, order[j])) {
+                            order[kept++] = order[j];
                         }
-                    } else {
-                        if(!removed.contains(pattern)) {
-                            currentList.add(pattern);
+                    }
+                    size = kept;
+                    break;
+                case MOVE:
+                    int[] moved = new int[size];
+                    int movedCount = 0, stay = 0;
+                    for(int j = 0; j < size; j++) {
+                        if(has(mask, order[j])) {
+                            moved[movedCount++] = order[j];
+                        } else {
+                            order[stay++] = order[j];
                         }
                     }
+                    System.arraycopy(moved, 0, order, stay, movedCount);
+                    break;
+                case STRENGTH:
+                    // a stable insertion sort, strongest first
+                    for(int j = 1; j < size; j++) {
+                        int suite = order[j];
+                        int bits = SUITE_DEFS[suite].strength_bits;
+                        int k = j - 1;
+                        while(k >= 0 && SUITE_DEFS[order[k]].strength_bits < bits) {
+                            order[k + 1] = order[k];
+                            k--;
+                        }
+                        order[k + 1] = suite;
+                    }
+                    break;
                 }
             }
+
+            String[] result = new String[size];
+            for(int i = 0; i < size; i++) {
+                result[i] = SUITES[order[i]];
+            }
+            return result;
         }
-        return currentList;
     }
 
     private static void addAlias(String cipherSuite, String ossl) {
@@ -1823,5 +1982,7 @@ public class CipherStrings {
         addAlias("SSL_CK_IDEA_128_CBC_WITH_MD5","IDEA-CBC-MD5");
         addAlias("SSL_CK_DES_64_CBC_WITH_MD5","DES-CBC-MD5");
         addAlias("SSL_CK_DES_192_EDE3_CBC_WITH_MD5","DES-CBC3-MD5");
+
+        compileSuites();
 	}
 }// CipherStrings
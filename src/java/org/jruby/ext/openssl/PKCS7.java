@@ -32,6 +32,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.cert.CertStore;
@@ -50,7 +51,7 @@ import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyBignum;
 import org.jruby.RubyClass;
-import org.jruby.RubyFile;
+import org.jruby.RubyIO;
 import org.jruby.RubyModule;
 import org.jruby.RubyNumeric;
 import org.jruby.RubyObject;
@@ -75,6 +76,8 @@ import org.jruby.runtime.Block;
 import org.jruby.runtime.ObjectAllocator;
 import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.util.ByteList;
+import org.jruby.util.IOInputStream;
+import org.jruby.util.IOOutputStream;
 
 /**
  * @author <a href="mailto:ola.bini@ki.se">Ola Bini</a>
@@ -110,16 +113,12 @@ public class PKCS7 extends RubyObject {
         mPKCS7.setConstant("BINARY",runtime.newFixnum(128));
         mPKCS7.setConstant("NOATTR",runtime.newFixnum(256));
         mPKCS7.setConstant("NOSMIMECAP",runtime.newFixnum(512));
+        mPKCS7.setConstant("STREAM",runtime.newFixnum(0x1000));
     }
 
     public static BIO obj2bio(IRubyObject obj) {
-        if(obj instanceof RubyFile) {
-            throw new IllegalArgumentException("TODO: handle RubyFile correctly");
-//     if (TYPE(obj) == T_FILE) {
-//         OpenFile *fptr;
-//         GetOpenFile(obj, fptr);
-//         rb_io_check_readable(fptr);
-//         bio = BIO_new_fp(fptr->f, BIO_NOCLOSE);
+        if(obj instanceof RubyIO || (!(obj instanceof RubyString) && obj.respondsTo("read"))) {
+            return BIO.fromStream(new IOInputStream(obj));
         } else {
             RubyString str = obj.convertToString();
             ByteList bl = str.getByteList();
@@ -127,14 +126,32 @@ public class PKCS7 extends RubyObject {
         }
     }
 
+    /** An output BIO writing through to the Ruby IO obj, or null
+     * when obj is nil and the caller should collect into a MemBIO.
+     */
+    public static BIO io2bio(IRubyObject obj) {
+        if(obj.isNil()) {
+            return null;
+        }
+        return BIO.fromStream(new IOOutputStream(obj));
+    }
+
     public static PKCS7 wrap(RubyClass klass, org.jruby.ext.openssl.impl.PKCS7 p7) {
         PKCS7 wrapped = new PKCS7(klass.getRuntime(), klass);
         wrapped.p7 = p7;
         return wrapped;
     }
 
+    public static RaiseException newPKCS7Error(Ruby runtime, String message) {
+        return new RaiseException(runtime, ((RubyModule)runtime.getModule("OpenSSL").getConstant("PKCS7")).getClass("PKCS7Error"), message, true);
+    }
+
     public static IRubyObject membio2str(Ruby runtime, BIO bio) {
-        return runtime.newString(new ByteList(((MemBIO)bio).getMemCopy(), false));
+        return bytes2str(runtime, ((MemBIO)bio).getMemBuffer());
+    }
+
+    private static IRubyObject bytes2str(Ruby runtime, ByteBuffer mem) {
+        return runtime.newString(new ByteList(mem.array(), mem.arrayOffset() + mem.position(), mem.remaining(), false));
     }
 
     private static List<X509AuxCertificate> x509_ary2sk(IRubyObject ary) {
@@ -155,16 +172,47 @@ public class PKCS7 extends RubyObject {
             if(pkcs7 == null) {
                 throw new RaiseException(klass.getRuntime(), ((RubyModule)(((RubyModule)klass.getRuntime().getModule("OpenSSL")).getConstant("PKCS7"))).getClass("PKCS7Error"), null, false);
             }
-            IRubyObject data = out[0] != null ? membio2str(klass.getRuntime(), out[0]) : klass.getRuntime().getNil();
+            IRubyObject data = out[0] != null ? bytes2str(klass.getRuntime(), MemBIO.unread(out[0])) : klass.getRuntime().getNil();
             PKCS7 ret = wrap(((RubyModule)(((RubyModule)klass.getRuntime().getModule("OpenSSL")).getConstant("PKCS7"))).getClass("PKCS7"), pkcs7);
             ret.setData(data);
             return ret;
         }
 
         @JRubyMethod(meta=true, rest=true)
-        public static IRubyObject write_smime(IRubyObject recv, IRubyObject[] args) {
-            System.err.println("WARNING: un-implemented method called PKCS7#write_smime");
-            return recv.getRuntime().getNil();
+        public static IRubyObject write_smime(IRubyObject recv, IRubyObject[] args) throws IOException {
+            Ruby runtime = recv.getRuntime();
+            IRubyObject data = runtime.getNil();
+            IRubyObject flags = runtime.getNil();
+            IRubyObject dest = runtime.getNil();
+            switch(Arity.checkArgumentCount(runtime, args, 1, 4)) {
+            case 4:
+                dest = args[3];
+            case 3:
+                flags = args[2];
+            case 2:
+                data = args[1];
+            }
+            PKCS7 pkcs7 = (PKCS7)args[0];
+            int flg = flags.isNil() ? 0 : RubyNumeric.fix2int(flags);
+            if(data.isNil()) {
+                data = pkcs7.getData();
+            }
+            if(pkcs7.streamFlags != -1 || pkcs7.streamed) {
+                // signed while the content is written, as write_der does
+                flg |= pkcs7.takeStreamFlags();
+            } else if(!data.isNil() && pkcs7.p7.isDetached()) {
+                flg |= org.jruby.ext.openssl.impl.PKCS7.DETACHED;
+            }
+            BIO in = data.isNil() ? null : obj2bio(data);
+
+            BIO out = io2bio(dest);
+            if(out != null) {
+                new SMIME(Mime.DEFAULT).writePKCS7(out, pkcs7.p7, in, flg);
+                return dest;
+            }
+            out = BIO.mem();
+            new SMIME(Mime.DEFAULT).writePKCS7(out, pkcs7.p7, in, flg);
+            return membio2str(runtime, out);
         }
 
         @JRubyMethod(meta=true, rest=true)
@@ -191,7 +239,9 @@ public class PKCS7 extends RubyObject {
             PrivateKey pkey = ((PKey)key).getPrivateKey();
             int flg = flags.isNil() ? 0 : RubyNumeric.fix2int(flags);
 
-            BIO in = obj2bio(data);
+            // with STREAM the data is only read when the result is written
+            boolean stream = (flg & org.jruby.ext.openssl.impl.PKCS7.STREAM) != 0;
+            BIO in = stream ? null : obj2bio(data);
 
             List<X509AuxCertificate> x509s = certs.isNil() 
                 ? null 
@@ -200,6 +250,9 @@ public class PKCS7 extends RubyObject {
             org.jruby.ext.openssl.impl.PKCS7 p7 = org.jruby.ext.openssl.impl.PKCS7.sign(x509, pkey, x509s, in, flg);
             PKCS7 ret = wrap(((RubyModule)(((RubyModule)recv.getRuntime().getModule("OpenSSL")).getConstant("PKCS7"))).getClass("PKCS7"), p7);
             ret.setData(data);
+            if(stream) {
+                ret.streamFlags = flg;
+            }
 
             return ret;
         }
@@ -227,9 +280,8 @@ public class PKCS7 extends RubyObject {
             }
 
             int flg = flags.isNil() ? 0 : RubyNumeric.fix2int(flags);
-            byte[] in = data.convertToString().getBytes();
             List<X509AuxCertificate> x509s = x509_ary2sk(certs);
-            org.jruby.ext.openssl.impl.PKCS7 p7 = org.jruby.ext.openssl.impl.PKCS7.encrypt(x509s, in, ciph, flg);
+            org.jruby.ext.openssl.impl.PKCS7 p7 = org.jruby.ext.openssl.impl.PKCS7.encrypt(x509s, obj2bio(data), ciph, flg);
             PKCS7 ret = wrap(((RubyModule)(((RubyModule)recv.getRuntime().getModule("OpenSSL")).getConstant("PKCS7"))).getClass("PKCS7"), p7);
             ret.setData(data);
 
@@ -243,6 +295,26 @@ public class PKCS7 extends RubyObject {
 
     private org.jruby.ext.openssl.impl.PKCS7 p7;
 
+    // the flags of a STREAM sign whose content has not been written yet
+    private int streamFlags = -1;
+
+    // set once that content has been written, and is gone
+    private boolean streamed = false;
+
+    /**
+     * The flags of a STREAM sign, for the one write that reads its
+     * content. The content is not kept, so it can't be written again.
+     */
+    private int takeStreamFlags() {
+        if(streamed) {
+            throw newPKCS7Error(getRuntime(), "streamed content has already been written");
+        }
+        int flags = streamFlags;
+        streamFlags = -1;
+        streamed = true;
+        return flags;
+    }
+
     public void setData(IRubyObject object) {
         setInstanceVariable("@data", object);
     }
@@ -260,6 +332,10 @@ public class PKCS7 extends RubyObject {
         arg = args[0];
 
         arg = OpenSSLImpl.to_der_if_possible(arg);
+        if(!(arg instanceof RubyString) && arg.respondsTo("read")) {
+            // the envelope is parsed in memory anyway and PEM needs a rewind
+            arg = arg.callMethod(getRuntime().getCurrentContext(), "read");
+        }
         BIO input = obj2bio(arg);
         p7 = org.jruby.ext.openssl.impl.PKCS7.readPEM(input);
         if(p7 == null) {
@@ -456,8 +532,11 @@ public class PKCS7 extends RubyObject {
         IRubyObject store = null;
         IRubyObject indata = getRuntime().getNil();
         IRubyObject flags = getRuntime().getNil();
+        IRubyObject dest = getRuntime().getNil();
         
-        switch(Arity.checkArgumentCount(getRuntime(), args, 2, 4)) {
+        switch(Arity.checkArgumentCount(getRuntime(), args, 2, 5)) {
+        case 5:
+            dest = args[4];
         case 4:
             flags = args[3];
         case 3:
@@ -479,7 +558,8 @@ public class PKCS7 extends RubyObject {
             : x509_ary2sk(certs); 
 
         Store x509st = ((X509Store)store).getStore();
-        BIO out = BIO.mem();
+        BIO sink = io2bio(dest);
+        BIO out = sink == null ? BIO.mem() : sink;
 
         boolean result = false;
         try {
@@ -494,8 +574,11 @@ public class PKCS7 extends RubyObject {
             result = false;
         }
 
-        IRubyObject data = membio2str(getRuntime(), out);
-        setData(data);
+        if(sink == null) {
+            setData(membio2str(getRuntime(), out));
+        } else {
+            out.flush();
+        }
 
         return result ? getRuntime().getTrue() : getRuntime().getFalse();
     }
@@ -503,7 +586,11 @@ public class PKCS7 extends RubyObject {
     @JRubyMethod(rest=true)
     public IRubyObject decrypt(IRubyObject[] args) {
         IRubyObject flags = getRuntime().getNil();
-        if(Arity.checkArgumentCount(getRuntime(), args, 2, 3) == 3) {
+        IRubyObject dest = getRuntime().getNil();
+        switch(Arity.checkArgumentCount(getRuntime(), args, 2, 4)) {
+        case 4:
+            dest = args[3];
+        case 3:
             flags = args[2];
         }
         IRubyObject pkey = args[0];
@@ -512,6 +599,12 @@ public class PKCS7 extends RubyObject {
         X509AuxCertificate x509 = ((X509Cert)cert).getAuxCert();
         int flg = flags.isNil() ? 0 : RubyNumeric.fix2int(flags);
 
+        BIO sink = io2bio(dest);
+        if(sink != null) {
+            p7.decrypt(key, x509, sink, flg);
+            return dest;
+        }
+
         BIO out = BIO.mem();
         p7.decrypt(key, x509, out, flg);
 
@@ -526,9 +619,29 @@ public class PKCS7 extends RubyObject {
 
     @JRubyMethod
     public IRubyObject to_der() throws IOException {
+        if(streamFlags != -1 || streamed) {
+            throw newPKCS7Error(getRuntime(), "signed with STREAM, use write_der");
+        }
         return getRuntime().newString(new ByteList(p7.toASN1(), false));
     }
 
+    /** Writes this PKCS7 to the IO out. For the result of a sign with
+     * STREAM this reads the content from data as it goes and writes
+     * indefinite length BER, so the content is never held in memory.
+     */
+    @JRubyMethod
+    public IRubyObject write_der(IRubyObject out) throws IOException {
+        BIO sink = BIO.fromStream(new IOOutputStream(out));
+        if(streamFlags != -1 || streamed) {
+            p7.writeBER(sink, obj2bio(getData()), takeStreamFlags());
+        } else {
+            byte[] der = p7.toASN1();
+            sink.write(der, 0, der.length);
+            sink.flush();
+        }
+        return out;
+    }
+
     public static class SignerInfo extends RubyObject {
         private static ObjectAllocator SIGNERINFO_ALLOCATOR = new ObjectAllocator() {
             public IRubyObject allocate(Ruby runtime, RubyClass klass) {
@@ -53,6 +53,7 @@ import org.jruby.ext.openssl.x509store.PEMInputOutput;
 import org.jruby.runtime.Arity;
 import org.jruby.runtime.Block;
 import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.util.ByteList;
 
@@ -96,15 +97,8 @@ public class PKeyDH extends PKey {
         return new RaiseException(runtime, ((RubyModule)runtime.getModule("OpenSSL").getConstantAt("PKey")).getClass("DHError"), message, true);
     }
     
-    private static SecureRandom _secureRandom;
-    
     private static SecureRandom getSecureRandom() {
-        SecureRandom rand;
-        if ((rand = _secureRandom) != null) {
-            return rand;
-        }
-        // FIXME: do we want a particular algorithm / provider? BC?
-        return _secureRandom = new SecureRandom();
+        return Random.getSecureRandom();
     }
 
     // transient because: we do not want these value serialized (insecure)
@@ -124,6 +118,13 @@ public class PKeyDH extends PKey {
         super(runtime, clazz);
     }
 
+    @JRubyMethod(name="generate", meta=true, required=1, optional=1)
+    public static IRubyObject dh_generate(IRubyObject recv, IRubyObject[] args) {
+        PKeyDH dh = new PKeyDH(recv.getRuntime(), (RubyClass)recv);
+        dh.dh_initialize(args);
+        return dh;
+    }
+
     @JRubyMethod(name="initialize", rest=true)
     public synchronized IRubyObject dh_initialize(IRubyObject[] args) {
         Ruby runtime = getRuntime();
@@ -149,7 +150,7 @@ public class PKeyDH extends PKey {
                 int gval = argc == 2 ? RubyNumeric.fix2int(args[1]) : 2;
                 BigInteger p;
                 try {
-                    p = generateP(bits, gval);
+                    p = generateP(runtime.getCurrentContext(), bits, gval);
                 } catch(IllegalArgumentException e) {
                     throw runtime.newArgumentError(e.getMessage());
                 }
@@ -166,6 +167,15 @@ public class PKeyDH extends PKey {
     }
     
     public static BigInteger generateP(int bits, int g) {
+        return generateP(null, bits, g);
+    }
+
+    /**
+     * Generates a safe prime p suitable for generator g. When context is not
+     * null, the Ruby thread is polled while the search runs, so the generation
+     * can be interrupted (e.g. by Timeout).
+     */
+    public static BigInteger generateP(ThreadContext context, int bits, int g) {
         
         // FIXME? I'm following algorithms used in OpenSSL, could use JCE provider instead.
         // (Note that I tried that, but got mystifying values of g returned by the param generator.
@@ -178,17 +188,28 @@ public class PKeyDH extends PKey {
         
         // generate safe prime meeting appropriate add/rem (mod) criteria
         
+        BigInteger add, rem;
         switch(g) {
         case 2:
             // add = 24, rem = 11
-            return BN.generatePrime(bits, true, GEN_2_ADD_PARAM, GEN_2_REM_PARAM);
+            add = GEN_2_ADD_PARAM;
+            rem = GEN_2_REM_PARAM;
+            break;
         case 5:
             // add = 10, rem = 3
-            return BN.generatePrime(bits, true, GEN_5_ADD_PARAM, GEN_5_REM_PARAM);
+            add = GEN_5_ADD_PARAM;
+            rem = GEN_5_REM_PARAM;
+            break;
         default:
             // add = 2, rem = 1
-            return BN.generatePrime(bits, true, DEFAULT_ADD_PARAM, DEFAULT_REM_PARAM);
+            add = DEFAULT_ADD_PARAM;
+            rem = DEFAULT_REM_PARAM;
+            break;
+        }
+        if (context == null) {
+            return BN.generatePrime(bits, true, add, rem);
         }
+        return BN.generatePrime(context, bits, true, add, rem);
     }
     
     public static BigInteger generateX(BigInteger p, int limit) {
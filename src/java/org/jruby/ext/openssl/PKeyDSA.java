@@ -105,6 +105,12 @@ public class PKeyDSA extends PKey {
     private static final int SPEC_G = 3;
     
 
+    static PKeyDSA newPublicKey(Ruby runtime, DSAPublicKey pubKey) {
+        PKeyDSA dsa = new PKeyDSA(runtime, ((RubyModule)runtime.getModule("OpenSSL").getConstantAt("PKey")).getClass("DSA"));
+        dsa.pubKey = pubKey;
+        return dsa;
+    }
+
     PublicKey getPublicKey() {
         return pubKey;
     }
@@ -116,6 +116,12 @@ public class PKeyRSA extends PKey {
     private transient volatile BigInteger rsa_dmq1;
     private transient volatile BigInteger rsa_iqmp;
     
+    static PKeyRSA newPublicKey(Ruby runtime, RSAPublicKey pubKey) {
+        PKeyRSA rsa = new PKeyRSA(runtime, ((RubyModule)runtime.getModule("OpenSSL").getConstantAt("PKey")).getClass("RSA"));
+        rsa.pubKey = pubKey;
+        return rsa;
+    }
+
     PublicKey getPublicKey() {
         return pubKey;
     }
@@ -0,0 +1,317 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Copyright (C) 2009 The JRuby Community <www.jruby.org>
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Prime search engine behind BN.generate_prime and DH parameter generation.
+ * 
+ * Candidates are taken from the residue class required by add/rem (see
+ * BN_generate_prime(3)), sieved in windows against a table of small primes,
+ * and only the survivors get Miller-Rabin tests. For safe primes the sieve
+ * rejects p when either p or (p-1)/2 has a small factor, and a single base-2
+ * Fermat test on p weeds out most of the rest before q and p are tested in
+ * full.<p>
+ * 
+ * Large searches are spread over one worker thread per processor, small ones
+ * get a single worker. The first worker to find a prime completes the
+ * {@link Search}, and the others stop at their next candidate;
+ * {@link Search#cancel()} stops them the same way.
+ */
+public class PrimeGenerator {
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+    private static final BigInteger FOUR = BigInteger.valueOf(4);
+    private static final int DEFAULT_CERTAINTY = 100;
+
+    // smaller primes are found by one worker without the sieve, which
+    // assumes candidates are larger than any of the SMALL_PRIMES
+    private static final int PARALLEL_THRESHOLD = 64;
+    private static final int WINDOW = 4096;
+    private static final int[] SMALL_PRIMES = smallPrimes(1 << 14);
+
+    private PrimeGenerator() {}
+
+    /**
+     * A running prime search. Callers wait with {@link #await(long)} and must
+     * call {@link #cancel()} once they are done with it.
+     */
+    public static class Search {
+        private final AtomicReference<BigInteger> result = new AtomicReference<BigInteger>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean cancelled;
+        private volatile RuntimeException failure;
+
+        boolean isFinished() {
+            return cancelled || result.get() != null;
+        }
+
+        void offer(BigInteger prime) {
+            if (result.compareAndSet(null, prime)) {
+                done.countDown();
+            }
+        }
+
+        void fail(RuntimeException e) {
+            failure = e;
+            done.countDown();
+        }
+
+        /**
+         * Waits up to <code>millis</code> for the search to complete, returning
+         * the prime found, or null if there is none yet.
+         */
+        public BigInteger await(long millis) throws InterruptedException {
+            done.await(millis, TimeUnit.MILLISECONDS);
+            if (failure != null) {
+                throw failure;
+            }
+            return result.get();
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * Starts looking for a prime of exactly <code>bits</code> bits, satisfying
+     * p % add == rem when add is not null (rem defaults to 1). If safe is true,
+     * (p-1)/2 will be prime as well.
+     */
+    public static Search start(int bits, boolean safe, BigInteger add, BigInteger rem) {
+        if (bits < 2 || (safe && bits < 3)) {
+            throw new IllegalArgumentException("bits too small");
+        }
+        if (add != null && rem == null) {
+            rem = BigInteger.ONE;
+        }
+
+        // fold the add/rem condition, oddness and (for safe primes) p = 3 mod 4
+        // into a single progression: p = offset (mod step)
+        BigInteger step;
+        BigInteger offset;
+        if (add == null) {
+            step = TWO;
+            offset = BigInteger.ONE;
+        } else {
+            step = add;
+            offset = rem.mod(add);
+            if (!step.testBit(0)) {
+                if (!offset.testBit(0)) throw new IllegalArgumentException("no odd primes for add/rem");
+            } else {
+                if (!offset.testBit(0)) offset = offset.add(step);
+                step = step.shiftLeft(1);
+            }
+        }
+        if (safe) {
+            if (step.testBit(1)) {
+                if (offset.mod(FOUR).intValue() != 3) offset = offset.add(step);
+                step = step.shiftLeft(1);
+            } else if (offset.mod(FOUR).intValue() != 3) {
+                throw new IllegalArgumentException("no safe primes for add/rem");
+            }
+        }
+        // a factor shared by every candidate would keep the workers busy forever
+        if (!offset.gcd(step).equals(BigInteger.ONE)) {
+            throw new IllegalArgumentException("no primes for add/rem");
+        }
+        if (safe && !offset.shiftRight(1).gcd(step.shiftRight(1)).equals(BigInteger.ONE)) {
+            throw new IllegalArgumentException("no safe primes for add/rem");
+        }
+
+        // the smallest candidate of bits bits must not have more
+        BigInteger low = BigInteger.ONE.shiftLeft(bits - 1);
+        if (low.add(offset.subtract(low).mod(step)).bitLength() != bits) {
+            throw new IllegalArgumentException("no " + bits + " bit primes for add/rem");
+        }
+
+        Search search = new Search();
+        boolean sieving = bits >= PARALLEL_THRESHOLD;
+        int workers = sieving ? Runtime.getRuntime().availableProcessors() : 1;
+        for (int i = 0; i < workers; i++) {
+            Thread thread = new Thread(new Sieve(search, bits, safe, step, offset, sieving), "OpenSSL prime search");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return search;
+    }
+
+    /**
+     * Blocking version of {@link #start}, for callers without a Ruby thread
+     * to poll.
+     */
+    public static BigInteger generate(int bits, boolean safe, BigInteger add, BigInteger rem) {
+        Search search = start(bits, safe, add, rem);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    BigInteger p = search.await(Long.MAX_VALUE);
+                    if (p != null) return p;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            search.cancel();
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Sieve implements Runnable {
+        private final Search search;
+        private final int bits;
+        private final boolean safe;
+        private final BigInteger step;
+        private final BigInteger offset;
+        private final boolean sieving;
+        // step % SMALL_PRIMES[i], and its inverse mod SMALL_PRIMES[i] (0 when step % p == 0)
+        private final int[] stepInverses;
+        private final boolean[] composite = new boolean[WINDOW];
+
+        Sieve(Search search, int bits, boolean safe, BigInteger step, BigInteger offset, boolean sieving) {
+            this.search = search;
+            this.bits = bits;
+            this.safe = safe;
+            this.step = step;
+            this.offset = offset;
+            this.sieving = sieving;
+            this.stepInverses = new int[sieving ? SMALL_PRIMES.length : 0];
+            for (int i = 0; i < stepInverses.length; i++) {
+                int p = SMALL_PRIMES[i];
+                int s = step.mod(BigInteger.valueOf(p)).intValue();
+                stepInverses[i] = s == 0 ? 0 : modInverse(s, p);
+            }
+        }
+
+        public void run() {
+            try {
+                SecureRandom random = Random.getSecureRandom();
+                while (!search.isFinished()) {
+                    BigInteger base = randomBase(random);
+                    if (base == null) continue;
+                    if (sieving) sieve(base);
+                    for (int i = 0; i < WINDOW; i++) {
+                        if (composite[i]) continue;
+                        if (search.isFinished()) return;
+                        BigInteger p = base.add(step.multiply(BigInteger.valueOf(i)));
+                        if (p.bitLength() != bits) break;
+                        if (isPrime(p)) {
+                            search.offer(p);
+                            return;
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                search.fail(e);
+            }
+        }
+
+        private BigInteger randomBase(SecureRandom random) {
+            BigInteger x = new BigInteger(bits, random).setBit(bits - 1);
+            BigInteger base = x.subtract(x.mod(step)).add(offset);
+            return base.bitLength() == bits ? base : null;
+        }
+
+        private void sieve(BigInteger base) {
+            java.util.Arrays.fill(composite, false);
+            for (int i = 0; i < SMALL_PRIMES.length; i++) {
+                int p = SMALL_PRIMES[i];
+                long baseMod = base.mod(BigInteger.valueOf(p)).longValue();
+                long inv = stepInverses[i];
+                if (inv == 0) {
+                    // every candidate in the window has the same residue
+                    if (baseMod == 0 || (safe && baseMod == 1)) {
+                        java.util.Arrays.fill(composite, true);
+                        return;
+                    }
+                    continue;
+                }
+                // candidate k is divisible by p when k = -base / step (mod p)
+                mark((int)(((p - baseMod) * inv) % p), p);
+                if (safe) {
+                    // (candidate - 1) / 2 is divisible by p when candidate = 1 (mod p)
+                    mark((int)(((p + 1 - baseMod) * inv) % p), p);
+                }
+            }
+        }
+
+        private void mark(int first, int p) {
+            for (int k = first; k < WINDOW; k += p) {
+                composite[k] = true;
+            }
+        }
+
+        private boolean isPrime(BigInteger p) {
+            if (!safe) {
+                return p.isProbablePrime(DEFAULT_CERTAINTY);
+            }
+            BigInteger pSub1 = p.subtract(BigInteger.ONE);
+            if (!TWO.modPow(pSub1, p).equals(BigInteger.ONE)) {
+                return false;
+            }
+            return pSub1.shiftRight(1).isProbablePrime(DEFAULT_CERTAINTY)
+                && !search.isFinished() && p.isProbablePrime(DEFAULT_CERTAINTY);
+        }
+    }
+
+    private static int modInverse(int a, int m) {
+        // extended Euclid, for small m
+        int t = 0, newT = 1;
+        int r = m, newR = a;
+        while (newR != 0) {
+            int q = r / newR;
+            int tmp = t - q * newT; t = newT; newT = tmp;
+            tmp = r - q * newR; r = newR; newR = tmp;
+        }
+        return t < 0 ? t + m : t;
+    }
+
+    private static int[] smallPrimes(int limit) {
+        boolean[] composite = new boolean[limit];
+        int count = 0;
+        for (int i = 3; i < limit; i += 2) {
+            if (composite[i]) continue;
+            count++;
+            for (int j = i * i; j < limit; j += 2 * i) {
+                composite[j] = true;
+            }
+        }
+        // odd primes only: candidates are always odd
+        int[] primes = new int[count];
+        for (int i = 3, n = 0; i < limit; i += 2) {
+            if (!composite[i]) primes[n++] = i;
+        }
+        return primes;
+    }
+}
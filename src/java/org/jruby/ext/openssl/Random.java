@@ -39,12 +39,80 @@ import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.util.ByteList;
 
 /**
+ * OpenSSL::Random implementation.
+ *
+ * Random sources are kept per thread rather than per runtime, since
+ * SecureRandom#nextBytes is synchronized and a single shared instance
+ * turns every random_bytes call into a point of contention. BN and the
+ * PKey classes draw from the same per-thread sources through
+ * {@link #getSecureRandom()} and {@link #getRandom()}.<p>
+ *
+ * In buffered mode (OpenSSL::Random.buffered = true), small requests are
+ * served from a per-thread block that is refilled with a single nextBytes
+ * call, amortizing the cost of the underlying entropy source.
+ *
  * @author <a href="mailto:ola.bini@ki.se">Ola Bini</a>
  */
 public class Random {
     private final static class RandomHolder {
-        public java.util.Random[] randomizers;
+        public volatile boolean buffered;
+    }
+
+    /**
+     * Per-thread block of pre-generated bytes, used in buffered mode.
+     * Bytes are cleared as they are handed out.
+     */
+    private final static class RandomBuffer {
+        private final byte[] block = new byte[BUFFER_SIZE];
+        private int position = BUFFER_SIZE;
+
+        public void nextBytes(java.util.Random source, byte[] buf) {
+            int len = buf.length;
+            if (BUFFER_SIZE - position < len) {
+                source.nextBytes(block);
+                position = 0;
+            }
+            System.arraycopy(block, position, buf, 0, len);
+            java.util.Arrays.fill(block, position, position + len, (byte)0);
+            position += len;
+        }
+    }
+
+    // requests larger than this always go straight to the source
+    private final static int BUFFERED_MAX_REQUEST = 64;
+    private final static int BUFFER_SIZE = 1024;
+
+    private final static ThreadLocal<SecureRandom> secureRandoms = new ThreadLocal<SecureRandom>() {
+        protected SecureRandom initialValue() {
+            // FIXME: do we want a particular algorithm / provider? BC?
+            return new SecureRandom();
+        }
+    };
+    private final static ThreadLocal<java.util.Random> randoms = new ThreadLocal<java.util.Random>() {
+        protected java.util.Random initialValue() {
+            return new java.util.Random();
+        }
+    };
+    private final static ThreadLocal<RandomBuffer[]> buffers = new ThreadLocal<RandomBuffer[]>() {
+        protected RandomBuffer[] initialValue() {
+            return new RandomBuffer[]{new RandomBuffer(), new RandomBuffer()};
+        }
+    };
+
+    /**
+     * Returns the SecureRandom owned by the calling thread.
+     */
+    public static SecureRandom getSecureRandom() {
+        return secureRandoms.get();
+    }
+
+    /**
+     * Returns the (non-secure) Random owned by the calling thread.
+     */
+    public static java.util.Random getRandom() {
+        return randoms.get();
     }
+
     public static void createRandom(Ruby runtime, RubyModule ossl) {
         RubyModule rand = ossl.defineModuleUnder("Random");
 
@@ -54,7 +122,6 @@ public class Random {
         rand.defineAnnotatedMethods(Random.class);
 
         RandomHolder holder = new RandomHolder();
-        holder.randomizers = new java.util.Random[]{new java.util.Random(), new SecureRandom()};
         rand.dataWrapStruct(holder);
     }
 
@@ -81,6 +148,19 @@ public class Random {
         return generate(recv, arg, 0);
     }
 
+    @JRubyMethod(name="buffered?", meta=true)
+    public static IRubyObject buffered_p(IRubyObject recv) {
+        RandomHolder holder = (RandomHolder)recv.dataGetStruct();
+        return recv.getRuntime().newBoolean(holder.buffered);
+    }
+
+    @JRubyMethod(name="buffered=", meta=true)
+    public static IRubyObject set_buffered(IRubyObject recv, IRubyObject arg) {
+        RandomHolder holder = (RandomHolder)recv.dataGetStruct();
+        holder.buffered = arg.isTrue();
+        return arg;
+    }
+
     private static RubyString generate(IRubyObject recv, IRubyObject arg, int ix) {
         RandomHolder holder = (RandomHolder)recv.dataGetStruct();
         int len = RubyNumeric.fix2int(arg);
@@ -88,7 +168,12 @@ public class Random {
             throw recv.getRuntime().newArgumentError("negative string size (or size too big)");
         }
         byte[] buf = new byte[len];
-        holder.randomizers[ix].nextBytes(buf);
+        java.util.Random source = ix == 1 ? getSecureRandom() : getRandom();
+        if (holder.buffered && len <= BUFFERED_MAX_REQUEST) {
+            buffers.get()[ix].nextBytes(source, buf);
+        } else {
+            source.nextBytes(buf);
+        }
         return RubyString.newString(recv.getRuntime(), new ByteList(buf,false));
     }
 
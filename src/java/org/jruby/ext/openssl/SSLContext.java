@@ -136,9 +136,8 @@ public class SSLContext extends RubyObject {
     }
 
     String[] getCipherSuites(SSLEngine engine) {
-        List<CipherStrings.Def> ciphs = null;
         if(this.ciphers.isNil()) {
-            ciphs = CipherStrings.getMatchingCiphers(CipherStrings.SSL_DEFAULT_CIPHER_LIST, engine.getSupportedCipherSuites());
+            return CipherStrings.getMatchingCipherSuites(CipherStrings.SSL_DEFAULT_CIPHER_LIST, engine.getSupportedCipherSuites());
         } else if(this.ciphers instanceof RubyArray) {
             StringBuilder builder = new StringBuilder();
             String sep = "";
@@ -146,15 +145,10 @@ public class SSLContext extends RubyObject {
                 builder.append(sep).append(iter.next().toString());
                 sep = ":";
             }
-            ciphs = CipherStrings.getMatchingCiphers(builder.toString(), engine.getSupportedCipherSuites());
+            return CipherStrings.getMatchingCipherSuites(builder.toString(), engine.getSupportedCipherSuites());
         } else {
-            ciphs = CipherStrings.getMatchingCiphers(this.ciphers.toString(), engine.getSupportedCipherSuites());
+            return CipherStrings.getMatchingCipherSuites(this.ciphers.toString(), engine.getSupportedCipherSuites());
         }
-        String[] result = new String[ciphs.size()];
-        for(int i=0;i<result.length;i++) {
-            result[i] = ciphs.get(i).cipherSuite;
-        }
-        return result;
     }
 
     KM getKM() {
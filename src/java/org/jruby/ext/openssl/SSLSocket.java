@@ -525,14 +525,14 @@ public class SSLSocket extends RubyObject {
     @JRubyMethod
     public IRubyObject peer_cert_chain() {
         try {
-            javax.security.cert.Certificate[] certs = engine.getSession().getPeerCertificateChain();
+            Certificate[] certs = engine.getSession().getPeerCertificates();
 
             RubyArray arr = getRuntime().newArray(certs.length);
             for(int i = 0 ; i < certs.length; i++ ) {
                 arr.add(X509Cert.wrap(getRuntime(), certs[i]));
             }
             return arr;
-        } catch (javax.security.cert.CertificateEncodingException e) {
+        } catch (CertificateEncodingException e) {
             throw X509Cert.newCertificateError(getRuntime(), e);
         } catch (SSLPeerUnverifiedException ex) {
             Logger.getLogger(SSLSocket.class.getName()).log(Level.SEVERE, null, ex);
@@ -28,32 +28,36 @@
 package org.jruby.ext.openssl;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.math.BigInteger;
 import java.security.GeneralSecurityException;
-import java.security.cert.CertificateFactory;
+import java.security.Signature;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 
 import org.bouncycastle.asn1.ASN1EncodableVector;
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.DERBoolean;
-import org.bouncycastle.asn1.DEREncodable;
 import org.bouncycastle.asn1.DERInteger;
+import org.bouncycastle.asn1.DERNull;
 import org.bouncycastle.asn1.DERObject;
 import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.DEROctetString;
 import org.bouncycastle.asn1.DERSequence;
 import org.bouncycastle.asn1.DERTaggedObject;
-import org.bouncycastle.jce.provider.PEMUtil;
-import org.bouncycastle.x509.X509V2CRLGenerator;
+import org.bouncycastle.asn1.DERTags;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
+import org.jruby.RubyBignum;
 import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyInteger;
 import org.jruby.RubyModule;
 import org.jruby.RubyNumeric;
 import org.jruby.RubyObject;
@@ -61,7 +65,8 @@ import org.jruby.RubyString;
 import org.jruby.RubyTime;
 import org.jruby.anno.JRubyMethod;
 import org.jruby.exceptions.RaiseException;
-import org.jruby.ext.openssl.impl.utils.Base64;
+import org.jruby.ext.openssl.impl.DERReader;
+import org.jruby.ext.openssl.impl.DERWriter;
 import org.jruby.ext.openssl.x509store.PEMInputOutput;
 import org.jruby.runtime.Block;
 import org.jruby.runtime.ObjectAllocator;
@@ -97,12 +102,27 @@ public class X509CRL extends RubyObject {
 
     private boolean changed = true;
 
-    private X509V2CRLGenerator generator = new X509V2CRLGenerator();
     private java.security.cert.X509CRL crl;
 
-    private DERObject crl_v;
+    private byte[] crl_der;
+    private DERObjectIdentifier sig_alg_oid;
+
+    // revoked entries not turned into X509::Revoked objects yet, kept as
+    // their DER: the revokedCertificates of a parsed CRL (in crl_der),
+    // then whatever add_revoked_entries packed. They come after the
+    // entries in revoked.
+    private int revokedStart = -1;
+    private int revokedLength;
+    private DERWriter packedRevoked;
 
     java.security.cert.X509CRL getCRL() {
+        if(crl == null && crl_der != null) {
+            try {
+                crl = (java.security.cert.X509CRL)X509Cert.getCertificateFactory().generateCRL(new ByteArrayInputStream(crl_der));
+            } catch(GeneralSecurityException e) {
+                throw newCRLError(getRuntime(), e.getMessage());
+            }
+        }
         return crl;
     }
 
@@ -122,68 +142,219 @@ public class X509CRL extends RubyObject {
             revoked = getRuntime().newArray();
             return this;
         }
-        
-        ByteArrayInputStream bis = new ByteArrayInputStream(args[0].convertToString().getBytes());
-        CertificateFactory cf = CertificateFactory.getInstance("X.509",OpenSSLReal.PROVIDER);
-        crl = (java.security.cert.X509CRL)cf.generateCRL(bis);
-        
+
         byte[] crl_bytes = args[0].convertToString().getBytes();
-        // Parse PEM if we ever get passed some PEM contents
+        if(crl_bytes.length == 0 || crl_bytes[0] != DERReader.SEQUENCE) {
+            // Parse PEM if we ever get passed some PEM contents
+            try {
+                byte[] bytes = PEMInputOutput.readPEMToDER(new StringReader(args[0].toString()));
+                if (bytes != null)
+                    crl_bytes = bytes;
+            } catch(IOException e) {
+                throw newCRLError(getRuntime(), e.getMessage());
+            }
+        }
+
         try {
-            StringReader in = new StringReader(args[0].toString());
-            byte[] bytes = PEMInputOutput.readPEMToDER(in);
-            if (bytes != null)
-                crl_bytes = bytes;
-            in.close();
+            parse(crl_bytes);
+        } catch(IOException e) {
+            throw newCRLError(getRuntime(), e.getMessage());
         }
-        catch(Exception e) {
-            // this is not PEM encoded, let's use the default argument
+
+        changed = false;
+        return this;
+    }
+
+    /**
+     * Reads the CRL header fields and extensions straight off the DER. The
+     * revoked entries are only located; they're read when asked for (see
+     * revoked, each_revoked, find_revoked and revoked?), and the JCE CRL
+     * object is only built for verify and PEM output.
+     */
+    private void parse(byte[] der) throws IOException {
+        Ruby runtime = getRuntime();
+        DERReader certList = new DERReader(der);
+        certList.next(DERReader.SEQUENCE);
+        DERReader outer = certList.contents();
+        outer.next(DERReader.SEQUENCE);
+        DERReader tbs = outer.contents();
+        outer.next(DERReader.SEQUENCE);
+        DERReader sigAlg = outer.contents();
+        sigAlg.next(DERReader.OBJECT_IDENTIFIER);
+        sig_alg_oid = (DERObjectIdentifier)sigAlg.toDERObject();
+
+        if(tbs.peekTag() == DERReader.INTEGER) {
+            tbs.next();
+            set_version(runtime.newFixnum(tbs.integerValue().intValue()));
+        } else {
+            set_version(runtime.newFixnum(2));
         }
+        tbs.next(DERReader.SEQUENCE); // signature
+        tbs.next(DERReader.SEQUENCE);
+        set_issuer(X509Name.create(runtime, tbs.encoded()));
+        tbs.next();
+        set_last_update(RubyTime.newTime(runtime, readTime(tbs)));
+        if(tbs.peekTag() == DERReader.UTC_TIME || tbs.peekTag() == DERReader.GENERALIZED_TIME) {
+            tbs.next();
+            set_next_update(RubyTime.newTime(runtime, readTime(tbs)));
+        } else {
+            next_update = runtime.getNil();
+        }
+
+        crl_der = der;
+        crl = null;
+        revoked = runtime.newArray();
+        revokedStart = -1;
+        packedRevoked = null;
+        if(tbs.peekTag() == DERReader.SEQUENCE) {
+            tbs.next();
+            revokedStart = tbs.contentStart();
+            revokedLength = tbs.contentLength();
+        }
+
+        if(tbs.peekTag() == (DERTags.TAGGED | DERTags.CONSTRUCTED)) {
+            tbs.next();
+            DERReader exts = tbs.contents();
+            exts.next(DERReader.SEQUENCE);
+            extensions = readExtensions(runtime, exts.contents());
+        }
+    }
 
-        crl_v = new ASN1InputStream(new ByteArrayInputStream(crl_bytes)).readObject();
+    private static long readTime(DERReader der) throws IOException {
+        if(der.tag() != DERReader.UTC_TIME && der.tag() != DERReader.GENERALIZED_TIME) {
+            throw new IOException("invalid time in CRL");
+        }
+        return der.timeValue();
+    }
 
-        DEREncodable v0 = ((DERSequence)(((DERSequence)crl_v).getObjectAt(0))).getObjectAt(0);
-        if(v0 instanceof DERInteger) {
-            set_version(getRuntime().newFixnum(((DERInteger)v0).getValue().intValue()));
+    private static List<IRubyObject> readExtensions(Ruby runtime, DERReader exts) throws IOException {
+        RubyClass cExtension = (RubyClass)((RubyModule)(runtime.getModule("OpenSSL").getConstant("X509"))).getConstant("Extension");
+        List<IRubyObject> result = new ArrayList<IRubyObject>();
+        while(exts.hasNext()) {
+            exts.next(DERReader.SEQUENCE);
+            DERReader ext = exts.contents();
+            ext.next(DERReader.OBJECT_IDENTIFIER);
+            DERObjectIdentifier oid = (DERObjectIdentifier)ext.toDERObject();
+            boolean critical = false;
+            if(ext.peekTag() == DERReader.BOOLEAN) {
+                ext.next();
+                critical = ext.contentLength() == 1 && ext.data()[ext.contentStart()] != 0;
+            }
+            ext.next(DERReader.OCTET_STRING);
+            X509Extensions.Extension ext1 = new X509Extensions.Extension(runtime, cExtension);
+            ext1.setRealOid(oid);
+            if(isSingleElement(ext.contents())) {
+                ext1.setRealValue(new DEROctetString(ext.contentBytes()));
+            } else {
+                // not DER inside, keep the OCTET STRING itself around
+                ext1.setRealValue(RubyString.newString(runtime, ext.encoded()));
+            }
+            ext1.setRealCritical(critical);
+            result.add(ext1);
+        }
+        return result;
+    }
+
+    private static boolean isSingleElement(DERReader der) {
+        try {
+            der.next();
+            return !der.hasNext();
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    private X509Revoked readRevoked(RubyClass cRevoked, DERReader entry) throws IOException {
+        Ruby runtime = getRuntime();
+        entry.next(DERReader.INTEGER);
+        IRubyObject serial = RubyBignum.bignorm(runtime, entry.integerValue());
+        entry.next();
+        IRubyObject time = RubyTime.newTime(runtime, readTime(entry));
+        IRubyObject exts;
+        if(entry.hasNext()) {
+            entry.next(DERReader.SEQUENCE);
+            exts = runtime.newArray(readExtensions(runtime, entry.contents()));
         } else {
-            set_version(getRuntime().newFixnum(2));
+            exts = runtime.newArray();
         }
-        set_last_update(RubyTime.newTime(getRuntime(),crl.getThisUpdate().getTime()));
-        set_next_update(RubyTime.newTime(getRuntime(),crl.getNextUpdate().getTime()));
-        ThreadContext tc = getRuntime().getCurrentContext();
-        set_issuer(((RubyModule)(getRuntime().getModule("OpenSSL").getConstant("X509"))).getConstant("Name").callMethod(tc,"new",RubyString.newString(getRuntime(), crl.getIssuerX500Principal().getEncoded())));
-
-        revoked = getRuntime().newArray();
-
-        DERSequence seqa = (DERSequence)((DERSequence)crl_v).getObjectAt(0);
-        DERObject maybe_ext = (DERObject)seqa.getObjectAt(seqa.size()-1);
-        if(maybe_ext instanceof DERTaggedObject && ((DERTaggedObject)maybe_ext).getTagNo() == 0) {
-            DERSequence exts = (DERSequence)((DERTaggedObject)maybe_ext).getObject();
-            for(int i=0;i<exts.size();i++) {
-                DERSequence seq2 = (DERSequence)exts.getObjectAt(i);
-                boolean critical = false;
-                String oid = ((DERObjectIdentifier)seq2.getObjectAt(0)).getId();
-                if(seq2.getObjectAt(1) == DERBoolean.TRUE) {
-                    critical = true;
-                }
-                byte[] value = crl.getExtensionValue(oid);
-                IRubyObject mASN1 = ((RubyModule)(getRuntime().getModule("OpenSSL"))).getConstant("ASN1");
-                IRubyObject rValue = null;
-                try {
-                    rValue = ASN1.decode(mASN1,ASN1.decode(mASN1,RubyString.newString(getRuntime(), value)).callMethod(tc,"value"));
-                } catch(Exception e) {
-                    rValue = RubyString.newString(getRuntime(), value);
+        return X509Revoked.create(runtime, cRevoked, serial, time, exts);
+    }
+
+    private RubyClass getRevokedClass() {
+        return (RubyClass)((RubyModule)(getRuntime().getModule("OpenSSL").getConstant("X509"))).getConstant("Revoked");
+    }
+
+    private List<DERReader> unreadEntries() {
+        List<DERReader> readers = new ArrayList<DERReader>(2);
+        if(revokedStart >= 0) {
+            readers.add(new DERReader(crl_der, revokedStart, revokedLength));
+        }
+        if(packedRevoked != null) {
+            readers.add(new DERReader(packedRevoked.buffer(), 0, packedRevoked.size()));
+        }
+        return readers;
+    }
+
+    private int unreadLength() {
+        return (revokedStart >= 0 ? revokedLength : 0) + (packedRevoked != null ? packedRevoked.size() : 0);
+    }
+
+    private void forgetUnreadEntries() {
+        revokedStart = -1;
+        packedRevoked = null;
+    }
+
+    /**
+     * Walks the revoked entries still in DER form looking for the given
+     * serial; returns the contents of the matching entry, or null.
+     */
+    private DERReader findEntry(BigInteger serial) throws IOException {
+        byte[] wanted = serial.toByteArray();
+        for(DERReader entries : unreadEntries()) {
+            while(entries.hasNext()) {
+                entries.next(DERReader.SEQUENCE);
+                DERReader entry = entries.contents();
+                entry.next(DERReader.INTEGER);
+                if(entry.contentEquals(wanted)) {
+                    return entries.contents();
                 }
-                X509Extensions.Extension ext1 = (X509Extensions.Extension)(((RubyModule)(getRuntime().getModule("OpenSSL").getConstant("X509"))).getConstant("Extension").callMethod(tc,"new"));
-                ext1.setRealOid(ext1.getObjectIdentifier(oid));
-                ext1.setRealValue(rValue);
-                ext1.setRealCritical(critical);
-                add_extension(ext1);
             }
         }
+        return null;
+    }
 
-        changed = false;
-        return this;
+    private static byte[] serialBytes(IRubyObject serial) {
+        if(serial instanceof RubyFixnum) {
+            return BigInteger.valueOf(((RubyFixnum)serial).getLongValue()).toByteArray();
+        } else if(serial instanceof RubyBignum) {
+            return ((RubyBignum)serial).getValue().toByteArray();
+        } else if(serial instanceof BN) {
+            return ((BN)serial).getValue().toByteArray();
+        }
+        throw serial.getRuntime().newTypeError("serial must be an Integer or OpenSSL::BN");
+    }
+
+    private static long timeMillis(IRubyObject time) {
+        if(time instanceof RubyTime) {
+            return ((RubyTime)time).getJavaDate().getTime();
+        } else if(time instanceof RubyInteger) {
+            return RubyNumeric.num2long(time) * 1000;
+        }
+        throw time.getRuntime().newTypeError("time must be a Time or an Integer");
+    }
+
+    private IRubyObject findRevoked(ThreadContext context, BigInteger serial) {
+        for(Iterator iter = ((RubyArray)revoked).getList().iterator();iter.hasNext();) {
+            IRubyObject rev = (IRubyObject)iter.next();
+            if(serial.equals(BN.getBigInteger(rev.callMethod(context,"serial")))) {
+                return rev;
+            }
+        }
+        return null;
+    }
+
+    public static RaiseException newCRLError(Ruby runtime, String message) {
+        return new RaiseException(runtime, (RubyClass)(((RubyModule)(runtime.getModule("OpenSSL").getConstant("X509"))).getConstant("CRLError")), message, true);
     }
 
     @JRubyMethod
@@ -199,14 +370,14 @@ public class X509CRL extends RubyObject {
     @JRubyMethod(name={"to_pem","to_s"})
     public IRubyObject to_pem() throws Exception {
         StringWriter w = new StringWriter();
-        PEMInputOutput.writeX509CRL(w,crl);
+        PEMInputOutput.writeX509CRL(w,getCRL());
         w.close();
         return getRuntime().newString(w.toString());
     }
 
     @JRubyMethod
     public IRubyObject to_der() throws Exception {
-        return RubyString.newString(getRuntime(), crl_v.getEncoded());
+        return RubyString.newString(getRuntime(), crl_der);
     }
 
     private static final String IND8 = "        ";
@@ -219,7 +390,7 @@ public class X509CRL extends RubyObject {
         sbe.append("Certificate Revocation List (CRL):\n");
         sbe.append(IND8).append("Version ").append(RubyNumeric.fix2int(version)+1).append(" (0x");
         sbe.append(Integer.toString(RubyNumeric.fix2int(version),16)).append(")\n");
-        sbe.append(IND8).append("Signature Algorithm: ").append(ASN1.nid2ln(getRuntime(),ASN1.obj2nid(getRuntime(),((DERObjectIdentifier)((DERSequence)((DERSequence)crl_v).getObjectAt(1)).getObjectAt(0))))).append("\n");
+        sbe.append(IND8).append("Signature Algorithm: ").append(ASN1.nid2ln(getRuntime(),ASN1.obj2nid(getRuntime(),sig_alg_oid))).append("\n");
         sbe.append(IND8).append("Issuer: ").append(issuer()).append("\n");
         sbe.append(IND8).append("Last Update: ").append(ASN_DATE.format(((RubyTime)last_update()).getJavaDate())).append("\n");
         if(!next_update().isNil()) {
@@ -293,7 +464,6 @@ public class X509CRL extends RubyObject {
             changed = true;
         }
         this.issuer = val;
-        generator.setIssuerDN(((X509Name)issuer).getRealName());
         return val;
     }
 
@@ -307,7 +477,6 @@ public class X509CRL extends RubyObject {
         changed = true;
         last_update = val.callMethod(getRuntime().getCurrentContext(),"getutc");
         ((RubyTime)last_update).setMicroseconds(0);
-        generator.setThisUpdate(((RubyTime)last_update).getJavaDate());
         this.last_update = val;
         return val;
     }
@@ -322,27 +491,119 @@ public class X509CRL extends RubyObject {
         changed = true;
         next_update = val.callMethod(getRuntime().getCurrentContext(),"getutc");
         ((RubyTime)next_update).setMicroseconds(0);
-        generator.setNextUpdate(((RubyTime)next_update).getJavaDate());
         this.next_update = val;
         return val;
     }
 
     @JRubyMethod
     public IRubyObject revoked() {
+        if(revokedStart >= 0 || packedRevoked != null) {
+            RubyArray entries = (RubyArray)this.revoked;
+            RubyClass cRevoked = getRevokedClass();
+            try {
+                for(DERReader der : unreadEntries()) {
+                    while(der.hasNext()) {
+                        der.next(DERReader.SEQUENCE);
+                        entries.append(readRevoked(cRevoked, der.contents()));
+                    }
+                }
+            } catch(IOException e) {
+                throw newCRLError(getRuntime(), e.getMessage());
+            }
+            forgetUnreadEntries();
+        }
         return this.revoked;
     }
 
+    @JRubyMethod(frame=true)
+    public IRubyObject each_revoked(ThreadContext context, Block block) {
+        for(Iterator iter = ((RubyArray)revoked).getList().iterator();iter.hasNext();) {
+            block.yield(context, (IRubyObject)iter.next());
+        }
+        RubyClass cRevoked = getRevokedClass();
+        try {
+            for(DERReader der : unreadEntries()) {
+                while(der.hasNext()) {
+                    der.next(DERReader.SEQUENCE);
+                    block.yield(context, readRevoked(cRevoked, der.contents()));
+                }
+            }
+        } catch(IOException e) {
+            throw newCRLError(getRuntime(), e.getMessage());
+        }
+        return this;
+    }
+
+    @JRubyMethod
+    public IRubyObject find_revoked(ThreadContext context, IRubyObject serial) {
+        BigInteger wanted = BN.getBigInteger(serial);
+        IRubyObject rev = findRevoked(context, wanted);
+        if(rev != null) {
+            return rev;
+        }
+        try {
+            DERReader entry = findEntry(wanted);
+            return entry == null ? getRuntime().getNil() : readRevoked(getRevokedClass(), entry);
+        } catch(IOException e) {
+            throw newCRLError(getRuntime(), e.getMessage());
+        }
+    }
+
+    @JRubyMethod(name="revoked?")
+    public IRubyObject revoked_p(ThreadContext context, IRubyObject serial) {
+        BigInteger wanted = BN.getBigInteger(serial);
+        if(findRevoked(context, wanted) != null) {
+            return getRuntime().getTrue();
+        }
+        try {
+            return getRuntime().newBoolean(findEntry(wanted) != null);
+        } catch(IOException e) {
+            throw newCRLError(getRuntime(), e.getMessage());
+        }
+    }
+
+    /**
+     * Adds revoked entries in bulk: serials is an Array of Integers (or
+     * BNs), times either an Array of the same size or a single value for
+     * all of them, as Times or seconds since the epoch. The entries are
+     * encoded right away and only become X509::Revoked objects if the
+     * revoked list is asked for.
+     */
+    @JRubyMethod
+    public IRubyObject add_revoked_entries(ThreadContext context, IRubyObject serials, IRubyObject times) {
+        RubyArray serialList = serials.convertToArray();
+        int count = serialList.size();
+        RubyArray timeList = (times instanceof RubyArray) ? (RubyArray)times : null;
+        if(timeList != null && timeList.size() != count) {
+            throw getRuntime().newArgumentError("serials and times must have the same size");
+        }
+        long sharedTime = (timeList == null) ? timeMillis(times) : 0;
+        if(packedRevoked == null) {
+            packedRevoked = new DERWriter(count * 24);
+        }
+        for(int i = 0; i < count; i++) {
+            byte[] serial = serialBytes(serialList.eltInternal(i));
+            long time = (timeList == null) ? sharedTime : timeMillis(timeList.eltInternal(i));
+            packedRevoked.writeHeader(DERReader.SEQUENCE, DERWriter.integerLength(serial) + DERWriter.timeLength(time));
+            packedRevoked.writeInteger(serial);
+            packedRevoked.writeTime(time);
+        }
+        changed = true;
+        return this;
+    }
+
     @JRubyMethod(name="revoked=")
     public IRubyObject set_revoked(IRubyObject val) {
         changed = true;
         this.revoked = val;
+        forgetUnreadEntries();
         return val;
     }
 
     @JRubyMethod
     public IRubyObject add_revoked(IRubyObject val) {
         changed = true;
-        this.revoked.callMethod(getRuntime().getCurrentContext(),"<<",val);
+        revoked().callMethod(getRuntime().getCurrentContext(),"<<",val);
         return val;
     }
 
@@ -374,55 +635,133 @@ public class X509CRL extends RubyObject {
         if(("DSA".equalsIgnoreCase(keyAlg) && "MD5".equalsIgnoreCase(digAlg)) || 
            ("RSA".equalsIgnoreCase(keyAlg) && "DSS1".equals(((Digest)digest).name().toString())) ||
            ("DSA".equalsIgnoreCase(keyAlg) && "SHA1".equals(((Digest)digest).name().toString()))) {
-            throw new RaiseException(getRuntime(), (RubyClass)(((RubyModule)(getRuntime().getModule("OpenSSL").getConstant("X509"))).getConstant("CRLError")), null, true);
+            throw newCRLError(getRuntime(), null);
         }
 
         sig_alg = getRuntime().newString(digAlg);
-        generator.setSignatureAlgorithm(digAlg + "WITH" + keyAlg);
+        DERObjectIdentifier sigOid = signatureOid(digAlg, keyAlg);
+        if(sigOid == null) {
+            throw newCRLError(getRuntime(), "unsupported signature algorithm " + digAlg + "WITH" + keyAlg);
+        }
+        byte[] algId = ("RSA".equalsIgnoreCase(keyAlg) ? new AlgorithmIdentifier(sigOid, new DERNull()) : new AlgorithmIdentifier(sigOid)).getDEREncoded();
+
+        // TBSCertList, written once: the parts are sized first so every
+        // header goes out with its final length, and entries that are
+        // still packed DER are copied through as they are
+        ThreadContext tc = getRuntime().getCurrentContext();
+        byte[] versionDer = version.isNil() ? new byte[0] : new DERInteger(BigInteger.valueOf(RubyNumeric.num2long(version))).getDEREncoded();
+        byte[] issuerDer = ((X509Name)issuer).getRealName().getDEREncoded();
+        long thisUpdate = ((RubyTime)last_update.callMethod(tc,"getutc")).getJavaDate().getTime();
+        long nextUpdate = next_update.isNil() ? 0 : ((RubyTime)next_update.callMethod(tc,"getutc")).getJavaDate().getTime();
 
+        DERWriter entries = new DERWriter();
         for(Iterator iter = ((RubyArray)revoked).getList().iterator();iter.hasNext();) {
-            X509Revoked rev = (X509Revoked)iter.next();
-            BigInteger serial = new BigInteger(rev.callMethod(getRuntime().getCurrentContext(),"serial").toString());
-            IRubyObject t1 = rev.callMethod(getRuntime().getCurrentContext(),"time").callMethod(getRuntime().getCurrentContext(),"getutc");
-            ((RubyTime)t1).setMicroseconds(0);
+            IRubyObject rev = (IRubyObject)iter.next();
+            byte[] serial = serialBytes(rev.callMethod(tc,"serial"));
+            long time = timeMillis(rev.callMethod(tc,"time"));
             // Extensions ignored, for now
-            generator.addCRLEntry(serial,((RubyTime)t1).getJavaDate(),new org.bouncycastle.asn1.x509.X509Extensions(new Hashtable()));
+            entries.writeHeader(DERReader.SEQUENCE, DERWriter.integerLength(serial) + DERWriter.timeLength(time));
+            entries.writeInteger(serial);
+            entries.writeTime(time);
         }
+        int revokedContent = entries.size() + unreadLength();
 
-        for(Iterator<IRubyObject> iter = extensions.iterator();iter.hasNext();) {
-            Object arg = iter.next();
-            generator.addExtension(((X509Extensions.Extension)arg).getRealOid(),((X509Extensions.Extension)arg).getRealCritical(),((X509Extensions.Extension)arg).getRealValueBytes());
+        byte[] extsDer = null;
+        if(!extensions.isEmpty()) {
+            ASN1EncodableVector exts = new ASN1EncodableVector();
+            for(Iterator<IRubyObject> iter = extensions.iterator();iter.hasNext();) {
+                X509Extensions.Extension ext = (X509Extensions.Extension)iter.next();
+                ASN1EncodableVector one = new ASN1EncodableVector();
+                one.add(ext.getRealOid());
+                if(ext.getRealCritical()) {
+                    one.add(DERBoolean.TRUE);
+                }
+                one.add(new DEROctetString(ext.getRealValueBytes()));
+                exts.add(new DERSequence(one));
+            }
+            extsDer = new DERTaggedObject(0, new DERSequence(exts)).getDEREncoded();
         }
 
-        OpenSSLReal.doWithBCProvider(new Runnable() {
-                public void run() {
-                    try {
-                        crl = generator.generate(((PKey)key).getPrivateKey(),"BC");
-                    } catch(GeneralSecurityException e) {
-                    }
-                }
-            });
+        int tbsContent = versionDer.length + algId.length + issuerDer.length + DERWriter.timeLength(thisUpdate);
+        if(!next_update.isNil()) {
+            tbsContent += DERWriter.timeLength(nextUpdate);
+        }
+        if(revokedContent > 0) {
+            tbsContent += DERWriter.headerLength(revokedContent) + revokedContent;
+        }
+        if(extsDer != null) {
+            tbsContent += extsDer.length;
+        }
 
-        crl_v = new ASN1InputStream(new ByteArrayInputStream(crl.getEncoded())).readObject();
-        DERSequence v1 = (DERSequence)(((DERSequence)crl_v).getObjectAt(0));
-        ASN1EncodableVector build1 = new ASN1EncodableVector();
-        int copyIndex = 0;
-        if(v1.getObjectAt(0) instanceof DERInteger) {
-            copyIndex++;
-        }
-        build1.add(new DERInteger(new java.math.BigInteger(version.toString())));
-        while(copyIndex < v1.size()) {
-            build1.add(v1.getObjectAt(copyIndex++));
-        }
-        ASN1EncodableVector build2 = new ASN1EncodableVector();
-        build2.add(new DERSequence(build1));
-        build2.add(((DERSequence)crl_v).getObjectAt(1));
-        build2.add(((DERSequence)crl_v).getObjectAt(2));
-        crl_v = new DERSequence(build2);
+        DERWriter tbs = new DERWriter(DERWriter.headerLength(tbsContent) + tbsContent);
+        tbs.writeHeader(DERReader.SEQUENCE, tbsContent);
+        tbs.write(versionDer);
+        tbs.write(algId);
+        tbs.write(issuerDer);
+        tbs.writeTime(thisUpdate);
+        if(!next_update.isNil()) {
+            tbs.writeTime(nextUpdate);
+        }
+        int unreadAt = -1;
+        if(revokedContent > 0) {
+            tbs.writeHeader(DERReader.SEQUENCE, revokedContent);
+            tbs.write(entries.buffer(), 0, entries.size());
+            unreadAt = tbs.size();
+            if(revokedStart >= 0) {
+                tbs.write(crl_der, revokedStart, revokedLength);
+            }
+            if(packedRevoked != null) {
+                tbs.write(packedRevoked.buffer(), 0, packedRevoked.size());
+            }
+        }
+        if(extsDer != null) {
+            tbs.write(extsDer);
+        }
+
+        byte[] signature;
+        try {
+            String sigAlg = digAlg + "WITH" + keyAlg;
+            Signature signer = OpenSSLReal.PROVIDER == null ? Signature.getInstance(sigAlg) : Signature.getInstance(sigAlg, OpenSSLReal.PROVIDER);
+            signer.initSign(((PKey)key).getPrivateKey());
+            signer.update(tbs.buffer(), 0, tbs.size());
+            signature = signer.sign();
+        } catch(GeneralSecurityException e) {
+            throw newCRLError(getRuntime(), e.getMessage());
+        }
+
+        int total = tbs.size() + algId.length + DERWriter.headerLength(signature.length + 1) + signature.length + 1;
+        DERWriter out = new DERWriter(DERWriter.headerLength(total) + total);
+        out.writeHeader(DERReader.SEQUENCE, total);
+        out.write(tbs.buffer(), 0, tbs.size());
+        out.write(algId);
+        out.writeHeader(DERTags.BIT_STRING, signature.length + 1);
+        out.write(0);
+        out.write(signature);
+
+        byte[] der = out.buffer();
+        crl_der = (der.length == out.size()) ? der : out.toByteArray();
+        crl = null;
+        sig_alg_oid = sigOid;
+        // entries that were still DER are now in the signed CRL; keep
+        // reading them from there
+        int unread = unreadLength();
+        packedRevoked = null;
+        revokedStart = (unread > 0) ? DERWriter.headerLength(total) + unreadAt : -1;
+        revokedLength = unread;
         changed = false;
         return this;
     }
 
+    private DERObjectIdentifier signatureOid(String digAlg, String keyAlg) {
+        String digest = digAlg.toLowerCase().replace("-", "");
+        if("RSA".equalsIgnoreCase(keyAlg)) {
+            return ASN1.getOIDLookup(getRuntime()).get(digest + "withrsaencryption");
+        } else if("DSA".equalsIgnoreCase(keyAlg)) {
+            return ASN1.getOIDLookup(getRuntime()).get("dsawith" + digest);
+        }
+        return null;
+    }
+
     @JRubyMethod
     public IRubyObject verify(final IRubyObject key) {
         if(changed) {
@@ -433,7 +772,7 @@ public class X509CRL extends RubyObject {
         OpenSSLReal.doWithBCProvider(new Runnable() {
                 public void run() {
                     try {
-                        crl.verify(((PKey)key).getPublicKey());
+                        getCRL().verify(((PKey)key).getPublicKey());
                         result[0] = true;
                     } catch(java.security.GeneralSecurityException e) {
                         result[0] = false;
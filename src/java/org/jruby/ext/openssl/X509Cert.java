@@ -42,6 +42,8 @@ import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.security.interfaces.DSAPublicKey;
+import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -58,9 +60,9 @@ import org.bouncycastle.asn1.x509.GeneralNames;
 import org.bouncycastle.x509.X509V3CertificateGenerator;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
+import org.jruby.RubyBignum;
 import org.jruby.RubyClass;
 import org.jruby.RubyModule;
-import org.jruby.RubyNumeric;
 import org.jruby.RubyObject;
 import org.jruby.RubyString;
 import org.jruby.RubyTime;
@@ -76,6 +78,11 @@ import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.util.ByteList;
 
 /**
+ * A certificate that was parsed (or wrapped) only keeps the underlying
+ * X509Certificate; serial, validity, names, public key and extensions are
+ * turned into Ruby objects the first time they are asked for. Anything that
+ * needs all of them at once (sign) materializes the rest first.
+ *
  * @author <a href="mailto:ola.bini@ki.se">Ola Bini</a>
  */
 public class X509Cert extends RubyObject {
@@ -107,11 +114,12 @@ public class X509Cert extends RubyObject {
     private IRubyObject sig_alg;
     private IRubyObject version;
 
+    // null until built from cert, see getExtensions()
     private List<IRubyObject> extensions;
 
     private boolean changed = true;
 
-    private X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+    private X509V3CertificateGenerator generator;
     private X509Certificate cert;
 
     X509AuxCertificate getAuxCert() {
@@ -126,12 +134,13 @@ public class X509Cert extends RubyObject {
 
     public static IRubyObject wrap(Ruby runtime, Certificate c) throws CertificateEncodingException {
         RubyClass cr = (RubyClass)(((RubyModule)(runtime.getModule("OpenSSL").getConstant("X509"))).getConstant("Certificate"));
-        return cr.callMethod(runtime.getCurrentContext(),"new",RubyString.newString(runtime, c.getEncoded()));
-    }
-
-    // this is the javax.security counterpart of the previous wrap method
-    public static IRubyObject wrap(Ruby runtime, javax.security.cert.Certificate c) throws javax.security.cert.CertificateEncodingException {
-        RubyClass cr = (RubyClass)(((RubyModule)(runtime.getModule("OpenSSL").getConstant("X509"))).getConstant("Certificate"));
+        if(c instanceof X509Certificate) {
+            // already parsed, no need to go through the DER again
+            X509Cert wrapped = new X509Cert(runtime, cr);
+            wrapped.cert = (X509Certificate)c;
+            wrapped.changed = false;
+            return wrapped;
+        }
         return cr.callMethod(runtime.getCurrentContext(),"new",RubyString.newString(runtime, c.getEncoded()));
     }
 
@@ -142,38 +151,82 @@ public class X509Cert extends RubyObject {
         if(args.length == 0) {
             return this;
         }
-        ThreadContext tc = runtime.getCurrentContext();
         IRubyObject arg = OpenSSLImpl.to_der_if_possible(args[0]);
         ByteArrayInputStream bis = new ByteArrayInputStream(arg.convertToString().getBytes());
-        CertificateFactory cf;
-        
-        RubyModule ossl = runtime.getModule("OpenSSL");
-        RubyModule x509 = (RubyModule)ossl.getConstant("X509");
-        IRubyObject x509Name = x509.getConstant("Name");
-        RubyModule pkey = (RubyModule)ossl.getConstant("PKey");
 
         try {
-            cf = CertificateFactory.getInstance("X.509",OpenSSLReal.PROVIDER);
-            cert = (X509Certificate)cf.generateCertificate(bis);
+            cert = (X509Certificate)getCertificateFactory().generateCertificate(bis);
         } catch (CertificateException ex) {
             throw newCertificateError(runtime, ex);
         }
 
-        set_serial(RubyNumeric.str2inum(runtime,runtime.newString(cert.getSerialNumber().toString()),10));
-        set_not_before(RubyTime.newTime(runtime,cert.getNotBefore().getTime()));
-        set_not_after(RubyTime.newTime(runtime,cert.getNotAfter().getTime()));
-        set_subject(x509Name.callMethod(tc,"new",RubyString.newString(runtime, cert.getSubjectX500Principal().getEncoded())));
-        set_issuer(x509Name.callMethod(tc,"new",RubyString.newString(runtime, cert.getIssuerX500Principal().getEncoded())));
+        // the Ruby side fields are built from cert when first asked for
+        extensions = null;
+        changed = false;
 
-        String algorithm = cert.getPublicKey().getAlgorithm();
-        if ("RSA".equalsIgnoreCase(algorithm)) {
-            set_public_key(pkey.getConstant("RSA").callMethod(tc,"new",RubyString.newString(runtime, cert.getPublicKey().getEncoded())));
-        } else if ("DSA".equalsIgnoreCase(algorithm)) {
-            set_public_key(pkey.getConstant("DSA").callMethod(tc,"new",RubyString.newString(runtime, cert.getPublicKey().getEncoded())));
-        } else {
-            throw newCertificateError(runtime, "The algorithm " + algorithm + " is unsupported for public keys");
+        return this;
+    }
+
+    // looking up the provider's factory costs more than parsing a small
+    // certificate; factories keep parse state, hence one per thread
+    private static final ThreadLocal<CertificateFactory> certificateFactories = new ThreadLocal<CertificateFactory>();
+
+    static CertificateFactory getCertificateFactory() throws CertificateException {
+        CertificateFactory cf = certificateFactories.get();
+        if(cf == null) {
+            cf = CertificateFactory.getInstance("X.509",OpenSSLReal.PROVIDER);
+            certificateFactories.set(cf);
+        }
+        return cf;
+    }
+
+    private X509V3CertificateGenerator getGenerator() {
+        if(generator == null) {
+            generator = new X509V3CertificateGenerator();
+        }
+        return generator;
+    }
+
+    /**
+     * Builds every field that is still only held by the parsed certificate,
+     * so the generator has all of them. Doesn't count as a change.
+     */
+    private void materialize() {
+        if(cert == null) {
+            return;
         }
+        boolean wasChanged = changed;
+        serial();
+        not_before();
+        not_after();
+        subject();
+        issuer();
+        public_key();
+        getExtensions();
+        changed = wasChanged;
+    }
+
+    private X509Name newName(Ruby runtime, byte[] encoded) {
+        try {
+            return X509Name.create(runtime, encoded);
+        } catch(IOException ex) {
+            throw newCertificateError(runtime, ex);
+        }
+    }
 
+    private List<IRubyObject> getExtensions() {
+        if(extensions != null) {
+            return extensions;
+        }
+        extensions = new ArrayList<IRubyObject>();
+        if(cert == null) {
+            return extensions;
+        }
+        boolean wasChanged = changed;
+        Ruby runtime = getRuntime();
+        ThreadContext tc = runtime.getCurrentContext();
+        RubyModule ossl = runtime.getModule("OpenSSL");
+        RubyModule x509 = (RubyModule)ossl.getConstant("X509");
         IRubyObject extFact = ((RubyClass)(x509.getConstant("ExtensionFactory"))).callMethod(tc,"new");
         extFact.callMethod(tc,"subject_certificate=",this);
 
@@ -184,7 +237,7 @@ public class X509Cert extends RubyObject {
                 byte[] value = cert.getExtensionValue(critOid);
                 IRubyObject rValue = ASN1.decode(ossl.getConstant("ASN1"),RubyString.newString(runtime, value)).callMethod(tc,"value");
                 if(critOid.equals("2.5.29.17")) {
-                    X509Extensions.Extension ext = (X509Extensions.Extension)(((RubyClass)(((RubyModule)(getRuntime().getModule("OpenSSL").getConstant("X509"))).getConstant("Extension"))).callMethod(tc,"new", new IRubyObject[]{runtime.newString(critOid),rValue,runtime.getTrue()}));
+                    X509Extensions.Extension ext = (X509Extensions.Extension)(((RubyClass)(x509.getConstant("Extension"))).callMethod(tc,"new", new IRubyObject[]{runtime.newString(critOid),rValue,runtime.getTrue()}));
                     add_extension(ext);
                 } else {
                     byte[] dest = new byte[value.length - 4];
@@ -210,9 +263,8 @@ public class X509Cert extends RubyObject {
                 }
             }
         }
-        changed = false;
-
-        return this;
+        changed = wasChanged;
+        return extensions;
     }
 
     public static RaiseException newCertificateError(Ruby runtime, Exception ex) {
@@ -284,6 +336,11 @@ public class X509Cert extends RubyObject {
 
     @JRubyMethod
     public IRubyObject serial() {
+        if(serial == null && cert != null) {
+            boolean wasChanged = changed;
+            set_serial(RubyBignum.bignorm(getRuntime(), cert.getSerialNumber()));
+            changed = wasChanged;
+        }
         return serial;
     }
 
@@ -293,12 +350,17 @@ public class X509Cert extends RubyObject {
             changed = true;
         }
         serial = num;
-        generator.setSerialNumber(new BigInteger(serial.toString()));
+        getGenerator().setSerialNumber(new BigInteger(serial.toString()));
         return num;
     }
 
     @JRubyMethod
     public IRubyObject subject() {
+        if(subject == null && cert != null) {
+            boolean wasChanged = changed;
+            set_subject(newName(getRuntime(), cert.getSubjectX500Principal().getEncoded()));
+            changed = wasChanged;
+        }
         return subject;
     }
 
@@ -308,12 +370,17 @@ public class X509Cert extends RubyObject {
             changed = true;
         }
         subject = arg;
-        generator.setSubjectDN(((X509Name)subject).getRealName());
+        getGenerator().setSubjectDN(((X509Name)subject).getRealName());
         return arg;
     }
 
     @JRubyMethod
     public IRubyObject issuer() {
+        if(issuer == null && cert != null) {
+            boolean wasChanged = changed;
+            set_issuer(newName(getRuntime(), cert.getIssuerX500Principal().getEncoded()));
+            changed = wasChanged;
+        }
         return issuer;
     }
 
@@ -323,12 +390,17 @@ public class X509Cert extends RubyObject {
             changed = true;
         }
         issuer = arg;
-        generator.setIssuerDN(((X509Name)issuer).getRealName());
+        getGenerator().setIssuerDN(((X509Name)issuer).getRealName());
         return arg;
     }
 
     @JRubyMethod
     public IRubyObject not_before() {
+        if(not_before == null && cert != null) {
+            boolean wasChanged = changed;
+            set_not_before(RubyTime.newTime(getRuntime(),cert.getNotBefore().getTime()));
+            changed = wasChanged;
+        }
         return not_before;
     }
 
@@ -337,12 +409,17 @@ public class X509Cert extends RubyObject {
         changed = true;
         not_before = arg.callMethod(getRuntime().getCurrentContext(),"getutc");
         ((RubyTime)not_before).setMicroseconds(0);
-        generator.setNotBefore(((RubyTime)not_before).getJavaDate());
+        getGenerator().setNotBefore(((RubyTime)not_before).getJavaDate());
         return arg;
     }
 
     @JRubyMethod
     public IRubyObject not_after() {
+        if(not_after == null && cert != null) {
+            boolean wasChanged = changed;
+            set_not_after(RubyTime.newTime(getRuntime(),cert.getNotAfter().getTime()));
+            changed = wasChanged;
+        }
         return not_after;
     }
 
@@ -351,22 +428,44 @@ public class X509Cert extends RubyObject {
         changed = true;
         not_after = arg.callMethod(getRuntime().getCurrentContext(),"getutc");
         ((RubyTime)not_after).setMicroseconds(0);
-        generator.setNotAfter(((RubyTime)not_after).getJavaDate());
+        getGenerator().setNotAfter(((RubyTime)not_after).getJavaDate());
         return arg;
     }
 
     @JRubyMethod
     public IRubyObject public_key() {
+        if(public_key == null && cert != null) {
+            boolean wasChanged = changed;
+            set_public_key(newPublicKey(getRuntime(), cert.getPublicKey()));
+            changed = wasChanged;
+        }
         return public_key;
     }
 
+    private IRubyObject newPublicKey(Ruby runtime, PublicKey key) {
+        RubyModule pkey = (RubyModule)runtime.getModule("OpenSSL").getConstant("PKey");
+        if(key instanceof RSAPublicKey) {
+            return PKeyRSA.newPublicKey(runtime, (RSAPublicKey)key);
+        } else if(key instanceof DSAPublicKey) {
+            return PKeyDSA.newPublicKey(runtime, (DSAPublicKey)key);
+        }
+        String algorithm = key.getAlgorithm();
+        ThreadContext tc = runtime.getCurrentContext();
+        if ("RSA".equalsIgnoreCase(algorithm)) {
+            return pkey.getConstant("RSA").callMethod(tc,"new",RubyString.newString(runtime, key.getEncoded()));
+        } else if ("DSA".equalsIgnoreCase(algorithm)) {
+            return pkey.getConstant("DSA").callMethod(tc,"new",RubyString.newString(runtime, key.getEncoded()));
+        }
+        throw newCertificateError(runtime, "The algorithm " + algorithm + " is unsupported for public keys");
+    }
+
     @JRubyMethod(name="public_key=")
     public IRubyObject set_public_key(IRubyObject arg) {
         if(!arg.equals(this.public_key)) {
             changed = true;
         }
         public_key = arg;
-        generator.setPublicKey(((PKey)public_key).getPublicKey());
+        getGenerator().setPublicKey(((PKey)public_key).getPublicKey());
         return arg;
     }
 
@@ -384,7 +483,9 @@ public class X509Cert extends RubyObject {
             throw new RaiseException(runtime, (RubyClass)(((RubyModule)(runtime.getModule("OpenSSL").getConstant("X509"))).getConstant("CertificateError")), null, true);
         }
 
-        for(Iterator<IRubyObject> iter = extensions.iterator();iter.hasNext();) {
+        materialize();
+        final X509V3CertificateGenerator generator = getGenerator();
+        for(Iterator<IRubyObject> iter = getExtensions().iterator();iter.hasNext();) {
             X509Extensions.Extension ag = (X509Extensions.Extension)iter.next();
             try {
                 byte[] bytes = ag.getRealValueBytes();
@@ -395,7 +496,7 @@ public class X509Cert extends RubyObject {
         }
 
         sig_alg = runtime.newString(digAlg);
-        generator.setSignatureAlgorithm(digAlg + "WITH" + keyAlg);
+        getGenerator().setSignatureAlgorithm(digAlg + "WITH" + keyAlg);
 
         OpenSSLReal.doWithBCProvider(new Runnable() {
                 public void run() {
@@ -443,7 +544,7 @@ public class X509Cert extends RubyObject {
 
     @JRubyMethod
     public IRubyObject extensions() {
-        return getRuntime().newArray(extensions);
+        return getRuntime().newArray(getExtensions());
     }
 
     @SuppressWarnings("unchecked")
@@ -455,6 +556,7 @@ public class X509Cert extends RubyObject {
 
     @JRubyMethod
     public IRubyObject add_extension(IRubyObject arg) {
+        List<IRubyObject> extensions = getExtensions();
         changed = true;
         DERObjectIdentifier oid = ((X509Extensions.Extension)arg).getRealOid();
         if(oid.equals(new DERObjectIdentifier("2.5.29.17"))) {
@@ -27,7 +27,9 @@
  ***** END LICENSE BLOCK *****/
 package org.jruby.ext.openssl;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
@@ -39,13 +41,21 @@ import org.bouncycastle.asn1.ASN1EncodableVector;
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.DERBMPString;
+import org.bouncycastle.asn1.DERGeneralString;
+import org.bouncycastle.asn1.DERIA5String;
+import org.bouncycastle.asn1.DERNumericString;
 import org.bouncycastle.asn1.DERObject;
 import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.DERPrintableString;
 import org.bouncycastle.asn1.DERSequence;
 import org.bouncycastle.asn1.DERSet;
 import org.bouncycastle.asn1.DERString;
+import org.bouncycastle.asn1.DERT61String;
 import org.bouncycastle.asn1.DERTags;
+import org.bouncycastle.asn1.DERUTF8String;
 import org.bouncycastle.asn1.x509.X509DefaultEntryConverter;
+import org.bouncycastle.util.Strings;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyClass;
@@ -112,10 +122,26 @@ public class X509Name extends RubyObject {
     private List<Object> values;
     private List<Object> types;
 
+    // derived from the entries on first use, dropped when they change
+    private byte[] encoded;
+    private String canonical;
+    private org.bouncycastle.asn1.x509.X509Name realName;
+    private String rfc2253;
+    private Map<DERObjectIdentifier, String> rfc2253Lookup;
+
+    private void changed() {
+        encoded = null;
+        canonical = null;
+        realName = null;
+        rfc2253 = null;
+        rfc2253Lookup = null;
+    }
+
     void addEntry(Object oid, Object value, Object type) {
         oids.add(oid);
         values.add(value);
         types.add(type);
+        changed();
     }
     
     public static X509Name create(Ruby runtime, org.bouncycastle.asn1.x509.X509Name realName) {
@@ -124,6 +150,12 @@ public class X509Name extends RubyObject {
         return name;
     }
 
+    static X509Name create(Ruby runtime, byte[] encoded) throws IOException {
+        X509Name name = new X509Name(runtime, ((RubyModule)(runtime.getModule("OpenSSL").getConstant("X509"))).getClass("Name"));
+        name.fromASN1Sequence((ASN1Sequence)new ASN1InputStream(encoded).readObject());
+        return name;
+    }
+
     void fromASN1Sequence(ASN1Sequence seq) {
         oids = new ArrayList<Object>();
         values = new ArrayList<Object>();
@@ -138,6 +170,7 @@ public class X509Name extends RubyObject {
             }
             types.add(getRuntime().newFixnum(ASN1.idForClass(value.getObjectAt(1).getClass())));
         }
+        changed();
     }
 
 
@@ -248,6 +281,7 @@ public class X509Name extends RubyObject {
         oids.add(oid_v);
         values.add(value);
         types.add(type);
+        changed();
 
         return this;
     }
@@ -275,8 +309,11 @@ else
             flag = RubyNumeric.fix2int(args[0]);
         }
 
-        StringBuffer sb = new StringBuffer();
         Map<DERObjectIdentifier, String>  lookup = ASN1.getSymLookup(getRuntime());
+        if(flag == RFC2253 && rfc2253 != null && rfc2253Lookup == lookup) {
+            return getRuntime().newString(rfc2253);
+        }
+        StringBuffer sb = new StringBuffer();
         Iterator<Object> oiter = null;
         Iterator<Object> viter = null;
         if(flag == RFC2253) {
@@ -306,6 +343,10 @@ else
                 sb.append("/").append(outOid).append("=").append(val);
             }
         }
+        if(flag == RFC2253) {
+            rfc2253 = sb.toString();
+            rfc2253Lookup = lookup;
+        }
         return getRuntime().newString(sb.toString());
     }
 
@@ -334,12 +375,52 @@ else
         if(eql_p(other).isTrue()) {
             return RubyFixnum.zero(getRuntime());
         }
-
-        return RubyFixnum.one(getRuntime());
+        if(!(other instanceof X509Name)) {
+            return RubyFixnum.one(getRuntime());
+        }
+        return getRuntime().newFixnum(canonical().compareTo(((X509Name)other).canonical()) < 0 ? -1 : 1);
     }
 
     org.bouncycastle.asn1.x509.X509Name getRealName() {
-        return new org.bouncycastle.asn1.x509.X509Name(new Vector<Object>(oids),new Vector<Object>(values));
+        if(realName == null) {
+            realName = new org.bouncycastle.asn1.x509.X509Name(new Vector<Object>(oids),new Vector<Object>(values));
+        }
+        return realName;
+    }
+
+    /**
+     * A key that is equal for two names exactly when Bouncy Castle's
+     * X509Name.equals would say they are: the same attributes in any
+     * order, values compared trimmed, lower cased and with runs of
+     * spaces collapsed.
+     */
+    private String canonical() {
+        if(canonical == null) {
+            String[] entries = new String[oids.size()];
+            for(int i = 0; i < entries.length; i++) {
+                String value = (String)values.get(i);
+                entries[i] = ((DERObjectIdentifier)oids.get(i)).getId() + "=" + canonicalValue(value == null ? "" : value);
+            }
+            Arrays.sort(entries);
+            StringBuffer sb = new StringBuffer();
+            for(int i = 0; i < entries.length; i++) {
+                sb.append(entries[i]).append('\0');
+            }
+            canonical = sb.toString();
+        }
+        return canonical;
+    }
+
+    private static String canonicalValue(String value) {
+        String lower = Strings.toLowerCase(value.trim());
+        StringBuffer sb = new StringBuffer(lower.length());
+        for(int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if(c != ' ' || i == 0 || lower.charAt(i - 1) != ' ') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
     }
 
     @JRubyMethod(name="eql?")
@@ -348,18 +429,23 @@ else
             return getRuntime().getFalse();
         }
         X509Name o = (X509Name)other;
-        org.bouncycastle.asn1.x509.X509Name nm = new org.bouncycastle.asn1.x509.X509Name(new Vector<Object>(oids),new Vector<Object>(values));
-        org.bouncycastle.asn1.x509.X509Name o_nm = new org.bouncycastle.asn1.x509.X509Name(new Vector<Object>(o.oids),new Vector<Object>(o.values));
-        return nm.equals(o_nm) ? getRuntime().getTrue() : getRuntime().getFalse();
+        return (o == this || canonical().equals(o.canonical())) ? getRuntime().getTrue() : getRuntime().getFalse();
     }
 
     @JRubyMethod
     public RubyFixnum hash() {
-        return getRuntime().newFixnum(new org.bouncycastle.asn1.x509.X509Name(new Vector<Object>(oids),new Vector<Object>(values)).hashCode());
+        return getRuntime().newFixnum(canonical().hashCode());
     }
 
     @JRubyMethod
     public IRubyObject to_der() throws Exception {
+        return RubyString.newString(getRuntime(), encoded());
+    }
+
+    private byte[] encoded() throws Exception {
+        if(encoded != null) {
+            return encoded;
+        }
         DERSequence seq = null;
         if(oids.size()>0) {
             ASN1EncodableVector  vec = new ASN1EncodableVector();
@@ -386,11 +472,47 @@ else
         } else {
             seq = new DERSequence();
         }
+        encoded = seq.getDEREncoded();
+        return encoded;
+    }
 
-        return RubyString.newString(getRuntime(), seq.getDEREncoded());
+    /**
+     * Builds the Bouncy Castle string object for one attribute value.
+     */
+    private static abstract class ValueFactory {
+        abstract DERObject create(String value);
+    }
+
+    // by ASN.1 tag, for the types with a String constructor
+    private static final ValueFactory[] VALUE_FACTORIES = new ValueFactory[31];
+    static {
+        VALUE_FACTORIES[DERTags.UTF8_STRING] = new ValueFactory() {
+                DERObject create(String value) { return new DERUTF8String(value); }
+            };
+        VALUE_FACTORIES[DERTags.NUMERIC_STRING] = new ValueFactory() {
+                DERObject create(String value) { return new DERNumericString(value); }
+            };
+        VALUE_FACTORIES[DERTags.PRINTABLE_STRING] = new ValueFactory() {
+                DERObject create(String value) { return new DERPrintableString(value); }
+            };
+        VALUE_FACTORIES[DERTags.T61_STRING] = new ValueFactory() {
+                DERObject create(String value) { return new DERT61String(value); }
+            };
+        VALUE_FACTORIES[DERTags.IA5_STRING] = new ValueFactory() {
+                DERObject create(String value) { return new DERIA5String(value); }
+            };
+        VALUE_FACTORIES[DERTags.GENERAL_STRING] = new ValueFactory() {
+                DERObject create(String value) { return new DERGeneralString(value); }
+            };
+        VALUE_FACTORIES[DERTags.BMP_STRING] = new ValueFactory() {
+                DERObject create(String value) { return new DERBMPString(value); }
+            };
     }
 
     private DERObject convert(DERObjectIdentifier oid, String value, int type) throws Exception {
+        if(type >= 0 && type < VALUE_FACTORIES.length && VALUE_FACTORIES[type] != null) {
+            return VALUE_FACTORIES[type].create(value);
+        }
         Class<? extends ASN1Encodable> clzz = ASN1.classForId(type);
         if(clzz != null) {
             java.lang.reflect.Constructor ctor = clzz.getConstructor(new Class[]{String.class});
@@ -62,6 +62,14 @@ public class X509Revoked extends RubyObject {
         super(runtime,type);
     }
 
+    static X509Revoked create(Ruby runtime, RubyClass type, IRubyObject serial, IRubyObject time, IRubyObject extensions) {
+        X509Revoked revoked = new X509Revoked(runtime, type);
+        revoked.serial = serial;
+        revoked.time = time;
+        revoked.extensions = extensions;
+        return revoked;
+    }
+
     @JRubyMethod(name="initialize",rest=true,frame=true)
     public IRubyObject _initialize(IRubyObject[] args, Block unusedBlock) throws Exception {
         serial = getRuntime().getNil();
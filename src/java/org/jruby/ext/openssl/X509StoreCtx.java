@@ -37,7 +37,6 @@ import org.jruby.RubyClass;
 import org.jruby.RubyModule;
 import org.jruby.RubyObject;
 import org.jruby.RubyObjectAdapter;
-import org.jruby.RubyString;
 import org.jruby.RubyTime;
 import org.jruby.anno.JRubyMethod;
 import org.jruby.exceptions.RaiseException;
@@ -68,13 +67,11 @@ public class X509StoreCtx extends RubyObject {
 
     private StoreContext ctx;
     private RubyClass cStoreError;
-    private RubyClass cX509Cert;
 
     public X509StoreCtx(Ruby runtime, RubyClass type) {
         super(runtime,type);
         ctx = new StoreContext();
         cStoreError = (RubyClass)(((RubyModule)(runtime.getModule("OpenSSL").getConstant("X509"))).getConstant("StoreError")); 
-        cX509Cert = (RubyClass)(((RubyModule)(runtime.getModule("OpenSSL").getConstant("X509"))).getConstant("Certificate"));
    }
 
     private void raise(String msg) {
@@ -134,7 +131,7 @@ public class X509StoreCtx extends RubyObject {
         }
         List<IRubyObject> ary = new ArrayList<IRubyObject>();
         for(X509AuxCertificate x509 : chain) {
-            ary.add(cX509Cert.callMethod(getRuntime().getCurrentContext(),"new",RubyString.newString(getRuntime(), x509.getEncoded())));
+            ary.add(X509Cert.wrap(getRuntime(), x509));
         }
         return getRuntime().newArray(ary);
    }
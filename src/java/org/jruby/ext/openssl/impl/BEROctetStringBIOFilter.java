@@ -0,0 +1,101 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Copyright (C) 2009 The JRuby Community <www.jruby.org>
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.impl;
+
+import java.io.IOException;
+
+/** c: BIO_new_NDEF
+ *
+ * Writes what passes through it to the next BIO as the primitive
+ * segments of an indefinite length OCTET STRING, one segment per
+ * filled chunk. The caller writes the 24 80 header before and the
+ * end-of-contents octets after.
+ */
+public class BEROctetStringBIOFilter extends BIOFilter {
+    public static final int CHUNK = 8192;
+
+    // room for the longest header of a CHUNK sized segment
+    private static final int HEADER = 4;
+
+    private final byte[] buf = new byte[HEADER + CHUNK];
+    private int len;
+
+    @Override
+    public int write(byte[] out, int offset, int length) throws IOException {
+        int written = length;
+        while(length > 0) {
+            int n = Math.min(length, CHUNK - len);
+            System.arraycopy(out, offset, buf, HEADER + len, n);
+            len += n;
+            offset += n;
+            length -= n;
+            if(len == CHUNK) {
+                writeSegment();
+            }
+        }
+        return written;
+    }
+
+    private void writeSegment() throws IOException {
+        if(len == 0) {
+            return;
+        }
+        int start;
+        if(len < 0x80) {
+            start = HEADER - 2;
+            buf[start + 1] = (byte)len;
+        } else if(len < 0x100) {
+            start = HEADER - 3;
+            buf[start + 1] = (byte)0x81;
+            buf[start + 2] = (byte)len;
+        } else {
+            start = HEADER - 4;
+            buf[start + 1] = (byte)0x82;
+            buf[start + 2] = (byte)(len >> 8);
+            buf[start + 3] = (byte)len;
+        }
+        buf[start] = 0x04;
+        next().write(buf, start, HEADER - start + len);
+        len = 0;
+    }
+
+    /** c: BIO_flush
+     *
+     * Writes out the partly filled segment, if any. The next BIO is
+     * not flushed, since the rest of the encoding follows on it; for
+     * a base64 filter that would end the encoding early.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeSegment();
+    }
+
+    public int getType() {
+        return TYPE_BER;
+    }
+}// BEROctetStringBIOFilter
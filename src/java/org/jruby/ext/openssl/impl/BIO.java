@@ -64,6 +64,7 @@ public class BIO {
 
     private static final class BIOInputStream extends InputStream {
         private BIO bio;
+        private final byte[] buffer = new byte[1];
 
         public BIOInputStream(BIO bio) {
             this.bio = bio;
@@ -71,7 +72,6 @@ public class BIO {
 
         @Override
         public int read() throws IOException {
-            byte[] buffer = new byte[1];
             int read = bio.read(buffer, 0, 1);
             if(read == 0) {
                 return -1;
@@ -96,6 +96,7 @@ public class BIO {
 
     private static final class BIOOutputStream extends OutputStream {
         private BIO bio;
+        private final byte[] buffer = new byte[1];
 
         public BIOOutputStream(BIO bio) {
             this.bio = bio;
@@ -103,6 +104,8 @@ public class BIO {
 
         @Override
         public void write(int b) throws IOException {
+            buffer[0] = (byte)b;
+            bio.write(buffer, 0, 1);
         }
 
         @Override
@@ -148,6 +151,20 @@ public class BIO {
         return bio;
     }
 
+    /** c: BIO_new_fp
+     *
+     */
+    public static BIO fromStream(InputStream in) {
+        return new StreamBIO(in);
+    }
+
+    /** c: BIO_new_fp
+     *
+     */
+    public static BIO fromStream(OutputStream out) {
+        return new StreamBIO(out);
+    }
+
     /** c: BIO_new(BIO_f_buffered())
      *
      */
@@ -180,14 +197,7 @@ public class BIO {
      *
      */
     public static BIO memBuf(byte[] arr, int offset, int length) {
-        // TODO: create real readonly version of MemBIO.
-        try {
-            BIO bio = new MemBIO();
-            bio.write(arr, offset, length);
-            return bio;
-        } catch(IOException e) {
-            return null;
-        }
+        return new MemBIO(arr, offset, length);
     }
 
     protected BIO nextBio;
@@ -28,54 +28,89 @@
 package org.jruby.ext.openssl.impl;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import org.jruby.ext.openssl.impl.utils.Base64;
+import org.jruby.ext.openssl.impl.utils.Base64Codec;
 
-/**
+/** c: BIO_f_base64
+ *
+ * Encodes what is written to it in lines of 64 chars, and decodes
+ * what is read through it.
  *
  * @author <a href="mailto:ola.bini@gmail.com">Ola Bini</a>
  */
 public class Base64BIOFilter extends BIOFilter {
-    private OutputStream nextOutput;
-    private InputStream nextInput;
+    private static final int LINE_LENGTH = 64;
+    private static final int BUFFER = 4096;
+
+    private final Base64Codec.Encoder encoder = new Base64Codec.Encoder(LINE_LENGTH, Base64Codec.NEWLINE);
+    private final Base64Codec.Decoder decoder = new Base64Codec.Decoder();
+    private byte[] encoded;
+    private byte[] raw;
+    private byte[] decoded;
+    private int decodedStart;
+    private int decodedEnd;
+    private boolean eof;
 
     @Override
     public int write(byte[] out, int offset, int len) throws IOException {
-        this.nextOutput.write(out, offset, len);
-        return len;
-    }
-
-    private static void printBytes(byte[] bs, int offset, int len) {
-        System.err.print("[");
-        String sep = "";
-        for(int i=offset, end=offset+len;i<end;i++) {
-            System.err.print(sep);
-            System.err.print(((int)bs[i]) & 0xFF);
-            sep = ", ";
+        byte[] encoded = encoded();
+        int left = len;
+        while(left > 0) {
+            int n = Math.min(left, BUFFER);
+            int m = encoder.update(out, offset, n, encoded, 0);
+            if(m > 0) {
+                this.nextBio.write(encoded, 0, m);
+            }
+            offset += n;
+            left -= n;
         }
-        System.err.print("]");
+        return len;
     }
 
     @Override
     public int read(byte[] into, int offset, int len) throws IOException {
-        int read = this.nextInput.read(into, offset, len);
-        if(read == -1) {
-            return 0;
+        if(decoded == null) {
+            raw = new byte[BUFFER];
+            decoded = new byte[BUFFER];
+        }
+        while(decodedStart == decodedEnd) {
+            if(eof) {
+                return 0;
+            }
+            int n = this.nextBio.read(raw, 0, raw.length);
+            if(n <= 0) {
+                eof = true;
+                decoder.doFinal();
+                return 0;
+            }
+            decodedStart = 0;
+            decodedEnd = decoder.update(raw, 0, n, decoded, 0);
         }
-        return read;
+        int n = Math.min(len, decodedEnd - decodedStart);
+        System.arraycopy(decoded, decodedStart, into, offset, n);
+        decodedStart += n;
+        return n;
     }
 
+    /** c: BIO_flush
+     *
+     * Ends the encoding: the last group is written out with padding.
+     */
     @Override
     public void flush() throws IOException {
-        this.nextOutput.flush();
+        byte[] encoded = encoded();
+        int m = encoder.doFinal(encoded, 0);
+        if(m > 0) {
+            this.nextBio.write(encoded, 0, m);
+        }
+        this.nextBio.flush();
     }
 
-    public BIO push(BIO bio) {
-        BIO ret = super.push(bio);
-        this.nextOutput = new Base64.OutputStream(BIO.asOutputStream(this.nextBio));
-        this.nextInput = new Base64.InputStream(BIO.asInputStream(this.nextBio));
-        return ret;
+    private byte[] encoded() {
+        if(encoded == null) {
+            // 4/3 of BUFFER plus the line ends fits, as does a final group
+            encoded = new byte[Math.max(2 * BUFFER, encoder.maxFinal())];
+        }
+        return encoded;
     }
 
     public int getType() {
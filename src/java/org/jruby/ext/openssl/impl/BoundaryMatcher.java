@@ -0,0 +1,92 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Copyright (C) 2009 The JRuby Community <www.jruby.org>
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.impl;
+
+/**
+ * Finds a multipart boundary with Boyer-Moore-Horspool, so a body is
+ * scanned in bulk instead of being compared line by line. The pattern
+ * is the "--" and the boundary that start every delimiter line.
+ */
+public class BoundaryMatcher {
+    private final byte[] pattern;
+    private final int[] shift = new int[256];
+
+    public BoundaryMatcher(byte[] boundary) {
+        pattern = new byte[boundary.length + 2];
+        pattern[0] = '-';
+        pattern[1] = '-';
+        System.arraycopy(boundary, 0, pattern, 2, boundary.length);
+
+        int last = pattern.length - 1;
+        for(int i = 0; i < 256; i++) {
+            shift[i] = pattern.length;
+        }
+        for(int i = 0; i < last; i++) {
+            shift[pattern[i] & 0xFF] = last - i;
+        }
+    }
+
+    public int length() {
+        return pattern.length;
+    }
+
+    /**
+     * The index of the first occurrence in buf between from and to,
+     * or -1.
+     */
+    public int indexIn(byte[] buf, int from, int to) {
+        int last = pattern.length - 1;
+        int i = from;
+        while(i + last < to) {
+            int j = last;
+            while(buf[i + j] == pattern[j]) {
+                if(j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += shift[buf[i + last] & 0xFF];
+        }
+        return -1;
+    }
+
+    /**
+     * The index of the first delimiter line in buf between from and
+     * to, that is an occurrence at the start of a line, or -1.
+     */
+    public int lineIn(byte[] buf, int from, int to) {
+        int i = from;
+        while((i = indexIn(buf, i, to)) != -1) {
+            if(i == 0 || buf[i - 1] == '\n') {
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+}// BoundaryMatcher
@@ -28,22 +28,38 @@
 package org.jruby.ext.openssl.impl;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
 
 /**
+ * Encrypts what is written through it and decrypts what is read
+ * through it. Works in CHUNK sized pieces, a multiple of every block
+ * size, with output buffers that are allocated once and reused.
  *
  * @author <a href="mailto:ola.bini@gmail.com">Ola Bini</a>
  */
 public class CipherBIOFilter extends BIOFilter {
+    private static final int CHUNK = 8192;
+
     private Cipher cipher;
 
-    private byte[] bufRead = new byte[4096];
+    // ciphered bytes not yet handed to read
+    private byte[] bufRead;
     private int fillLen = 0;
     private int fillOffset = 0;
 
-    private byte[] tmpBuf = new byte[1024];
+    // input from next, for read
+    private byte[] tmpBuf;
+
+    // staging for reads into direct buffers
+    private byte[] bufDirect;
+
+    // output for next, for write and flush
+    private byte[] bufWrite;
+    private ByteBuffer bufWriteView;
 
     private boolean finalized = false;
 
@@ -51,17 +67,36 @@ public class CipherBIOFilter extends BIOFilter {
         this.cipher = cipher;
     }
 
+    /**
+     * Returns buf if it can hold size bytes, else a new buffer that can.
+     */
+    private static byte[] ensure(byte[] buf, int size) {
+        if(buf == null || buf.length < size) {
+            return new byte[Math.max(size, CHUNK + 64)];
+        }
+        return buf;
+    }
+
+    private void ensureWrite(int size) {
+        if(bufWrite == null || bufWrite.length < size) {
+            bufWrite = ensure(bufWrite, size);
+            bufWriteView = ByteBuffer.wrap(bufWrite);
+        }
+    }
+
     public void flush() throws IOException {
         try {
-            byte[] result = cipher.doFinal();
-            if(result == null) {
-                return;
+            ensureWrite(cipher.getOutputSize(0));
+            int outputted = cipher.doFinal(bufWrite, 0);
+            if(outputted > 0) {
+                next().write(bufWrite, 0, outputted);
             }
-            next().write(result, 0, result.length);
         } catch(IllegalBlockSizeException e) {
             throw new PKCS7Exception(-1, -1, e.toString());
         } catch(BadPaddingException e) {
             throw new PKCS7Exception(-1, -1, e.toString());
+        } catch(ShortBufferException e) {
+            throw new PKCS7Exception(-1, -1, e.toString());
         }
     }
 
@@ -73,82 +108,123 @@ public class CipherBIOFilter extends BIOFilter {
                 System.arraycopy(bufRead, fillOffset, into, offset, read);
                 fillOffset += read;
                 fillLen -= read;
-                if(fillLen == 0) {
-                    fillOffset = 0;
-                }
                 if(read == len) {
                     return read;
                 }
             }
-            
+
             int req = len - read;
             int off = offset + read;
-            
-            if(finalized) {
-                return 0;
+
+            if(tmpBuf == null) {
+                tmpBuf = new byte[CHUNK];
             }
 
-            while(req > 0) {
-                int readFromNext = next().read(tmpBuf, 0, 1024);
-                if(readFromNext > 0) {
-                    int required = cipher.getOutputSize(readFromNext);
-                    if(required > (bufRead.length - (fillOffset + fillLen))) {
-                        byte[] newBuf = new byte[required + fillOffset + fillLen];
-                        System.arraycopy(bufRead, fillOffset, newBuf, 0, fillLen);
-                        fillOffset = 0;
-                        bufRead = newBuf;
-                    }
-                    int outputted = cipher.update(tmpBuf, 0, readFromNext, bufRead, fillOffset + fillLen);
-                    fillLen += outputted;
-
-                    read = Math.min(fillLen, req);
-                    System.arraycopy(bufRead, fillOffset, into, off, read);
-                    fillOffset += read;
-                    fillLen -= read;
-                    if(fillLen == 0) {
-                        fillOffset = 0;
+            // bufRead is empty from here on, so it is filled from the start
+            while(req > 0 && !finalized) {
+                int readFromNext = next().read(tmpBuf, 0, CHUNK);
+                int required = cipher.getOutputSize(readFromNext > 0 ? readFromNext : 0);
+                int outputted;
+                if(required <= req) {
+                    // enough room, so straight into the caller's array
+                    if(readFromNext > 0) {
+                        outputted = cipher.update(tmpBuf, 0, readFromNext, into, off);
+                    } else {
+                        outputted = cipher.doFinal(into, off);
+                        finalized = true;
                     }
+                    req -= outputted;
+                    off += outputted;
+                    continue;
+                }
 
-                    req -= read;
-                    off += read;
+                bufRead = ensure(bufRead, required);
+                if(readFromNext > 0) {
+                    outputted = cipher.update(tmpBuf, 0, readFromNext, bufRead, 0);
                 } else {
-                    int required = cipher.getOutputSize(0);
-                    if(required > (bufRead.length - (fillOffset + fillLen))) {
-                        byte[] newBuf = new byte[required + fillOffset + fillLen];
-                        System.arraycopy(bufRead, fillOffset, newBuf, 0, fillLen);
-                        fillOffset = 0;
-                        bufRead = newBuf;
-                    }
-                    int outputted = cipher.doFinal(bufRead, fillOffset + fillLen);
+                    outputted = cipher.doFinal(bufRead, 0);
                     finalized = true;
-                    fillLen += outputted;
-
-                    read = Math.min(fillLen, req);
-                    System.arraycopy(bufRead, fillOffset, into, off, read);
-                    fillOffset += read;
-                    fillLen -= read;
-                    if(fillLen == 0) {
-                        fillOffset = 0;
-                    }
-
-                    req -= read;
-                    return len-req;
                 }
+                int n = Math.min(outputted, req);
+                System.arraycopy(bufRead, 0, into, off, n);
+                fillOffset = n;
+                fillLen = outputted - n;
+                req -= n;
+                off += n;
             }
 
-            return len;
+            return len - req;
         } catch(Exception e) {
             throw new IllegalArgumentException(e);
         }
     }
 
+    /**
+     * Reads into dst from its position, which can be a direct buffer.
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        int read;
+        if(dst.hasArray()) {
+            read = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            dst.position(dst.position() + read);
+            return read;
+        }
+        if(bufDirect == null) {
+            bufDirect = new byte[CHUNK];
+        }
+        int total = 0;
+        while(dst.hasRemaining() && (read = read(bufDirect, 0, Math.min(CHUNK, dst.remaining()))) > 0) {
+            dst.put(bufDirect, 0, read);
+            total += read;
+        }
+        return total;
+    }
+
     public int write(byte[] out, int offset, int len) throws IOException {
-        byte[] result = cipher.update(out, offset, len);
-        if(result == null) {
+        try {
+            int end = offset + len;
+            while(offset < end) {
+                int n = Math.min(CHUNK, end - offset);
+                ensureWrite(cipher.getOutputSize(n));
+                int outputted = cipher.update(out, offset, n, bufWrite, 0);
+                if(outputted > 0) {
+                    next().write(bufWrite, 0, outputted);
+                }
+                offset += n;
+            }
+            return len;
+        } catch(ShortBufferException e) {
+            throw new PKCS7Exception(-1, -1, e.toString());
+        }
+    }
+
+    /**
+     * Writes what is left of src, which can be a direct buffer.
+     */
+    public int write(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        if(src.hasArray()) {
+            write(src.array(), src.arrayOffset() + src.position(), len);
+            src.position(src.limit());
+            return len;
+        }
+        try {
+            int limit = src.limit();
+            while(src.position() < limit) {
+                int n = Math.min(CHUNK, limit - src.position());
+                ensureWrite(cipher.getOutputSize(n));
+                src.limit(src.position() + n);
+                bufWriteView.clear();
+                int outputted = cipher.update(src, bufWriteView);
+                src.limit(limit);
+                if(outputted > 0) {
+                    next().write(bufWrite, 0, outputted);
+                }
+            }
             return len;
+        } catch(ShortBufferException e) {
+            throw new PKCS7Exception(-1, -1, e.toString());
         }
-        next().write(result, 0, result.length);
-        return len;
     }
 
     public int getType() {
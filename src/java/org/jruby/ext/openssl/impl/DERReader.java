@@ -0,0 +1,345 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Copyright (C) 2009 The JRuby Community <www.jruby.org>
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.TimeZone;
+
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.DERObject;
+
+/**
+ * Walks DER encoded elements in place in a byte array, without building
+ * an object tree: next() steps over one element and remembers where its
+ * header and contents are, contents() walks inside a constructed one.
+ * Only definite lengths are supported, which is all DER allows.
+ */
+public class DERReader {
+    public static final int INTEGER = 0x02;
+    public static final int OCTET_STRING = 0x04;
+    public static final int OBJECT_IDENTIFIER = 0x06;
+    public static final int BOOLEAN = 0x01;
+    public static final int UTC_TIME = 0x17;
+    public static final int GENERALIZED_TIME = 0x18;
+    public static final int SEQUENCE = 0x30;
+    public static final int SET = 0x31;
+
+    private final byte[] data;
+    private final int end;
+    private int pos;
+
+    private int tag = -1;
+    private int start;
+    private int contentStart;
+    private int contentLength;
+
+    public DERReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    public DERReader(byte[] data, int offset, int length) {
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    public boolean hasNext() {
+        return pos < end;
+    }
+
+    /**
+     * The tag of the element next() would step over, or -1 at the end.
+     */
+    public int peekTag() {
+        return pos < end ? data[pos] & 0xff : -1;
+    }
+
+    /**
+     * Steps over the next element and returns its tag.
+     */
+    public int next() throws IOException {
+        if(pos >= end) {
+            throw new IOException("unexpected end of DER data");
+        }
+        start = pos;
+        tag = data[pos++] & 0xff;
+        if((tag & 0x1f) == 0x1f) {
+            throw new IOException("high tag numbers are not supported");
+        }
+        if(pos >= end) {
+            throw new IOException("unexpected end of DER data");
+        }
+        int length = data[pos++] & 0xff;
+        if(length > 0x7f) {
+            int count = length & 0x7f;
+            if(count == 0) {
+                throw new IOException("indefinite length encoding is not DER");
+            }
+            if(count > 4 || pos + count > end) {
+                throw new IOException("invalid DER length");
+            }
+            length = 0;
+            for(int i = 0; i < count; i++) {
+                length = (length << 8) | (data[pos++] & 0xff);
+            }
+            if(length < 0) {
+                throw new IOException("invalid DER length");
+            }
+        }
+        if(length > end - pos) {
+            throw new IOException("DER element runs past the end of data");
+        }
+        contentStart = pos;
+        contentLength = length;
+        pos += length;
+        return tag;
+    }
+
+    /**
+     * Total size, header included, of the element starting at offset, or
+     * -1 if fewer than the available bytes don't hold its whole header
+     * yet. For framing elements as they arrive from a stream.
+     */
+    public static int elementLength(byte[] data, int offset, int available) throws IOException {
+        int end = offset + available;
+        int pos = offset;
+        if(pos >= end) {
+            return -1;
+        }
+        if((data[pos++] & 0x1f) == 0x1f) {
+            do {
+                if(pos >= end) {
+                    return -1;
+                }
+            } while((data[pos++] & 0x80) != 0);
+        }
+        if(pos >= end) {
+            return -1;
+        }
+        int length = data[pos++] & 0xff;
+        if(length > 0x7f) {
+            int count = length & 0x7f;
+            if(count == 0) {
+                throw new IOException("indefinite length encoding is not DER");
+            }
+            if(count > 4) {
+                throw new IOException("invalid DER length");
+            }
+            if(pos + count > end) {
+                return -1;
+            }
+            length = 0;
+            for(int i = 0; i < count; i++) {
+                length = (length << 8) | (data[pos++] & 0xff);
+            }
+            if(length < 0 || length > Integer.MAX_VALUE - (pos - offset)) {
+                throw new IOException("invalid DER length");
+            }
+        }
+        return pos - offset + length;
+    }
+
+    /**
+     * Steps over the next element, failing unless it has the given tag.
+     */
+    public void next(int expected) throws IOException {
+        if(next() != expected) {
+            throw new IOException("expected DER tag 0x" + Integer.toHexString(expected) + " but found 0x" + Integer.toHexString(tag));
+        }
+    }
+
+    public int tag() {
+        return tag;
+    }
+
+    public int start() {
+        return start;
+    }
+
+    public int length() {
+        return contentStart + contentLength - start;
+    }
+
+    public int contentStart() {
+        return contentStart;
+    }
+
+    public int contentLength() {
+        return contentLength;
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    /**
+     * A reader over the contents of the element last stepped over.
+     */
+    public DERReader contents() {
+        return new DERReader(data, contentStart, contentLength);
+    }
+
+    /**
+     * A copy of the whole encoding (header included) of the element last
+     * stepped over.
+     */
+    public byte[] encoded() {
+        byte[] copy = new byte[length()];
+        System.arraycopy(data, start, copy, 0, copy.length);
+        return copy;
+    }
+
+    public byte[] contentBytes() {
+        byte[] copy = new byte[contentLength];
+        System.arraycopy(data, contentStart, copy, 0, contentLength);
+        return copy;
+    }
+
+    /**
+     * Parses the element last stepped over into a Bouncy Castle object.
+     */
+    public DERObject toDERObject() throws IOException {
+        return new ASN1InputStream(new ByteArrayInputStream(data, start, length())).readObject();
+    }
+
+    public BigInteger integerValue() {
+        return new BigInteger(contentBytes());
+    }
+
+    /**
+     * The UTCTime or GeneralizedTime last stepped over, as milliseconds
+     * since the epoch.
+     */
+    public long timeValue() throws IOException {
+        if(tag != UTC_TIME && tag != GENERALIZED_TIME) {
+            throw new IOException("expected a time but found DER tag 0x" + Integer.toHexString(tag));
+        }
+        return parseTime(data, contentStart, contentLength, tag == UTC_TIME);
+    }
+
+    /**
+     * Parses the contents of a UTCTime (YYMMDDhhmm[ss], years 1950 to
+     * 2049) or GeneralizedTime (YYYYMMDDhh[mm[ss[.fff]]]), followed by Z,
+     * an offset or, for local time, nothing. Unlike SimpleDateFormat this
+     * keeps no state, so it is safe to call from any thread.
+     */
+    public static long parseTime(byte[] data, int offset, int length, boolean utc) throws IOException {
+        int end = offset + length;
+        int p = offset;
+        int year;
+        if(utc) {
+            year = digits(data, p, end, 2);
+            year += year < 50 ? 2000 : 1900;
+            p += 2;
+        } else {
+            year = digits(data, p, end, 4);
+            p += 4;
+        }
+        int month = digits(data, p, end, 2);
+        int day = digits(data, p + 2, end, 2);
+        int hour = digits(data, p + 4, end, 2);
+        p += 6;
+        int minute = 0, second = 0, millis = 0;
+        if(isDigit(data, p, end)) {
+            minute = digits(data, p, end, 2);
+            p += 2;
+            if(isDigit(data, p, end)) {
+                second = digits(data, p, end, 2);
+                p += 2;
+                if(p < end && (data[p] == '.' || data[p] == ',')) {
+                    p++;
+                    int scale = 100;
+                    while(isDigit(data, p, end)) {
+                        millis += (data[p++] - '0') * scale;
+                        scale /= 10;
+                    }
+                }
+            }
+        }
+        if(month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60) {
+            throw new IOException("invalid time " + new String(data, offset, length, "ISO-8859-1"));
+        }
+
+        long time = ((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute) * 60000L + second * 1000L + millis;
+        if(p == end) {
+            return time - TimeZone.getDefault().getOffset(time);
+        } else if(data[p] == 'Z' && p + 1 == end) {
+            return time;
+        } else if((data[p] == '+' || data[p] == '-') && (p + 3 == end || p + 5 == end)) {
+            int zone = digits(data, p + 1, end, 2) * 60;
+            if(p + 5 == end) {
+                zone += digits(data, p + 3, end, 2);
+            }
+            return data[p] == '+' ? time - zone * 60000L : time + zone * 60000L;
+        }
+        throw new IOException("invalid time " + new String(data, offset, length, "ISO-8859-1"));
+    }
+
+    private static boolean isDigit(byte[] data, int p, int end) {
+        return p < end && data[p] >= '0' && data[p] <= '9';
+    }
+
+    private static int digits(byte[] data, int p, int end, int count) throws IOException {
+        int value = 0;
+        for(int i = 0; i < count; i++) {
+            if(!isDigit(data, p + i, end)) {
+                throw new IOException("invalid time");
+            }
+            value = value * 10 + (data[p + i] - '0');
+        }
+        return value;
+    }
+
+    // days since 1970-01-01 for a proleptic Gregorian date
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yoe = y - era * 400;
+        long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * Whether the contents of the element last stepped over are exactly
+     * the given bytes, e.g. BigInteger.toByteArray() for an INTEGER.
+     */
+    public boolean contentEquals(byte[] bytes) {
+        if(bytes.length != contentLength) {
+            return false;
+        }
+        for(int i = 0; i < contentLength; i++) {
+            if(data[contentStart + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}// DERReader
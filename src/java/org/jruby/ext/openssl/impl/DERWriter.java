@@ -0,0 +1,213 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Copyright (C) 2009 The JRuby Community <www.jruby.org>
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.impl;
+
+import java.math.BigInteger;
+
+/**
+ * Appends DER encodings to a growable byte buffer. Callers work out
+ * content lengths first and write headers with writeHeader, so nothing
+ * is ever encoded twice or shifted around afterwards.
+ */
+public class DERWriter {
+    private byte[] buf;
+    private int size;
+
+    public DERWriter() {
+        this(256);
+    }
+
+    public DERWriter(int capacity) {
+        buf = new byte[Math.max(capacity, 16)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The backing buffer; only the first size() bytes are written.
+     */
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public byte[] toByteArray() {
+        byte[] copy = new byte[size];
+        System.arraycopy(buf, 0, copy, 0, size);
+        return copy;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    private void ensure(int extra) {
+        if(size + extra > buf.length) {
+            byte[] bigger = new byte[Math.max(buf.length * 2, size + extra)];
+            System.arraycopy(buf, 0, bigger, 0, size);
+            buf = bigger;
+        }
+    }
+
+    public void write(int b) {
+        ensure(1);
+        buf[size++] = (byte)b;
+    }
+
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    public void write(byte[] bytes, int offset, int length) {
+        ensure(length);
+        System.arraycopy(bytes, offset, buf, size, length);
+        size += length;
+    }
+
+    /**
+     * Bytes taken by a tag and length header for contents of the given
+     * length.
+     */
+    public static int headerLength(int length) {
+        if(length < 0x80) {
+            return 2;
+        }
+        return 2 + lengthBytes(length);
+    }
+
+    private static int lengthBytes(int length) {
+        int count = 1;
+        while((length >>>= 8) != 0) {
+            count++;
+        }
+        return count;
+    }
+
+    public void writeHeader(int tag, int length) {
+        ensure(6);
+        buf[size++] = (byte)tag;
+        if(length < 0x80) {
+            buf[size++] = (byte)length;
+            return;
+        }
+        int count = lengthBytes(length);
+        buf[size++] = (byte)(0x80 | count);
+        for(int shift = (count - 1) * 8; shift >= 0; shift -= 8) {
+            buf[size++] = (byte)(length >>> shift);
+        }
+    }
+
+    /**
+     * Bytes taken by an INTEGER holding the given two's complement
+     * contents (as from BigInteger.toByteArray()).
+     */
+    public static int integerLength(byte[] contents) {
+        return headerLength(contents.length) + contents.length;
+    }
+
+    public void writeInteger(byte[] contents) {
+        writeHeader(DERReader.INTEGER, contents.length);
+        write(contents);
+    }
+
+    public void writeInteger(BigInteger value) {
+        writeInteger(value.toByteArray());
+    }
+
+    /**
+     * Bytes taken by the X.509 Time (RFC 5280 4.1.2.5) for the given
+     * instant: a UTCTime for years 1950 to 2049, a GeneralizedTime
+     * otherwise. Seconds precision.
+     */
+    public static int timeLength(long millis) {
+        int year = civil(epochDays(millis))[0];
+        return (year >= 1950 && year < 2050) ? 15 : 17;
+    }
+
+    public void writeTime(long millis) {
+        int year = civil(epochDays(millis))[0];
+        boolean utc = year >= 1950 && year < 2050;
+        writeHeader(utc ? DERReader.UTC_TIME : DERReader.GENERALIZED_TIME, utc ? 13 : 15);
+        writeTimeDigits(millis, utc);
+    }
+
+    /**
+     * Writes a UTCTime whatever the year, with just its last two digits,
+     * the way Bouncy Castle's DERUTCTime(Date) does.
+     */
+    public void writeUTCTime(long millis) {
+        writeHeader(DERReader.UTC_TIME, 13);
+        writeTimeDigits(millis, true);
+    }
+
+    private void writeTimeDigits(long millis, boolean twoDigitYear) {
+        long days = epochDays(millis);
+        int[] date = civil(days);
+        long secs = (millis - days * 86400000L) / 1000;
+        if(twoDigitYear) {
+            writeDigits(Math.abs(date[0]) % 100, 2);
+        } else {
+            writeDigits(date[0], 4);
+        }
+        writeDigits(date[1], 2);
+        writeDigits(date[2], 2);
+        writeDigits((int)(secs / 3600), 2);
+        writeDigits((int)(secs / 60 % 60), 2);
+        writeDigits((int)(secs % 60), 2);
+        write('Z');
+    }
+
+    private void writeDigits(int value, int count) {
+        ensure(count);
+        for(int i = count - 1; i >= 0; i--) {
+            buf[size + i] = (byte)('0' + value % 10);
+            value /= 10;
+        }
+        size += count;
+    }
+
+    private static long epochDays(long millis) {
+        long days = millis / 86400000L;
+        return (millis % 86400000L < 0) ? days - 1 : days;
+    }
+
+    // proleptic Gregorian year, month, day for days since 1970-01-01
+    private static int[] civil(long epochDays) {
+        long z = epochDays + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int)(doy - (153 * mp + 2) / 5 + 1);
+        int month = (int)(mp < 10 ? mp + 3 : mp - 9);
+        int year = (int)(yoe + era * 400 + (month <= 2 ? 1 : 0));
+        return new int[] { year, month, day };
+    }
+}// DERWriter
@@ -92,13 +92,20 @@ public class EVP {
     }
 
     public static int type(MessageDigest digest) {
+        return nid(digest);
+    }
+
+    /**
+     * The NID of digest, or null when it has none.
+     */
+    static Integer nid(MessageDigest digest) {
         String name = digest.getAlgorithm();
         DERObjectIdentifier obj = ASN1Registry.sym2oid(name);
         if(obj == null) {
             name = name.toLowerCase().replace("sha-", "sha");
             obj = ASN1Registry.sym2oid(name);
         }
-        return ASN1Registry.obj2nid(obj);
+        return obj == null ? null : ASN1Registry.obj2nid(obj);
     }
 
     public static String signatureAlgorithm(MessageDigest digest, Key key) {
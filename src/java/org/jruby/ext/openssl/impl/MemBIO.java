@@ -28,70 +28,145 @@
 package org.jruby.ext.openssl.impl;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
 
-/**
+/** c: BIO_s_mem
+ *
+ * Keeps what is written as a list of segments. Segments that have
+ * been read are let go, so a MemBIO that is written and read in turn
+ * does not grow. A MemBIO from BIO.memBuf reads the caller's bytes in
+ * place, can not be written to, and rewinds on reset.
  *
  * @author <a href="mailto:ola.bini@gmail.com">Ola Bini</a>
  */
 public class MemBIO extends BIO {
-    private byte[] buffer = new byte[1024];
-    private int wpointer = 0;
-    private int rpointer = 0;
-    private int slen = 0;
-    
-    private void realloc() {
-        byte[] newBuffer = new byte[buffer.length*2];
-        System.arraycopy(buffer, 0, newBuffer, 0, wpointer);
-        buffer = newBuffer;
+    // the least a segment for written data is allocated with
+    private static final int SEGMENT = 8192;
+
+    private static final class Segment {
+        final byte[] bytes;
+        final int begin;
+        int start;
+        int end;
+
+        Segment(byte[] bytes, int start, int end) {
+            this.bytes = bytes;
+            this.begin = start;
+            this.start = start;
+            this.end = end;
+        }
     }
 
-    @Override
-    public int gets(byte[] in, int len) throws IOException {
-        if(rpointer == slen) {
-            return 0;
-        }
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private final boolean readOnly;
+    private int length;
 
-        int i=0;
-        for(;i<len && rpointer<slen; i++, rpointer++) {
-            in[i] = buffer[rpointer];
+    public MemBIO() {
+        this.readOnly = false;
+    }
 
-            if(in[i] == '\n') {
-                i++; rpointer++;
-                break;
+    /** c: BIO_new_mem_buf
+     *
+     * The bytes are not copied, and must not change while this is in use.
+     */
+    MemBIO(byte[] bytes, int offset, int len) {
+        this.readOnly = true;
+        this.segments.add(new Segment(bytes, offset, offset + len));
+        this.length = len;
+    }
+
+    /**
+     * The first segment with unread bytes, or null. Read segments in
+     * front of it are dropped, and the last one is emptied for reuse.
+     */
+    private Segment head() {
+        while(!segments.isEmpty()) {
+            Segment s = segments.getFirst();
+            if(s.start < s.end) {
+                return s;
             }
+            if(readOnly) {
+                return null;
+            }
+            if(segments.size() == 1) {
+                s.start = s.end = 0;
+                return null;
+            }
+            segments.removeFirst();
         }
+        return null;
+    }
 
+    @Override
+    public int gets(byte[] in, int len) throws IOException {
+        int i = 0;
+        Segment s;
+        while(i < len && (s = head()) != null) {
+            byte[] bytes = s.bytes;
+            int p = s.start;
+            int e = Math.min(s.end, p + len - i);
+            boolean eol = false;
+            while(p < e) {
+                byte c = bytes[p++];
+                in[i++] = c;
+                if(c == '\n') {
+                    eol = true;
+                    break;
+                }
+            }
+            s.start = p;
+            if(eol) {
+                break;
+            }
+        }
+        length -= i;
         return i;
     }
 
     @Override
     public int read(byte[] in, int index, int len) throws IOException {
-        if(rpointer == slen) {
-            return 0;
+        int read = 0;
+        Segment s;
+        while(read < len && (s = head()) != null) {
+            int n = Math.min(len - read, s.end - s.start);
+            System.arraycopy(s.bytes, s.start, in, index + read, n);
+            s.start += n;
+            read += n;
         }
-        int toRead = Math.min(len, slen-rpointer);
-        System.arraycopy(buffer, rpointer, in, index, toRead);
-        rpointer+=toRead;
-        return toRead;
+        length -= read;
+        return read;
     }
 
     @Override
     public int write(byte[] out, int offset, int len) throws IOException {
-        while(wpointer + len > buffer.length) {
-            realloc();
+        if(readOnly) {
+            throw new IOException("write to read only memory BIO");
+        }
+        length += len;
+        int left = len;
+        if(!segments.isEmpty()) {
+            Segment tail = segments.getLast();
+            int n = Math.min(left, tail.bytes.length - tail.end);
+            System.arraycopy(out, offset, tail.bytes, tail.end, n);
+            tail.end += n;
+            offset += n;
+            left -= n;
+        }
+        if(left > 0) {
+            Segment s = new Segment(new byte[Math.max(left, SEGMENT)], 0, left);
+            System.arraycopy(out, offset, s.bytes, 0, left);
+            segments.add(s);
         }
-
-        System.arraycopy(out, offset, buffer, wpointer, len);
-        wpointer += len;
-        slen += len;
-
         return len;
     }
 
     @Override
     public String toString() {
         try {
-            return "<MemBIO w:" + wpointer + " r:" + rpointer + " buf:\"" + new String(buffer,rpointer,slen-rpointer) + "\" next=" + next() + ">";
+            ByteBuffer mem = getMemBuffer();
+            return "<MemBIO len:" + length + " buf:\"" + new String(mem.array(), mem.arrayOffset() + mem.position(), mem.remaining(), "ISO8859-1") + "\" next=" + next() + ">";
         } catch(Exception e) {}
 
         return null;
@@ -105,13 +180,74 @@ public class MemBIO extends BIO {
         return TYPE_MEM;
     }
 
+    /** c: BIO_pending
+     *
+     */
+    public int pending() {
+        return length;
+    }
+
+    /** c: BIO_get_mem_ptr
+     *
+     * The unread bytes, without copying them unless they span more than
+     * one segment; then they are joined into one segment first.
+     */
+    public ByteBuffer getMemBuffer() {
+        Segment s = head();
+        if(s == null) {
+            return ByteBuffer.wrap(new byte[0]);
+        }
+        if(s.end - s.start < length) {
+            byte[] joined = new byte[length];
+            int at = 0;
+            for(Iterator<Segment> iter = segments.iterator(); iter.hasNext();) {
+                Segment seg = iter.next();
+                System.arraycopy(seg.bytes, seg.start, joined, at, seg.end - seg.start);
+                at += seg.end - seg.start;
+            }
+            segments.clear();
+            s = new Segment(joined, 0, length);
+            segments.add(s);
+        }
+        return ByteBuffer.wrap(s.bytes, s.start, s.end - s.start);
+    }
+
+    /**
+     * The unread bytes of any BIO. A MemBIO hands out its own buffer,
+     * any other BIO is first read to its end into a new MemBIO.
+     */
+    public static ByteBuffer unread(BIO bio) throws IOException {
+        if(bio instanceof MemBIO) {
+            return ((MemBIO)bio).getMemBuffer();
+        }
+        MemBIO mem = new MemBIO();
+        byte[] chunk = new byte[8192];
+        int read;
+        while((read = bio.read(chunk, 0, chunk.length)) > 0) {
+            mem.write(chunk, 0, read);
+        }
+        return mem.getMemBuffer();
+    }
+
     public byte[] getMemCopy() {
-        byte[] nbuf = new byte[slen];
-        System.arraycopy(buffer, 0, nbuf, 0, slen);
+        ByteBuffer mem = getMemBuffer();
+        byte[] nbuf = new byte[mem.remaining()];
+        mem.get(nbuf);
         return nbuf;
     }
 
+    /** c: BIO_reset
+     *
+     * Rewinds a MemBIO from BIO.memBuf, empties any other.
+     */
     public void reset() {
-        this.rpointer = 0;
+        if(readOnly) {
+            Segment s = segments.getFirst();
+            s.start = s.begin;
+            length = s.end - s.begin;
+        } else {
+            segments.clear();
+            length = 0;
+        }
     }
 }// MemBIO
@@ -29,22 +29,57 @@ package org.jruby.ext.openssl.impl;
 
 import java.io.IOException;
 import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
+ * Digests what passes through it. Can carry several digests, all
+ * updated from the same buffer in one pass, so a PKCS7 with signers
+ * using different algorithms needs only one filter in its chain.
  *
  * @author <a href="mailto:ola.bini@gmail.com">Ola Bini</a>
  */
 public class MessageDigestBIOFilter extends BIOFilter {
-    private MessageDigest md;
+    private MessageDigest[] mds;
+    private Map<Integer, MessageDigest> byNid = new HashMap<Integer, MessageDigest>();
 
     public MessageDigestBIOFilter(MessageDigest md) {
-        this.md = md;
+        this.mds = new MessageDigest[] {md};
+        Integer nid = EVP.nid(md);
+        if(nid != null) {
+            this.byNid.put(nid, md);
+        }
+    }
+
+    /**
+     * Adds md to the digests updated by this filter. A digest of
+     * the same type already here sees the same bytes, so the
+     * second one is not added.
+     */
+    public void add(MessageDigest md) {
+        Integer nid = EVP.nid(md);
+        if(nid != null && byNid.containsKey(nid)) {
+            return;
+        }
+        MessageDigest[] grown = new MessageDigest[mds.length + 1];
+        System.arraycopy(mds, 0, grown, 0, mds.length);
+        grown[mds.length] = md;
+        mds = grown;
+        if(nid != null) {
+            byNid.put(nid, md);
+        }
+    }
+
+    private void update(byte[] data, int offset, int len) {
+        for(int i = 0; i < mds.length; i++) {
+            mds[i].update(data, offset, len);
+        }
     }
 
     public int gets(byte[] in, int len) throws IOException {
         int read = next().gets(in, len);
         if(read > 0) {
-            md.update(in, 0, read);
+            update(in, 0, read);
         }
         return read;
     }
@@ -52,14 +87,14 @@ public class MessageDigestBIOFilter extends BIOFilter {
     public int read(byte[] into, int offset, int len) throws IOException {
         int read = next().read(into, offset, len);
         if(read > 0) {
-            md.update(into, offset, read);
+            update(into, offset, read);
         }
         return read;
     }
 
     public int write(byte[] out, int offset, int len) throws IOException {
         int written = next().write(out, offset, len);
-        md.update(out, offset, written);
+        update(out, offset, written);
         return written;
     }
 
@@ -71,6 +106,13 @@ public class MessageDigestBIOFilter extends BIOFilter {
      *
      */
     public MessageDigest getMessageDigest() {
-        return md;
+        return mds[0];
+    }
+
+    /**
+     * The digest of type nid in this filter, or null.
+     */
+    public MessageDigest getMessageDigest(int nid) {
+        return byNid.get(nid);
     }
 }// MessageDigestBIOFilter
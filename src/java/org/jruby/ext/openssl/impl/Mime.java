@@ -110,7 +110,6 @@ public interface Mime {
             }
 
             public List<MimeHeader> parseHeaders(BIO bio) throws IOException {
-                mimeDebug("\n!!!!!!!!!!!!!!!!!\n" + bio + "\n^^^^^^^^^^^^^^^^^^^^^^^^\n"); 
                 int state = 0;
                 byte[] linebuf = new byte[MAX_SMLEN];
                 int len = 0;
@@ -0,0 +1,116 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Copyright (C) 2009 The JRuby Community <www.jruby.org>
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.impl;
+
+import java.io.IOException;
+
+/**
+ * One part of a multipart body, read in place from the buffer holding
+ * the body. Its lines come out the way multi_split writes them: with
+ * trailing CR and LF stripped, joined by CRLF, and without the line
+ * break before the next delimiter. Nothing is copied until the part
+ * is read.
+ */
+public class MimePartBIO extends BIO {
+    private final byte[] buf;
+    private final int end;
+    private int pos;
+
+    // end of the current line without its CR and LF, -1 when unscanned
+    private int lineEnd = -1;
+    private int nextLine;
+    // how much of NEWLINE is left to hand out before the next line
+    private int newline = 0;
+
+    public MimePartBIO(byte[] buf, int start, int end) {
+        this.buf = buf;
+        this.pos = start;
+        this.end = end;
+    }
+
+    private void scanLine() {
+        int nl = pos;
+        while(nl < end && buf[nl] != '\n') {
+            nl++;
+        }
+        nextLine = nl < end ? nl + 1 : end;
+        while(nl > pos && (buf[nl - 1] == '\r' || buf[nl - 1] == '\n')) {
+            nl--;
+        }
+        lineEnd = nl;
+    }
+
+    /**
+     * Hands out at most len bytes, stopping after a newline when
+     * toEol is set.
+     */
+    private int next(byte[] into, int offset, int len, boolean toEol) {
+        int n = 0;
+        while(n < len) {
+            if(newline > 0) {
+                into[offset + n++] = SMIME.NEWLINE[2 - newline--];
+                if(toEol && newline == 0) {
+                    break;
+                }
+                continue;
+            }
+            if(pos >= end) {
+                break;
+            }
+            if(lineEnd == -1) {
+                scanLine();
+            }
+            int k = Math.min(lineEnd - pos, len - n);
+            System.arraycopy(buf, pos, into, offset + n, k);
+            pos += k;
+            n += k;
+            if(pos == lineEnd) {
+                pos = nextLine;
+                lineEnd = -1;
+                if(pos < end) {
+                    newline = 2;
+                }
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public int gets(byte[] in, int len) throws IOException {
+        return next(in, 0, len, true);
+    }
+
+    @Override
+    public int read(byte[] into, int offset, int len) throws IOException {
+        return next(into, offset, len, false);
+    }
+
+    @Override
+    public void setMemEofReturn(int value) {
+    }
+}// MimePartBIO
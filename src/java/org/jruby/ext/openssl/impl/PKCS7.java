@@ -39,9 +39,17 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
@@ -89,6 +97,9 @@ public class PKCS7 {
 
     private PKCS7Data data;
 
+    // set while writeBER signs, when the content went out instead of into a MemBIO
+    private boolean streamed;
+
     public Object ctrl(int cmd, Object v, Object ignored) {
         return this.data.ctrl(cmd, v, ignored);
     }
@@ -236,33 +247,43 @@ public class PKCS7 {
         if(!isSigned() && !isSignedAndEnveloped()) {
             throw new PKCS7Exception(F_PKCS7_SIGNATUREVERIFY, R_WRONG_PKCS7_TYPE);
         }
+        checkSignature(si, x509, signerDigest(bio, si));
+    }
 
+    /**
+     * A copy of the digest in the chain at bio that si was made with,
+     * for checkSignature.
+     */
+    private static MessageDigest signerDigest(BIO bio, SignerInfoWithPkey si) {
         int md_type = ASN1Registry.obj2nid(si.getDigestAlgorithm().getObjectId());
         BIO btmp = bio;
         MessageDigest mdc = null;
 
         for(;;) {
-            if(btmp == null || (btmp = bio.findType(BIO.TYPE_MD)) == null) {
+            if(btmp == null || (btmp = btmp.findType(BIO.TYPE_MD)) == null) {
                 throw new PKCS7Exception(F_PKCS7_SIGNATUREVERIFY, R_UNABLE_TO_FIND_MESSAGE_DIGEST);
             }
 
-            mdc = ((MessageDigestBIOFilter)btmp).getMessageDigest();
-            if(null == mdc) {
-                throw new PKCS7Exception(F_PKCS7_SIGNATUREVERIFY, -1);
-            }
-
-            if(EVP.type(mdc) == md_type) {
+            mdc = ((MessageDigestBIOFilter)btmp).getMessageDigest(md_type);
+            if(null != mdc) {
                 break;
             }
 
             btmp = btmp.next();
         }
 
-        MessageDigest mdc_tmp = null;
         try {
-            mdc_tmp = (MessageDigest)mdc.clone();
-        } catch(Exception e) {}
+            return (MessageDigest)mdc.clone();
+        } catch(CloneNotSupportedException e) {
+            throw new PKCS7Exception(F_PKCS7_SIGNATUREVERIFY, -1, e);
+        }
+    }
 
+    /**
+     * Checks si against the content digest mdc_tmp, which it finishes.
+     * Touches nothing shared, so signers can be checked concurrently.
+     */
+    private void checkSignature(SignerInfoWithPkey si, X509AuxCertificate x509, MessageDigest mdc_tmp) {
         byte[] currentData = new byte[0];
 
         ASN1Set sk = si.getAuthenticatedAttributes();
@@ -283,7 +304,7 @@ public class PKCS7 {
             ASN1OctetString os = si.getEncryptedDigest();
             PublicKey pkey = x509.getPublicKey();
 
-            Signature sign = Signature.getInstance(EVP.signatureAlgorithm(mdc_tmp, pkey));
+            Signature sign = Signature.getInstance(EVP.signatureAlgorithm(mdc_tmp, pkey), OpenSSLReal.PROVIDER);
             sign.initVerify(pkey);
             if(currentData.length > 0) {
                 sign.update(currentData);
@@ -291,15 +312,114 @@ public class PKCS7 {
             if(!sign.verify(os.getOctets())) {
                 throw new NotVerifiedPKCS7Exception();
             }
-        } catch(NotVerifiedPKCS7Exception e) {
+        } catch(PKCS7Exception e) {
             throw e;
         } catch(Exception e) {
-            System.err.println("Other exception");
-            e.printStackTrace();
             throw new NotVerifiedPKCS7Exception();
         }
     }
 
+    /**
+     * Checks the chain of signer up to a trusted certificate in store.
+     */
+    private void verifyChain(Store store, X509AuxCertificate signer, int flags) {
+        StoreContext cert_ctx = new StoreContext();
+        if((flags & NOCHAIN) == 0) {
+            if(cert_ctx.init(store, signer, new ArrayList<X509AuxCertificate>(getSign().getCert())) == 0) {
+                throw new PKCS7Exception(F_PKCS7_VERIFY, -1);
+            }
+            cert_ctx.setPurpose(X509Utils.X509_PURPOSE_SMIME_SIGN);
+        } else if(cert_ctx.init(store, signer, null) == 0) {
+            throw new PKCS7Exception(F_PKCS7_VERIFY, -1);
+        }
+        if((flags & NOCRL) == 0) {
+            cert_ctx.setCRLs((List<X509CRL>)getSign().getCrl());
+        }
+        try {
+            int i = cert_ctx.verifyCertificate();
+            int j = 0;
+            if(i <= 0) {
+                j = cert_ctx.getError();
+            }
+            cert_ctx.cleanup();
+            if(i <= 0) {
+                throw new PKCS7Exception(F_PKCS7_VERIFY, R_CERTIFICATE_VERIFY_ERROR, "Verify error:" + X509Utils.verifyCertificateErrorString(j));
+            }
+        } catch(PKCS7Exception e) {
+            throw e;
+        } catch(Exception e) {
+            throw new PKCS7Exception(F_PKCS7_VERIFY, R_CERTIFICATE_VERIFY_ERROR, e);
+        }
+    }
+
+    // the signature checks of a verify with more than one signer, and the
+    // key wrapping for many recipients, run on these, shared by all
+    // instances; daemon threads, created on first use
+    static final int WORKER_THREADS = Math.min(8, Runtime.getRuntime().availableProcessors());
+    private static ExecutorService workers;
+
+    private static synchronized ExecutorService workers() {
+        if(workers == null) {
+            workers = Executors.newFixedThreadPool(WORKER_THREADS, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "OpenSSL PKCS7 worker");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return workers;
+    }
+
+    /**
+     * Runs the tasks, on the worker threads when there is more than
+     * one, and throws what the first failing one threw, in list order,
+     * so the outcome is the same as running them one after the other.
+     * Failures other than PKCS7Exception are reported for function.
+     */
+    static void runConcurrently(List<Callable<Object>> tasks, int function) {
+        if(tasks.size() == 1 || WORKER_THREADS == 1) {
+            for(Callable<Object> task : tasks) {
+                call(task, function);
+            }
+            return;
+        }
+        List<Future<Object>> futures = new ArrayList<Future<Object>>(tasks.size());
+        ExecutorService executor = workers();
+        try {
+            for(Callable<Object> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for(Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch(ExecutionException e) {
+                    if(e.getCause() instanceof PKCS7Exception) {
+                        throw (PKCS7Exception)e.getCause();
+                    }
+                    throw new PKCS7Exception(function, -1, e.getCause());
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new PKCS7Exception(function, -1, e);
+                }
+            }
+        } finally {
+            for(Future<Object> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static void call(Callable<Object> task, int function) {
+        try {
+            task.call();
+        } catch(PKCS7Exception e) {
+            throw e;
+        } catch(Exception e) {
+            throw new PKCS7Exception(function, -1, e);
+        }
+    }
+
     /* c: PKCS7_verify
      *
      */
@@ -322,35 +442,15 @@ public class PKCS7 {
             throw new NotVerifiedPKCS7Exception();
         }
 
-        /* Now verify the certificates */
+        /* Now verify the certificates. This stays on the calling thread:
+         * the store is not safe to search from several threads, and its
+         * errors are recorded per thread. A signer that signs more than
+         * once is deduplicated, so its chain is verified only once. */
         if((flags & NOVERIFY) == 0) {
+            Set<X509AuxCertificate> seen = new HashSet<X509AuxCertificate>();
             for(X509AuxCertificate signer : signers) {
-                StoreContext cert_ctx = new StoreContext();
-                if((flags & NOCHAIN) == 0) {
-                    if(cert_ctx.init(store, signer, new ArrayList<X509AuxCertificate>(getSign().getCert())) == 0) {
-                        throw new PKCS7Exception(F_PKCS7_VERIFY, -1);
-                    }
-                    cert_ctx.setPurpose(X509Utils.X509_PURPOSE_SMIME_SIGN);
-                } else if(cert_ctx.init(store, signer, null) == 0) {
-                    throw new PKCS7Exception(F_PKCS7_VERIFY, -1);
-                }
-                if((flags & NOCRL) == 0) {
-                    cert_ctx.setCRLs((List<X509CRL>)getSign().getCrl());
-                }
-                try {
-                    int i = cert_ctx.verifyCertificate();
-                    int j = 0;
-                    if(i <= 0) {
-                        j = cert_ctx.getError();
-                    }
-                    cert_ctx.cleanup();
-                    if(i <= 0) {
-                        throw new PKCS7Exception(F_PKCS7_VERIFY, R_CERTIFICATE_VERIFY_ERROR, "Verify error:" + X509Utils.verifyCertificateErrorString(j));
-                    }
-                } catch(PKCS7Exception e) {
-                    throw e;
-                } catch(Exception e) {
-                    throw new PKCS7Exception(F_PKCS7_VERIFY, R_CERTIFICATE_VERIFY_ERROR, e);
+                if(seen.add(signer)) {
+                    verifyChain(store, signer, flags);
                 }
             }
         }
@@ -384,11 +484,19 @@ public class PKCS7 {
         }
 
         if((flags & NOSIGS) == 0) {
+            List<Callable<Object>> signatures = new ArrayList<Callable<Object>>();
             for(int i=0; i<sinfos.size(); i++) {
-                SignerInfoWithPkey si = sinfos.get(i);
-                X509AuxCertificate signer = signers.get(i);
-                signatureVerify(p7bio, si, signer);
+                final SignerInfoWithPkey si = sinfos.get(i);
+                final X509AuxCertificate signer = signers.get(i);
+                final MessageDigest digest = signerDigest(p7bio, si);
+                signatures.add(new Callable<Object>() {
+                        public Object call() {
+                            checkSignature(si, signer, digest);
+                            return null;
+                        }
+                    });
             }
+            runConcurrently(signatures, F_PKCS7_VERIFY);
         }
 
         if(tmpin == indata) {
@@ -449,10 +557,96 @@ public class PKCS7 {
         return p7;
     } 
 
+    private final static byte[] END_OF_CONTENTS = new byte[] {0, 0};
+    private final static byte[] INDEFINITE_SEQUENCE = new byte[] {0x30, (byte)0x80};
+    private final static byte[] INDEFINITE_EXPLICIT_0 = new byte[] {(byte)0xA0, (byte)0x80};
+    private final static byte[] INDEFINITE_OCTET_STRING = new byte[] {0x24, (byte)0x80};
+
+    private static void writeAll(BIO out, byte[]... parts) throws IOException {
+        for(byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+    }
+
+    /* c: i2d_PKCS7_bio_stream
+     *
+     * Writes this signed PKCS7, as set up by sign with STREAM, to out as
+     * indefinite length BER. The content is read from in and digested
+     * on its way through to out, so none of it is held in memory; the
+     * signer infos are written once it has all gone past.
+     */
+    public void writeBER(BIO out, BIO in, int flags) throws IOException {
+        if(!isSigned()) {
+            throw new PKCS7Exception(F_PKCS7_SIGN, R_WRONG_CONTENT_TYPE);
+        }
+        if((flags & DETACHED) != 0) {
+            setDetached(1);
+        }
+        Signed signed = getSign();
+        writeAll(out, INDEFINITE_SEQUENCE, ASN1Registry.nid2obj(getType()).getDEREncoded(),
+                 INDEFINITE_EXPLICIT_0, INDEFINITE_SEQUENCE, signed.headerFieldsEncoded());
+
+        BIO sink;
+        BIO chunks = null;
+        if(isDetached()) {
+            writeAll(out, signed.getContents().asASN1().getDEREncoded());
+            sink = BIO.nullSink();
+        } else {
+            writeAll(out, INDEFINITE_SEQUENCE, ASN1Registry.nid2obj(signed.getContents().getType()).getDEREncoded(),
+                     INDEFINITE_EXPLICIT_0, INDEFINITE_OCTET_STRING);
+            chunks = new BEROctetStringBIOFilter();
+            chunks.push(out);
+            sink = chunks;
+        }
+
+        streamContent(in, sink, flags);
+        if(chunks != null) {
+            chunks.flush();
+            writeAll(out, END_OF_CONTENTS, END_OF_CONTENTS, END_OF_CONTENTS);
+        }
+
+        writeAll(out, signed.trailerFieldsEncoded(), END_OF_CONTENTS, END_OF_CONTENTS, END_OF_CONTENTS);
+        out.flush();
+    }
+
+    /* c: PKCS7_final
+     *
+     * Finishes this signed PKCS7, as set up by sign with STREAM, as a
+     * detached signature. The content is read from in, canonicalized
+     * and copied to out, and digested on the way in the same pass.
+     */
+    public void finalDetached(BIO in, BIO out, int flags) throws IOException {
+        if(!isSigned()) {
+            throw new PKCS7Exception(F_PKCS7_SIGN, R_WRONG_CONTENT_TYPE);
+        }
+        setDetached(1);
+        streamContent(in, out, flags);
+    }
+
+    private void streamContent(BIO in, BIO sink, int flags) throws IOException {
+        BIO p7bio = dataInit(sink);
+        in.crlfCopy(p7bio, flags);
+        streamed = true;
+        try {
+            dataFinal(p7bio);
+        } finally {
+            streamed = false;
+        }
+    }
+
     /* c: PKCS7_encrypt
      *
      */
     public static PKCS7 encrypt(Collection<X509AuxCertificate> certs, byte[] in, Cipher cipher, int flags) {
+        return encrypt(certs, BIO.memBuf(in), cipher, flags);
+    }
+
+    /* c: PKCS7_encrypt
+     *
+     * Reads the content from in as it is encrypted, so it can come
+     * from a stream.
+     */
+    public static PKCS7 encrypt(Collection<X509AuxCertificate> certs, BIO in, Cipher cipher, int flags) {
         PKCS7 p7 = new PKCS7();
 
         p7.setType(ASN1Registry.NID_pkcs7_enveloped);
@@ -466,7 +660,7 @@ public class PKCS7 {
 
             BIO p7bio = p7.dataInit(null);
 
-            BIO.memBuf(in).crlfCopy(p7bio, flags);
+            in.crlfCopy(p7bio, flags);
             p7bio.flush();
             p7.dataFinal(p7bio);
 
@@ -632,19 +826,32 @@ public class PKCS7 {
      */
     public BIO bioAddDigest(BIO pbio, AlgorithmIdentifier alg) {
         try {
-            MessageDigest md = EVP.getDigest(alg.getObjectId());
-            BIO btmp = BIO.mdFilter(md);
-            if(pbio == null) {
-                return btmp;
-            } else {
-                pbio.push(btmp);
-                return pbio;
-            }
+            return addDigest(pbio, EVP.getDigest(alg.getObjectId()));
         } catch(Exception e) {
             throw new PKCS7Exception(F_PKCS7_BIO_ADD_DIGEST, R_UNKNOWN_DIGEST_TYPE, e);
         }
     }
 
+    /**
+     * Pushes a digest filter for md on pbio, or adds md to the digest
+     * filter pbio already ends with, which sees the same bytes.
+     */
+    private static BIO addDigest(BIO pbio, MessageDigest md) {
+        if(pbio == null) {
+            return BIO.mdFilter(md);
+        }
+        BIO last = pbio;
+        while(last.next() != null) {
+            last = last.next();
+        }
+        if(last instanceof MessageDigestBIOFilter) {
+            ((MessageDigestBIOFilter)last).add(md);
+        } else {
+            pbio.push(BIO.mdFilter(md));
+        }
+        return pbio;
+    }
+
     /** c: PKCS7_dataDecode
      *
      */
@@ -701,14 +908,7 @@ public class PKCS7 {
         if(mdSk != null) {
             for(AlgorithmIdentifier xa : mdSk) {
                 try {
-                    MessageDigest evpMd = EVP.getDigest(xa.getObjectId());
-                    btmp = BIO.mdFilter(evpMd);
-                    if(out == null) {
-                        out = btmp;
-                    } else {
-                        out.push(btmp);
-                    }
-                    btmp = null;
+                    out = addDigest(out, EVP.getDigest(xa.getObjectId()));
                 } catch(Exception e) {
                     throw new PKCS7Exception(F_PKCS7_DATADECODE, R_UNKNOWN_DIGEST_TYPE);
                 }
@@ -855,7 +1055,6 @@ public class PKCS7 {
         }
 
         if(evpCipher != null) {
-            byte[] tmp;
             String algorithm = evpCipher.getAlgorithm();
             btmp = BIO.cipherFilter(evpCipher);
 
@@ -874,14 +1073,10 @@ public class PKCS7 {
                 evpCipher.init(Cipher.ENCRYPT_MODE, key);
 
                 if(null != rsk) {
-                    for(RecipInfo ri : rsk) {
-                        PublicKey pkey = ri.getCert().getPublicKey();
-                        Cipher cipher = Cipher.getInstance(pkey.getAlgorithm(), OpenSSLReal.PROVIDER);
-                        cipher.init(Cipher.ENCRYPT_MODE, pkey);
-                        tmp = cipher.doFinal(((SecretKeySpec)key).getEncoded());
-                        ri.setEncKey(new DEROctetString(tmp));
-                    }
+                    RecipientKeyWrapper.wrapAll(rsk, key.getEncoded());
                 }
+            } catch(PKCS7Exception e) {
+                throw e;
             } catch(Exception e) {
                 e.printStackTrace();
             }
@@ -940,12 +1135,8 @@ public class PKCS7 {
             if(bio == null) {
                 throw new PKCS7Exception(F_PKCS7_FIND_DIGEST, R_UNABLE_TO_FIND_MESSAGE_DIGEST);
             }
-            pmd[0] = ((MessageDigestBIOFilter)bio).getMessageDigest();
-            if(pmd[0] == null) {
-                throw new PKCS7Exception(F_PKCS7_FIND_DIGEST, -1);
-            }
-            
-            if(nid == EVP.type(pmd[0])) {
+            pmd[0] = ((MessageDigestBIOFilter)bio).getMessageDigest(nid);
+            if(pmd[0] != null) {
                 return bio;
             }
 
@@ -1043,7 +1234,7 @@ public class PKCS7 {
             getDigest().setDigest(digest);
         }
 
-        if(!isDetached()) {
+        if(!isDetached() && !streamed) {
             btmp = bio.findType(BIO.TYPE_MEM);
             if(null == btmp) {
                 throw new PKCS7Exception(F_PKCS7_DATAFINAL, R_UNABLE_TO_FIND_MEM_BIO);
@@ -30,6 +30,7 @@ package org.jruby.ext.openssl.impl;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.security.PublicKey;
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1EncodableVector;
 import org.bouncycastle.asn1.ASN1InputStream;
@@ -58,6 +59,9 @@ public class RecipInfo {
      */
     private X509AuxCertificate cert;
 
+    // the key of cert, parsed once by set
+    private PublicKey pkey;
+
     /** c: PKCS7_RECIP_INFO_set
      *
      */
@@ -67,9 +71,11 @@ public class RecipInfo {
             X509Name issuer = X509Name.getInstance(new ASN1InputStream(new ByteArrayInputStream(cert.getIssuerX500Principal().getEncoded())).readObject());
             BigInteger serial = cert.getSerialNumber();
             issuerAndSerial = new IssuerAndSerialNumber(issuer, serial);
-            String algo = addEncryptionIfNeeded(cert.getPublicKey().getAlgorithm());
+            PublicKey pkey = cert.getPublicKey();
+            String algo = addEncryptionIfNeeded(pkey.getAlgorithm());
             keyEncAlgor = new AlgorithmIdentifier(ASN1Registry.sym2oid(algo));
             this.cert = cert;
+            this.pkey = pkey;
         } catch(IOException e) {
             throw new PKCS7Exception(-1, -1);
         }
@@ -202,6 +208,17 @@ public class RecipInfo {
      */
     public final void setCert(final X509AuxCertificate newCert) {
         this.cert = newCert;
+        this.pkey = null;
+    }
+
+    /**
+     * The public key of the certificate, parsed only once.
+     */
+    public PublicKey getPublicKey() {
+        if(pkey == null && cert != null) {
+            pkey = cert.getPublicKey();
+        }
+        return pkey;
     }
 
     /* c: static pkcs7_cmp_ri
@@ -0,0 +1,105 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Copyright (C) 2009 The JRuby Community <www.jruby.org>
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.impl;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import javax.crypto.Cipher;
+import org.bouncycastle.asn1.DEROctetString;
+import org.jruby.ext.openssl.OpenSSLReal;
+
+/**
+ * Wraps the content encryption key of an enveloped PKCS7 for its
+ * recipients. Key ciphers are looked up once per thread and algorithm,
+ * and long recipient lists are wrapped in batches on the PKCS7 worker
+ * threads.
+ */
+public class RecipientKeyWrapper {
+    // recipients wrapped by one task
+    private static final int BATCH = 64;
+
+    private static final ThreadLocal<Map<String, Cipher>> CIPHERS = new ThreadLocal<Map<String, Cipher>>() {
+            @Override
+            protected Map<String, Cipher> initialValue() {
+                return new HashMap<String, Cipher>();
+            }
+        };
+
+    private static Cipher cipher(String algorithm) throws GeneralSecurityException {
+        Map<String, Cipher> ciphers = CIPHERS.get();
+        Cipher cipher = ciphers.get(algorithm);
+        if(cipher == null) {
+            cipher = Cipher.getInstance(algorithm, OpenSSLReal.PROVIDER);
+            ciphers.put(algorithm, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Sets the encrypted key of ri to key, encrypted with its public key.
+     */
+    public static void wrap(RecipInfo ri, byte[] key) {
+        try {
+            PublicKey pkey = ri.getPublicKey();
+            Cipher cipher = cipher(pkey.getAlgorithm());
+            cipher.init(Cipher.ENCRYPT_MODE, pkey);
+            ri.setEncKey(new DEROctetString(cipher.doFinal(key)));
+        } catch(GeneralSecurityException e) {
+            throw new PKCS7Exception(PKCS7.F_PKCS7_DATAINIT, PKCS7.R_ERROR_SETTING_CIPHER, e);
+        }
+    }
+
+    /**
+     * Wraps key for every recipient. The first failure, in recipient
+     * order, is thrown.
+     */
+    public static void wrapAll(Collection<RecipInfo> recipients, final byte[] key) {
+        List<RecipInfo> all = new ArrayList<RecipInfo>(recipients);
+        List<Callable<Object>> batches = new ArrayList<Callable<Object>>();
+        for(int i = 0; i < all.size(); i += BATCH) {
+            final List<RecipInfo> batch = all.subList(i, Math.min(i + BATCH, all.size()));
+            batches.add(new Callable<Object>() {
+                    public Object call() {
+                        for(RecipInfo ri : batch) {
+                            wrap(ri, key);
+                        }
+                        return null;
+                    }
+                });
+        }
+        if(!batches.isEmpty()) {
+            PKCS7.runConcurrently(batches, PKCS7.F_PKCS7_DATAINIT);
+        }
+    }
+}// RecipientKeyWrapper
@@ -28,9 +28,14 @@
 package org.jruby.ext.openssl.impl;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 
 /** SMIME methods for PKCS7
  *
@@ -40,6 +45,8 @@ public class SMIME {
     public final static int MAX_SMLEN = 1024;
     public final static byte[] NEWLINE = new byte[]{'\r','\n'};
 
+    private final static Random BOUNDARY_RANDOM = new SecureRandom();
+
     private Mime mime;
 
     public SMIME() {
@@ -50,24 +57,6 @@ public class SMIME {
         this.mime = mime;
     }
 
-    private static boolean equals(byte[] first, int firstIndex, byte[] second, int secondIndex, int length) {
-        int len = length;
-        for(int i=firstIndex, 
-                j=secondIndex, 
-                flen=first.length, 
-                slen=second.length;
-            i<flen && 
-                j<slen && 
-                len>0;
-            i++, j++, len--) {
-
-            if(first[i] != second[j]) {
-                return false;
-            }
-        }
-        return len == 0;
-    }
-
     /* c: static strip_eol
      *
      */
@@ -119,35 +108,128 @@ public class SMIME {
 // 	return 1;
     }
 
-    /* c: static mime_bound_check
+    private static void print(BIO bio, String str) throws IOException {
+        byte[] bytes = str.getBytes("ISO8859-1");
+        bio.write(bytes, 0, bytes.length);
+    }
+
+    /* c: static asn1_write_micalg
      *
      */
-    private int boundCheck(byte[] line, int linelen, byte[] bound, int blen) {
-        if(linelen == -1) {
-            linelen = line.length;
-        }
-
-        if(blen == -1) {
-            blen = bound.length;
+    private static String micalg(Set<AlgorithmIdentifier> mdAlgs) {
+        StringBuilder out = new StringBuilder();
+        boolean haveUnknown = false;
+        for(AlgorithmIdentifier alg : mdAlgs) {
+            String name;
+            Integer nid = ASN1Registry.obj2nid(alg.getObjectId());
+            switch(nid == null ? -1 : nid.intValue()) {
+            case ASN1Registry.NID_sha1:
+                name = "sha1";
+                break;
+            case ASN1Registry.NID_md5:
+                name = "md5";
+                break;
+            case ASN1Registry.NID_sha256:
+                name = "sha-256";
+                break;
+            case ASN1Registry.NID_sha384:
+                name = "sha-384";
+                break;
+            case ASN1Registry.NID_sha512:
+                name = "sha-512";
+                break;
+            default:
+                if(haveUnknown) {
+                    continue;
+                }
+                haveUnknown = true;
+                name = "unknown";
+            }
+            if(out.length() > 0) {
+                out.append(',');
+            }
+            out.append(name);
         }
+        return out.toString();
+    }
 
-        // Quickly eliminate if line length too short
-        if(blen + 2 > linelen) {
-            return 0;
+    /* c: B64_write_PKCS7
+     *
+     * With STREAM in flags the content is still to be signed: it is
+     * read from data and streamed through as indefinite length BER.
+     */
+    private void writePKCS7Base64(BIO bio, PKCS7 p7, BIO data, int flags) throws IOException {
+        BIO b64 = BIO.base64Filter(bio);
+        if((flags & PKCS7.STREAM) != 0) {
+            p7.writeBER(b64, data, flags);
+        } else {
+            byte[] der = p7.toASN1();
+            b64.write(der, 0, der.length);
         }
+        b64.flush();
+    }
 
-        if(line[0] == '-' && 
-           line[1] == '-' &&
-           equals(line, 2, bound, 0, blen)) {
-            if(line.length>=(blen+4) &&
-               line[2 + blen] == '-' &&
-               line[2 + blen + 1] == '-') {
-                return 2;
+    /* c: SMIME_write_PKCS7
+     *
+     * With DETACHED and data this writes multipart/signed, the content
+     * in clear followed by the signature, otherwise application/pkcs7-mime.
+     * With STREAM in flags p7 comes from sign with STREAM and is signed
+     * here while the content from data is written, in a single pass.
+     */
+    public void writePKCS7(BIO bio, PKCS7 p7, BIO data, int flags) throws IOException {
+        String eol = (flags & PKCS7.CRLFEOL) != 0 ? "\r\n" : "\n";
+        String prefix = (flags & PKCS7.NOOLDMIMETYPE) != 0 ? "application/pkcs7-" : "application/x-pkcs7-";
+
+        if((flags & PKCS7.DETACHED) != 0 && data != null) {
+            char[] bound = new char[32];
+            for(int i = 0; i < bound.length; i++) {
+                int c = BOUNDARY_RANDOM.nextInt(16);
+                bound[i] = (char)(c < 10 ? '0' + c : 'A' + c - 10);
+            }
+            String boundary = new String(bound);
+
+            print(bio, "MIME-Version: 1.0" + eol);
+            print(bio, "Content-Type: multipart/signed;");
+            print(bio, " protocol=\"" + prefix + "signature\";");
+            print(bio, " micalg=\"" + micalg(p7.getSign().getMdAlgs()) + "\";");
+            print(bio, " boundary=\"----" + boundary + "\"" + eol + eol);
+            print(bio, "This is an S/MIME signed message" + eol + eol);
+            print(bio, "------" + boundary + eol);
+            if((flags & PKCS7.STREAM) != 0) {
+                p7.finalDetached(data, bio, flags);
             } else {
-                return 1;
+                data.crlfCopy(bio, flags);
             }
+            print(bio, eol + "------" + boundary + eol);
+            print(bio, "Content-Type: " + prefix + "signature;");
+            print(bio, " name=\"smime.p7s\"" + eol);
+            print(bio, "Content-Transfer-Encoding: base64" + eol);
+            print(bio, "Content-Disposition: attachment;");
+            print(bio, " filename=\"smime.p7s\"" + eol + eol);
+            writePKCS7Base64(bio, p7, null, flags & ~PKCS7.STREAM);
+            print(bio, eol + "------" + boundary + "--" + eol + eol);
+            bio.flush();
+            return;
+        }
+
+        String msgType = null;
+        if(p7.isEnveloped()) {
+            msgType = "enveloped-data";
+        } else if(p7.isSigned()) {
+            msgType = p7.getSignerInfo().size() > 0 ? "signed-data" : "certs-only";
+        }
+        print(bio, "MIME-Version: 1.0" + eol);
+        print(bio, "Content-Disposition: attachment;");
+        print(bio, " filename=\"smime.p7m\"" + eol);
+        print(bio, "Content-Type: " + prefix + "mime;");
+        if(msgType != null) {
+            print(bio, " smime-type=" + msgType + ";");
         }
-        return 0;
+        print(bio, " name=\"smime.p7m\"" + eol);
+        print(bio, "Content-Transfer-Encoding: base64" + eol + eol);
+        writePKCS7Base64(bio, p7, data, flags);
+        print(bio, eol);
+        bio.flush();
     }
 
     /* c: B64_read_PKCS7
@@ -160,52 +242,61 @@ public class SMIME {
 
     /* c: static multi_split
      *
+     * The body is taken whole, since the signature comes after the
+     * content it signs, and the parts are views into it, found with
+     * one BoundaryMatcher scan. A part already in canonical form is
+     * handed out as it stands, any other is canonicalized as it is
+     * read.
      */
     private List<BIO> multiSplit(BIO bio, byte[] bound) throws IOException {
         List<BIO> parts = new ArrayList<BIO>();
-        byte[] linebuf = new byte[MAX_SMLEN];
-        int blen = bound.length;
-        boolean eol = false;
-        int len = 0;
-        int part = 0;
-        int state = 0;
-        boolean first = true;
-        BIO bpart = null;
-
-        while((len = bio.gets(linebuf, MAX_SMLEN)) > 0) {
-            state = boundCheck(linebuf, len, bound, blen);
-            if(state == 1) {
-                first = true;
-                part++;
-            } else if(state == 2) {
-                parts.add(bpart);
+        ByteBuffer body = MemBIO.unread(bio);
+        byte[] buf = body.array();
+        int end = body.arrayOffset() + body.limit();
+        BoundaryMatcher matcher = new BoundaryMatcher(bound);
+
+        int at = matcher.lineIn(buf, body.arrayOffset() + body.position(), end);
+        int partStart = -1;
+        while(at != -1) {
+            int after = at + matcher.length();
+            boolean close = after + 1 < end && buf[after] == '-' && buf[after + 1] == '-';
+            if(partStart != -1) {
+                parts.add(part(buf, partStart, at));
+            }
+            if(close) {
                 return parts;
-            } else if(part != 0) {
-                // strip CR+LF from linebuf
-                int[] tmp = new int[] {len};
-                boolean nextEol = stripEol(linebuf, tmp);
-                len = tmp[0];
-
-                if(first) {
-                    first = false;
-                    if(bpart != null) {
-                        parts.add(bpart);
-                    }
-                    bpart = BIO.mem();
-                    bpart.setMemEofReturn(0);
-                } else if(eol) {
-                    bpart.write(NEWLINE, 0, 2);
-                }
-                eol = nextEol;
-                if(len != 0) {
-                    bpart.write(linebuf, 0, len);
-                }
             }
+            while(after < end && buf[after] != '\n') {
+                after++;
+            }
+            if(after == end) {
+                break;
+            }
+            partStart = after + 1;
+            at = matcher.lineIn(buf, partStart, end);
         }
 
+        // no closing delimiter, so the last part is incomplete
         return parts;
     }
 
+    /**
+     * The part between start and the delimiter line at end.
+     */
+    private static BIO part(byte[] buf, int start, int end) {
+        for(int i = start; i < end; i++) {
+            if(buf[i] == '\n' && (i - 1 < start || buf[i - 1] != '\r' || (i - 2 >= start && buf[i - 2] == '\r'))) {
+                return new MimePartBIO(buf, start, end);
+            } else if(buf[i] == '\r' && (i + 1 >= end || buf[i + 1] != '\n')) {
+                return new MimePartBIO(buf, start, end);
+            }
+        }
+        if(end - start < 2) {
+            return new MimePartBIO(buf, start, end);
+        }
+        return BIO.memBuf(buf, start, end - start - 2);
+    }
+
     /* c: SMIME_read_PKCS7
      *
      */
@@ -33,7 +33,7 @@ import java.security.cert.X509CRL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import org.bouncycastle.asn1.ASN1Encodable;
@@ -76,7 +76,7 @@ public class Signed {
     /**
      * Describe mdAlgs here.
      */
-    private Set<AlgorithmIdentifier> mdAlgs = new HashSet<AlgorithmIdentifier>();
+    private Set<AlgorithmIdentifier> mdAlgs = new LinkedHashSet<AlgorithmIdentifier>();
 
     /**
      * Describe signerInfo here.
@@ -213,6 +213,37 @@ public class Signed {
         return new DERSequence(vector);
     }
 
+    /**
+     * The DER of version and digestAlgorithms, the fields in front of
+     * contentInfo, for writing this out around streamed content.
+     */
+    public byte[] headerFieldsEncoded() {
+        return concat(new DERInteger(version).getDEREncoded(), digestAlgorithmsToASN1Set().getDEREncoded());
+    }
+
+    /**
+     * The DER of the certificates, crls and signerInfos that follow
+     * contentInfo.
+     */
+    public byte[] trailerFieldsEncoded() {
+        byte[] certs = new byte[0];
+        byte[] crls = new byte[0];
+        if(cert != null && cert.size() > 0) {
+            certs = new DERTaggedObject(0, certificatesToASN1Set()).getDEREncoded();
+        }
+        if(crl != null && crl.size() > 0) {
+            crls = new DERTaggedObject(1, crlsToASN1Set()).getDEREncoded();
+        }
+        return concat(concat(certs, crls), signerInfosToASN1Set().getDEREncoded());
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
     private ASN1Set digestAlgorithmsToASN1Set() {
         ASN1EncodableVector vector = new ASN1EncodableVector();
         for(AlgorithmIdentifier ai : mdAlgs) {
@@ -327,7 +358,7 @@ public class Signed {
 
     private static Set<AlgorithmIdentifier> algorithmIdentifiersFromASN1Set(DEREncodable content) {
         ASN1Set set = (ASN1Set)content;
-        Set<AlgorithmIdentifier> result = new HashSet<AlgorithmIdentifier>();
+        Set<AlgorithmIdentifier> result = new LinkedHashSet<AlgorithmIdentifier>();
         for(Enumeration<?> e = set.getObjects(); e.hasMoreElements();) {
             result.add(AlgorithmIdentifier.getInstance(e.nextElement()));
         }
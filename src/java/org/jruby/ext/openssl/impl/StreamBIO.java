@@ -0,0 +1,125 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Copyright (C) 2009 The JRuby Community <www.jruby.org>
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/** c: BIO_new_fp
+ *
+ * A source or sink over a Java stream, so data can flow between a
+ * file or socket and a BIO chain without being held in memory.
+ */
+public class StreamBIO extends BIO {
+    private final InputStream in;
+    private final OutputStream out;
+
+    // read ahead for gets, which has to stop at a newline
+    private byte[] pending;
+    private int pendingStart;
+    private int pendingEnd;
+
+    public StreamBIO(InputStream in) {
+        this.in = in;
+        this.out = null;
+    }
+
+    public StreamBIO(OutputStream out) {
+        this.in = null;
+        this.out = out;
+    }
+
+    private boolean fill() throws IOException {
+        if(pending == null) {
+            pending = new byte[8192];
+        }
+        int read = in.read(pending, 0, pending.length);
+        pendingStart = 0;
+        pendingEnd = read < 0 ? 0 : read;
+        return pendingEnd > 0;
+    }
+
+    @Override
+    public int gets(byte[] into, int len) throws IOException {
+        if(in == null) {
+            return 0;
+        }
+        int i = 0;
+        while(i < len) {
+            if(pendingStart == pendingEnd && !fill()) {
+                break;
+            }
+            byte b = pending[pendingStart++];
+            into[i++] = b;
+            if(b == '\n') {
+                break;
+            }
+        }
+        return i;
+    }
+
+    @Override
+    public int read(byte[] into, int offset, int len) throws IOException {
+        if(in == null || len == 0) {
+            return 0;
+        }
+        if(pendingStart < pendingEnd) {
+            int n = Math.min(len, pendingEnd - pendingStart);
+            System.arraycopy(pending, pendingStart, into, offset, n);
+            pendingStart += n;
+            return n;
+        }
+        int read = in.read(into, offset, len);
+        return read < 0 ? 0 : read;
+    }
+
+    @Override
+    public int write(byte[] data, int offset, int len) throws IOException {
+        if(out == null) {
+            throw new IOException("stream BIO is not writable");
+        }
+        out.write(data, offset, len);
+        return len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if(out != null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void setMemEofReturn(int value) {
+    }
+
+    public int getType() {
+        return TYPE_FILE;
+    }
+}// StreamBIO
@@ -0,0 +1,322 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Copyright (C) 2009 The JRuby Community <www.jruby.org>
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.impl.utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The Base64 engine shared by the BIO filters, S/MIME and PEM. Both
+ * directions work on whole 3 byte / 4 char groups out of lookup tables,
+ * and keep what is left of a group between calls, so data can be fed
+ * through in pieces of any size.
+ */
+public final class Base64Codec {
+    private Base64Codec() {}
+
+    private static final byte[] ENCODE =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    private static final byte INVALID = -1;
+    private static final byte WHITESPACE = -2;
+    private static final byte PAD = -3;
+    // as in OpenSSL, the dashes of a PEM END line end the data
+    private static final byte END = -4;
+    private static final byte[] DECODE = new byte[256];
+    static {
+        Arrays.fill(DECODE, INVALID);
+        for(int i = 0; i < ENCODE.length; i++) {
+            DECODE[ENCODE[i]] = (byte)i;
+        }
+        DECODE[' '] = DECODE['\t'] = DECODE['\r'] = DECODE['\n'] = DECODE['\f'] = WHITESPACE;
+        DECODE['='] = PAD;
+        DECODE['-'] = END;
+    }
+
+    public static final byte[] NEWLINE = new byte[] {'\n'};
+
+    /** Encodes all of in, without line breaks. */
+    public static byte[] encode(byte[] in) {
+        Encoder enc = new Encoder(0, NEWLINE);
+        byte[] out = new byte[enc.maxOutput(in.length) + enc.maxFinal()];
+        int n = enc.update(in, 0, in.length, out, 0);
+        n += enc.doFinal(out, n);
+        return trim(out, n);
+    }
+
+    /** Decodes all of in, skipping whitespace. */
+    public static byte[] decode(byte[] in, int offset, int length) throws IOException {
+        Decoder dec = new Decoder();
+        byte[] out = new byte[dec.maxOutput(length)];
+        int n = dec.update(in, offset, length, out, 0);
+        dec.doFinal();
+        return trim(out, n);
+    }
+
+    private static byte[] trim(byte[] bytes, int length) {
+        if(length == bytes.length) {
+            return bytes;
+        }
+        byte[] trimmed = new byte[length];
+        System.arraycopy(bytes, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    private static void encodeGroup(byte[] in, int offset, byte[] out, int o) {
+        int bits = ((in[offset] & 0xff) << 16) | ((in[offset + 1] & 0xff) << 8) | (in[offset + 2] & 0xff);
+        out[o] = ENCODE[bits >>> 18];
+        out[o + 1] = ENCODE[(bits >>> 12) & 0x3f];
+        out[o + 2] = ENCODE[(bits >>> 6) & 0x3f];
+        out[o + 3] = ENCODE[bits & 0x3f];
+    }
+
+    public static final class Encoder {
+        private final int groupsPerLine;
+        private final byte[] eol;
+        private final byte[] rest = new byte[3];
+        private int restLength;
+        private int column;
+
+        /** Breaks lines after lineLength chars, rounded down to a
+         * whole group, with eol; or never when lineLength is 0.
+         */
+        public Encoder(int lineLength, byte[] eol) {
+            this.groupsPerLine = lineLength / 4;
+            this.eol = eol;
+        }
+
+        /** The most update can write for length bytes in. */
+        public int maxOutput(int length) {
+            int groups = (restLength + length) / 3;
+            int lines = groupsPerLine == 0 ? 0 : (column + groups) / groupsPerLine;
+            return groups * 4 + lines * eol.length;
+        }
+
+        /** The most doFinal can write. */
+        public int maxFinal() {
+            return 4 + eol.length;
+        }
+
+        /** Encodes the whole groups there are, keeping the rest for later.
+         * Returns the number of bytes written to out.
+         */
+        public int update(byte[] in, int offset, int length, byte[] out, int outOffset) {
+            int o = outOffset;
+            int end = offset + length;
+            if(restLength > 0) {
+                while(restLength < 3 && offset < end) {
+                    rest[restLength++] = in[offset++];
+                }
+                if(restLength < 3) {
+                    return 0;
+                }
+                encodeGroup(rest, 0, out, o);
+                o = advance(1, out, o + 4);
+                restLength = 0;
+            }
+            while(end - offset >= 3) {
+                int groups = (end - offset) / 3;
+                if(groupsPerLine > 0) {
+                    groups = Math.min(groups, groupsPerLine - column);
+                }
+                for(int i = 0; i < groups; i++) {
+                    encodeGroup(in, offset, out, o);
+                    offset += 3;
+                    o += 4;
+                }
+                o = advance(groups, out, o);
+            }
+            while(offset < end) {
+                rest[restLength++] = in[offset++];
+            }
+            return o - outOffset;
+        }
+
+        private int advance(int groups, byte[] out, int o) {
+            if(groupsPerLine > 0) {
+                column += groups;
+                if(column == groupsPerLine) {
+                    System.arraycopy(eol, 0, out, o, eol.length);
+                    o += eol.length;
+                    column = 0;
+                }
+            }
+            return o;
+        }
+
+        /** Writes the last group with padding, and ends the last line
+         * if it was started. Returns the number of bytes written.
+         */
+        public int doFinal(byte[] out, int outOffset) {
+            int o = outOffset;
+            if(restLength > 0) {
+                int bits = (rest[0] & 0xff) << 16;
+                if(restLength == 2) {
+                    bits |= (rest[1] & 0xff) << 8;
+                }
+                out[o++] = ENCODE[bits >>> 18];
+                out[o++] = ENCODE[(bits >>> 12) & 0x3f];
+                out[o++] = restLength == 2 ? ENCODE[(bits >>> 6) & 0x3f] : (byte)'=';
+                out[o++] = '=';
+                restLength = 0;
+                column++;
+            }
+            if(groupsPerLine > 0 && column > 0) {
+                System.arraycopy(eol, 0, out, o, eol.length);
+                o += eol.length;
+            }
+            column = 0;
+            return o - outOffset;
+        }
+    }
+
+    public static final class Decoder {
+        private int quantum;
+        private int count;
+        private int padding;
+        private boolean ended;
+
+        /** The most update can write for length chars in. */
+        public int maxOutput(int length) {
+            return (count + length) / 4 * 3;
+        }
+
+        /** Decodes the whole groups there are, skipping whitespace and
+         * keeping the rest for later; anything from a '-' on is ignored.
+         * Returns the number of bytes written.
+         */
+        public int update(byte[] in, int offset, int length, byte[] out, int outOffset) throws IOException {
+            int o = outOffset;
+            int end = offset + length;
+            while(offset < end && !ended) {
+                if(count == 0 && padding == 0) {
+                    // whole groups of plain chars go four at a time
+                    while(end - offset >= 4) {
+                        int d0 = DECODE[in[offset] & 0xff];
+                        int d1 = DECODE[in[offset + 1] & 0xff];
+                        int d2 = DECODE[in[offset + 2] & 0xff];
+                        int d3 = DECODE[in[offset + 3] & 0xff];
+                        if((d0 | d1 | d2 | d3) < 0) {
+                            break;
+                        }
+                        int bits = (d0 << 18) | (d1 << 12) | (d2 << 6) | d3;
+                        out[o] = (byte)(bits >> 16);
+                        out[o + 1] = (byte)(bits >> 8);
+                        out[o + 2] = (byte)bits;
+                        o += 3;
+                        offset += 4;
+                    }
+                    if(offset == end) {
+                        break;
+                    }
+                }
+                int c = in[offset++] & 0xff;
+                o = step(c, DECODE[c], out, o);
+            }
+            return o - outOffset;
+        }
+
+        /** As update, for chars. */
+        public int update(char[] in, int offset, int length, byte[] out, int outOffset) throws IOException {
+            int o = outOffset;
+            int end = offset + length;
+            while(offset < end && !ended) {
+                if(count == 0 && padding == 0) {
+                    while(end - offset >= 4) {
+                        char c0 = in[offset], c1 = in[offset + 1], c2 = in[offset + 2], c3 = in[offset + 3];
+                        if((c0 | c1 | c2 | c3) >= 256) {
+                            break;
+                        }
+                        int d0 = DECODE[c0];
+                        int d1 = DECODE[c1];
+                        int d2 = DECODE[c2];
+                        int d3 = DECODE[c3];
+                        if((d0 | d1 | d2 | d3) < 0) {
+                            break;
+                        }
+                        int bits = (d0 << 18) | (d1 << 12) | (d2 << 6) | d3;
+                        out[o] = (byte)(bits >> 16);
+                        out[o + 1] = (byte)(bits >> 8);
+                        out[o + 2] = (byte)bits;
+                        o += 3;
+                        offset += 4;
+                    }
+                    if(offset == end) {
+                        break;
+                    }
+                }
+                char c = in[offset++];
+                o = step(c, c < 256 ? DECODE[c] : INVALID, out, o);
+            }
+            return o - outOffset;
+        }
+
+        private int step(int c, byte d, byte[] out, int o) throws IOException {
+            if(d == WHITESPACE) {
+                return o;
+            }
+            if(d == END) {
+                ended = true;
+                return o;
+            }
+            if(d == PAD) {
+                padding++;
+                d = 0;
+            } else if(d == INVALID) {
+                throw new IOException("invalid base64 data: illegal character '" + (char)c + "'");
+            } else if(padding > 0) {
+                throw new IOException("invalid base64 data: data after padding");
+            }
+            quantum = (quantum << 6) | d;
+            if(++count == 4) {
+                out[o++] = (byte)(quantum >> 16);
+                if(padding < 2) {
+                    out[o++] = (byte)(quantum >> 8);
+                }
+                if(padding < 1) {
+                    out[o++] = (byte)quantum;
+                }
+                quantum = 0;
+                count = 0;
+            }
+            return o;
+        }
+
+        /** Checks that the input ended on a whole group, and makes this
+         * ready for new input.
+         */
+        public void doFinal() throws IOException {
+            int left = count;
+            quantum = count = padding = 0;
+            ended = false;
+            if(left != 0) {
+                throw new IOException("base64 data appears to be truncated");
+            }
+        }
+    }
+}// Base64Codec
@@ -27,6 +27,7 @@
  ***** END LICENSE BLOCK *****/
 package org.jruby.ext.openssl.x509store;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.Reader;
@@ -131,7 +132,8 @@ public class Lookup {
         X509AuxCertificate x = null;
 
         if(type == X509Utils.X509_FILETYPE_PEM) {
-            Reader r = new InputStreamReader(in);
+            // one reader for the whole file, so each read picks up where the last stopped
+            Reader r = new BufferedReader(new InputStreamReader(in));
             for(;;) {
                 x = PEMInputOutput.readX509Aux(r,null);
                 if(null == x) {
@@ -177,7 +179,7 @@ public class Lookup {
         CRL x = null;
 
         if(type == X509Utils.X509_FILETYPE_PEM) {
-            Reader r = new InputStreamReader(in);
+            Reader r = new BufferedReader(new InputStreamReader(in));
             for(;;) {
                 x = PEMInputOutput.readX509CRL(r,null);;
                 if(null == x) {
@@ -218,7 +220,7 @@ public class Lookup {
             return loadCertificateFile(file,type);
         }
         int count = 0;
-        Reader r  = new FileReader(file);
+        Reader r  = new BufferedReader(new FileReader(file));
         for(;;) {
             Object v = PEMInputOutput.readPEM(r,null);
             if(null == v) {
@@ -50,13 +50,11 @@ import java.security.interfaces.RSAPublicKey;
 import java.security.interfaces.RSAPrivateCrtKey;
 import java.security.spec.InvalidParameterSpecException;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import javax.crypto.spec.DHParameterSpec;
 
 import org.jruby.ext.openssl.OpenSSLReal;
 import org.jruby.ext.openssl.PKCS10CertificationRequestExt;
+import org.jruby.ext.openssl.impl.utils.Base64Codec;
 
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1OutputStream;
@@ -77,7 +75,6 @@ import org.bouncycastle.asn1.x509.RSAPublicKeyStructure;
 import org.bouncycastle.crypto.PBEParametersGenerator;
 import org.bouncycastle.crypto.generators.OpenSSLPBEParametersGenerator;
 import org.bouncycastle.crypto.params.KeyParameter;
-import org.bouncycastle.util.encoders.Base64;
 import org.bouncycastle.util.encoders.Hex;
 import org.bouncycastle.cms.CMSSignedData;
 
@@ -133,11 +130,6 @@ public class PEMInputOutput {
     public static final String PEM_STRING_ECDSA_PUBLIC="ECDSA PUBLIC KEY";
     public static final String PEM_STRING_ECPARAMETERS="EC PARAMETERS";
     public static final String PEM_STRING_ECPRIVATEKEY="EC PRIVATE KEY";
-    
-    private static final Pattern DH_PARAM_PATTERN = Pattern.compile(
-            "(-----BEGIN DH PARAMETERS-----)(.*)(-----END DH PARAMETERS-----)",
-            Pattern.MULTILINE);
-    private static final int DH_PARAM_GROUP = 2; // the group above containing encoded params
 
     private static BufferedReader makeBuffered(Reader in) {
         if(in instanceof BufferedReader) {
@@ -154,326 +146,247 @@ public class PEMInputOutput {
     }
 
     public static Object readPEM(Reader in,char[] f) throws IOException {
-        BufferedReader _in = makeBuffered(in);
-        String  line;
-        while ((line = _in.readLine()) != null) {
-            if(line.indexOf(BEF_G+PEM_STRING_PUBLIC) != -1) {
+        PEMTokenizer pem = new PEMTokenizer(makeBuffered(in));
+        try {
+            String label = pem.next(PEM_STRING_PUBLIC, PEM_STRING_DSA, PEM_STRING_RSA_PUBLIC,
+                                    PEM_STRING_X509_OLD, PEM_STRING_X509, PEM_STRING_X509_TRUSTED,
+                                    PEM_STRING_X509_CRL, PEM_STRING_X509_REQ);
+            if(label == null) {
+                return null;
+            } else if(label.equals(PEM_STRING_PUBLIC)) {
                 try {
-                    return readPublicKey(_in,BEF_E+PEM_STRING_PUBLIC);
+                    return readPublicKey(pem);
                 } catch (Exception e) {
                     throw new IOException("problem creating public key: " + e.toString());
                 }
-            } else if(line.indexOf(BEF_G+PEM_STRING_DSA) != -1) {
+            } else if(label.equals(PEM_STRING_DSA)) {
                 try {
-                    return readKeyPair(_in,f, "DSA", BEF_E+PEM_STRING_DSA);
+                    return readKeyPair(pem,f, "DSA");
                 } catch (Exception e) {
                     throw new IOException("problem creating DSA private key: " + e.toString());
                 }
-            } else if(line.indexOf(BEF_G+PEM_STRING_RSA_PUBLIC) != -1) {
+            } else if(label.equals(PEM_STRING_RSA_PUBLIC)) {
                 try {
-                    return readPublicKey(_in,BEF_E+PEM_STRING_RSA_PUBLIC);
+                    return readPublicKey(pem);
                 } catch (Exception e) {
                     throw new IOException("problem creating RSA public key: " + e.toString());
                 }
-            } else if(line.indexOf(BEF_G+PEM_STRING_X509_OLD) != -1) {
+            } else if(label.equals(PEM_STRING_X509_CRL)) {
                 try {
-                    return readAuxCertificate(_in,BEF_E+PEM_STRING_X509_OLD);
+                    return readCRL(pem);
                 } catch (Exception e) {
-                    throw new IOException("problem creating X509 Aux certificate: " + e.toString());
+                    throw new IOException("problem creating X509 CRL: " + e.toString());
                 }
-            } else if(line.indexOf(BEF_G+PEM_STRING_X509) != -1) {
+            } else if(label.equals(PEM_STRING_X509_REQ)) {
                 try {
-                    return readAuxCertificate(_in,BEF_E+PEM_STRING_X509);
+                    return readCertificateRequest(pem);
                 } catch (Exception e) {
-                    throw new IOException("problem creating X509 Aux certificate: " + e.toString());
+                    throw new IOException("problem creating X509 REQ: " + e.toString());
                 }
-            } else if(line.indexOf(BEF_G+PEM_STRING_X509_TRUSTED) != -1) {
+            } else {
                 try {
-                    return readAuxCertificate(_in,BEF_E+PEM_STRING_X509_TRUSTED);
+                    return readAuxCertificate(pem);
                 } catch (Exception e) {
                     throw new IOException("problem creating X509 Aux certificate: " + e.toString());
                 }
-            } else if(line.indexOf(BEF_G+PEM_STRING_X509_CRL) != -1) {
-                try {
-                    return readCRL(_in,BEF_E+PEM_STRING_X509_CRL);
-                } catch (Exception e) {
-                    throw new IOException("problem creating X509 CRL: " + e.toString());
-                }
-            } else if(line.indexOf(BEF_G+PEM_STRING_X509_REQ) != -1) {
-                try {
-                    return readCertificateRequest(_in,BEF_E+PEM_STRING_X509_REQ);
-                } catch (Exception e) {
-                    throw new IOException("problem creating X509 REQ: " + e.toString());
-                }
             }
+        } finally {
+            pem.close();
         }
-        return null; 
     }
 
     public static byte[] readPEMToDER(Reader in) throws IOException {
-      BufferedReader _in = makeBuffered(in);
-      String  line;
-      while ((line = _in.readLine()) != null) {
-          if(line.indexOf(BEF_G+PEM_STRING_PUBLIC) != -1) {
-              try {
-                  return readBytes(_in,BEF_E+PEM_STRING_PUBLIC);
-              } catch (Exception e) {
-                  throw new IOException("problem reading PEM public key: " + e.toString());
-              }
-          } else if(line.indexOf(BEF_G+PEM_STRING_DSA) != -1) {
-              try {
-                  return readBytes(_in, BEF_E+PEM_STRING_DSA);
-              } catch (Exception e) {
-                  throw new IOException("problem reading PEM DSA private key: " + e.toString());
-              }
-          } else if(line.indexOf(BEF_G+PEM_STRING_RSA_PUBLIC) != -1) {
-              try {
-                  return readBytes(_in,BEF_E+PEM_STRING_RSA_PUBLIC);
-              } catch (Exception e) {
-                  throw new IOException("problem reading PEM RSA public key: " + e.toString());
-              }
-          } else if(line.indexOf(BEF_G+PEM_STRING_X509_OLD) != -1) {
-              try {
-                  return readBytes(_in,BEF_E+PEM_STRING_X509_OLD);
-              } catch (Exception e) {
-                  throw new IOException("problem reading PEM X509 Aux certificate: " + e.toString());
-              }
-          } else if(line.indexOf(BEF_G+PEM_STRING_X509) != -1) {
-              try {
-                  return readBytes(_in,BEF_E+PEM_STRING_X509);
-              } catch (Exception e) {
-                  throw new IOException("problem reading PEM X509 Aux certificate: " + e.toString());
-              }
-          } else if(line.indexOf(BEF_G+PEM_STRING_X509_TRUSTED) != -1) {
-              try {
-                  return readBytes(_in,BEF_E+PEM_STRING_X509_TRUSTED);
-              } catch (Exception e) {
-                  throw new IOException("problem reading PEM X509 Aux certificate: " + e.toString());
-              }
-          } else if(line.indexOf(BEF_G+PEM_STRING_X509_CRL) != -1) {
-              try {
-                  return readBytes(_in,BEF_E+PEM_STRING_X509_CRL);
-              } catch (Exception e) {
-                  throw new IOException("problem reading PEM X509 CRL: " + e.toString());
-              }
-          } else if(line.indexOf(BEF_G+PEM_STRING_X509_REQ) != -1) {
-              try {
-                  return readBytes(_in,BEF_E+PEM_STRING_X509_REQ);
-              } catch (Exception e) {
-                  throw new IOException("problem reading PEM X509 REQ: " + e.toString());
-              }
-          }
-      }
-      return null; 
-  }
+        PEMTokenizer pem = new PEMTokenizer(makeBuffered(in));
+        try {
+            String label = pem.next(PEM_STRING_PUBLIC, PEM_STRING_DSA, PEM_STRING_RSA_PUBLIC,
+                                    PEM_STRING_X509_OLD, PEM_STRING_X509, PEM_STRING_X509_TRUSTED,
+                                    PEM_STRING_X509_CRL, PEM_STRING_X509_REQ);
+            if(label == null) {
+                return null;
+            }
+            try {
+                return readBytes(pem);
+            } catch (Exception e) {
+                throw new IOException("problem reading PEM " + label + ": " + e.toString());
+            }
+        } finally {
+            pem.close();
+        }
+    }
 
     public static DSAPublicKey readDSAPubKey(Reader in, char[] f) throws IOException {
         //        System.out.println("WARNING: read_DSA_PUBKEY");
         return null;
     }
     public static DSAPublicKey readDSAPublicKey(Reader in, char[] f) throws IOException {
-        BufferedReader _in = makeBuffered(in);
-        String  line;
-        while ((line = _in.readLine()) != null) {
-            if(line.indexOf(BEF_G+PEM_STRING_PUBLIC) != -1) {
+        PEMTokenizer pem = new PEMTokenizer(makeBuffered(in));
+        try {
+            if(pem.next(PEM_STRING_PUBLIC) != null) {
                 try {
-                    return (DSAPublicKey)readPublicKey(_in,"DSA",BEF_E+PEM_STRING_PUBLIC);
+                    return (DSAPublicKey)readPublicKey(pem,"DSA");
                 } catch (Exception e) {
                     throw new IOException("problem creating DSA public key: " + e.toString());
                 }
             }
+            return null;
+        } finally {
+            pem.close();
         }
-        return null; 
     }
     public static KeyPair readDSAPrivateKey(Reader in, char[] f) throws IOException {
-        BufferedReader _in = makeBuffered(in);
-        String  line;
-        while ((line = _in.readLine()) != null) {
-            if(line.indexOf(BEF_G+PEM_STRING_DSA) != -1) {
+        PEMTokenizer pem = new PEMTokenizer(makeBuffered(in));
+        try {
+            if(pem.next(PEM_STRING_DSA) != null) {
                 try {
-                    return readKeyPair(_in,f, "DSA", BEF_E+PEM_STRING_DSA);
+                    return readKeyPair(pem,f, "DSA");
                 } catch (Exception e) {
                     throw new IOException("problem creating DSA private key: " + e.toString());
                 }
             }
+            return null;
+        } finally {
+            pem.close();
         }
-        return null; 
     }
     /** reads an RSA public key encoded in an SubjectPublicKeyInfo RSA structure. */
     public static RSAPublicKey readRSAPubKey(Reader in, char[] f) throws IOException {
-        BufferedReader _in = makeBuffered(in);
-        String  line;
-        while ((line = _in.readLine()) != null) {
-            if(line.indexOf(BEF_G+PEM_STRING_PUBLIC) != -1) {
-                try {
-                    return readRSAPublicKey(_in,BEF_E+PEM_STRING_PUBLIC);
-                } catch (Exception e) {
-                    throw new IOException("problem creating RSA public key: " + e.toString());
-                }
-            } else if(line.indexOf(BEF_G+PEM_STRING_RSA_PUBLIC) != -1) {
+        PEMTokenizer pem = new PEMTokenizer(makeBuffered(in));
+        try {
+            if(pem.next(PEM_STRING_PUBLIC, PEM_STRING_RSA_PUBLIC) != null) {
                 try {
-                    return readRSAPublicKey(_in,BEF_E+PEM_STRING_RSA_PUBLIC);
+                    return readRSAPublicKey(pem);
                 } catch (Exception e) {
                     throw new IOException("problem creating RSA public key: " + e.toString());
                 }
             }
+            return null;
+        } finally {
+            pem.close();
         }
-        return null; 
     }
     /** reads an RSA public key encoded in an PKCS#1 RSA structure. */
     public static RSAPublicKey readRSAPublicKey(Reader in, char[] f) throws IOException {
-        BufferedReader _in = makeBuffered(in);
-        String  line;
-        while ((line = _in.readLine()) != null) {
-            if(line.indexOf(BEF_G+PEM_STRING_PUBLIC) != -1) {
-                try {
-                    return (RSAPublicKey)readPublicKey(_in,"RSA",BEF_E+PEM_STRING_PUBLIC);
-                } catch (Exception e) {
-                    throw new IOException("problem creating RSA public key: " + e.toString());
-                }
-            } else if(line.indexOf(BEF_G+PEM_STRING_RSA_PUBLIC) != -1) {
+        PEMTokenizer pem = new PEMTokenizer(makeBuffered(in));
+        try {
+            if(pem.next(PEM_STRING_PUBLIC, PEM_STRING_RSA_PUBLIC) != null) {
                 try {
-                    return (RSAPublicKey)readPublicKey(_in,"RSA",BEF_E+PEM_STRING_RSA_PUBLIC);
+                    return (RSAPublicKey)readPublicKey(pem,"RSA");
                 } catch (Exception e) {
                     throw new IOException("problem creating RSA public key: " + e.toString());
                 }
             }
+            return null;
+        } finally {
+            pem.close();
         }
-        return null; 
     }
     public static KeyPair readRSAPrivateKey(Reader in, char[] f) throws IOException {
-        BufferedReader _in = makeBuffered(in);
-        String  line;
-        while ((line = _in.readLine()) != null) {
-            if(line.indexOf(BEF_G+PEM_STRING_RSA) != -1) {
+        PEMTokenizer pem = new PEMTokenizer(makeBuffered(in));
+        try {
+            if(pem.next(PEM_STRING_RSA) != null) {
                 try {
-                    return readKeyPair(_in,f, "RSA", BEF_E+PEM_STRING_RSA);
+                    return readKeyPair(pem,f, "RSA");
                 } catch (Exception e) {
                     throw new IOException("problem creating RSA private key: " + e.toString());
                 }
             }
+            return null;
+        } finally {
+            pem.close();
         }
-        return null;
     }
     public static CMSSignedData readPKCS7(Reader in, char[] f) throws IOException {
-        BufferedReader _in = makeBuffered(in);
-        String  line;
-        while ((line = _in.readLine()) != null) {
-            if(line.indexOf(BEF_G+PEM_STRING_PKCS7) != -1) {
+        PEMTokenizer pem = new PEMTokenizer(makeBuffered(in));
+        try {
+            if(pem.next(PEM_STRING_PKCS7) != null) {
                 try {
-                    return readPKCS7(_in,f, BEF_E+PEM_STRING_PKCS7);
+                    return readPKCS7(pem);
                 } catch (Exception e) {
                     throw new IOException("problem creating PKCS7: " + e.toString());
                 }
             }
+            return null;
+        } finally {
+            pem.close();
         }
-        return null;
     }
     public static X509AuxCertificate readX509Certificate(Reader in, char[] f) throws IOException {
-        BufferedReader _in = makeBuffered(in);
-        String  line;
-        while ((line = _in.readLine()) != null) {
-            if(line.indexOf(BEF_G+PEM_STRING_X509_OLD) != -1) {
-                try {
-                    return new X509AuxCertificate(readCertificate(_in,BEF_E+PEM_STRING_X509_OLD));
-                } catch (Exception e) {
-                    throw new IOException("problem creating X509 certificate: " + e.toString());
-                }
-            } else if(line.indexOf(BEF_G+PEM_STRING_X509) != -1) {
-                try {
-                    return new X509AuxCertificate(readCertificate(_in,BEF_E+PEM_STRING_X509));
-                } catch (Exception e) {
-                    throw new IOException("problem creating X509 certificate: " + e.toString());
-                }
-            } else if(line.indexOf(BEF_G+PEM_STRING_X509_TRUSTED) != -1) {
+        PEMTokenizer pem = new PEMTokenizer(makeBuffered(in));
+        try {
+            if(pem.next(PEM_STRING_X509_OLD, PEM_STRING_X509, PEM_STRING_X509_TRUSTED) != null) {
                 try {
-                    return new X509AuxCertificate(readCertificate(_in,BEF_E+PEM_STRING_X509_TRUSTED));
+                    return new X509AuxCertificate(readCertificate(pem));
                 } catch (Exception e) {
                     throw new IOException("problem creating X509 certificate: " + e.toString());
                 }
             }
+            return null;
+        } finally {
+            pem.close();
         }
-        return null;
     }
     public static X509AuxCertificate readX509Aux(Reader in, char[] f) throws IOException {
-        BufferedReader _in = makeBuffered(in);
-        String  line;
-        while ((line = _in.readLine()) != null) {
-            if(line.indexOf(BEF_G+PEM_STRING_X509_OLD) != -1) {
-                try {
-                    return readAuxCertificate(_in,BEF_E+PEM_STRING_X509_OLD);
-                } catch (Exception e) {
-                    throw new IOException("problem creating X509 Aux certificate: " + e.toString());
-                }
-            } else if(line.indexOf(BEF_G+PEM_STRING_X509) != -1) {
-                try {
-                    return readAuxCertificate(_in,BEF_E+PEM_STRING_X509);
-                } catch (Exception e) {
-                    throw new IOException("problem creating X509 Aux certificate: " + e.toString());
-                }
-            } else if(line.indexOf(BEF_G+PEM_STRING_X509_TRUSTED) != -1) {
+        PEMTokenizer pem = new PEMTokenizer(makeBuffered(in));
+        try {
+            if(pem.next(PEM_STRING_X509_OLD, PEM_STRING_X509, PEM_STRING_X509_TRUSTED) != null) {
                 try {
-                    return readAuxCertificate(_in,BEF_E+PEM_STRING_X509_TRUSTED);
+                    return readAuxCertificate(pem);
                 } catch (Exception e) {
                     throw new IOException("problem creating X509 Aux certificate: " + e.toString());
                 }
             }
+            return null;
+        } finally {
+            pem.close();
         }
-        return null;
     }
     public static X509CRL readX509CRL(Reader in, char[] f) throws IOException {
-        BufferedReader _in = makeBuffered(in);
-        String  line;
-        while ((line = _in.readLine()) != null) {
-            if(line.indexOf(BEF_G+PEM_STRING_X509_CRL) != -1) {
+        PEMTokenizer pem = new PEMTokenizer(makeBuffered(in));
+        try {
+            if(pem.next(PEM_STRING_X509_CRL) != null) {
                 try {
-                    return readCRL(_in,BEF_E+PEM_STRING_X509_CRL);
+                    return readCRL(pem);
                 } catch (Exception e) {
                     throw new IOException("problem creating X509 CRL: " + e.toString());
                 }
             }
+            return null;
+        } finally {
+            pem.close();
         }
-        return null;
     }
     public static PKCS10CertificationRequestExt readX509Request(Reader in, char[] f) throws IOException {
-        BufferedReader _in = makeBuffered(in);
-        String  line;
-        while ((line = _in.readLine()) != null) {
-            if(line.indexOf(BEF_G+PEM_STRING_X509_REQ) != -1) {
+        PEMTokenizer pem = new PEMTokenizer(makeBuffered(in));
+        try {
+            if(pem.next(PEM_STRING_X509_REQ) != null) {
                 try {
-                    return readCertificateRequest(_in,BEF_E+PEM_STRING_X509_REQ);
+                    return readCertificateRequest(pem);
                 } catch (Exception e) {
                     throw new IOException("problem creating X509 REQ: " + e.toString());
                 }
             }
+            return null;
+        } finally {
+            pem.close();
         }
-        return null;
     }
 
     public static DHParameterSpec readDHParameters(Reader _in)
     throws IOException, InvalidParameterSpecException {
-        BufferedReader in = makeBuffered(_in);
-        String line;
-        StringBuilder buf = new StringBuilder();
-        while ((line = in.readLine()) != null) {
-            if (line.indexOf(BEF_G + PEM_STRING_DHPARAMS) >= 0) {
-                do {
-                    buf.append(line.trim());
-                } while (line.indexOf(BEF_E + PEM_STRING_DHPARAMS) < 0 &&
-                        (line = in.readLine()) != null);
-                break;
+        PEMTokenizer pem = new PEMTokenizer(makeBuffered(_in));
+        try {
+            if (pem.next(PEM_STRING_DHPARAMS) != null) {
+                try {
+                    pem.readBody();
+                    ASN1InputStream aIn = new ASN1InputStream(pem.bodyStream());
+                    ASN1Sequence seq = (ASN1Sequence)aIn.readObject();
+                    BigInteger p = ((DERInteger)seq.getObjectAt(0)).getValue();
+                    BigInteger g = ((DERInteger)seq.getObjectAt(1)).getValue();
+                    return new DHParameterSpec(p, g);
+                } catch (Exception e) {}
             }
-        }
-        Matcher m = DH_PARAM_PATTERN.matcher(buf.toString());
-        if (m.find()) {
-            try {
-                byte[] decoded = Base64.decode(m.group(DH_PARAM_GROUP));
-                ASN1InputStream aIn = new ASN1InputStream(new ByteArrayInputStream(decoded));
-                ASN1Sequence seq = (ASN1Sequence)aIn.readObject();
-                BigInteger p = ((DERInteger)seq.getObjectAt(0)).getValue();
-                BigInteger g = ((DERInteger)seq.getObjectAt(1)).getValue();
-                return new DHParameterSpec(p, g);
-            } catch (Exception e) {}
+        } finally {
+            pem.close();
         }
         // probably not exactly the intended use of this exception, but
         // close enough for internal throw/catch
@@ -787,22 +700,9 @@ public class PEMInputOutput {
         out.flush();
     }
     
-    private static byte[] readBytes(BufferedReader in, String endMarker) throws IOException {
-        String          line;
-        StringBuffer    buf = new StringBuffer();
-  
-        while ((line = in.readLine()) != null) {
-            if (line.indexOf(endMarker) != -1) {
-                break;
-            }
-            buf.append(line.trim());
-        }
-
-        if (line == null) {
-            throw new IOException(endMarker + " not found");
-        }
-
-        return Base64.decode(buf.toString());
+    private static byte[] readBytes(PEMTokenizer pem) throws IOException {
+        pem.readBody();
+        return pem.bodyBytes();
     }
 
     /**
@@ -822,9 +722,9 @@ public class PEMInputOutput {
         return new javax.crypto.spec.SecretKeySpec(((KeyParameter)pGen.generateDerivedParameters(keyLength * 8)).getKey(), algorithm);
     }
 
-    private static RSAPublicKey readRSAPublicKey(BufferedReader in, String endMarker) throws IOException {
-        ByteArrayInputStream bAIS = new ByteArrayInputStream(readBytes(in,endMarker));
-        ASN1InputStream ais = new ASN1InputStream(bAIS);
+    private static RSAPublicKey readRSAPublicKey(PEMTokenizer pem) throws IOException {
+        pem.readBody();
+        ASN1InputStream ais = new ASN1InputStream(pem.bodyStream());
         Object asnObject = ais.readObject();
         ASN1Sequence sequence = (ASN1Sequence) asnObject;
         RSAPublicKeyStructure rsaPubStructure = new RSAPublicKeyStructure(sequence);
@@ -844,8 +744,8 @@ public class PEMInputOutput {
         return  null;
     }
 
-    private static PublicKey readPublicKey(BufferedReader in, String alg, String endMarker) throws IOException {
-        KeySpec keySpec = new X509EncodedKeySpec(readBytes(in,endMarker));
+    private static PublicKey readPublicKey(PEMTokenizer pem, String alg) throws IOException {
+        KeySpec keySpec = new X509EncodedKeySpec(readBytes(pem));
         try {
             KeyFactory keyFact = KeyFactory.getInstance(alg,OpenSSLReal.PROVIDER);
             PublicKey pubKey = keyFact.generatePublic(keySpec);
@@ -858,8 +758,8 @@ public class PEMInputOutput {
         return null;
     }
 
-    private static PublicKey readPublicKey(BufferedReader in, String endMarker) throws IOException {
-        KeySpec keySpec = new X509EncodedKeySpec(readBytes(in,endMarker));
+    private static PublicKey readPublicKey(PEMTokenizer pem) throws IOException {
+        KeySpec keySpec = new X509EncodedKeySpec(readBytes(pem));
         String[] algs = {"RSA","DSA"};
         for(int i=0;i<algs.length;i++) {
             try {
@@ -878,24 +778,13 @@ public class PEMInputOutput {
     /**
      * Read a Key Pair
      */
-    private static KeyPair readKeyPair(BufferedReader _in, char[] passwd, String type,String endMarker)
+    private static KeyPair readKeyPair(PEMTokenizer pem, char[] passwd, String type)
         throws Exception {
-        boolean         isEncrypted = false;
-        String          line = null;
-        String          dekInfo = null;
-        StringBuffer    buf = new StringBuffer();
+        String          procType = pem.getHeader("Proc-Type");
+        boolean         isEncrypted = procType != null && procType.startsWith("4,ENCRYPTED");
+        String          dekInfo = pem.getHeader("DEK-Info");
 
-        while ((line = _in.readLine()) != null) {
-            if (line.startsWith("Proc-Type: 4,ENCRYPTED")) {
-                isEncrypted = true;
-            } else if (line.startsWith("DEK-Info:")) {
-                dekInfo = line.substring(10);
-            } else if (line.indexOf(endMarker) != -1) {
-                break;
-            } else {
-                buf.append(line.trim());
-            }
-        }
+        pem.readBody();
         byte[]  keyBytes = null;
         if (isEncrypted) {
             StringTokenizer tknz = new StringTokenizer(dekInfo, ",");
@@ -907,7 +796,7 @@ public class PEMInputOutput {
                 Key     sKey = getKey(passwd,alg, 24, iv);
                 Cipher  c = Cipher.getInstance("DESede/CBC/PKCS5Padding", OpenSSLReal.PROVIDER);
                 c.init(Cipher.DECRYPT_MODE, sKey, new IvParameterSpec(iv));
-                keyBytes = c.doFinal(Base64.decode(buf.toString()));
+                keyBytes = c.doFinal(pem.bodyBytes());
             } else if (encoding.equals("DES-CBC")) {
                 String  alg = "DES";
                 byte[]  iv = Hex.decode(tknz.nextToken());
@@ -916,12 +805,12 @@ public class PEMInputOutput {
                                                "DES/CBC/PKCS5Padding", OpenSSLReal.PROVIDER);
 
                 c.init(Cipher.DECRYPT_MODE, sKey, new IvParameterSpec(iv));
-                keyBytes = c.doFinal(Base64.decode(buf.toString()));
+                keyBytes = c.doFinal(pem.bodyBytes());
             } else {
                 throw new IOException("unknown encryption with private key");
             }
         } else {
-            keyBytes = Base64.decode(buf.toString());
+            keyBytes = pem.bodyBytes();
         }
 
         KeySpec                 pubSpec, privSpec;
@@ -979,33 +868,14 @@ public class PEMInputOutput {
      * @return the X509Certificate
      * @throws IOException if an I/O error occured
      */
-    private static X509Certificate readCertificate(BufferedReader in,String  endMarker) throws IOException {
-        String          line;
-        StringBuffer    buf = new StringBuffer();
-  
-        while ((line = in.readLine()) != null)
-        {
-            if (line.indexOf(endMarker) != -1)
-            {
-                break;
-            }
-            buf.append(line.trim());
-        }
-
-        if (line == null)
-        {
-            throw new IOException(endMarker + " not found");
-        }
-
-        ByteArrayInputStream    bIn = new ByteArrayInputStream(
-                                                Base64.decode(buf.toString()));
-
+    private static X509Certificate readCertificate(PEMTokenizer pem) throws IOException {
+        pem.readBody();
         try
         {
             CertificateFactory certFact
                     = CertificateFactory.getInstance("X.509", OpenSSLReal.PROVIDER);
 
-            return (X509Certificate)certFact.generateCertificate(bIn);
+            return (X509Certificate)certFact.generateCertificate(pem.bodyStream());
         }
         catch (Exception e)
         {
@@ -1013,22 +883,9 @@ public class PEMInputOutput {
         }
     }
 
-    private static X509AuxCertificate readAuxCertificate(BufferedReader in,String  endMarker) throws IOException {
-        String          line;
-        StringBuffer    buf = new StringBuffer();
-  
-        while ((line = in.readLine()) != null) {
-            if (line.indexOf(endMarker) != -1) {
-                break;
-            }
-            buf.append(line.trim());
-        }
-
-        if (line == null) {
-            throw new IOException(endMarker + " not found");
-        }
-
-        ASN1InputStream try1 = new ASN1InputStream(Base64.decode(buf.toString()));
+    private static X509AuxCertificate readAuxCertificate(PEMTokenizer pem) throws IOException {
+        pem.readBody();
+        ASN1InputStream try1 = new ASN1InputStream(pem.bodyStream());
         ByteArrayInputStream bIn = new ByteArrayInputStream(((DERObject)try1.readObject()).getEncoded());
 
         try {
@@ -1076,33 +933,14 @@ public class PEMInputOutput {
      * @return the X509CRL
      * @throws IOException if an I/O error occured
      */
-    private static X509CRL readCRL(BufferedReader in, String  endMarker) throws IOException {
-        String          line;
-        StringBuffer    buf = new StringBuffer();
-  
-        while ((line = in.readLine()) != null)
-        {
-            if (line.indexOf(endMarker) != -1)
-            {
-                break;
-            }
-            buf.append(line.trim());
-        }
-
-        if (line == null)
-        {
-            throw new IOException(endMarker + " not found");
-        }
-
-        ByteArrayInputStream    bIn = new ByteArrayInputStream(
-                                                Base64.decode(buf.toString()));
-
+    private static X509CRL readCRL(PEMTokenizer pem) throws IOException {
+        pem.readBody();
         try
         {
             CertificateFactory certFact
                     = CertificateFactory.getInstance("X.509", OpenSSLReal.PROVIDER);
 
-            return (X509CRL)certFact.generateCRL(bIn);
+            return (X509CRL)certFact.generateCRL(pem.bodyStream());
         }
         catch (Exception e)
         {
@@ -1116,27 +954,11 @@ public class PEMInputOutput {
      * @return the certificate request.
      * @throws IOException if an I/O error occured
      */
-    private static PKCS10CertificationRequestExt readCertificateRequest(BufferedReader in, String  endMarker) throws IOException {
-        String          line;
-        StringBuffer    buf = new StringBuffer();
-  
-        while ((line = in.readLine()) != null)
-        {
-            if (line.indexOf(endMarker) != -1)
-            {
-                break;
-            }
-            buf.append(line.trim());
-        }
-
-        if (line == null)
-        {
-            throw new IOException(endMarker + " not found");
-        }
-
+    private static PKCS10CertificationRequestExt readCertificateRequest(PEMTokenizer pem) throws IOException {
+        byte[] bytes = readBytes(pem);
         try
         {
-            return new PKCS10CertificationRequestExt(Base64.decode(buf.toString()));
+            return new PKCS10CertificationRequestExt(bytes);
         }
         catch (Exception e)
         {
@@ -1153,16 +975,11 @@ public class PEMInputOutput {
 
     private static void writeEncoded(BufferedWriter out, byte[] bytes) throws IOException {
         char[]  buf = new char[64];
-        bytes = Base64.encode(bytes);
+        bytes = Base64Codec.encode(bytes);
         for (int i = 0; i < bytes.length; i += buf.length) {
-            int index = 0;
-            
-            while (index != buf.length) {
-                if ((i + index) >= bytes.length) {
-                    break;
-                }
-                buf[index] = (char)bytes[i + index];
-                index++;
+            int index = Math.min(buf.length, bytes.length - i);
+            for (int j = 0; j < index; j++) {
+                buf[j] = (char)bytes[i + j];
             }
             out.write(buf, 0, index);
             out.newLine();
@@ -1176,29 +993,10 @@ public class PEMInputOutput {
      * @return the X509Certificate
      * @throws IOException if an I/O error occured
      */
-    private static CMSSignedData readPKCS7(BufferedReader in, char[] p, String  endMarker) throws IOException {
-        String                                  line;
-        StringBuffer                        buf = new StringBuffer();
-        ByteArrayOutputStream    bOut = new ByteArrayOutputStream();
-  
-        while ((line = in.readLine()) != null) {
-            if (line.indexOf(endMarker) != -1) {
-                break;
-            }
-            line = line.trim();
-            buf.append(line.trim());
-            Base64.decode(buf.substring(0, (buf.length() / 4) * 4), bOut);
-            buf.delete(0, (buf.length() / 4) * 4);
-        }
-        if (buf.length() != 0) {
-            throw new RuntimeException("base64 data appears to be truncated");
-        }
-        if (line == null) {
-            throw new IOException(endMarker + " not found");
-        }
-        ByteArrayInputStream    bIn = new ByteArrayInputStream(bOut.toByteArray());
+    private static CMSSignedData readPKCS7(PEMTokenizer pem) throws IOException {
+        pem.readBody();
         try {
-            ASN1InputStream aIn = new ASN1InputStream(bIn);
+            ASN1InputStream aIn = new ASN1InputStream(pem.bodyStream());
             return new CMSSignedData(ContentInfo.getInstance(aIn.readObject()));
         } catch (Exception e) {
             throw new IOException("problem parsing PKCS7 object: " + e.toString());
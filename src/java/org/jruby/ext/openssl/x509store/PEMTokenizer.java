@@ -0,0 +1,276 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Copyright (C) 2009 The JRuby Community <www.jruby.org>
+ * 
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.x509store;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jruby.ext.openssl.impl.utils.Base64Codec;
+
+/**
+ * Reads PEM objects out of a character stream without building a String
+ * per line: BEGIN/END lines and RFC 1421 headers are recognized in place in
+ * a char buffer, and the Base64 body is decoded as it is scanned into a byte
+ * buffer that is reused from one object to the next.<p>
+ * 
+ * A tokenizer reads ahead of the object it returns; {@link #close()} puts the
+ * underlying reader back right after the last END line consumed, so callers
+ * can keep pulling objects out of one bundle with successive tokenizers (which
+ * is how the PEMInputOutput read methods are used).
+ */
+class PEMTokenizer {
+    private static final String BEGIN = "-----BEGIN ";
+    private static final String END = "-----END ";
+    private static final String DASHES = "-----";
+
+    // keep the decode buffer around between objects on a thread, unless it
+    // grew past this
+    private static final int MAX_CACHED_BODY = 64 * 1024;
+    private static final ThreadLocal<byte[]> bodyBuffers = new ThreadLocal<byte[]>();
+
+    private final BufferedReader in;
+    private char[] buf = new char[4096];
+    private int pos;
+    private int limit;
+    // where the chars read since the last mark() on the reader start in buf
+    private int markStart;
+    private boolean eof;
+
+    private String label;
+    private final Map<String, String> headers = new HashMap<String, String>();
+    private byte[] body;
+    private int bodyLength;
+
+    PEMTokenizer(BufferedReader in) {
+        this.in = in;
+    }
+
+    /**
+     * Skips to the next BEGIN line carrying one of the given labels (or any
+     * label, when none are given) and reads its headers. Returns the label,
+     * or null if the input ends first.
+     */
+    String next(String... labels) throws IOException {
+        label = null;
+        headers.clear();
+        bodyLength = 0;
+        int lineEnd;
+        while ((lineEnd = nextLine()) >= 0) {
+            String found = beginLabel(pos, lineEnd);
+            pos = lineEnd;
+            if (found != null && (labels.length == 0 || contains(labels, found))) {
+                label = found;
+                readHeaders();
+                return label;
+            }
+        }
+        return null;
+    }
+
+    String getLabel() {
+        return label;
+    }
+
+    String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Decodes the body of the current object, up to its END line. The decoded
+     * bytes stay in a buffer owned by this tokenizer until the next call;
+     * see {@link #bodyStream()} and {@link #bodyBytes()}.
+     */
+    void readBody() throws IOException {
+        if (body == null) {
+            body = bodyBuffers.get();
+            if (body == null) body = new byte[2048];
+            bodyBuffers.set(null);
+        }
+        Base64Codec.Decoder decoder = new Base64Codec.Decoder();
+        int length = 0;
+        int lineEnd;
+        while ((lineEnd = nextLine()) >= 0) {
+            if (startsWith(pos, lineEnd, END)) {
+                pos = lineEnd;
+                decoder.doFinal();
+                bodyLength = length;
+                return;
+            }
+            int need = length + decoder.maxOutput(lineEnd - pos);
+            if (need > body.length) grow(need);
+            length += decoder.update(buf, pos, lineEnd - pos, body, length);
+            pos = lineEnd;
+        }
+        throw new IOException(END + label + DASHES + " not found");
+    }
+
+    ByteArrayInputStream bodyStream() {
+        return new ByteArrayInputStream(body, 0, bodyLength);
+    }
+
+    byte[] bodyBytes() {
+        byte[] copy = new byte[bodyLength];
+        System.arraycopy(body, 0, copy, 0, bodyLength);
+        return copy;
+    }
+
+    /**
+     * Repositions the reader right after the input consumed so far, and gives
+     * back the decode buffer.
+     */
+    void close() throws IOException {
+        // chars buffered before the last mark can't be given back; that only
+        // happens when a caller gives up between next() and readBody()
+        if (!eof && limit > 0 && pos >= markStart) {
+            in.reset();
+            in.skip(pos - markStart);
+            limit = pos = markStart = 0;
+        }
+        if (body != null) {
+            java.util.Arrays.fill(body, 0, bodyLength, (byte)0);
+            if (body.length <= MAX_CACHED_BODY) bodyBuffers.set(body);
+            body = null;
+        }
+    }
+
+    private void readHeaders() throws IOException {
+        // RFC 1421 style "Name: value" lines, up to the first line without
+        // a colon; a blank separator line is consumed with them
+        int lineEnd;
+        while ((lineEnd = nextLine()) >= 0) {
+            int colon = -1;
+            for (int i = pos; i < lineEnd; i++) {
+                if (buf[i] == ':') {
+                    colon = i;
+                    break;
+                }
+            }
+            if (colon < 0) {
+                if (isBlank(pos, lineEnd)) pos = lineEnd;
+                return;
+            }
+            String name = new String(buf, pos, colon - pos).trim();
+            String value = new String(buf, colon + 1, lineEnd - colon - 1).trim();
+            headers.put(name, value);
+            pos = lineEnd;
+        }
+    }
+
+    /**
+     * Makes sure a complete line starting at pos is buffered, and returns the
+     * index just past its terminator; -1 at end of input.
+     */
+    private int nextLine() throws IOException {
+        int scan = pos;
+        while (true) {
+            for (; scan < limit; scan++) {
+                if (buf[scan] == '\n') return scan + 1;
+            }
+            int scanned = scan - pos;
+            if (eof || !fill()) {
+                return pos < limit ? limit : -1;
+            }
+            scan = pos + scanned;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            char[] bigger = new char[buf.length * 2];
+            System.arraycopy(buf, 0, bigger, 0, limit);
+            buf = bigger;
+        }
+        int space = buf.length - limit;
+        in.mark(space);
+        markStart = limit;
+        int n = in.read(buf, limit, space);
+        if (n <= 0) {
+            eof = true;
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    private String beginLabel(int start, int end) {
+        start = trimStart(start, end);
+        end = trimEnd(start, end);
+        if (!startsWith(start, end, BEGIN) || end - start < BEGIN.length() + DASHES.length()) {
+            return null;
+        }
+        for (int i = 0; i < DASHES.length(); i++) {
+            if (buf[end - DASHES.length() + i] != '-') return null;
+        }
+        return new String(buf, start + BEGIN.length(), end - start - BEGIN.length() - DASHES.length());
+    }
+
+    private boolean startsWith(int start, int end, String prefix) {
+        start = trimStart(start, end);
+        if (end - start < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buf[start + i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private int trimStart(int start, int end) {
+        while (start < end && (buf[start] == ' ' || buf[start] == '\t')) start++;
+        return start;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && buf[end - 1] <= ' ') end--;
+        return end;
+    }
+
+    private boolean isBlank(int start, int end) {
+        return trimEnd(start, end) == start;
+    }
+
+    private void grow(int minimum) {
+        byte[] bigger = new byte[Math.max(minimum, body.length * 2)];
+        System.arraycopy(body, 0, bigger, 0, body.length);
+        java.util.Arrays.fill(body, (byte)0);
+        body = bigger;
+    }
+
+    private static boolean contains(String[] labels, String label) {
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i].equals(label)) return true;
+        }
+        return false;
+    }
+}
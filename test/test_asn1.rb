@@ -0,0 +1,216 @@
+if defined?(JRUBY_VERSION)
+  require "java"
+  base = File.dirname(__FILE__)
+  $CLASSPATH << File.join(base, '..', 'pkg', 'classes')
+  $CLASSPATH << File.join(base, '..', 'lib', 'bcprov-jdk14-139.jar')
+end
+
+begin
+  require "openssl"
+rescue LoadError
+end
+
+require "test/unit"
+require "stringio"
+
+class TestASN1 < Test::Unit::TestCase
+  def test_decode_integers
+    [0, 1, -1, 127, 128, -129, 2**31, 2**62, 2**64 + 5, -(2**70)].each do |i|
+      asn1 = OpenSSL::ASN1.decode(OpenSSL::ASN1::Integer.new(i).to_der)
+      assert_equal OpenSSL::ASN1::Integer, asn1.class
+      assert_equal i, asn1.value
+      assert_equal i.class, asn1.value.class
+    end
+  end
+
+  def test_decode_sets_universal_attributes
+    asn1 = OpenSSL::ASN1.decode(OpenSSL::ASN1::Sequence.new([OpenSSL::ASN1::Boolean.new(true)]).to_der)
+    assert_equal OpenSSL::ASN1::SEQUENCE, asn1.tag
+    assert_equal :UNIVERSAL, asn1.tag_class
+    assert_nil asn1.tagging
+    bool = asn1.value.first
+    assert_equal OpenSSL::ASN1::BOOLEAN, bool.tag
+    assert_equal true, bool.value
+    assert_equal :UNIVERSAL, bool.tag_class
+  end
+
+  def test_decode_tagged
+    der = "\xa0\x03\x02\x01\x05"
+    asn1 = OpenSSL::ASN1.decode(der)
+    assert_equal OpenSSL::ASN1::ASN1Data, asn1.class
+    assert_equal 0, asn1.tag
+    assert_equal :CONTEXT_SPECIFIC, asn1.tag_class
+    assert_equal 5, asn1.value.first.value
+  end
+
+  def test_decode_object_id
+    asn1 = OpenSSL::ASN1.decode(OpenSSL::ASN1::ObjectId.new("2.5.4.3").to_der)
+    assert_equal "2.5.4.3", asn1.value
+    asn1 = OpenSSL::ASN1.decode("\x06\x03\x2a\x03\x04")
+    assert_equal "1.2.3.4", asn1.value
+  end
+
+  def test_decode_utc_time
+    asn1 = OpenSSL::ASN1.decode("\x17\x0d091231235959Z")
+    assert_equal OpenSSL::ASN1::UTCTime, asn1.class
+    assert_equal Time.utc(2009, 12, 31, 23, 59, 59), asn1.value
+    assert !asn1.value.utc?
+    asn1 = OpenSSL::ASN1.decode("\x17\x0d500101000000Z")
+    assert_equal Time.utc(1950, 1, 1), asn1.value
+    asn1 = OpenSSL::ASN1.decode("\x17\x11091231235959+0130")
+    assert_equal Time.utc(2009, 12, 31, 22, 29, 59), asn1.value
+  end
+
+  def test_decode_generalized_time
+    asn1 = OpenSSL::ASN1.decode("\x18\x0f20500228120000Z")
+    assert_equal OpenSSL::ASN1::GeneralizedTime, asn1.class
+    assert_equal Time.utc(2050, 2, 28, 12), asn1.value
+    asn1 = OpenSSL::ASN1.decode("\x18\x1319991231235959.250Z")
+    assert_equal Time.utc(1999, 12, 31, 23, 59, 59).to_i, asn1.value.to_i
+    assert_equal 250000, asn1.value.usec
+  end
+
+  def test_decode_time_round_trip
+    time = Time.at(Time.now.to_i)
+    der = OpenSSL::ASN1::UTCTime.new(time).to_der
+    assert_equal time, OpenSSL::ASN1.decode(der).value
+    assert_equal der, OpenSSL::ASN1.decode(der).to_der
+  end
+
+  def test_decode_times_from_threads
+    expected = (0...40).map { |i| Time.utc(2000 + i, 1 + i % 12, 1 + i % 28, i % 24) }
+    ders = expected.map { |t| OpenSSL::ASN1::UTCTime.new(t).to_der }
+    threads = (0...4).map do
+      Thread.new { Array.new(50) { ders.map { |der| OpenSSL::ASN1.decode(der).value } } }
+    end
+    threads.each do |t|
+      t.value.each { |times| assert_equal expected, times }
+    end
+  end
+
+  def test_object_id_names
+    oid = OpenSSL::ASN1::ObjectId.new("commonName")
+    assert_equal "2.5.4.3", oid.oid
+    assert_equal "cn", oid.sn
+    assert_equal "commonname", oid.ln
+  end
+
+  def test_object_id_register
+    assert OpenSSL::ASN1::ObjectId.register("1.3.6.1.4.1.99999.1", "jrubyTestOid", "JRuby test OID")
+    oid = OpenSSL::ASN1::ObjectId.new("jrubyTestOid")
+    assert_equal "1.3.6.1.4.1.99999.1", oid.oid
+    assert_equal "JRuby test OID".downcase, oid.ln
+    assert_equal "JRuby test OID".downcase, OpenSSL::ASN1.decode(oid.to_der).ln
+    assert_equal "2.5.4.3", OpenSSL::ASN1::ObjectId.new("CN").oid
+  end
+
+  def objects
+    [OpenSSL::ASN1::Integer.new(2**80),
+     OpenSSL::ASN1::Sequence.new([OpenSSL::ASN1::OctetString.new("x" * 300)]),
+     OpenSSL::ASN1::ObjectId.new("2.5.4.3"),
+     OpenSSL::ASN1::Boolean.new(false)]
+  end
+
+  def assert_decoded(expected, actual)
+    assert_equal expected.map { |o| o.to_der }, actual.map { |o| o.to_der }
+  end
+
+  def test_decode_all
+    der = objects.map { |o| o.to_der }.join
+    assert_decoded objects, OpenSSL::ASN1.decode_all(der)
+    assert_equal [], OpenSSL::ASN1.decode_all("")
+  end
+
+  def test_decoder_on_io
+    der = objects.map { |o| o.to_der }.join * 50
+    decoder = OpenSSL::ASN1::Decoder.new(StringIO.new(der))
+    assert_decoded objects * 50, decoder.to_a
+    assert_nil decoder.next
+    assert_equal 0, decoder.pending
+  end
+
+  def test_decoder_fed_bytes
+    der = objects.map { |o| o.to_der }.join
+    decoder = OpenSSL::ASN1::Decoder.new
+    decoded = []
+    der.scan(/.{1,7}/m).each do |piece|
+      decoder << piece
+      while obj = decoder.next
+        decoded << obj
+      end
+    end
+    assert_decoded objects, decoded
+    assert_equal 0, decoder.pending
+    decoder << "\x02\x01"
+    assert_nil decoder.next
+    assert_equal 2, decoder.pending
+  end
+
+  def test_decoder_truncated_io
+    der = OpenSSL::ASN1::Integer.new(1).to_der + OpenSSL::ASN1::Integer.new(2**80).to_der[0, 5]
+    decoder = OpenSSL::ASN1::Decoder.new(StringIO.new(der))
+    assert_equal 1, decoder.next.value
+    assert_raise(OpenSSL::ASN1::ASN1Error) { decoder.next }
+  end
+
+  def test_decoder_short_read_of_declared_length
+    decoder = OpenSSL::ASN1::Decoder.new(StringIO.new("\x04\x84\x7f\xff\xff\xff" + "abc"))
+    assert_raise(OpenSSL::ASN1::ASN1Error) { decoder.next }
+  end
+
+  def test_decoder_malformed_contents
+    ["\x02\x00", "\x03\x00"].each do |der|
+      assert_raise(ArgumentError) { OpenSSL::ASN1.decode(der) }
+      decoder = OpenSSL::ASN1::Decoder.new(StringIO.new(der))
+      assert_raise(ArgumentError) { decoder.next }
+    end
+  end
+
+  def test_decoder_rejects_indefinite_length
+    decoder = OpenSSL::ASN1::Decoder.new(StringIO.new("\x30\x80\x02\x01\x01\x00\x00"))
+    assert_raise(OpenSSL::ASN1::ASN1Error) { decoder.next }
+  end
+
+  def test_to_der_primitives
+    assert_equal "\x02\x01\x00", OpenSSL::ASN1::Integer.new(0).to_der
+    assert_equal "\x02\x02\x00\x80", OpenSSL::ASN1::Integer.new(128).to_der
+    assert_equal "\x02\x02\xff\x7f", OpenSSL::ASN1::Integer.new(-129).to_der
+    assert_equal "\x02\x09\x01" + "\x00" * 8, OpenSSL::ASN1::Integer.new(2**64).to_der
+    assert_equal "\x02\x01\x05", OpenSSL::ASN1::Integer.new(OpenSSL::BN.new("5")).to_der
+    assert_equal "\x01\x01\xff", OpenSSL::ASN1::Boolean.new(true).to_der
+    assert_equal "\x05\x00", OpenSSL::ASN1::Null.new(nil).to_der
+    assert_equal "\x04\x81\x80" + "a" * 128, OpenSSL::ASN1::OctetString.new("a" * 128).to_der
+    assert_equal "\x03\x03\x0f\x80\x00", OpenSSL::ASN1::BitString.new("\x80\x00").to_der
+    assert_equal "\x13\x03abc", OpenSSL::ASN1::PrintableString.new("abc").to_der
+    assert_equal "\x1e\x04\x00h\x00i", OpenSSL::ASN1::BMPString.new("hi").to_der
+    assert_equal "\x06\x03\x55\x04\x03", OpenSSL::ASN1::ObjectId.new("CN").to_der
+    assert_equal "\x17\x0d090213233130Z", OpenSSL::ASN1::UTCTime.new(Time.at(1234567890)).to_der
+  end
+
+  def test_to_der_constructed
+    seq = OpenSSL::ASN1::Sequence.new([OpenSSL::ASN1::Integer.new(1),
+                                       OpenSSL::ASN1::Sequence.new([OpenSSL::ASN1::Null.new(nil)])])
+    assert_equal "\x30\x07\x02\x01\x01\x30\x02\x05\x00", seq.to_der
+    long = OpenSSL::ASN1::Sequence.new([OpenSSL::ASN1::OctetString.new("z" * 300)])
+    assert_equal "\x30\x82\x01\x30\x04\x82\x01\x2c" + "z" * 300, long.to_der
+    set = OpenSSL::ASN1::Set.new([OpenSSL::ASN1::OctetString.new("ab"),
+                                  OpenSSL::ASN1::Integer.new(2),
+                                  OpenSSL::ASN1::OctetString.new("a")])
+    assert_equal "\x31\x0a\x02\x01\x02\x04\x01a\x04\x02ab", set.to_der
+  end
+
+  def test_to_der_tagged
+    one = OpenSSL::ASN1::ASN1Data.new([OpenSSL::ASN1::Integer.new(1)], 0, :CONTEXT_SPECIFIC)
+    assert_equal "\xa0\x03\x02\x01\x01", one.to_der
+    two = OpenSSL::ASN1::ASN1Data.new([OpenSSL::ASN1::Integer.new(1), OpenSSL::ASN1::Integer.new(2)], 3, :CONTEXT_SPECIFIC)
+    assert_equal "\xa3\x08\x30\x06\x02\x01\x01\x02\x01\x02", two.to_der
+    seq = OpenSSL::ASN1::Sequence.new([OpenSSL::ASN1::ASN1Data.new(OpenSSL::ASN1::Integer.new(5), 1, :CONTEXT_SPECIFIC)])
+    assert_equal "\x30\x05\xa1\x03\x02\x01\x05", seq.to_der
+  end
+
+  def test_to_der_round_trip
+    objects.each do |obj|
+      assert_equal obj.to_der, OpenSSL::ASN1.decode(obj.to_der).to_der
+    end
+  end
+end
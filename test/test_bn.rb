@@ -0,0 +1,143 @@
+if defined?(JRUBY_VERSION)
+  require "java"
+  base = File.dirname(__FILE__)
+  $CLASSPATH << File.join(base, '..', 'pkg', 'classes')
+  $CLASSPATH << File.join(base, '..', 'lib', 'bcprov-jdk14-139.jar')
+end
+
+begin
+  require "openssl"
+rescue LoadError
+end
+
+require "test/unit"
+require "timeout"
+
+class TestBN < Test::Unit::TestCase
+  # 2**127 - 1
+  P = OpenSSL::BN.new("7FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF", 16)
+
+  def test_inplace_arithmetic_matches_immutable
+    a = OpenSSL::BN.new("123456789012345678901234567890")
+    b = OpenSSL::BN.new("987654321")
+    [
+      [:add!, :+, [b]],
+      [:sub!, :-, [b]],
+      [:mul!, :*, [b]],
+      [:mod!, :%, [b]],
+      [:mod_add!, :mod_add, [b, P]],
+      [:mod_sub!, :mod_sub, [b, P]],
+      [:mod_mul!, :mod_mul, [b, P]],
+      [:mod_exp!, :mod_exp, [b, P]],
+      [:mod_inverse!, :mod_inverse, [P]],
+      [:lshift!, :<<, [17]],
+      [:rshift!, :>>, [17]],
+    ].each do |bang, op, args|
+      expected = a.send(op, *args)
+      x = a.dup
+      assert_same x, x.send(bang, *args)
+      assert_equal expected, x, bang.to_s
+    end
+    assert_equal a.sqr, a.dup.sqr!
+    assert_equal a.mod_sqr(P), a.dup.mod_sqr!(P)
+  end
+
+  def test_inplace_does_not_touch_operand
+    a = OpenSSL::BN.new("10")
+    b = OpenSSL::BN.new("3")
+    a.add!(b).mul!(b)
+    assert_equal OpenSSL::BN.new("39"), a
+    assert_equal OpenSSL::BN.new("3"), b
+  end
+
+  def test_inplace_mod_by_zero
+    assert_raise(ZeroDivisionError) { OpenSSL::BN.new("10").mod!(0) }
+    assert_raise(ZeroDivisionError) { OpenSSL::BN.new("10").mod_mul!(3, 0) }
+  end
+
+  def test_generate_prime
+    [32, 64, 256].each do |bits|
+      p = OpenSSL::BN.generate_prime(bits, false)
+      assert_equal bits, p.num_bits
+      assert p.prime?
+    end
+  end
+
+  def test_generate_safe_prime
+    [16, 64, 512].each do |bits|
+      p = OpenSSL::BN.generate_prime(bits, true)
+      assert_equal bits, p.num_bits
+      assert p.prime?
+      assert ((p - 1) >> 1).prime?
+    end
+  end
+
+  def test_generate_prime_with_add_and_rem
+    add = OpenSSL::BN.new("10")
+    rem = OpenSSL::BN.new("3")
+    p = OpenSSL::BN.generate_prime(256, true, add, rem)
+    assert_equal 256, p.num_bits
+    assert_equal rem, p % add
+    assert ((p - 1) >> 1).prime?
+    assert_raise(ArgumentError) { OpenSSL::BN.generate_prime(256, false, 10, 4) }
+  end
+
+  def test_generate_prime_rejects_add_and_rem_sharing_a_factor
+    # every candidate is a multiple of 3
+    assert_raise(ArgumentError) { OpenSSL::BN.generate_prime(256, false, 3, 0) }
+    # p = 1 mod 6 makes (p-1)/2 a multiple of 3
+    assert_raise(ArgumentError) { OpenSSL::BN.generate_prime(256, true, 6, 1) }
+  end
+
+  def test_generate_small_prime_checks_add_and_rem
+    assert_raise(ArgumentError) { OpenSSL::BN.generate_prime(32, false, 6, 4) }
+    p = OpenSSL::BN.generate_prime(32, false, 10, 13)
+    assert_equal 32, p.num_bits
+    assert_equal 3, p % 10
+  end
+
+  def test_generate_prime_rejects_add_beyond_bits
+    assert_raise(ArgumentError) { OpenSSL::BN.generate_prime(64, false, 2**80, 3) }
+    assert_raise(ArgumentError) { OpenSSL::BN.generate_prime(16, false, 2**16, 3) }
+  end
+
+  def test_generate_prime_can_be_interrupted
+    start = Time.now
+    assert_raise(Timeout::Error) do
+      Timeout.timeout(0.5) { OpenSSL::BN.generate_prime(8192, true) }
+    end
+    assert Time.now - start < 5
+  end
+
+  def test_mont_context_matches_bn
+    ctx = OpenSSL::BN::MontContext.new(P)
+    assert_equal P, ctx.modulus
+    a = OpenSSL::BN.new("123456789012345678901234567890")
+    b = OpenSSL::BN.new("-987654321")
+    assert_equal a.mod_mul(b, P), ctx.mod_mul(a, b)
+    assert_equal a.mod_exp(a, P), ctx.mod_exp(a, a)
+    assert_equal OpenSSL::BN.new("1"), ctx.mod_exp(a, 0)
+  end
+
+  def test_mont_context_precomputed_base
+    ctx = OpenSSL::BN::MontContext.new(P)
+    g = OpenSSL::BN.new("3")
+    assert !ctx.precomputed?(g)
+    assert_same ctx, ctx.precompute(g)
+    assert ctx.precomputed?(g)
+    [0, 1, 2, 63, 64, 65].each do |e|
+      assert_equal g.mod_exp(e, P), ctx.mod_exp(g, e)
+    end
+    20.times do
+      e = OpenSSL::BN.rand(127, -1)
+      assert_equal g.mod_exp(e, P), ctx.mod_exp(g, e)
+    end
+    # wider than the table
+    e = OpenSSL::BN.rand(300)
+    assert_equal g.mod_exp(e, P), ctx.mod_exp(g, e)
+  end
+
+  def test_mont_context_requires_odd_modulus
+    assert_raise(OpenSSL::BNError) { OpenSSL::BN::MontContext.new(OpenSSL::BN.new("10")) }
+  end
+end
@@ -43,6 +43,37 @@ class TestCipher < Test::Unit::TestCase
                      )
   end
 
+  def test_dup_of_keyed_template
+    template = OpenSSL::Cipher::Cipher.new("aes-128-cbc")
+    template.encrypt
+    template.key = KEY_TEMPLATE[0, 16]
+    template.iv = IV_TEMPLATE[0, 16]
+    first = template.dup
+    expected = first.update("foobarbazboofarf") + first.final
+
+    copies = (0...5).map { template.dup }
+    copies.each do |c|
+      assert_equal expected, c.update("foobarbazboofarf") + c.final
+    end
+    assert_equal 16, copies.first.block_size
+    assert_equal expected, template.update("foobarbazboofarf") + template.final
+  end
+
+  def test_padding_keeps_lengths
+    cipher = OpenSSL::Cipher::Cipher.new("des-ede3-cbc")
+    cipher.padding = 0
+    assert_equal 24, cipher.key_len
+    assert_equal 8, cipher.iv_len
+    cipher.padding = 1
+    assert_equal 24, cipher.key_len
+    assert_equal "des-ede3-cbc", cipher.name
+  end
+
+  def test_unknown_cipher
+    assert_raise(LoadError) { OpenSSL::Cipher::Cipher.new("nosuch-128-cbc") }
+    assert_raise(LoadError) { OpenSSL::Cipher::Cipher.new("nosuch-128-cbc") }
+  end
+
   private
   def do_repeated_test(algo, string, enc1, enc2)
     do_repeated_encrypt_test(algo, string, enc1, enc2)
@@ -35,6 +35,8 @@ if defined?(JRUBY_VERSION)
     IssuerAndSerialNumber = org.bouncycastle.asn1.pkcs.IssuerAndSerialNumber unless defined?(IssuerAndSerialNumber)
     ASN1InputStream = org.bouncycastle.asn1.ASN1InputStream unless defined?(ASN1InputStream)
     X509AuxCertificate = org.jruby.ext.openssl.x509store.X509AuxCertificate unless defined?(X509AuxCertificate)
+    Store = org.jruby.ext.openssl.x509store.Store unless defined?(Store)
+    EVP = org.jruby.ext.openssl.impl.EVP unless defined?(EVP)
     
     ArrayList = java.util.ArrayList unless defined?(ArrayList)
     CertificateFactory = java.security.cert.CertificateFactory unless defined?(CertificateFactory)
@@ -91,8 +93,11 @@ CRL
   end
   
   require File.join(File.dirname(__FILE__), 'test_java_attribute')
+  require File.join(File.dirname(__FILE__), 'test_java_base64')
   require File.join(File.dirname(__FILE__), 'test_java_bio')
+  require File.join(File.dirname(__FILE__), 'test_java_cipher_strings')
   require File.join(File.dirname(__FILE__), 'test_java_mime')
   require File.join(File.dirname(__FILE__), 'test_java_pkcs7')
+  require File.join(File.dirname(__FILE__), 'test_java_pem')
   require File.join(File.dirname(__FILE__), 'test_java_smime')
 end
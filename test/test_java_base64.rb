@@ -0,0 +1,73 @@
+module Base64CodecTest
+  Base64Codec = org.jruby.ext.openssl.impl.utils.Base64Codec unless defined?(Base64Codec)
+  BIO = org.jruby.ext.openssl.impl.BIO unless defined?(BIO)
+
+  class TestJavaBase64Codec < Test::Unit::TestCase
+    def sample(n)
+      (0...n).map { |i| (i * 37 + 11) % 256 }.pack("C*")
+    end
+
+    def encode(str)
+      String.from_java_bytes(Base64Codec.encode(str.to_java_bytes))
+    end
+
+    def decode(str)
+      bytes = str.to_java_bytes
+      String.from_java_bytes(Base64Codec.decode(bytes, 0, bytes.length))
+    end
+
+    def test_round_trip_against_pack
+      [0, 1, 2, 3, 4, 5, 47, 48, 49, 1000].each do |n|
+        data = sample(n)
+        assert_equal [data].pack("m").delete("\n"), encode(data)
+        assert_equal data, decode([data].pack("m"))
+      end
+    end
+
+    def test_encoder_in_pieces_wraps_lines
+      data = sample(1000)
+      enc = Base64Codec::Encoder.new(64, Base64Codec::NEWLINE)
+      out = Java::byte[2000].new
+      n = 0
+      bytes = data.to_java_bytes
+      [1, 2, 7, 100, 3, 887].inject(0) do |off, len|
+        n += enc.update(bytes, off, len, out, n)
+        off + len
+      end
+      n += enc.doFinal(out, n)
+      text = String.from_java_bytes(out)[0, n]
+      lines = text.split("\n")
+      assert lines[0...-1].all? { |l| l.length == 64 }
+      assert_equal "\n", text[-1, 1]
+      assert_equal data, decode(text)
+    end
+
+    def test_decoder_skips_whitespace_and_stops_at_dashes
+      assert_equal "abcdef", decode(" YWJj\r\n ZGVm \n-----END X-----\n")
+    end
+
+    def test_decoder_rejects_bad_input
+      assert_raise(NativeException) { decode("YWJ") }
+      assert_raise(NativeException) { decode("YW*j") }
+      assert_raise(NativeException) { decode("YQ==YWJj") }
+    end
+
+    def test_base64_filter_round_trip
+      data = sample(10000)
+      mem = BIO.mem
+      b64 = BIO.base64Filter(mem)
+      bytes = data.to_java_bytes
+      b64.write(bytes, 0, 5000)
+      b64.write(bytes, 5000, 5000)
+      b64.flush
+
+      back = BIO.base64Filter(mem)
+      arr = Java::byte[20000].new
+      read = 0
+      while (n = back.read(arr, read, 20000 - read)) > 0
+        read += n
+      end
+      assert_equal data, String.from_java_bytes(arr)[0, read]
+    end
+  end
+end
@@ -38,5 +38,131 @@ module PKCS7Test
       read = bio.gets(arr, 10)
       assert_equal 0, read
     end
+
+    def test_mem_bio_reads_across_segments
+      bio = BIO::mem
+      chunk = ("x" * 5000 + "\n").to_java_bytes
+      3.times { bio.write(chunk, 0, chunk.length) }
+      assert_equal 15003, bio.pending
+
+      line = Java::byte[6000].new
+      assert_equal 5001, bio.gets(line, 6000)
+      arr = Java::byte[10000].new
+      assert_equal 10000, bio.read(arr, 0, 10000)
+      assert_equal 2, bio.pending
+      assert_equal [120, 10], bio.mem_copy.to_a
+    end
+
+    def test_mem_bio_keeps_small_after_reads
+      bio = BIO::mem
+      chunk = ("y" * 1000).to_java_bytes
+      arr = Java::byte[1000].new
+      1000.times do
+        bio.write(chunk, 0, chunk.length)
+        assert_equal 1000, bio.read(arr, 0, 1000)
+      end
+      assert_equal 0, bio.pending
+      assert_equal 0, bio.read(arr, 0, 1000)
+    end
+
+    def test_mem_buffer_joins_segments
+      bio = BIO::mem
+      chunk = ("z" * 5000).to_java_bytes
+      2.times { bio.write(chunk, 0, chunk.length) }
+      mem = bio.mem_buffer
+      assert_equal 10000, mem.remaining
+      assert_same mem.array, bio.mem_buffer.array
+    end
+
+    def test_mem_buf_reads_in_place_and_rewinds
+      bytes = "abcdef".to_java_bytes
+      bio = BIO::memBuf(bytes, 1, 4)
+      assert_same bytes, bio.mem_buffer.array
+      arr = Java::byte[10].new
+      assert_equal 4, bio.read(arr, 0, 10)
+      assert_equal "bcde".to_java_bytes.to_a, arr.to_a[0...4]
+      bio.reset
+      assert_equal 4, bio.pending
+      assert_raise(NativeException) { bio.write(bytes, 0, 1) }
+    end
+
+    def test_md_filter_updates_all_digests_in_one_pass
+      sha1 = EVP.getDigest(ASN1Registry::NID_sha1)
+      sha256 = EVP.getDigest(ASN1Registry::NID_sha256)
+      bio = BIO::mdFilter(sha1)
+      bio.add(sha256)
+      bio.add(EVP.getDigest(ASN1Registry::NID_sha1))
+      bio.push(BIO::mem)
+      data = "digest me".to_java_bytes
+      bio.write(data, 0, data.length)
+
+      assert_same sha1, bio.getMessageDigest(ASN1Registry::NID_sha1)
+      assert_same sha256, bio.getMessageDigest(ASN1Registry::NID_sha256)
+      assert_nil bio.getMessageDigest(ASN1Registry::NID_md5)
+      assert_equal java.security.MessageDigest.getInstance("SHA-256").digest(data).to_a, sha256.digest.to_a
+      assert_equal java.security.MessageDigest.getInstance("SHA-1").digest(data).to_a, sha1.digest.to_a
+    end
+
+    def test_base64_filter_write_after_flush
+      data = ("flushed first " * 1000).to_java_bytes
+      encoded = BIO::mem
+      bio = BIO::base64Filter(encoded)
+      bio.flush
+      bio.write(data, 0, data.length)
+      bio.flush
+      out = encoded.mem_copy
+      decoded = org.jruby.ext.openssl.impl.utils.Base64Codec.decode(out, 0, out.length)
+      assert_equal data.to_a, decoded.to_a
+    end
+
+    def aes(mode)
+      cipher = javax.crypto.Cipher.getInstance("AES/CBC/PKCS5Padding")
+      key = javax.crypto.spec.SecretKeySpec.new(("k" * 16).to_java_bytes, "AES")
+      cipher.init(mode, key, javax.crypto.spec.IvParameterSpec.new(("i" * 16).to_java_bytes))
+      cipher
+    end
+
+    def test_cipher_filter_round_trips_across_chunks
+      data = (0...50000).map { |i| (i % 251).chr }.join.to_java_bytes
+      encrypted = BIO::mem
+      bio = BIO::cipherFilter(aes(javax.crypto.Cipher::ENCRYPT_MODE))
+      bio.push(encrypted)
+      bio.write(data, 0, 7)
+      bio.write(data, 7, data.length - 7)
+      bio.flush
+      assert_equal aes(javax.crypto.Cipher::ENCRYPT_MODE).doFinal(data).to_a, encrypted.mem_copy.to_a
+
+      bio = BIO::cipherFilter(aes(javax.crypto.Cipher::DECRYPT_MODE))
+      bio.push(BIO::memBuf(encrypted.mem_copy))
+      arr = Java::byte[data.length + 100].new
+      read = 0
+      [1, 15, 17, 20000, 100000].each do |len|
+        read += bio.read(arr, read, [len, arr.length - read].min)
+      end
+      assert_equal data.length, read
+      assert_equal 0, bio.read(arr, read, 10)
+      assert_equal data.to_a, arr.to_a[0...read]
+    end
+
+    def test_cipher_filter_with_direct_buffers
+      data = ("direct" * 5000).to_java_bytes
+      encrypted = BIO::mem
+      bio = BIO::cipherFilter(aes(javax.crypto.Cipher::ENCRYPT_MODE))
+      bio.push(encrypted)
+      src = java.nio.ByteBuffer.allocateDirect(data.length)
+      src.put(data).flip
+      assert_equal data.length, bio.write(src)
+      assert !src.hasRemaining
+      bio.flush
+
+      bio = BIO::cipherFilter(aes(javax.crypto.Cipher::DECRYPT_MODE))
+      bio.push(BIO::memBuf(encrypted.mem_copy))
+      dst = java.nio.ByteBuffer.allocateDirect(data.length + 16)
+      assert_equal data.length, bio.read(dst)
+      dst.flip
+      arr = Java::byte[dst.remaining].new
+      dst.get(arr)
+      assert_equal data.to_a, arr.to_a
+    end
   end
 end
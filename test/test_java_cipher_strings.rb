@@ -0,0 +1,75 @@
+module CipherStringsTest
+  CipherStrings = org.jruby.ext.openssl.CipherStrings unless defined?(CipherStrings)
+
+  class TestJavaCipherStrings < Test::Unit::TestCase
+    ALL = %w(TLS_DHE_RSA_WITH_AES_256_CBC_SHA TLS_DHE_DSS_WITH_AES_128_CBC_SHA
+             TLS_RSA_WITH_AES_256_CBC_SHA TLS_RSA_WITH_AES_128_CBC_SHA
+             SSL_RSA_WITH_RC4_128_MD5 SSL_DH_anon_WITH_RC4_128_MD5
+             SSL_RSA_EXPORT_WITH_RC4_40_MD5 TLS_RSA_WITH_NULL_SHA
+             SSL_DHE_RSA_WITH_3DES_EDE_CBC_SHA SSL_UNKNOWN_SUITE)
+
+    def matching(str)
+      CipherStrings.getMatchingCipherSuites(str, ALL.to_java(:string)).to_a
+    end
+
+    def test_all_keeps_engine_order
+      assert_equal ALL - %w(SSL_UNKNOWN_SUITE), matching("ALL")
+    end
+
+    def test_default_list
+      assert_equal %w(TLS_RSA_WITH_AES_256_CBC_SHA TLS_RSA_WITH_AES_128_CBC_SHA
+                      SSL_RSA_WITH_RC4_128_MD5 SSL_RSA_EXPORT_WITH_RC4_40_MD5 TLS_RSA_WITH_NULL_SHA),
+                   matching(CipherStrings::SSL_DEFAULT_CIPHER_LIST)
+    end
+
+    def test_later_terms_add_their_suites
+      assert_equal %w(TLS_DHE_RSA_WITH_AES_256_CBC_SHA TLS_DHE_DSS_WITH_AES_128_CBC_SHA
+                      TLS_RSA_WITH_AES_256_CBC_SHA TLS_RSA_WITH_AES_128_CBC_SHA
+                      SSL_DHE_RSA_WITH_3DES_EDE_CBC_SHA
+                      SSL_RSA_WITH_RC4_128_MD5 SSL_DH_anon_WITH_RC4_128_MD5),
+                   matching("HIGH:MEDIUM")
+    end
+
+    def test_removed_suites_can_come_back_but_killed_ones_cannot
+      assert_equal %w(TLS_DHE_DSS_WITH_AES_128_CBC_SHA SSL_DH_anon_WITH_RC4_128_MD5
+                      SSL_RSA_WITH_RC4_128_MD5 SSL_RSA_EXPORT_WITH_RC4_40_MD5),
+                   matching("ALL:-RSA:RC4")
+      assert_equal %w(TLS_DHE_DSS_WITH_AES_128_CBC_SHA SSL_DH_anon_WITH_RC4_128_MD5),
+                   matching("ALL:!RSA:RC4")
+    end
+
+    def test_plus_moves_to_end
+      assert_equal %w(SSL_RSA_WITH_RC4_128_MD5 SSL_RSA_EXPORT_WITH_RC4_40_MD5 TLS_RSA_WITH_NULL_SHA
+                      TLS_RSA_WITH_AES_256_CBC_SHA TLS_RSA_WITH_AES_128_CBC_SHA),
+                   matching("kRSA:+AES")
+    end
+
+    def test_combined_and_single_cipher_terms
+      assert_equal %w(TLS_DHE_RSA_WITH_AES_256_CBC_SHA TLS_RSA_WITH_AES_256_CBC_SHA
+                      TLS_RSA_WITH_AES_128_CBC_SHA SSL_RSA_WITH_RC4_128_MD5),
+                   matching("RSA+AES:RC4-MD5")
+    end
+
+    def test_unknown_terms_are_ignored
+      assert_equal [], matching("")
+      assert_equal [], matching("NOSUCHCIPHER")
+      assert_equal matching("ALL"), matching("NOSUCHCIPHER:ALL:@NOSUCHSORT")
+    end
+
+    def test_def_list
+      defs = CipherStrings.getMatchingCiphers("RC4-MD5", ALL.to_java(:string)).to_a
+      assert_equal 1, defs.size
+      assert_equal "RC4-MD5", defs[0].name
+      assert_equal "SSL_RSA_WITH_RC4_128_MD5", defs[0].cipherSuite
+    end
+
+    def test_def_list_leaves_shared_defs_alone
+      shared = CipherStrings::CipherNames.get("AES256-SHA")
+      suite = shared.cipherSuite
+      defs = CipherStrings.getMatchingCiphers("AES256-SHA", ALL.to_java(:string)).to_a
+      assert_equal "TLS_RSA_WITH_AES_256_CBC_SHA", defs[0].cipherSuite
+      assert !shared.equal?(defs[0])
+      assert_equal suite, shared.cipherSuite
+    end
+  end
+end
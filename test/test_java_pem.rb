@@ -0,0 +1,74 @@
+require 'openssl'
+
+module PEMTest
+  PEMInputOutput = org.jruby.ext.openssl.x509store.PEMInputOutput unless defined?(PEMInputOutput)
+  StringReader = java.io.StringReader unless defined?(StringReader)
+  BufferedReader = java.io.BufferedReader unless defined?(BufferedReader)
+
+  class TestJavaPEM < Test::Unit::TestCase
+    def setup
+      @ca = PKCS7Test::X509CertString
+      @localhost = PKCS7Test::X509CertString.sub("-----BEGIN CERTIFICATE-----\n", "-----BEGIN CERTIFICATE-----\nComment: second\n\n")
+    end
+
+    def reader(str)
+      BufferedReader.new(StringReader.new(str))
+    end
+
+    def der(pem)
+      pem[/-----BEGIN[^\n]*\n(.*?)-----END/m, 1].gsub(/^.*:.*\n/, "").unpack("m").first
+    end
+
+    def test_reads_bundle_in_one_pass
+      r = reader("some text\n" + @ca + "\nmore text\n" + @localhost)
+      first = PEMInputOutput.readX509Aux(r, nil)
+      second = PEMInputOutput.readX509Aux(r, nil)
+      assert_equal der(@ca), String.from_java_bytes(first.encoded)
+      assert_equal der(@localhost), String.from_java_bytes(second.encoded)
+      assert_nil PEMInputOutput.readX509Aux(r, nil)
+    end
+
+    def test_reads_bundle_larger_than_read_buffer
+      certs = [@ca, @localhost] * 40
+      r = reader(certs.join)
+      count = 0
+      while PEMInputOutput.readX509Certificate(r, nil)
+        count += 1
+      end
+      assert_equal 80, count
+    end
+
+    def test_skips_objects_with_other_labels
+      r = reader(@ca.sub("CERTIFICATE", "X509 CRL").sub("CERTIFICATE", "X509 CRL") + @localhost)
+      cert = PEMInputOutput.readX509Certificate(r, nil)
+      assert_equal der(@localhost), String.from_java_bytes(cert.encoded)
+    end
+
+    def test_pem_to_der_handles_crlf_and_indentation
+      pem = @ca.gsub("\n", "\r\n").gsub(/^([A-Za-z0-9+\/=]+)\r$/) { "  #{$1}  \r" }
+      der = PEMInputOutput.readPEMToDER(StringReader.new(pem))
+      assert_equal der(@ca), String.from_java_bytes(der)
+    end
+
+    def test_pem_to_der_handles_indented_begin_line
+      der = PEMInputOutput.readPEMToDER(StringReader.new(@ca.sub(/^-----BEGIN/, " \t-----BEGIN")))
+      assert_equal der(@ca), String.from_java_bytes(der)
+    end
+
+    def test_truncated_body
+      assert_raises NativeException do
+        PEMInputOutput.readPEMToDER(StringReader.new(@ca.sub(/-----END.*/, '')))
+      end
+    end
+
+    def test_encrypted_private_key_headers
+      key = java.security.KeyPairGenerator.getInstance("RSA").generateKeyPair
+      w = java.io.StringWriter.new
+      PEMInputOutput.writeRSAPrivateKey(w, key.getPrivate, "DESede", java.lang.String.new("secret").toCharArray)
+      pem = w.toString
+      assert_match(/Proc-Type: 4,ENCRYPTED/, pem)
+      pair = PEMInputOutput.readRSAPrivateKey(StringReader.new(pem), java.lang.String.new("secret").toCharArray)
+      assert_equal key.getPublic.getModulus, pair.getPublic.getModulus
+    end
+  end
+end
@@ -764,6 +764,117 @@ PKCS7STR
       assert_equal PKCS7_PEM_FIRST_KEY, String.from_java_bytes(first.enc_key.octets)
       assert_equal PKCS7_PEM_SECOND_KEY, String.from_java_bytes(second.enc_key.octets)
     end
+
+    def self_signed_signers(count)
+      kpg = java.security.KeyPairGenerator.getInstance("RSA", BCP.new)
+      now = java.lang.System.currentTimeMillis
+      (1..count).map do |i|
+        kp = kpg.generateKeyPair
+        name = javax.security.auth.x500.X500Principal.new("CN=signer#{i}")
+        gen = org.bouncycastle.x509.X509V3CertificateGenerator.new
+        gen.setSerialNumber(java.math.BigInteger.valueOf(i))
+        gen.setIssuerDN(name)
+        gen.setSubjectDN(name)
+        gen.setNotBefore(java.util.Date.new(now - 3600000))
+        gen.setNotAfter(java.util.Date.new(now + 3600000))
+        gen.setPublicKey(kp.getPublic)
+        gen.setSignatureAlgorithm("SHA1withRSA")
+        [X509AuxCertificate.new(gen.generate(kp.getPrivate)), kp.getPrivate]
+      end
+    end
+
+    def signed_by(signers, content, digests = [ASN1Registry::NID_sha1])
+      p7 = PKCS7.new
+      p7.type = ASN1Registry::NID_pkcs7_signed
+      p7.content_new(ASN1Registry::NID_pkcs7_data)
+      signers.each_with_index do |(cert, key), i|
+        si = p7.add_signature(cert, key, EVP.getDigest(digests[i % digests.length]))
+        si.add_signed_attribute(ASN1Registry::NID_pkcs9_contentType, ASN1Registry::nid2obj(ASN1Registry::NID_pkcs7_data))
+        p7.add_certificate(cert)
+      end
+      bio = p7.data_init(nil)
+      bytes = content.to_java_bytes
+      bio.write(bytes, 0, bytes.length)
+      p7.data_final(bio)
+      p7
+    end
+
+    def test_verify_with_several_signers
+      signers = self_signed_signers(4)
+      store = Store.new
+      signers.each { |cert, _| store.add_certificate(cert) }
+      p7 = signed_by(signers, "content for four signers")
+
+      out = BIO.mem
+      p7.verify(nil, store, nil, out, 0)
+      assert_equal "content for four signers", String.from_java_bytes(out.mem_copy)
+    end
+
+    def test_verify_with_several_signers_reports_first_untrusted
+      signers = self_signed_signers(3)
+      store = Store.new
+      store.add_certificate(signers[0][0])
+      p7 = signed_by(signers, "content")
+
+      begin
+        p7.verify(nil, store, nil, BIO.mem, 0)
+        flunk "verify should fail"
+      rescue NativeException => e
+        assert_equal PKCS7::R_CERTIFICATE_VERIFY_ERROR, e.cause.reason
+      end
+      p7.verify(nil, store, nil, BIO.mem, PKCS7::NOVERIFY)
+    end
+
+    def test_micalg_follows_signer_order
+      digests = [ASN1Registry::NID_sha512, ASN1Registry::NID_sha1, ASN1Registry::NID_md5, ASN1Registry::NID_sha256]
+      p7 = signed_by(self_signed_signers(4), "content", digests)
+      out = BIO.mem
+      SMIME.new(Mime::DEFAULT).writePKCS7(out, p7, BIO.mem_buf("content".to_java_bytes), PKCS7::DETACHED)
+      assert_match(/ micalg="sha-512,sha1,md5,sha-256";/, String.from_java_bytes(out.mem_copy))
+    end
+
+    def test_data_init_digests_all_algorithms_in_one_filter
+      signers = self_signed_signers(2)
+      p7 = PKCS7.new
+      p7.type = ASN1Registry::NID_pkcs7_signed
+      p7.content_new(ASN1Registry::NID_pkcs7_data)
+      p7.add_signature(signers[0][0], signers[0][1], EVP.getDigest(ASN1Registry::NID_sha1))
+      p7.add_signature(signers[1][0], signers[1][1], EVP.getDigest(ASN1Registry::NID_sha256))
+
+      bio = p7.data_init(nil)
+      assert_equal BIO::TYPE_MD, bio.type
+      assert_not_equal BIO::TYPE_MD, bio.next.type
+      assert_not_nil bio.getMessageDigest(ASN1Registry::NID_sha1)
+      assert_not_nil bio.getMessageDigest(ASN1Registry::NID_sha256)
+    end
+
+    def test_verify_with_signers_using_different_digests
+      signers = self_signed_signers(3)
+      store = Store.new
+      signers.each { |cert, _| store.add_certificate(cert) }
+      p7 = signed_by(signers, "mixed digests", [ASN1Registry::NID_sha1, ASN1Registry::NID_sha256])
+
+      out = BIO.mem
+      p7.verify(nil, store, nil, out, 0)
+      assert_equal "mixed digests", String.from_java_bytes(out.mem_copy)
+    end
+
+    def test_encrypt_wraps_the_key_for_every_recipient
+      recipients = self_signed_signers(2)
+      certs = ArrayList.new
+      100.times { recipients.each { |cert, _| certs.add(cert) } }
+      cipher = javax.crypto.Cipher.getInstance("AES/CBC/PKCS5Padding")
+      p7 = PKCS7.encrypt(certs, "many".to_java_bytes, cipher, PKCS7::BINARY)
+
+      infos = p7.get_enveloped.recipient_info.to_a
+      keys = (0...infos.size).map do |i|
+        ri = infos[i]
+        rsa = javax.crypto.Cipher.getInstance("RSA", BCP.new)
+        rsa.init(javax.crypto.Cipher::DECRYPT_MODE, recipients[i % 2][1])
+        rsa.doFinal(ri.enc_key.octets).to_a
+      end
+      assert_equal 200, keys.size
+      assert_equal 1, keys.uniq.size
+    end
   end
 end
-
@@ -173,5 +173,43 @@ module PKCS7Test
       mime = Mime::DEFAULT
       p7 = SMIME.new(mime).readPKCS7(bio, nil)
     end
+
+    def read_content(message)
+      bcont = BIO[1].new
+      SMIME.new(Mime::DEFAULT).readPKCS7(BIO::from_string(message), bcont)
+      buf = Java::byte[message.length].new
+      read = 0
+      while (n = bcont[0].read(buf, read, buf.length - read)) > 0
+        read += n
+      end
+      [bcont[0], String.from_java_bytes(buf)[0, read]]
+    end
+
+    def test_read_pkcs7_multipart_content_is_canonicalized
+      bio, content = read_content(MultipartSignedString)
+      assert_equal "\r\nThis is some sample content.\r\n\t\t", content
+    end
+
+    def test_read_pkcs7_multipart_canonical_content_is_not_copied
+      bio, content = read_content(MultipartSignedString.gsub("\n", "\r\n"))
+      assert_equal "\r\nThis is some sample content.\r\n\t\t", content
+      assert_equal BIO::TYPE_MEM, bio.type
+    end
+
+    def test_read_pkcs7_multipart_ignores_boundary_inside_a_line
+      message = MultipartSignedString.sub("This is some", "x ------=_NextBoundry____Fri,_06_Sep_2002_00:25:21 y\r\r\nThis is some")
+      bio, content = read_content(message)
+      assert_equal "\r\nx ------=_NextBoundry____Fri,_06_Sep_2002_00:25:21 y\r\nThis is some sample content.\r\n\t\t", content
+    end
+
+    def test_boundary_matcher_finds_delimiter_lines
+      matcher = org.jruby.ext.openssl.impl.BoundaryMatcher.new("abc".to_java_bytes)
+      buf = "x--abc\n--ab--abc\n--abc--\n".to_java_bytes
+      assert_equal 5, matcher.length
+      assert_equal 1, matcher.indexIn(buf, 0, buf.length)
+      assert_equal 11, matcher.indexIn(buf, 2, buf.length)
+      assert_equal(-1, matcher.indexIn(buf, 0, 5))
+      assert_equal 17, matcher.lineIn(buf, 0, buf.length)
+    end
   end
 end
@@ -28,7 +28,13 @@ protect_require 'openssl/test_x509ext'
 protect_require 'openssl/test_x509name'
 protect_require 'openssl/test_x509req'
 protect_require 'openssl/test_x509store'
+protect_require 'test_asn1'
+protect_require 'test_bn'
 protect_require 'test_cipher'
 protect_require 'test_java'
 protect_require 'test_integration'
+protect_require 'test_pkcs7'
 protect_require 'test_pkey'
+protect_require 'test_random'
+protect_require 'test_x509crl'
+protect_require 'test_x509name'
@@ -3,8 +3,7 @@ require 'test/unit'
 
 # JRUBY-3468
 class TestOpensslX509 < Test::Unit::TestCase
-  def test_jruby3468
-    pem_cert = <<END
+  PEM_CERT = <<END
 -----BEGIN CERTIFICATE-----
 MIIC/jCCAmegAwIBAgIBATANBgkqhkiG9w0BAQUFADBNMQswCQYDVQQGEwJKUDER
 MA8GA1UECgwIY3Rvci5vcmcxFDASBgNVBAsMC0RldmVsb3BtZW50MRUwEwYDVQQD
@@ -26,9 +25,37 @@ nTA=
 -----END CERTIFICATE-----
 END
 
-    cert   = OpenSSL::X509::Certificate.new(pem_cert)
+  def test_jruby3468
+    cert   = OpenSSL::X509::Certificate.new(PEM_CERT)
     key_id = cert.extensions[2]
 
     assert_equal "24:D1:34:18:66:91:2A:63:76:AA:19:CE:17:20:56:56:5E:10:8F:AA", key_id.value
   end
+  def test_parsed_fields
+    cert = OpenSSL::X509::Certificate.new(PEM_CERT)
+    assert_equal 1, cert.serial
+    assert_equal "/C=JP/O=ctor.org/OU=Development/CN=http-access2", cert.subject.to_s
+    assert_equal cert.subject.to_s, cert.issuer.to_s
+    assert_equal Time.utc(2007, 9, 11, 13, 58, 31), cert.not_before
+    assert_equal Time.utc(2009, 9, 10, 13, 58, 31), cert.not_after
+    assert_kind_of OpenSSL::PKey::RSA, cert.public_key
+    assert !cert.public_key.private?
+    assert_equal 5, cert.extensions.size
+    assert_equal PEM_CERT[/^-----BEGIN.*\n((.*\n)*)-----END/, 1].unpack("m").first, cert.to_der
+    assert cert.verify(cert.public_key)
+  end
+
+  def test_resign_parsed_cert
+    cert = OpenSSL::X509::Certificate.new(PEM_CERT)
+    key = OpenSSL::PKey::RSA.new(512)
+    cert.public_key = key
+    cert.sign(key, OpenSSL::Digest::SHA1.new)
+    assert cert.verify(key)
+
+    copy = OpenSSL::X509::Certificate.new(cert.to_der)
+    assert_equal "/C=JP/O=ctor.org/OU=Development/CN=http-access2", copy.subject.to_s
+    assert_equal 1, copy.serial
+    assert_equal Time.utc(2009, 9, 10, 13, 58, 31), copy.not_after
+    assert_equal key.public_key.to_der, copy.public_key.to_der
+  end
 end
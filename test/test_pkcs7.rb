@@ -0,0 +1,198 @@
+if defined?(JRUBY_VERSION)
+  require "java"
+  base = File.dirname(__FILE__)
+  $CLASSPATH << File.join(base, '..', 'pkg', 'classes')
+  $CLASSPATH << File.join(base, '..', 'lib', 'bcprov-jdk14-139.jar')
+end
+
+begin
+  require "openssl"
+  require File.join(File.dirname(__FILE__), "openssl", "utils.rb")
+rescue LoadError
+end
+
+require "stringio"
+require "test/unit"
+
+class TestPKCS7 < Test::Unit::TestCase
+  def setup
+    @rsa1024 = OpenSSL::TestUtils::TEST_KEY_RSA1024
+    @rsa2048 = OpenSSL::TestUtils::TEST_KEY_RSA2048
+    ca = OpenSSL::X509::Name.parse("/DC=org/DC=jruby/CN=CA")
+    ee = OpenSSL::X509::Name.parse("/DC=org/DC=jruby/CN=EE")
+    now = Time.now
+    ca_exts = [
+      ["basicConstraints","CA:TRUE",true],
+      ["keyUsage","keyCertSign, cRLSign",true],
+      ["subjectKeyIdentifier","hash",false],
+      ["authorityKeyIdentifier","keyid:always",false],
+    ]
+    ee_exts = [
+      ["keyUsage","Non Repudiation, Digital Signature, Key Encipherment",true],
+      ["authorityKeyIdentifier","keyid:always",false],
+      ["extendedKeyUsage","clientAuth, emailProtection, codeSigning",false],
+    ]
+    @ca_cert = OpenSSL::TestUtils.issue_cert(ca, @rsa2048, 1, now, now + 3600, ca_exts,
+                                             nil, nil, OpenSSL::Digest::SHA1.new)
+    @ee_cert = OpenSSL::TestUtils.issue_cert(ee, @rsa1024, 2, now, now + 1800, ee_exts,
+                                             @ca_cert, @rsa2048, OpenSSL::Digest::SHA1.new)
+    @store = OpenSSL::X509::Store.new
+    @store.add_cert(@ca_cert)
+  end
+
+  def stream_sign(data, flags = 0)
+    p7 = OpenSSL::PKCS7.sign(@ee_cert, @rsa1024, data, [@ca_cert],
+                             flags | OpenSSL::PKCS7::STREAM)
+    out = StringIO.new
+    p7.write_der(out)
+    out.string
+  end
+
+  def test_stream_sign_writes_indefinite_length_ber
+    ber = stream_sign("aaaaa\r\nbbbbb\r\n", OpenSSL::PKCS7::BINARY)
+    assert_equal "\x30\x80", ber[0, 2]
+    assert_equal "\x00\x00" * 3, ber[-6, 6]
+    p7 = OpenSSL::PKCS7::PKCS7.new(ber)
+    assert p7.verify([], @store)
+    assert_equal "aaaaa\r\nbbbbb\r\n", p7.data
+    assert_equal 2, p7.certificates.size
+    assert_equal @ee_cert.serial, p7.signers[0].serial
+  end
+
+  def test_stream_sign_from_io_in_segments
+    data = (0...5000).map { |i| "line #{i}\n" }.join
+    ber = stream_sign(StringIO.new(data))
+    p7 = OpenSSL::PKCS7::PKCS7.new(ber)
+    assert p7.verify([], @store)
+    assert_equal data.gsub("\n", "\r\n"), p7.data
+  end
+
+  def test_stream_sign_detached
+    data = "detached content\n" * 100
+    ber = stream_sign(data, OpenSSL::PKCS7::BINARY | OpenSSL::PKCS7::DETACHED)
+    assert_nil ber.index("detached content")
+    p7 = OpenSSL::PKCS7::PKCS7.new(ber)
+    assert p7.verify([], @store, data)
+    assert !p7.verify([], @store, data + "x")
+  end
+
+  def test_stream_sign_writes_only_once
+    p7 = OpenSSL::PKCS7.sign(@ee_cert, @rsa1024, "once", [@ca_cert],
+                             OpenSSL::PKCS7::BINARY | OpenSSL::PKCS7::STREAM)
+    p7.write_der(StringIO.new)
+    assert_raise(OpenSSL::PKCS7::PKCS7Error) { p7.write_der(StringIO.new) }
+    assert_raise(OpenSSL::PKCS7::PKCS7Error) { p7.to_der }
+    assert_raise(OpenSSL::PKCS7::PKCS7Error) { OpenSSL::PKCS7.write_smime(p7) }
+  end
+
+  def test_stream_sign_to_der_before_write_der
+    p7 = OpenSSL::PKCS7.sign(@ee_cert, @rsa1024, "later", [@ca_cert],
+                             OpenSSL::PKCS7::BINARY | OpenSSL::PKCS7::STREAM)
+    assert_raise(OpenSSL::PKCS7::PKCS7Error) { p7.to_der }
+    out = StringIO.new
+    p7.write_der(out)
+    p7 = OpenSSL::PKCS7::PKCS7.new(out.string)
+    assert p7.verify([], @store)
+    assert_equal "later", p7.data
+  end
+
+  def test_write_der_without_stream
+    p7 = OpenSSL::PKCS7.sign(@ee_cert, @rsa1024, "plain", [@ca_cert], OpenSSL::PKCS7::BINARY)
+    out = StringIO.new
+    assert_same out, p7.write_der(out)
+    assert_equal p7.to_der, out.string
+  end
+
+  def test_verify_detached_from_io_to_io
+    data = "streamed line\n" * 2000
+    flags = OpenSSL::PKCS7::BINARY | OpenSSL::PKCS7::DETACHED
+    p7 = OpenSSL::PKCS7::PKCS7.new(StringIO.new(stream_sign(data, flags)))
+    out = StringIO.new
+    assert p7.verify([], @store, StringIO.new(data), nil, out)
+    assert_equal data, out.string
+    assert !p7.verify([], @store, StringIO.new(data + "x"), nil, StringIO.new)
+  end
+
+  def test_decrypt_to_io
+    data = "secret\n" * 1000
+    cipher = OpenSSL::Cipher::AES.new("128-CBC")
+    p7 = OpenSSL::PKCS7.encrypt([@ee_cert], data, cipher, OpenSSL::PKCS7::BINARY)
+    p7 = OpenSSL::PKCS7::PKCS7.new(p7.to_der)
+    out = StringIO.new
+    assert_same out, p7.decrypt(@rsa1024, @ee_cert, nil, out)
+    assert_equal data, out.string
+    assert_equal data, p7.decrypt(@rsa1024, @ee_cert)
+  end
+
+  def test_write_smime_signed_data
+    p7 = OpenSSL::PKCS7.sign(@ee_cert, @rsa1024, "signed text\n", [@ca_cert])
+    smime = OpenSSL::PKCS7.write_smime(p7)
+    assert_match(/^Content-Type: application\/x-pkcs7-mime; smime-type=signed-data;/, smime)
+    read = OpenSSL::PKCS7.read_smime(smime)
+    assert_equal p7.to_der, read.to_der
+    assert read.verify([], @store)
+    assert_equal "signed text\r\n", read.data
+  end
+
+  def test_write_smime_detached_multipart
+    data = "first line\nsecond line\n"
+    flags = OpenSSL::PKCS7::DETACHED
+    p7 = OpenSSL::PKCS7.sign(@ee_cert, @rsa1024, data, [@ca_cert], flags)
+    smime = OpenSSL::PKCS7.write_smime(p7, data, flags)
+    assert_match(/protocol="application\/x-pkcs7-signature"; micalg="sha1";/, smime)
+    assert smime.index("first line\r\nsecond line\r\n")
+    read = OpenSSL::PKCS7.read_smime(smime)
+    assert_equal "first line\r\nsecond line\r\n", read.data
+    assert read.verify([], @store)
+  end
+
+  def test_write_smime_stream_detached_to_io
+    data = (0...3000).map { |i| "line #{i}\n" }.join
+    flags = OpenSSL::PKCS7::DETACHED | OpenSSL::PKCS7::STREAM
+    p7 = OpenSSL::PKCS7.sign(@ee_cert, @rsa1024, StringIO.new(data), [@ca_cert], flags)
+    out = StringIO.new
+    assert_same out, OpenSSL::PKCS7.write_smime(p7, nil, nil, out)
+    assert_equal 0, out.string.index("MIME-Version: 1.0\nContent-Type: multipart/signed;")
+    read = OpenSSL::PKCS7.read_smime(out.string)
+    assert_equal data.gsub("\n", "\r\n"), read.data
+    assert read.verify([], @store)
+    assert !read.verify([], @store, read.data + "x")
+  end
+
+  def test_write_smime_stream_embedded
+    data = "embedded\n" * 5000
+    p7 = OpenSSL::PKCS7.sign(@ee_cert, @rsa1024, StringIO.new(data), [@ca_cert],
+                             OpenSSL::PKCS7::BINARY | OpenSSL::PKCS7::STREAM)
+    out = StringIO.new
+    OpenSSL::PKCS7.write_smime(p7, nil, nil, out)
+    read = OpenSSL::PKCS7.read_smime(out.string)
+    assert read.verify([], @store)
+    assert_equal data, read.data
+  end
+
+  def test_write_smime_enveloped
+    cipher = OpenSSL::Cipher::AES.new("128-CBC")
+    p7 = OpenSSL::PKCS7.encrypt([@ee_cert], "secret", cipher, OpenSSL::PKCS7::BINARY)
+    smime = OpenSSL::PKCS7.write_smime(p7)
+    assert_match(/smime-type=enveloped-data;/, smime)
+    assert_equal "secret", OpenSSL::PKCS7.read_smime(smime).decrypt(@rsa1024, @ee_cert)
+  end
+
+  def test_encrypt_from_io
+    data = "streamed secret\n" * 1000
+    cipher = OpenSSL::Cipher::AES.new("128-CBC")
+    p7 = OpenSSL::PKCS7.encrypt([@ee_cert], StringIO.new(data), cipher, OpenSSL::PKCS7::BINARY)
+    p7 = OpenSSL::PKCS7::PKCS7.new(p7.to_der)
+    assert_equal data, p7.decrypt(@rsa1024, @ee_cert)
+  end
+
+  def test_encrypt_to_many_recipients
+    certs = [@ee_cert, @ca_cert] * 100
+    cipher = OpenSSL::Cipher::AES.new("128-CBC")
+    p7 = OpenSSL::PKCS7.encrypt(certs, "to everyone", cipher, OpenSSL::PKCS7::BINARY)
+    p7 = OpenSSL::PKCS7::PKCS7.new(p7.to_der)
+    assert_equal 200, p7.recipients.size
+    assert_equal "to everyone", p7.decrypt(@rsa1024, @ee_cert)
+    assert_equal "to everyone", p7.decrypt(@rsa2048, @ca_cert)
+  end
+end
@@ -43,4 +43,12 @@ class TestPKey < Test::Unit::TestCase
 
   def test_can_generate_dsa_key
   end
+
+  def test_can_generate_dh_params
+    dh = OpenSSL::PKey::DH.generate(256, 2)
+    assert_equal 256, dh.p.num_bits
+    assert_equal OpenSSL::BN.new("11"), dh.p % 24
+    assert dh.p.prime?
+    assert ((dh.p - 1) >> 1).prime?
+  end
 end
@@ -0,0 +1,61 @@
+if defined?(JRUBY_VERSION)
+  require "java"
+  base = File.dirname(__FILE__)
+  $CLASSPATH << File.join(base, '..', 'pkg', 'classes')
+  $CLASSPATH << File.join(base, '..', 'lib', 'bcprov-jdk14-139.jar')
+end
+
+begin
+  require "openssl"
+rescue LoadError
+end
+
+require "test/unit"
+
+class TestRandom < Test::Unit::TestCase
+  def teardown
+    OpenSSL::Random.buffered = false
+  end
+
+  def test_random_bytes_length
+    [0, 1, 16, 64, 65, 1000].each do |len|
+      assert_equal len, OpenSSL::Random.random_bytes(len).size
+      assert_equal len, OpenSSL::Random.pseudo_bytes(len).size
+    end
+  end
+
+  def test_buffered_mode
+    assert !OpenSSL::Random.buffered?
+    OpenSSL::Random.buffered = true
+    assert OpenSSL::Random.buffered?
+    seen = {}
+    200.times do
+      [1, 16, 33, 64, 65].each do |len|
+        bytes = OpenSSL::Random.random_bytes(len)
+        assert_equal len, bytes.size
+        seen[bytes] = true if len >= 16
+      end
+    end
+    assert_equal 800, seen.size
+  end
+
+  def test_concurrent_random_bytes
+    threads = (1..4).map do
+      Thread.new do
+        (1..100).map { OpenSSL::Random.random_bytes(16) }
+      end
+    end
+    all = threads.map { |t| t.value }.flatten
+    assert_equal 400, all.uniq.size
+  end
+
+  def test_bn_rand_from_threads
+    threads = (1..4).map do
+      Thread.new { (1..10).map { OpenSSL::BN.rand(128, 0, true) } }
+    end
+    threads.map { |t| t.value }.flatten.each do |bn|
+      assert_equal 128, bn.num_bits
+      assert bn.odd?
+    end
+  end
+end
@@ -0,0 +1,152 @@
+if defined?(JRUBY_VERSION)
+  require "java"
+  base = File.dirname(__FILE__)
+  $CLASSPATH << File.join(base, '..', 'pkg', 'classes')
+  $CLASSPATH << File.join(base, '..', 'lib', 'bcprov-jdk14-139.jar')
+end
+
+begin
+  require "openssl"
+  require File.join(File.dirname(__FILE__), "openssl", "utils.rb")
+rescue LoadError
+end
+
+require "test/unit"
+
+class TestX509CRL < Test::Unit::TestCase
+  def setup
+    @rsa2048 = OpenSSL::TestUtils::TEST_KEY_RSA2048
+    @ca = OpenSSL::X509::Name.parse("/DC=org/DC=jruby/CN=CA")
+    @now = Time.at(Time.now.to_i)
+    @cert = OpenSSL::TestUtils.issue_cert(@ca, @rsa2048, 1, @now, @now + 3600, [],
+                                          nil, nil, OpenSSL::Digest::SHA1.new)
+  end
+
+  def parsed_crl(serials)
+    revoke_info = serials.map { |s| [s, @now, 1] }
+    crl = OpenSSL::TestUtils.issue_crl(revoke_info, 1, @now, @now + 1600, [],
+                                       @cert, @rsa2048, OpenSSL::Digest::SHA1.new)
+    OpenSSL::X509::CRL.new(crl.to_der)
+  end
+
+  def test_parsed_revoked_entries
+    crl = parsed_crl([3, 2**70, 7])
+    revoked = crl.revoked
+    assert_equal [3, 2**70, 7], revoked.map { |r| r.serial }
+    assert_equal [@now] * 3, revoked.map { |r| r.time }
+  end
+
+  def test_each_revoked
+    crl = parsed_crl((1..50).to_a)
+    serials = []
+    assert_same crl, crl.each_revoked { |r| serials << r.serial }
+    assert_equal((1..50).to_a, serials)
+  end
+
+  def test_serial_lookup
+    crl = parsed_crl([5, 2**70, 300])
+    assert crl.revoked?(5)
+    assert crl.revoked?(2**70)
+    assert crl.revoked?(OpenSSL::BN.new("300"))
+    assert !crl.revoked?(6)
+    assert !crl.revoked?(2**70 + 1)
+    assert_equal 300, crl.find_revoked(300).serial
+    assert_equal @now, crl.find_revoked(300).time
+    assert_nil crl.find_revoked(301)
+  end
+
+  def test_lookup_after_add_revoked
+    crl = parsed_crl([1, 2])
+    rev = OpenSSL::X509::Revoked.new
+    rev.serial = 10
+    rev.time = @now
+    crl.add_revoked(rev)
+    assert_equal [1, 2, 10], crl.revoked.map { |r| r.serial }
+    assert crl.revoked?(10)
+    assert_same rev, crl.find_revoked(10)
+  end
+
+  def test_empty_crl
+    crl = parsed_crl([])
+    assert_equal [], crl.revoked
+    assert !crl.revoked?(1)
+    count = 0
+    crl.each_revoked { count += 1 }
+    assert_equal 0, count
+  end
+
+  def test_parsed_crl_round_trip
+    crl = parsed_crl([1, 2])
+    assert_equal crl.to_der, OpenSSL::X509::CRL.new(crl.to_pem).to_der
+    assert crl.verify(@rsa2048)
+  end
+
+  def new_crl
+    crl = OpenSSL::X509::CRL.new
+    crl.version = 1
+    crl.issuer = @cert.subject
+    crl.last_update = @now
+    crl.next_update = @now + 1600
+    crl
+  end
+
+  def test_add_revoked_entries
+    crl = new_crl
+    times = [@now - 10, @now - 5, @now.to_i]
+    assert_same crl, crl.add_revoked_entries([4, 2**70, OpenSSL::BN.new("9")], times)
+    assert crl.revoked?(2**70)
+    assert crl.revoked?(9)
+    assert !crl.revoked?(5)
+    assert_equal @now - 5, crl.find_revoked(2**70).time
+    assert_equal [4, 2**70, 9], crl.revoked.map { |r| r.serial }
+    assert_equal [@now - 10, @now - 5, @now], crl.revoked.map { |r| r.time }
+  end
+
+  def test_add_revoked_entries_with_one_time
+    crl = new_crl
+    crl.add_revoked_entries((1..100).to_a, @now)
+    serials = []
+    crl.each_revoked { |r| serials << r.serial; assert_equal @now, r.time }
+    assert_equal((1..100).to_a, serials)
+  end
+
+  def test_add_revoked_entries_bad_arguments
+    crl = new_crl
+    assert_raise(ArgumentError) { crl.add_revoked_entries([1, 2], [@now]) }
+    assert_raise(TypeError) { crl.add_revoked_entries(["1"], @now) }
+    assert_raise(TypeError) { crl.add_revoked_entries([1], "now") }
+  end
+
+  def test_sign_bulk_entries
+    crl = new_crl
+    crl.add_revoked_entries((1..1000).to_a, @now)
+    crl.sign(@rsa2048, OpenSSL::Digest::SHA1.new)
+    assert crl.verify(@rsa2048)
+    parsed = OpenSSL::X509::CRL.new(crl.to_der)
+    assert parsed.verify(@rsa2048)
+    assert_equal 1, parsed.version
+    assert_equal @cert.subject.to_s, parsed.issuer.to_s
+    assert_equal @now, parsed.last_update
+    assert_equal @now + 1600, parsed.next_update
+    assert_equal((1..1000).to_a, parsed.revoked.map { |r| r.serial })
+  end
+
+  def test_resign_parsed_crl_with_bulk_entries
+    crl = parsed_crl([1, 2])
+    rev = OpenSSL::X509::Revoked.new
+    rev.serial = 3
+    rev.time = @now
+    crl.add_revoked(rev)
+    crl.add_revoked_entries([4, 5], @now)
+    crl.sign(@rsa2048, OpenSSL::Digest::SHA1.new)
+    parsed = OpenSSL::X509::CRL.new(crl.to_der)
+    assert parsed.verify(@rsa2048)
+    assert_equal [1, 2, 3, 4, 5], parsed.revoked.map { |r| r.serial }
+    assert crl.revoked?(5)
+    assert_equal [1, 2, 3, 4, 5], crl.revoked.map { |r| r.serial }
+  end
+
+  def test_invalid_der
+    assert_raise(OpenSSL::X509::CRLError) { OpenSSL::X509::CRL.new("\x30\x05\x30\x03") }
+  end
+end
@@ -0,0 +1,63 @@
+if defined?(JRUBY_VERSION)
+  require "java"
+  base = File.dirname(__FILE__)
+  $CLASSPATH << File.join(base, '..', 'pkg', 'classes')
+  $CLASSPATH << File.join(base, '..', 'lib', 'bcprov-jdk14-139.jar')
+end
+
+begin
+  require "openssl"
+rescue LoadError
+end
+
+require "test/unit"
+
+class TestX509Name < Test::Unit::TestCase
+  def test_eql_ignores_case_spacing_and_order
+    a = OpenSSL::X509::Name.parse("/C=US/O=JRuby  Project/CN=foo")
+    b = OpenSSL::X509::Name.parse("/CN=FOO/C=us/O= jruby project")
+    c = OpenSSL::X509::Name.parse("/C=US/O=JRuby Project/CN=bar")
+    assert a.eql?(b)
+    assert_equal a.hash, b.hash
+    assert !a.eql?(c)
+    assert_equal 0, a.cmp(b)
+  end
+
+  def test_hash_key
+    names = (0...100).map { |i| OpenSSL::X509::Name.parse("/O=JRuby/CN=host#{i}") }
+    table = {}
+    names.each_with_index { |n, i| table[n] = i }
+    assert_equal 100, table.size
+    assert_equal 42, table[OpenSSL::X509::Name.parse("/O=jruby/CN=HOST42")]
+  end
+
+  def test_cmp_orders_names
+    names = %w(c a b).map { |cn| OpenSSL::X509::Name.parse("/CN=#{cn}") }
+    a, b = names[1], names[2]
+    assert_equal(-a.cmp(b), b.cmp(a))
+    sorted = names.sort { |x, y| x.cmp(y) }
+    assert_equal sorted, sorted.sort { |x, y| x.cmp(y) }
+    assert_equal names.size, sorted.uniq.size
+  end
+
+  def test_add_entry_drops_cached_forms
+    name = OpenSSL::X509::Name.parse("/C=US/CN=foo")
+    der = name.to_der
+    rfc = name.to_s(OpenSSL::X509::Name::RFC2253)
+    hash = name.hash
+    assert_equal der, name.to_der
+    name.add_entry("O", "JRuby")
+    assert_not_equal der, name.to_der
+    assert_equal "O=JRuby,CN=foo,C=US", name.to_s(OpenSSL::X509::Name::RFC2253)
+    assert_not_equal rfc, name.to_s(OpenSSL::X509::Name::RFC2253)
+    assert_not_equal hash, name.hash
+    assert_equal name.to_der, OpenSSL::X509::Name.new(name.to_der).to_der
+  end
+
+  def test_to_der_value_types
+    name = OpenSSL::X509::Name.new([["C", "US"], ["DC", "org"], ["CN", "foo"], ["O", "bar", OpenSSL::ASN1::T61STRING]])
+    types = OpenSSL::ASN1.decode(name.to_der).value.map { |set| set.value.first.value.last.class }
+    assert_equal [OpenSSL::ASN1::PrintableString, OpenSSL::ASN1::IA5String,
+                  OpenSSL::ASN1::UTF8String, OpenSSL::ASN1::T61String], types
+  end
+end